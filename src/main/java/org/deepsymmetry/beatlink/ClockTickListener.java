@@ -0,0 +1,34 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+
+/**
+ * The listener interface for receiving the ticks generated by the {@link MusicalClock}, which subdivides the beats of
+ * the tempo master into a configurable number of pulses per quarter note. Register with
+ * {@link MusicalClock#addClockTickListener(ClockTickListener)}.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public interface ClockTickListener {
+
+    /**
+     * <p>Invoked each time the clock reaches a new tick.</p>
+     *
+     * <p>To keep timing tight, ticks are delivered directly on the clock's own thread, so if you want to
+     * interact with user interface objects in this method, you need to use
+     * <code><a href="http://docs.oracle.com/javase/8/docs/api/javax/swing/SwingUtilities.html#invokeLater-java.lang.Runnable-">javax.swing.SwingUtilities.invokeLater(Runnable)</a></code>
+     * to do so on the Event Dispatch Thread.</p>
+     *
+     * <p>Even if you are not interacting with user interface objects, any code in this method
+     * <em>must</em> finish quickly, or it will delay the ticks that follow, which may be only a few milliseconds
+     * apart. If you want to perform lengthy processing of any sort, do so on another thread.</p>
+     *
+     * @param tick the number of ticks since the clock started, counting from zero; ticks that are multiples of
+     *             {@code ticksPerBeat} fall on beats
+     * @param ticksPerBeat the resolution of the clock, in pulses per quarter note, when the tick was generated
+     * @param tempo the tempo the clock is following, in beats per minute
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    void tick(long tick, int ticksPerBeat, double tempo);
+}
@@ -0,0 +1,34 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A host application can implement this interface and register it using
+ * {@link TaskExecutor#setExecutorFactory(ExecutorFactory)} to control the threads on which Beat Link performs
+ * its background work, for example to share its own pools, or to impose different limits.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+@FunctionalInterface
+public interface ExecutorFactory {
+
+    /**
+     * Create the executor that will run all tasks of a particular kind. Called once for each kind of task the first
+     * time such a task is submitted after the factory has been registered. Tasks must eventually be run even when
+     * they arrive faster than they can be started, so executors should queue rather than reject them. Executors
+     * for {@link TaskClass#ANIMATION} tasks must be able to run all of them at once, since they do not end
+     * until the components they animate are no longer in use.
+     *
+     * <p>The factory may return the result of {@link TaskExecutor#createDefaultExecutor(TaskClass)} for kinds of
+     * task it does not wish to handle specially.</p>
+     *
+     * @param taskClass the kind of task that will be run by the executor
+     *
+     * @return the executor to use for that kind of task
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    ExecutorService createExecutor(TaskClass taskClass);
+}
@@ -69,7 +69,7 @@ public abstract class LifecycleParticipant {
      * @param starting will be {@code true} if the DeviceFinder is starting, {@code false} if it is stopping.
      */
     protected void deliverLifecycleAnnouncement(final Logger logger, final boolean starting) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute(TaskClass.LIFECYCLE, "Lifecycle announcement delivery", () -> {
             for (final LifecycleListener listener : getLifecycleListeners()) {
                 try {
                     if (starting) {
@@ -81,7 +81,7 @@ public abstract class LifecycleParticipant {
                     logger.warn("Problem delivering lifecycle announcement to listener", t);
                 }
             }
-        }, "Lifecycle announcement delivery").start();
+        });
     }
 
     /**
@@ -0,0 +1,732 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Generates a steady stream of ticks, subdivided from the beats of the tempo master (for example 24 or 96 pulses
+ * per quarter note, as used by sequencers), and delivers them to registered {@link ClockTickListener}s. It also
+ * offers the clock's beat position and phase at any moment, for things like visuals that want to sample it once
+ * per frame.</p>
+ *
+ * <p>The clock follows the master tempo reported by the {@link VirtualCdj}, and phase-locks itself to the beat
+ * packets sent by the tempo master: each master beat is compared with where the clock expected it to fall, and the
+ * clock's rate is adjusted to absorb the difference, both by a lasting correction that tracks consistent drift
+ * (and survives tempo changes), and by a temporary one that pulls the phase into line over the course of the
+ * following beat. The clock's position never jumps, and corrections are limited in size, so when the tempo master
+ * changes (or disappears, in which case the clock keeps running at the last tempo it knew), the clock slides
+ * smoothly into alignment with the new master's beats, with tick intervals stretched or squeezed by only a few
+ * percent. Corrections never cause ticks to be skipped, bunched up, or repeated. Ticks are only skipped if the
+ * clock's own thread is held up for more than a beat (for example by a listener that takes too long): up to a beat's
+ * worth of overdue ticks are then delivered in a burst, and any older ones are dropped so the clock returns to the
+ * present, and counted (see {@link #getSkippedTickCount()}). How closely the master beats have matched the clock is
+ * reported as drift and jitter statistics, along with how punctually ticks have been delivered.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class MusicalClock extends LifecycleParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(MusicalClock.class);
+
+    /**
+     * How much of the phase error found at each master beat is made up over the following beat.
+     */
+    private static final double PHASE_GAIN = 0.25;
+
+    /**
+     * How strongly each master beat adjusts the rate of the clock to absorb a consistent lead or lag.
+     */
+    private static final double RATE_GAIN = 0.02;
+
+    /**
+     * The largest fraction of the tempo that we will temporarily add or subtract to make up a phase error, which is
+     * also the largest fraction of a beat that can be made up in one beat, so that master handoffs are absorbed
+     * gradually.
+     */
+    private static final double MAX_PHASE_SLEW = 0.05;
+
+    /**
+     * The largest fraction of the tempo that we are willing to add or subtract to track a consistent drift.
+     */
+    private static final double MAX_RATE_CORRECTION = 0.02;
+
+    /**
+     * How quickly the error statistics respond to new master beats.
+     */
+    private static final double STATISTICS_WEIGHT = 0.05;
+
+    /**
+     * When the next tick is this close, in nanoseconds, we busy-wait rather than sleeping, so we can deliver it more
+     * accurately than the operating system scheduler would allow.
+     */
+    private static final long SPIN_THRESHOLD = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * The longest we will sleep at a time, in nanoseconds, so that we notice tempo changes promptly even if nothing
+     * wakes us.
+     */
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * How many beats' worth of overdue ticks we will deliver in a burst if our thread was held up; ticks that are
+     * overdue by more than this many beats are skipped (and counted) to bring the clock back to the present.
+     */
+    private static final int MAX_CATCH_UP_BEATS = 1;
+
+    /**
+     * Protects the clock's timeline, which is updated by master events and read by the tick thread and callers.
+     */
+    private final Object timeline = new Object();
+
+    /**
+     * The {@link System#nanoTime()} at which the timeline was last anchored.
+     */
+    private long anchorTime;
+
+    /**
+     * The clock's position, in beats since it started, at {@link #anchorTime}.
+     */
+    private double anchorBeats;
+
+    /**
+     * The tempo the clock is following, in beats per minute, or zero if it is not moving.
+     */
+    private double tempo;
+
+    /**
+     * The fraction of the tempo being added or subtracted to track a consistent drift of the master's beats.
+     */
+    private double rateCorrection;
+
+    /**
+     * The fraction of the tempo being temporarily added or subtracted, until {@link #slewEndTime}, to make up the
+     * phase error found at the most recent master beat.
+     */
+    private double phaseSlew;
+
+    /**
+     * The {@link System#nanoTime()} at which {@link #phaseSlew} stops applying.
+     */
+    private long slewEndTime;
+
+    /**
+     * The number of beats to add to the clock's beat count to find where the beat falls within its bar.
+     */
+    private int barOffset;
+
+    /**
+     * The {@link System#nanoTime()} at which the most recent master beat arrived, or zero if none has.
+     */
+    private long lastMasterBeat;
+
+    /**
+     * Exponentially weighted averages of the phase errors of the master beats and their squares, in milliseconds.
+     */
+    private double meanPhaseError;
+    private double meanSquaredPhaseError;
+
+    /**
+     * The resolution of the clock, in ticks per beat.
+     */
+    private final AtomicLong ticksPerBeat = new AtomicLong(24);
+
+    /**
+     * Counters and measurements for monitoring.
+     */
+    private final AtomicLong masterBeatCount = new AtomicLong();
+    private final AtomicLong handoffCount = new AtomicLong();
+    private final AtomicLong tickCount = new AtomicLong();
+    private final AtomicLong skippedTickCount = new AtomicLong();
+    private final AtomicLong totalTickLateness = new AtomicLong();
+    private final AtomicLong maxTickLateness = new AtomicLong();
+
+    /**
+     * The thread generating ticks, when we are running. A tick thread keeps going only as long as it is still the
+     * one recorded here, so a thread left over from before a quick stop and restart cannot deliver duplicate ticks.
+     */
+    private volatile Thread tickThread;
+
+    /**
+     * Keeps track of where a tick thread has reached. Each tick thread has its own.
+     */
+    private static class TickState {
+
+        /**
+         * The tick we are waiting to deliver.
+         */
+        long nextTick;
+
+        /**
+         * The resolution at which we are numbering ticks.
+         */
+        int resolution;
+
+        /**
+         * Constructor sets the starting resolution.
+         *
+         * @param resolution the number of ticks per beat when the thread starts
+         */
+        TickState(int resolution) {
+            this.resolution = resolution;
+        }
+    }
+
+    /**
+     * Check whether the calling thread is the one that should be generating ticks.
+     *
+     * @return {@code true} if we are running and the current thread has not been replaced
+     */
+    private boolean isCurrentTickThread() {
+        return isRunning() && Thread.currentThread() == tickThread;
+    }
+
+    /**
+     * Keep track of whether we are running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * Check whether we are currently running.
+     *
+     * @return true if the clock is following the tempo master and generating ticks
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Work out where the clock will be at a given moment. Must be called while holding the {@link #timeline} lock.
+     *
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the clock's position, in beats since it started
+     */
+    private double beatsAt(long timestamp) {
+        final double rate = tempo * (1.0 + rateCorrection) / TimeUnit.MINUTES.toNanos(1);
+        final double slewingRate = tempo * (1.0 + rateCorrection + phaseSlew) / TimeUnit.MINUTES.toNanos(1);
+        final long slewEnd = Math.max(anchorTime, slewEndTime);
+        if (timestamp <= slewEnd) {
+            return anchorBeats + (timestamp - anchorTime) * slewingRate;
+        }
+        return anchorBeats + (slewEnd - anchorTime) * slewingRate + (timestamp - slewEnd) * rate;
+    }
+
+    /**
+     * Work out when the clock will reach a given position. Must be called while holding the {@link #timeline} lock.
+     *
+     * @param beats the position of interest, in beats since the clock started
+     *
+     * @return the {@link System#nanoTime()} at which the clock will reach that position, or {@link Long#MAX_VALUE}
+     *         if the clock is not moving
+     */
+    private long timeOfBeats(double beats) {
+        if (tempo <= 0.0) {
+            return Long.MAX_VALUE;
+        }
+        final double rate = tempo * (1.0 + rateCorrection) / TimeUnit.MINUTES.toNanos(1);
+        final double slewingRate = tempo * (1.0 + rateCorrection + phaseSlew) / TimeUnit.MINUTES.toNanos(1);
+        final long slewEnd = Math.max(anchorTime, slewEndTime);
+        final double slewEndBeats = anchorBeats + (slewEnd - anchorTime) * slewingRate;
+        if (beats <= slewEndBeats) {
+            return anchorTime + Math.round((beats - anchorBeats) / slewingRate);
+        }
+        return slewEnd + Math.round((beats - slewEndBeats) / rate);
+    }
+
+    /**
+     * Move the anchor of the timeline to a new moment without changing the clock's position, in preparation for
+     * a change of tempo or rate. Must be called while holding the {@link #timeline} lock.
+     *
+     * @param timestamp the {@link System#nanoTime()} at which the change takes effect
+     */
+    private void reanchor(long timestamp) {
+        anchorBeats = beatsAt(timestamp);
+        anchorTime = timestamp;
+    }
+
+    /**
+     * Follow a new master tempo.
+     *
+     * @param newTempo the tempo reported by the {@link VirtualCdj}
+     */
+    private void followTempo(double newTempo) {
+        synchronized (timeline) {
+            reanchor(System.nanoTime());
+            tempo = Math.max(0.0, newTempo);  // Keep our rate correction, which reflects drift rather than tempo.
+        }
+        LockSupport.unpark(tickThread);
+    }
+
+    /**
+     * Phase-lock the clock to a beat from the tempo master.
+     *
+     * @param beat the beat packet that the tempo master sent
+     */
+    private void lockToBeat(Beat beat) {
+        synchronized (timeline) {
+            final long timestamp = beat.getTimestamp();
+            if (tempo <= 0.0) {
+                tempo = beat.getEffectiveTempo();
+                anchorTime = timestamp;
+                anchorBeats = Math.ceil(beatsAt(timestamp));
+            }
+            final double expected = beatsAt(timestamp);
+            final long beatNumber = Math.round(expected);
+            final double error = beatNumber - expected;  // Positive when the master is ahead of us.
+            reanchor(timestamp);
+            rateCorrection = Math.max(-MAX_RATE_CORRECTION, Math.min(MAX_RATE_CORRECTION, rateCorrection + RATE_GAIN * error));
+            // Make up part of the phase error by running slightly fast or slow for the next beat, rather than jumping.
+            phaseSlew = Math.max(-MAX_PHASE_SLEW, Math.min(MAX_PHASE_SLEW, PHASE_GAIN * error));
+            slewEndTime = timestamp + Math.round(TimeUnit.MINUTES.toNanos(1) / (tempo * (1.0 + rateCorrection)));
+            if (beat.isBeatWithinBarMeaningful()) {
+                barOffset = (int) Math.floorMod(beat.getBeatWithinBar() - 1 - beatNumber, 4L);
+            }
+            lastMasterBeat = timestamp;
+            final double errorMilliseconds = error * TimeUnit.MINUTES.toMillis(1) / tempo;
+            meanPhaseError += STATISTICS_WEIGHT * (errorMilliseconds - meanPhaseError);
+            meanSquaredPhaseError += STATISTICS_WEIGHT * (errorMilliseconds * errorMilliseconds - meanSquaredPhaseError);
+        }
+        masterBeatCount.incrementAndGet();
+        LockSupport.unpark(tickThread);
+    }
+
+    /**
+     * Responds to tempo master changes and master beats.
+     */
+    private final MasterListener masterListener = new MasterListener() {
+        @Override
+        public void masterChanged(DeviceUpdate update) {
+            if (update != null) {
+                handoffCount.incrementAndGet();
+            }
+            logger.debug("MusicalClock continuing with new tempo master {}", update);
+        }
+
+        @Override
+        public void tempoChanged(double tempo) {
+            followTempo(tempo);
+        }
+
+        @Override
+        public void newBeat(Beat beat) {
+            lockToBeat(beat);
+        }
+    };
+
+    /**
+     * Deliver any ticks which are due, then wait until the next one is.
+     *
+     * @param state keeps track of where the calling tick thread has reached, and is updated to the tick it should
+     *              deliver next
+     */
+    private void deliverDueTicks(TickState state) {
+        long nextTick = state.nextTick;
+        final int resolution = (int) ticksPerBeat.get();
+        final double currentTempo;
+        long tickTime;
+        long now = System.nanoTime();
+        synchronized (timeline) {
+            currentTempo = tempo;
+            final long currentTick = (long) Math.floor(beatsAt(now) * resolution);
+            if (resolution != state.resolution) {
+                state.resolution = resolution;  // The resolution has changed, so renumber from where we are.
+                nextTick = currentTick + 1;
+            } else if (currentTick - nextTick > (long) MAX_CATCH_UP_BEATS * resolution) {
+                skippedTickCount.addAndGet(currentTick - nextTick);
+                nextTick = currentTick;
+            }
+            tickTime = timeOfBeats((double) nextTick / resolution);
+        }
+        while (tickTime <= now && isCurrentTickThread()) {
+            final long lateness = now - tickTime;
+            totalTickLateness.addAndGet(lateness);
+            maxTickLateness.accumulateAndGet(lateness, Math::max);
+            tickCount.incrementAndGet();
+            for (final ClockTickListener listener : clockTickListeners) {
+                try {
+                    listener.tick(nextTick, resolution, currentTempo);
+                } catch (Throwable t) {
+                    logger.warn("Problem delivering clock tick to listener", t);
+                }
+            }
+            nextTick++;
+            now = System.nanoTime();
+            synchronized (timeline) {
+                tickTime = timeOfBeats((double) nextTick / resolution);
+            }
+        }
+        final long wait = tickTime - now;
+        if (wait > SPIN_THRESHOLD) {
+            LockSupport.parkNanos(Math.min(MAX_SLEEP, wait - SPIN_THRESHOLD));
+        } else {
+            Thread.onSpinWait();
+        }
+        state.nextTick = nextTick;
+    }
+
+    /**
+     * Set up to automatically stop if anything we depend on stops.
+     */
+    private final LifecycleListener lifecycleListener = new LifecycleListener() {
+        @Override
+        public void started(LifecycleParticipant sender) {
+            logger.debug("The MusicalClock does not auto-start when {} does.", sender);
+        }
+
+        @Override
+        public void stopped(LifecycleParticipant sender) {
+            if (isRunning()) {
+                logger.info("MusicalClock stopping because {} has.", sender);
+                stop();
+            }
+        }
+    };
+
+    /**
+     * Start following the tempo master and generating ticks. Starts the {@link VirtualCdj} and {@link BeatFinder} if
+     * they are not already running, because we need them to find the master tempo and beats.
+     *
+     * @throws Exception if there is a problem starting the required components
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() throws Exception {
+        if (!isRunning()) {
+            VirtualCdj.getInstance().addLifecycleListener(lifecycleListener);
+            VirtualCdj.getInstance().start();
+            BeatFinder.getInstance().addLifecycleListener(lifecycleListener);
+            BeatFinder.getInstance().start();
+            synchronized (timeline) {
+                anchorTime = System.nanoTime();
+                anchorBeats = 0.0;
+                tempo = (VirtualCdj.getInstance().getTempoMaster() == null)? 0.0 : VirtualCdj.getInstance().getMasterTempo();
+                rateCorrection = 0.0;
+                phaseSlew = 0.0;
+                slewEndTime = 0;
+                barOffset = 0;
+                lastMasterBeat = 0;
+            }
+            VirtualCdj.getInstance().addMasterListener(masterListener);
+            running.set(true);
+            final TickState state = new TickState(getTicksPerBeat());
+            final Thread thread = new Thread(() -> {
+                while (isCurrentTickThread()) {
+                    try {
+                        deliverDueTicks(state);
+                    } catch (Throwable t) {
+                        logger.error("Problem generating clock ticks", t);
+                    }
+                }
+            }, "beat-link musical clock");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            tickThread = thread;
+            thread.start();
+            deliverLifecycleAnnouncement(logger, true);
+        }
+    }
+
+    /**
+     * Stop generating ticks.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (isRunning()) {
+            VirtualCdj.getInstance().removeMasterListener(masterListener);
+            running.set(false);
+            LockSupport.unpark(tickThread);
+            tickThread = null;
+            deliverLifecycleAnnouncement(logger, false);
+        }
+    }
+
+    /**
+     * Check the resolution of the clock.
+     *
+     * @return the number of ticks generated for each beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getTicksPerBeat() {
+        return (int) ticksPerBeat.get();
+    }
+
+    /**
+     * Set the resolution of the clock, such as 24 pulses per quarter note for MIDI clock, or 96 for finer-grained
+     * sequencing. If this is changed while the clock is running, tick numbering continues from the corresponding
+     * point at the new resolution.
+     *
+     * @param ticks the number of ticks to generate for each beat
+     *
+     * @throws IllegalArgumentException if {@code ticks} is less than 1 or more than 960
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setTicksPerBeat(int ticks) {
+        if (ticks < 1 || ticks > 960) {
+            throw new IllegalArgumentException("ticks must be between 1 and 960");
+        }
+        ticksPerBeat.set(ticks);
+        LockSupport.unpark(tickThread);
+    }
+
+    /**
+     * Get the tempo the clock is currently following.
+     *
+     * @return the master tempo in beats per minute, adjusted by any correction being applied to stay locked to the
+     *         master's beats, or zero if the clock is not moving
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getTempo() {
+        synchronized (timeline) {
+            return tempo * (1.0 + rateCorrection);
+        }
+    }
+
+    /**
+     * Find where the clock will be at a particular moment.
+     *
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the clock's position in beats since it started; the fractional part is the phase within the beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getBeatPosition(long timestamp) {
+        synchronized (timeline) {
+            return beatsAt(timestamp);
+        }
+    }
+
+    /**
+     * Find where the clock is right now.
+     *
+     * @return the clock's position in beats since it started; the fractional part is the phase within the beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getBeatPosition() {
+        return getBeatPosition(System.nanoTime());
+    }
+
+    /**
+     * Find how far the clock has progressed through its current beat.
+     *
+     * @return a value from 0.0 (right on the beat) up to, but not including, 1.0
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getBeatPhase() {
+        final double position = getBeatPosition();
+        return position - Math.floor(position);
+    }
+
+    /**
+     * Find where the clock's current beat falls within its bar, aligned with the bars of the tempo master when
+     * the master reports them.
+     *
+     * @return a number from 1 to 4, where 1 is the downbeat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getBeatWithinBar() {
+        synchronized (timeline) {
+            final long beat = (long) Math.floor(beatsAt(System.nanoTime()));
+            return (int) Math.floorMod(beat + barOffset, 4L) + 1;
+        }
+    }
+
+    /**
+     * Check whether the clock is currently locked to the tempo master, meaning that a master beat has arrived
+     * within roughly the last two beats. When it is not, the clock keeps running at the last tempo it knew.
+     *
+     * @return {@code true} if the clock is being corrected by master beats
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isLocked() {
+        synchronized (timeline) {
+            if (lastMasterBeat == 0 || tempo <= 0.0) {
+                return false;
+            }
+            return beatsAt(System.nanoTime()) - beatsAt(lastMasterBeat) < 2.0;
+        }
+    }
+
+    /**
+     * Get the recent average difference between when master beats arrived and when the clock expected them. A
+     * consistent non-zero value means the clock is drifting relative to the master, and is being corrected.
+     *
+     * @return the mean phase error in milliseconds, positive when the master is ahead of the clock
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getDrift() {
+        synchronized (timeline) {
+            return meanPhaseError;
+        }
+    }
+
+    /**
+     * Get the typical size of the difference between when master beats arrived and when the clock expected them,
+     * which reflects the jitter of the beat packets that the clock is smoothing out.
+     *
+     * @return the recent root-mean-square phase error in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getJitter() {
+        synchronized (timeline) {
+            return Math.sqrt(meanSquaredPhaseError);
+        }
+    }
+
+    /**
+     * Get the fraction of the tempo currently being added or subtracted to keep the clock locked to the master.
+     *
+     * @return the rate correction, such as 0.001 when the clock is running 0.1% faster than the reported tempo
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getRateCorrection() {
+        synchronized (timeline) {
+            return rateCorrection;
+        }
+    }
+
+    /**
+     * Check how many master beats the clock has locked itself to.
+     *
+     * @return the number of master beats received
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMasterBeatCount() {
+        return masterBeatCount.get();
+    }
+
+    /**
+     * Check how many times a new device has become tempo master while the clock was running.
+     *
+     * @return the number of master handoffs the clock has followed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHandoffCount() {
+        return handoffCount.get();
+    }
+
+    /**
+     * Check how many ticks have been delivered.
+     *
+     * @return the number of ticks delivered to listeners
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getTickCount() {
+        return tickCount.get();
+    }
+
+    /**
+     * Check how many ticks were skipped because the tick thread was held up for more than a beat.
+     *
+     * @return the number of ticks that were never delivered
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getSkippedTickCount() {
+        return skippedTickCount.get();
+    }
+
+    /**
+     * Check how late, on average, ticks have been delivered relative to when they were due.
+     *
+     * @return the average tick lateness in milliseconds, or zero if no ticks have been delivered
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getAverageTickLateness() {
+        final long ticks = tickCount.get();
+        if (ticks == 0) {
+            return 0.0;
+        }
+        return (double) totalTickLateness.get() / ticks / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Check the latest that any tick has been delivered relative to when it was due.
+     *
+     * @return the maximum tick lateness in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getMaxTickLateness() {
+        return (double) maxTickLateness.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Keeps track of the registered clock tick listeners.
+     */
+    private final Set<ClockTickListener> clockTickListeners = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Adds the specified listener to receive each tick of the clock. If {@code listener} is {@code null} or already
+     * present in the set of registered listeners, no exception is thrown and no action is performed.
+     *
+     * @param listener the clock tick listener to add
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void addClockTickListener(ClockTickListener listener) {
+        if (listener != null) {
+            clockTickListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes the specified clock tick listener so that it no longer receives ticks. If {@code listener} is
+     * {@code null} or not present in the set of registered listeners, no exception is thrown and no action is
+     * performed.
+     *
+     * @param listener the clock tick listener to remove
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void removeClockTickListener(ClockTickListener listener) {
+        if (listener != null) {
+            clockTickListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Get the set of currently-registered clock tick listeners.
+     *
+     * @return the listeners that are currently registered for clock ticks
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Set<ClockTickListener> getClockTickListeners() {
+        // Make a copy so callers get an immutable snapshot of the current state.
+        return Set.copyOf(clockTickListeners);
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final MusicalClock ourInstance = new MusicalClock();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static MusicalClock getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private MusicalClock() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "MusicalClock[running:" + isRunning() + ", ticksPerBeat:" + getTicksPerBeat() + ", tempo:" +
+                getTempo() + ", locked:" + isLocked() + ", drift:" + getDrift() + "ms, jitter:" + getJitter() +
+                "ms, ticks:" + tickCount.get() + ", skipped:" + skippedTickCount.get() + "]";
+    }
+}
@@ -0,0 +1,498 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Schedules the retries of failed or incomplete requests for all the finders, rather than having each one tie up
+ * a thread sleeping until it is time to try again. A single timer thread waits for retries to become due, and then
+ * hands them to the {@link TaskExecutor} as {@link TaskClass#RETRY} tasks.</p>
+ *
+ * <p>Delays between repeated attempts grow exponentially from {@link #getBaseDelay()} up to
+ * {@link #getMaxDelay()}, with random jitter so that requests to a struggling player do not all arrive at once.</p>
+ *
+ * <p>It also acts as a circuit breaker for each player: once {@link #getFailureThreshold()} requests in a row to
+ * the same player have failed, further requests to it are refused immediately (without waiting for timeouts or
+ * logging a stack trace each time) until {@link #getOpenInterval()} milliseconds have passed, at which point a
+ * single request is allowed through to see whether the player has recovered.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class RetryScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    /**
+     * Tracks the recent failures of a single player.
+     */
+    private static class Breaker {
+
+        /**
+         * How many requests in a row have failed.
+         */
+        int consecutiveFailures;
+
+        /**
+         * If the circuit is open, the {@link System#nanoTime()} at which a trial request will be allowed.
+         */
+        long openUntil;
+
+        /**
+         * Whether the circuit is currently open.
+         */
+        boolean open;
+    }
+
+    /**
+     * The timer which waits until retries are due.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Keeps track of the retries that have been scheduled under a key and not yet run, so that only one is ever
+     * pending for the same purpose.
+     */
+    private final Map<String, ScheduledFuture<?>> pending = new HashMap<>();
+
+    /**
+     * The circuit breakers for each player number.
+     */
+    private final Map<Integer, Breaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * The delay before the first retry, in milliseconds.
+     */
+    private final AtomicLong baseDelay = new AtomicLong(1000);
+
+    /**
+     * The longest we will ever wait between retries, in milliseconds.
+     */
+    private final AtomicLong maxDelay = new AtomicLong(30000);
+
+    /**
+     * How many failures in a row cause us to stop talking to a player for a while.
+     */
+    private final AtomicInteger failureThreshold = new AtomicInteger(5);
+
+    /**
+     * How long, in milliseconds, we refuse requests to a player once its circuit has opened.
+     */
+    private final AtomicLong openInterval = new AtomicLong(30000);
+
+    /**
+     * Counters for monitoring.
+     */
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong shortCircuitCount = new AtomicLong();
+    private final AtomicLong circuitOpenCount = new AtomicLong();
+
+    /**
+     * Check the delay before the first retry of a failed request.
+     *
+     * @return the base delay, in milliseconds, which is doubled for each subsequent attempt
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getBaseDelay() {
+        return baseDelay.get();
+    }
+
+    /**
+     * Set the delay before the first retry of a failed request.
+     *
+     * @param milliseconds the base delay, which is doubled for each subsequent attempt
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is less than one
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setBaseDelay(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("milliseconds must be positive");
+        }
+        baseDelay.set(milliseconds);
+    }
+
+    /**
+     * Check the longest delay we will use between retries.
+     *
+     * @return the maximum delay, in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMaxDelay() {
+        return maxDelay.get();
+    }
+
+    /**
+     * Set the longest delay we will use between retries.
+     *
+     * @param milliseconds the maximum delay
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is less than one
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setMaxDelay(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("milliseconds must be positive");
+        }
+        maxDelay.set(milliseconds);
+    }
+
+    /**
+     * Check how many requests to a player must fail in a row before we stop sending it requests for a while.
+     *
+     * @return the failure threshold
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getFailureThreshold() {
+        return failureThreshold.get();
+    }
+
+    /**
+     * Set how many requests to a player must fail in a row before we stop sending it requests for a while.
+     *
+     * @param failures the failure threshold
+     *
+     * @throws IllegalArgumentException if {@code failures} is less than one
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setFailureThreshold(int failures) {
+        if (failures < 1) {
+            throw new IllegalArgumentException("failures must be positive");
+        }
+        failureThreshold.set(failures);
+    }
+
+    /**
+     * Check how long we stop sending requests to a player once it has failed too often.
+     *
+     * @return the interval, in milliseconds, after which a trial request is allowed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getOpenInterval() {
+        return openInterval.get();
+    }
+
+    /**
+     * Set how long we stop sending requests to a player once it has failed too often.
+     *
+     * @param milliseconds the interval after which a trial request is allowed
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setOpenInterval(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("milliseconds cannot be negative");
+        }
+        openInterval.set(milliseconds);
+    }
+
+    /**
+     * Calculate how long to wait before making another attempt at something that has failed. The delay doubles
+     * with each attempt, up to the maximum, and a random amount of up to half of it is subtracted so that retries
+     * from different sources spread out.
+     *
+     * @param attempt the number of attempts that have failed so far, starting at one
+     *
+     * @return the number of milliseconds to wait before trying again
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long backoffDelay(int attempt) {
+        final int doublings = Math.max(0, Math.min(attempt - 1, 30));
+        final long delay = Math.min(maxDelay.get(), baseDelay.get() << doublings);
+        final long half = delay / 2;
+        return delay - ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Arrange for something to be run after a delay, without tying up a thread in the meantime. When it is due,
+     * it is run as a {@link TaskClass#RETRY} task by the {@link TaskExecutor}.
+     *
+     * @param description describes the retry for thread names and logging
+     * @param delay how long to wait, in milliseconds
+     * @param action what to do when the time comes
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void schedule(String description, long delay, Runnable action) {
+        scheduledCount.incrementAndGet();
+        timer.schedule(() -> dispatch(description, action), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Arrange for something to be run after a delay, unless something has already been scheduled with the same
+     * key and has not yet been run. This allows, for example, only one retry at a time to be scheduled for each
+     * kind of data and player.
+     *
+     * @param key identifies the purpose of the retry
+     * @param description describes the retry for thread names and logging
+     * @param delay how long to wait, in milliseconds
+     * @param action what to do when the time comes
+     *
+     * @return {@code true} if the action was scheduled, {@code false} if one was already pending for the key
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean scheduleOnce(String key, String description, long delay, Runnable action) {
+        synchronized (pending) {
+            if (pending.containsKey(key)) {
+                return false;
+            }
+            scheduledCount.incrementAndGet();
+            pending.put(key, timer.schedule(() -> {
+                synchronized (pending) {
+                    pending.remove(key);
+                }
+                dispatch(description, action);
+            }, delay, TimeUnit.MILLISECONDS));
+            return true;
+        }
+    }
+
+    /**
+     * Cancel a retry that was scheduled using {@link #scheduleOnce(String, String, long, Runnable)}, if it has
+     * not yet run.
+     *
+     * @param key identifies the retry
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void cancel(String key) {
+        final ScheduledFuture<?> future;
+        synchronized (pending) {
+            future = pending.remove(key);
+        }
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Check whether a retry is scheduled under a key.
+     *
+     * @param key identifies the retry
+     *
+     * @return {@code true} if it has been scheduled and has not yet run
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isPending(String key) {
+        synchronized (pending) {
+            return pending.containsKey(key);
+        }
+    }
+
+    /**
+     * Hand a retry that has become due to the task executor.
+     *
+     * @param description describes the retry
+     * @param action what it does
+     */
+    private void dispatch(String description, Runnable action) {
+        executedCount.incrementAndGet();
+        TaskExecutor.getInstance().execute(TaskClass.RETRY, description, action);
+    }
+
+    /**
+     * Check whether a request should be sent to a player, or refused because it has been failing. If the player's
+     * circuit is open but the open interval has elapsed, this allows one trial request through, and closes the
+     * circuit again if that succeeds.
+     *
+     * @param player the player number
+     *
+     * @return {@code true} if the request may proceed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean allowRequest(int player) {
+        final Breaker breaker = breakers.get(player);
+        if (breaker == null) {
+            return true;
+        }
+        synchronized (breaker) {
+            if (!breaker.open) {
+                return true;
+            }
+            final long now = System.nanoTime();
+            if (now - breaker.openUntil >= 0) {
+                // Let a trial request through, but keep the circuit open for others until we see how it goes.
+                breaker.openUntil = now + TimeUnit.MILLISECONDS.toNanos(openInterval.get());
+                return true;
+            }
+        }
+        shortCircuitCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record that a request to a player succeeded, closing its circuit if it was open.
+     *
+     * @param player the player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void recordSuccess(int player) {
+        final Breaker breaker = breakers.get(player);
+        if (breaker != null) {
+            synchronized (breaker) {
+                if (breaker.open) {
+                    logger.info("Player {} is responding again, resuming requests.", player);
+                }
+                breaker.open = false;
+                breaker.consecutiveFailures = 0;
+            }
+        }
+    }
+
+    /**
+     * Record that a request to a player failed, opening its circuit if it has now failed too many times in a row.
+     *
+     * @param player the player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void recordFailure(int player) {
+        final Breaker breaker = breakers.computeIfAbsent(player, k -> new Breaker());
+        synchronized (breaker) {
+            breaker.consecutiveFailures++;
+            if (!breaker.open && breaker.consecutiveFailures >= failureThreshold.get()) {
+                breaker.open = true;
+                breaker.openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openInterval.get());
+                circuitOpenCount.incrementAndGet();
+                logger.warn("Player {} has failed {} requests in a row, pausing requests to it for {}ms.", player,
+                        breaker.consecutiveFailures, openInterval.get());
+            }
+        }
+    }
+
+    /**
+     * Check whether requests to a player are currently being refused because it has been failing.
+     *
+     * @param player the player number
+     *
+     * @return {@code true} if the player's circuit is open
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isCircuitOpen(int player) {
+        final Breaker breaker = breakers.get(player);
+        if (breaker == null) {
+            return false;
+        }
+        synchronized (breaker) {
+            return breaker.open;
+        }
+    }
+
+    /**
+     * Get the players whose requests are currently being refused because they have been failing.
+     *
+     * @return the player numbers whose circuits are open
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Set<Integer> getOpenCircuits() {
+        final Set<Integer> result = new TreeSet<>();
+        for (Integer player : breakers.keySet()) {
+            if (isCircuitOpen(player)) {
+                result.add(player);
+            }
+        }
+        return Set.copyOf(result);
+    }
+
+    /**
+     * Forget about the failures of a player, for example because it has left the network and any device
+     * that appears with the same number may be a different one.
+     *
+     * @param player the player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void reset(int player) {
+        breakers.remove(player);
+    }
+
+    /**
+     * Forget about the failures of all players, for example because the {@link org.deepsymmetry.beatlink.dbserver.ConnectionManager}
+     * has been stopped and any players it talks to when restarted should get a fresh start.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void resetAll() {
+        breakers.clear();
+    }
+
+    /**
+     * Check how many retries have been scheduled.
+     *
+     * @return the number of times something has been scheduled
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    /**
+     * Check how many scheduled retries have become due and been run.
+     *
+     * @return the number of retries handed to the task executor
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * Check how many requests have been refused because the player's circuit was open.
+     *
+     * @return the number of short-circuited requests
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getShortCircuitCount() {
+        return shortCircuitCount.get();
+    }
+
+    /**
+     * Check how many times a player's circuit has opened because of repeated failures.
+     *
+     * @return the number of times circuits have opened
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getCircuitOpenCount() {
+        return circuitOpenCount.get();
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final RetryScheduler ourInstance = new RetryScheduler();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static RetryScheduler getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation, and set up the timer thread.
+     */
+    private RetryScheduler() {
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "beat-link retry scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryScheduler[scheduled:" + scheduledCount.get() + ", executed:" +
+                executedCount.get() + ", shortCircuited:" + shortCircuitCount.get() + ", openCircuits:" +
+                getOpenCircuits() + "]";
+    }
+}
@@ -0,0 +1,101 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+
+/**
+ * Identifies the different kinds of background work that Beat Link performs, so that the {@link TaskExecutor} can
+ * run each kind on an appropriately sized and prioritized pool of threads, and so that a host application can
+ * supply its own executors for some or all of them using {@link TaskExecutor#setExecutorFactory(ExecutorFactory)}.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public enum TaskClass {
+
+    /**
+     * Requests for track metadata, beat grids, waveforms, album art, and analysis tags made by the finders in
+     * response to tracks being loaded. Mostly spent waiting for players to respond.
+     */
+    METADATA_REQUEST("metadata request", 16, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Queries made to metadata providers and the dbserver in parallel, when the {@code MetadataFinder} has been
+     * configured to race them against each other rather than consult them one after another.
+     */
+    PROVIDER_QUERY("provider query", 16, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Delayed retries of requests, such as asking again for the data of tracks which a player is still analyzing.
+     */
+    RETRY("retry", 4, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Processing of the status and metadata updates that the finders react to, handed off by the threads that
+     * deliver them through the {@link org.deepsymmetry.beatlink.data.UpdatePipeline}.
+     */
+    UPDATE_PIPELINE("update pipeline", 6, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Downloads of rekordbox database exports from players' media.
+     */
+    MEDIA_DOWNLOAD("media download", 2, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Queries and connection setup for players' dbserver ports.
+     */
+    NETWORK_QUERY("network query", 8, Thread.NORM_PRIORITY, true),
+
+    /**
+     * Optional work which can take as long as it likes, such as warming up caches from a media library.
+     */
+    BACKGROUND("background", 2, Thread.MIN_PRIORITY, false),
+
+    /**
+     * Loops which keep user interface components animated while they are visible. These run for as long as the
+     * component is active, so their number is not limited.
+     */
+    ANIMATION("animation", 0, Thread.NORM_PRIORITY, false),
+
+    /**
+     * Delivery of lifecycle announcements, and the starting or stopping of components in response to them.
+     */
+    LIFECYCLE("lifecycle", 8, Thread.NORM_PRIORITY, false);
+
+    /**
+     * Describes the kind of task, for use in thread names and logging.
+     */
+    public final String description;
+
+    /**
+     * The largest number of threads the default executor will use to run tasks of this kind at the same time, or
+     * zero if there is no limit because the tasks are long-lived loops that must all run at once. Further tasks
+     * wait in a queue until a thread is free.
+     */
+    public final int maxThreads;
+
+    /**
+     * The priority given to platform threads created by the default executor to run tasks of this kind.
+     */
+    public final int priority;
+
+    /**
+     * Indicates whether tasks of this kind spend most of their time waiting for the network, and so can be run on
+     * virtual threads when the JVM supports them.
+     */
+    public final boolean virtualThreadFriendly;
+
+    /**
+     * Constructor sets the immutable fields.
+     *
+     * @param description describes the kind of task
+     * @param maxThreads the default limit on concurrent threads, or zero for no limit
+     * @param priority the priority of platform threads running tasks of this kind
+     * @param virtualThreadFriendly whether the tasks are suitable for virtual threads
+     */
+    TaskClass(String description, int maxThreads, int priority, boolean virtualThreadFriendly) {
+        this.description = description;
+        this.maxThreads = maxThreads;
+        this.priority = priority;
+        this.virtualThreadFriendly = virtualThreadFriendly;
+    }
+}
@@ -0,0 +1,405 @@
+package org.deepsymmetry.beatlink;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Runs Beat Link's background work, so that the number of threads used stays bounded and observable even when
+ * many tracks are being loaded at once, rather than each request creating its own thread. Tasks are grouped into
+ * the kinds identified by {@link TaskClass}, each of which has its own executor.</p>
+ *
+ * <p>By default, each kind of task gets a pool of daemon threads limited to {@link TaskClass#maxThreads}, named
+ * after the task, at the priority given by {@link TaskClass#priority}. When running on a JVM that supports
+ * virtual threads, kinds of task that are {@link TaskClass#virtualThreadFriendly} are run on virtual threads
+ * instead of platform threads (still subject to the same limit), unless this has been turned off using
+ * {@link #setUsingVirtualThreads(boolean)}. A host application can take over completely by registering its own
+ * {@link ExecutorFactory}.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class TaskExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskExecutor.class);
+
+    /**
+     * Keeps track of the work done for one kind of task.
+     */
+    private static class Counters {
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peakRunning = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+    }
+
+    /**
+     * The executors that have been created for each kind of task so far.
+     */
+    private final Map<TaskClass, ExecutorService> executors = new EnumMap<>(TaskClass.class);
+
+    /**
+     * The statistics for each kind of task.
+     */
+    private final Map<TaskClass, Counters> counters = new EnumMap<>(TaskClass.class);
+
+    /**
+     * The factory that creates our executors, or {@code null} to use the default ones.
+     */
+    private ExecutorFactory factory;
+
+    /**
+     * Controls whether the default executors use virtual threads when they are available.
+     */
+    private static final AtomicBoolean usingVirtualThreads = new AtomicBoolean(true);
+
+    /**
+     * Creates a virtual thread factory when running on a JVM that supports them, found reflectively so that we
+     * can still be compiled for, and run on, older JVMs. Will be {@code null} if virtual threads are not available.
+     */
+    private static final Method virtualThreadBuilder;
+
+    static {
+        Method builder = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            logger.debug("Virtual threads are not available, using platform threads for all tasks.");
+        }
+        virtualThreadBuilder = builder;
+    }
+
+    /**
+     * Check whether the default executors run suitable kinds of task on virtual threads when they are available.
+     *
+     * @return {@code true} if virtual threads will be used when possible
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isUsingVirtualThreads() {
+        return usingVirtualThreads.get();
+    }
+
+    /**
+     * Set whether the default executors should run suitable kinds of task on virtual threads when the JVM supports
+     * them. Only affects executors created after the change, so this should be called before Beat Link is started.
+     *
+     * @param useVirtualThreads {@code true} if virtual threads should be used when possible
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setUsingVirtualThreads(boolean useVirtualThreads) {
+        usingVirtualThreads.set(useVirtualThreads);
+    }
+
+    /**
+     * Check whether virtual threads are supported by the JVM we are running on.
+     *
+     * @return {@code true} if the default executors are able to use virtual threads
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean areVirtualThreadsAvailable() {
+        return virtualThreadBuilder != null;
+    }
+
+    /**
+     * Try to create a factory for virtual threads.
+     *
+     * @param prefix the prefix for the names of the threads, to which a sequence number will be added
+     *
+     * @return the factory, or {@code null} if virtual threads cannot be used
+     */
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        if (virtualThreadBuilder == null || !usingVirtualThreads.get()) {
+            return null;
+        }
+        try {
+            final Object builder = virtualThreadBuilder.invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object named = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(named);
+        } catch (Exception e) {
+            logger.warn("Unable to create virtual thread factory, using platform threads for {}", prefix, e);
+            return null;
+        }
+    }
+
+    /**
+     * Create the executor that Beat Link uses by default for a kind of task, as described in the
+     * {@link TaskExecutor class documentation}. Can be used by an {@link ExecutorFactory} for tasks it does not
+     * wish to handle specially.
+     *
+     * @param taskClass the kind of task that will be run
+     *
+     * @return a new executor for that kind of task
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static ExecutorService createDefaultExecutor(TaskClass taskClass) {
+        final String prefix = "beat-link " + taskClass.description + " ";
+        ThreadFactory threadFactory = taskClass.virtualThreadFriendly? virtualThreadFactory(prefix) : null;
+        if (threadFactory == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            threadFactory = runnable -> {
+                final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(taskClass.priority);
+                return thread;
+            };
+        }
+        if (taskClass.maxThreads == 0) {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), threadFactory);
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(taskClass.maxThreads, taskClass.maxThreads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Register a factory that will create the executors used to run each kind of task, replacing the default
+     * executors. Executors that were already created are shut down once they have finished the tasks they have
+     * already been given; new tasks go to executors created by the new factory.
+     *
+     * @param factory the factory that will create our executors, or {@code null} to go back to the default ones
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void setExecutorFactory(ExecutorFactory factory) {
+        this.factory = factory;
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+        executors.clear();
+    }
+
+    /**
+     * Check which factory, if any, has been registered to create the executors used to run each kind of task.
+     *
+     * @return the factory, or {@code null} if the default executors are in use
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized ExecutorFactory getExecutorFactory() {
+        return factory;
+    }
+
+    /**
+     * Find or create the executor for a kind of task.
+     *
+     * @param taskClass the kind of task to be run
+     *
+     * @return the executor that runs that kind of task
+     */
+    private synchronized ExecutorService executorFor(TaskClass taskClass) {
+        return executors.computeIfAbsent(taskClass, kind -> {
+            final ExecutorService executor = (factory == null)? createDefaultExecutor(kind) : factory.createExecutor(kind);
+            return Objects.requireNonNull(executor, "ExecutorFactory returned null for " + kind);
+        });
+    }
+
+    /**
+     * Find the statistics for a kind of task.
+     *
+     * @param taskClass the kind of task
+     *
+     * @return its counters
+     */
+    private synchronized Counters countersFor(TaskClass taskClass) {
+        return counters.computeIfAbsent(taskClass, kind -> new Counters());
+    }
+
+    /**
+     * Wrap a task so that the thread running it is named after it while it runs, problems are logged, and the
+     * statistics for its kind of task are kept up to date.
+     *
+     * @param taskClass the kind of task
+     * @param name describes the task
+     * @param task the work to be done
+     * @param stats the counters for that kind of task
+     *
+     * @return the wrapped task
+     */
+    private static Runnable wrap(TaskClass taskClass, String name, Runnable task, Counters stats) {
+        return () -> {
+            stats.pending.decrementAndGet();
+            stats.peakRunning.accumulateAndGet(stats.running.incrementAndGet(), Math::max);
+            final Thread thread = Thread.currentThread();
+            final String originalName = thread.getName();
+            thread.setName(name);
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error("Problem running {} task {}", taskClass.description, name, t);
+            } finally {
+                thread.setName(originalName);
+                stats.running.decrementAndGet();
+                stats.completed.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Hand a wrapped task to the executor for its kind of task, counting it as pending until it starts.
+     *
+     * @param taskClass the kind of task, which determines the executor that runs it
+     * @param name describes the task
+     * @param wrapped the task, already wrapped by {@link #wrap(TaskClass, String, Runnable, Counters)}
+     * @param stats the counters for that kind of task
+     *
+     * @return {@code true} if the executor accepted the task
+     */
+    private boolean dispatch(TaskClass taskClass, String name, Runnable wrapped, Counters stats) {
+        stats.pending.incrementAndGet();
+        try {
+            executorFor(taskClass).execute(wrapped);
+        } catch (RejectedExecutionException e) {
+            // The executor was probably replaced while we were submitting; try once more with the current one.
+            try {
+                executorFor(taskClass).execute(wrapped);
+            } catch (RejectedExecutionException e2) {
+                stats.pending.decrementAndGet();
+                logger.error("Unable to run {} task {}", taskClass.description, name, e2);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Arrange for a task to be run in the background. The thread running the task is given the specified name
+     * while it does so, to make logs and thread dumps easier to understand.
+     *
+     * @param taskClass the kind of task, which determines the executor that runs it
+     * @param name describes the task
+     * @param task the work to be done
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void execute(TaskClass taskClass, String name, Runnable task) {
+        final Counters stats = countersFor(taskClass);
+        dispatch(taskClass, name, wrap(taskClass, name, task, stats), stats);
+    }
+
+    /**
+     * Arrange for a task to be run in the background, as with {@link #execute(TaskClass, String, Runnable)}, but
+     * return a {@link Future} through which it can be cancelled. Cancelling the future, rather than interrupting
+     * the thread that was seen running the task, is the safe way to stop a task early: the executor only delivers
+     * the interrupt while the task is still running, so it can never land on an unrelated task that the pooled
+     * thread has moved on to.
+     *
+     * @param taskClass the kind of task, which determines the executor that runs it
+     * @param name describes the task
+     * @param task the work to be done
+     *
+     * @return a future which completes when the task has finished, and which is already cancelled if the task
+     *         could not be submitted
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Future<?> submit(TaskClass taskClass, String name, Runnable task) {
+        final Counters stats = countersFor(taskClass);
+        final Runnable wrapped = wrap(taskClass, name, task, stats);
+        final AtomicBoolean claimed = new AtomicBoolean();  // Makes sure a task cancelled before it starts is counted once.
+        final FutureTask<Void> future = new FutureTask<Void>(() -> {
+            if (claimed.compareAndSet(false, true)) {
+                wrapped.run();
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (isCancelled() && claimed.compareAndSet(false, true)) {
+                    stats.pending.decrementAndGet();  // It was cancelled before it started, so will never run.
+                }
+            }
+        };
+        if (!dispatch(taskClass, name, future, stats)) {
+            claimed.set(true);  // Already removed from the pending count.
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    /**
+     * Check how many tasks of a particular kind are waiting to be run.
+     *
+     * @param taskClass the kind of task of interest
+     *
+     * @return the number of tasks that have been submitted but not yet started
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getPendingCount(TaskClass taskClass) {
+        return countersFor(taskClass).pending.get();
+    }
+
+    /**
+     * Check how many tasks of a particular kind are currently running.
+     *
+     * @param taskClass the kind of task of interest
+     *
+     * @return the number of tasks currently being run
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getRunningCount(TaskClass taskClass) {
+        return countersFor(taskClass).running.get();
+    }
+
+    /**
+     * Check the largest number of tasks of a particular kind that have been running at the same time.
+     *
+     * @param taskClass the kind of task of interest
+     *
+     * @return the highest number of tasks that were running at once
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getPeakRunningCount(TaskClass taskClass) {
+        return countersFor(taskClass).peakRunning.get();
+    }
+
+    /**
+     * Check how many tasks of a particular kind have finished.
+     *
+     * @param taskClass the kind of task of interest
+     *
+     * @return the number of tasks that have completed, successfully or not
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getCompletedCount(TaskClass taskClass) {
+        return countersFor(taskClass).completed.get();
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final TaskExecutor ourInstance = new TaskExecutor();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static TaskExecutor getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private TaskExecutor() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("TaskExecutor[factory:").append(getExecutorFactory());
+        for (TaskClass taskClass : TaskClass.values()) {
+            sb.append(", ").append(taskClass.description).append(":").append(getRunningCount(taskClass))
+                    .append(" running/").append(getPendingCount(taskClass)).append(" pending");
+        }
+        return sb.append("]").toString();
+    }
+}
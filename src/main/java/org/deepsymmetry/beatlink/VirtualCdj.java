@@ -2804,13 +2804,13 @@ public class VirtualCdj extends LifecycleParticipant {
             public void becomeMaster() {
                 logger.debug("Received packet telling us to become master.");
                 if (isSendingStatus()) {
-                    new Thread(() -> {
+                    TaskExecutor.getInstance().execute(TaskClass.LIFECYCLE, "Becoming tempo master", () -> {
                         try {
                             becomeTempoMaster();
                         } catch (Throwable t) {
                             logger.error("Problem becoming tempo master in response to sync command packet", t);
                         }
-                    }).start();
+                    });
                 } else {
                     logger.warn("Ignoring sync command to become tempo master, since we are not sending status packets.");
                 }
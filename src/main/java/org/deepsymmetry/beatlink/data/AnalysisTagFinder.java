@@ -11,8 +11,8 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -85,17 +85,61 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
     }
 
     /**
-     * Keeps track of the current analysis tags cached for each player, sub-indexed by type (fileExtension + typeTag).
+     * Keeps track of the current analysis tags cached for each player, indexed by type (typeTag + fileExtension).
      * We hot cache data for any track which is currently on-deck in the player, as well as any that were
-     * loaded into a player's hot-cue slot.
+     * loaded into a player's hot-cue slot. Each track's section of a given type is held once, no matter how many
+     * decks it is loaded on.
      */
-    private final ConcurrentHashMap<DeckReference, ConcurrentHashMap<String, CacheEntry>> hotCache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, HotCache<CacheEntry>> hotCache = new ConcurrentHashMap<>();
 
     /**
-     * A queue used to hold metadata updates we receive from the {@link MetadataFinder} so we can process them on a
-     * lower priority thread, and not hold up delivery to more time-sensitive listeners.
+     * Find the hot cache holding a particular type of analysis section, creating it if needed.
+     *
+     * @param tagKey the typeTag + fileExtension identifying the type of section
+     *
+     * @return the hot cache for sections of that type
+     */
+    private HotCache<CacheEntry> hotCacheFor(String tagKey) {
+        return hotCache.computeIfAbsent(tagKey, k -> new HotCache<>(entry -> entry.dataReference));
+    }
+
+    /**
+     * Look up the analysis section of a particular type which we have cached for a deck.
+     *
+     * @param deck the deck of interest
+     * @param tagKey the typeTag + fileExtension identifying the type of section
+     *
+     * @return the cached section, or {@code null} if we have none
      */
-    private final LinkedBlockingDeque<TrackMetadataUpdate> pendingUpdates = new LinkedBlockingDeque<>(100);
+    private CacheEntry getCachedEntry(DeckReference deck, String tagKey) {
+        final HotCache<CacheEntry> cache = hotCache.get(tagKey);
+        return (cache == null)? null : cache.get(deck);
+    }
+
+    /**
+     * Discard all the analysis sections we have cached for a deck.
+     *
+     * @param deck the deck which no longer has a track loaded
+     *
+     * @return the sections which had been cached, indexed by typeTag + fileExtension
+     */
+    private Map<String, CacheEntry> removeDeck(DeckReference deck) {
+        final Map<String, CacheEntry> result = new HashMap<>();
+        for (Map.Entry<String, HotCache<CacheEntry>> entry : hotCache.entrySet()) {
+            final CacheEntry removed = entry.getValue().remove(deck);
+            if (removed != null) {
+                result.put(entry.getKey(), removed);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Our stage of the {@link UpdatePipeline}, which holds the latest metadata update we have received from the
+     * {@link MetadataFinder} for each player, so we can process them on a shared worker thread, and not hold up
+     * delivery to more time-sensitive listeners.
+     */
+    private final UpdatePipeline.Stage<TrackMetadataUpdate> pendingUpdates = UpdatePipeline.getInstance().createStage("AnalysisTagFinder", this::handleUpdate);
 
     /**
      * Our metadata listener just puts metadata updates on our queue, so we can process them on a lower
@@ -103,9 +147,7 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
      */
     private final TrackMetadataListener metadataListener = update -> {
         logger.debug("Received metadata update {}", update);
-        if (!pendingUpdates.offerLast(update)) {
-            logger.warn("Discarding metadata update because our queue is backed up.");
-        }
+        pendingUpdates.submit(update.player, update);
     };
 
     /**
@@ -120,18 +162,13 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
 
         @Override
         public void mediaUnmounted(SlotReference slot) {
-            // Iterate over a copy to avoid concurrent modification issues
-            for (Map.Entry<DeckReference, Map<String, CacheEntry>> deckEntry : new HashMap<DeckReference, Map<String, CacheEntry>>(hotCache).entrySet()) {
-                for (Map.Entry<String, CacheEntry> typeEntry : new HashMap<>(deckEntry.getValue()).entrySet()) {
-                    if (slot == SlotReference.getSlotReference(typeEntry.getValue().dataReference)) {
-                        logger.debug("Evicting cached track analysis sections in response to unmount report {}", typeEntry.getValue());
-                        final Map<String, CacheEntry> deckCache = hotCache.get(deckEntry.getKey());
-                        CacheEntry removed = null;
-                        if (deckCache != null) removed = deckCache.remove(typeEntry.getKey());
-                        if (deckEntry.getKey().hotCue == 0 && removed != null) {
-                            // We removed something that listeners cared about.
-                            deliverAnalysisTagUpdate(deckEntry.getKey().player, removed.fileExtension, removed.typeTag, null);
-                        }
+            for (HotCache<CacheEntry> cache : hotCache.values()) {
+                for (Map.Entry<DeckReference, CacheEntry> evicted : cache.removeIf(reference -> slot == reference.getSlotReference()).entrySet()) {
+                    final CacheEntry removed = evicted.getValue();
+                    logger.debug("Evicting cached track analysis sections in response to unmount report {}", removed);
+                    if (evicted.getKey().hotCue == 0) {
+                        // We removed something that listeners cared about.
+                        deliverAnalysisTagUpdate(evicted.getKey().player, removed.fileExtension, removed.typeTag, null);
                     }
                 }
             }
@@ -178,12 +215,6 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
         return running.get();
     }
 
-    /**
-     * We process our player status updates on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow I/O.
-     */
-    private Thread queueHandler;
-
     /**
      * We have received an update that invalidates the tags for a player, so clear them and alert any
      * listeners if this represents a change. This does not affect the hot cues; they will stick around until the
@@ -192,8 +223,8 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
      * @param update the update which means we have no tags for the associated player
      */
     private void clearDeckTags(TrackMetadataUpdate update) {
-        final Map<String, CacheEntry> oldTags = hotCache.remove(DeckReference.getDeckReference(update.player, 0));
-        if (oldTags != null) {
+        final Map<String, CacheEntry> oldTags = removeDeck(DeckReference.getDeckReference(update.player, 0));
+        if (!oldTags.isEmpty()) {
             deliverTagLossUpdate(update.player, oldTags);
         }
     }
@@ -205,12 +236,10 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
      */
     private void clearTags(DeviceAnnouncement announcement) {
         final int player = announcement.getDeviceNumber();
-        // Iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(hotCache.keySet())) {
-            if (deck.player == player) {
-                final Map<String, CacheEntry> oldTags = hotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverTagLossUpdate(player, oldTags);  // Inform listeners that preview is gone.
+        for (HotCache<CacheEntry> cache : hotCache.values()) {
+            for (Map.Entry<DeckReference, CacheEntry> entry : cache.removePlayer(player).entrySet()) {
+                if (entry.getKey().hotCue == 0) {  // Inform listeners that the tag is gone.
+                    deliverAnalysisTagUpdate(player, entry.getValue().fileExtension, entry.getValue().typeTag, null);
                 }
             }
         }
@@ -227,21 +256,26 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
     private void updateAnalysisTag(final TrackMetadataUpdate update, final String fileExtension, final String typeTag, RekordboxAnlz.TaggedSection analysisTag) {
         final CacheEntry cacheEntry = new CacheEntry(update.metadata.trackReference, fileExtension, typeTag, analysisTag);
         final String tagKey = typeTag + fileExtension;
-        final ConcurrentHashMap<String, CacheEntry> deckMap = hotCache.computeIfAbsent(DeckReference.getDeckReference(update.player, 0),
-                k -> new ConcurrentHashMap<>());
-        deckMap.put(tagKey, cacheEntry);
-        if (update.metadata.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : update.metadata.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    final ConcurrentHashMap<String, CacheEntry> cueMap = hotCache.computeIfAbsent(DeckReference.getDeckReference(update.player, entry.hotCueNumber),
-                            k -> new ConcurrentHashMap<>());
-                    cueMap.put(tagKey, cacheEntry);
-                }
-            }
-        }
+        hotCacheFor(tagKey).putLoaded(update.player, cacheEntry, update.metadata.getCueList());
+        PersistentMetadataCache.getInstance().analysisTagFound(update.metadata.trackReference, fileExtension, typeTag, analysisTag);
         deliverAnalysisTagUpdate(update.player, fileExtension, typeTag, analysisTag);
     }
 
+    /**
+     * Called by the {@link TrackBundleFetcher} when it has retrieved an analysis tag for a newly loaded track along
+     * with the rest of its data, so we can cache it and inform our listeners without making our own request.
+     *
+     * @param update describes the newly loaded track
+     * @param fileExtension identifies the analysis file from which the tag was retrieved
+     * @param typeTag the four-character type code identifying the section of the analysis file that was retrieved
+     * @param analysisTag the parsed track analysis section which was retrieved
+     */
+    void updateFromBundle(TrackMetadataUpdate update, String fileExtension, String typeTag, RekordboxAnlz.TaggedSection analysisTag) {
+        if (isRunning()) {
+            updateAnalysisTag(update, fileExtension, typeTag, analysisTag);
+        }
+    }
+
     /**
      * Get the analysis tags available for all tracks currently loaded in any player, either on the play deck, or
      * in a hot cue. Returns a map of deck references to maps of typeTag + fileExtension to the actual cache entries.
@@ -254,8 +288,14 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
     public Map<DeckReference, Map<String, CacheEntry>> getLoadedAnalysisTags() {
         ensureRunning();
         // Make a copy so callers get an immutable snapshot of the current state.
+        final Map<DeckReference, Map<String, CacheEntry>> decks = new HashMap<>();
+        for (Map.Entry<String, HotCache<CacheEntry>> tagEntry : hotCache.entrySet()) {
+            for (Map.Entry<DeckReference, CacheEntry> entry : tagEntry.getValue().snapshot().entrySet()) {
+                decks.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(tagEntry.getKey(), entry.getValue());
+            }
+        }
         final Map<DeckReference, Map<String, CacheEntry>> result = new HashMap<>();
-        for (Map.Entry<DeckReference, Map<String, CacheEntry>> entry: new HashMap<DeckReference, Map<String, CacheEntry>>(hotCache).entrySet()) {
+        for (Map.Entry<DeckReference, Map<String, CacheEntry>> entry : decks.entrySet()) {
             result.put(entry.getKey(), Map.copyOf(entry.getValue()));
         }
         return Collections.unmodifiableMap(result);
@@ -275,11 +315,7 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
     @API(status = API.Status.STABLE)
     public RekordboxAnlz.TaggedSection getLatestTrackAnalysisFor(final int player, final String fileExtension, final String typeTag) {
         ensureRunning();
-        final Map<String, CacheEntry> deckTags = hotCache.get(DeckReference.getDeckReference(player, 0));
-        if (deckTags == null) {
-            return null;
-        }
-        final CacheEntry entry = deckTags.get(typeTag + fileExtension);
+        final CacheEntry entry = getCachedEntry(DeckReference.getDeckReference(player, 0), typeTag + fileExtension);
         if (entry == null) {
             return null;
         }
@@ -316,6 +352,25 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
      */
     private RekordboxAnlz.TaggedSection requestAnalysisTagInternal(final DataReference trackReference, final String fileExtension,
                                                                       final String typeTag, final boolean failIfPassive) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.ANALYSIS_TAG, trackReference,
+                typeTag + fileExtension, failIfPassive,
+                () -> fetchAnalysisTagInternal(trackReference, fileExtension, typeTag, failIfPassive));
+    }
+
+    /**
+     * Does the actual work of obtaining an analysis tag for
+     * {@link #requestAnalysisTagInternal(DataReference, String, String, boolean)} once we have determined that no
+     * identical request is already in progress.
+     *
+     * @param trackReference uniquely identifies the track whose analysis tag is desired
+     * @param fileExtension identifies the specific analysis file we are interested in a tag from
+     * @param typeTag the four-character type code identifying the specific section of the analysis file desired
+     * @param failIfPassive will prevent the request from taking place if we are in passive mode
+     *
+     * @return the analysis tag found, if any
+     */
+    private RekordboxAnlz.TaggedSection fetchAnalysisTagInternal(final DataReference trackReference, final String fileExtension,
+                                                                    final String typeTag, final boolean failIfPassive) {
         logger.debug("Trying to obtain: {} {}{}", trackReference, typeTag, fileExtension);
 
         // First see if any registered metadata providers can offer it for us (i.e. Crate Digger, probably).
@@ -352,6 +407,8 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
             logger.debug("submitting tag task");
             return ConnectionManager.getInstance().invokeWithClientSession(trackReference.player, task,
                     "requesting analysis tag of type " + typeTag + " from file with extension " + fileExtension);
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting analysis tag, returning null", e);
         }
@@ -375,12 +432,10 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
                                                                 final String fileExtension, final String typeTag) {
         ensureRunning();
         final String tagKey = typeTag + fileExtension;
-        for (Map<String, CacheEntry> deckCache : hotCache.values()) {
-            CacheEntry cached = deckCache.get(tagKey);
-                if (cached != null && cached.dataReference.equals(dataReference)) {
-                    // Found a hot cue hit, use it.
-                    return cached.taggedSection;
-            }
+        final HotCache<CacheEntry> cache = hotCache.get(tagKey);
+        final CacheEntry cached = (cache == null)? null : cache.find(dataReference);
+        if (cached != null) {  // Found a hot cue hit, use it.
+            return cached.taggedSection;
         }
         return requestAnalysisTagInternal(dataReference, fileExtension, typeTag, false);
     }
@@ -452,6 +507,15 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
      */
     private final Map<String, Set<AnalysisTagListener>> analysisTagListeners = new ConcurrentHashMap<>();
 
+    /**
+     * Find out which analysis tags currently have listeners, and therefore need to be retrieved when tracks are loaded.
+     *
+     * @return the type tags concatenated with the file extensions of the analysis tags being tracked
+     */
+    Set<String> getTrackedTags() {
+        return Set.copyOf(analysisTagListeners.keySet());
+    }
+
     /**
      * <p>Adds the specified listener to receive updates when track analysis information of a specific type for a player changes.
      * If {@code listener} is {@code null} or already present in the set of registered listeners for the specified file
@@ -583,38 +647,43 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
             for (String trackedTag : analysisTagListeners.keySet()) {
                 final String fileExtension = trackedTag.substring(trackedTag.indexOf("."));
                 final String typeTag = trackedTag.substring(0, trackedTag.indexOf("."));
-                final Map<String, CacheEntry> deckCache = hotCache.get(DeckReference.getDeckReference(update.player, 0));
-                final CacheEntry lastStructure = (deckCache != null) ? deckCache.get(trackedTag) : null;
+                final CacheEntry lastStructure = getCachedEntry(DeckReference.getDeckReference(update.player, 0), trackedTag);
                 if (lastStructure == null || !lastStructure.dataReference.equals(update.metadata.trackReference)) {  // We have something new!
                     // First see if we can find the new information in the hot cache.
                     boolean foundInCache = false;
-                    for (Map<String, CacheEntry> tagCache : hotCache.values()) {
-                        final CacheEntry cached = tagCache.get(trackedTag);
-                        if (cached != null && cached.dataReference.equals(update.metadata.trackReference)) {
-                            // Found a hot cue hit, use it.
-                            updateAnalysisTag(update, fileExtension, typeTag, cached.taggedSection);
-                            foundInCache = true;
-                            break;
-                        }
+                    final HotCache<CacheEntry> tagCache = hotCache.get(trackedTag);
+                    final CacheEntry cached = (tagCache == null)? null : tagCache.find(update.metadata.trackReference);
+                    if (cached != null) {
+                        // Found a hot cue hit, use it.
+                        updateAnalysisTag(update, fileExtension, typeTag, cached.taggedSection);
+                        foundInCache = true;
                     }
 
                     // If not found in the cache try actually retrieving it.
                     final String activeKey = update.player + ":" + trackedTag;
-                    if (!foundInCache && activeRequests.add(activeKey))
+                    if (!foundInCache && activeRequests.add(activeKey)) {
                         clearDeckTags(update);  // We won't know what it is until our request completes.
-                    new Thread(() -> {
-                        try {
-                            RekordboxAnlz.TaggedSection structure = requestAnalysisTagInternal(
-                                    update.metadata.trackReference, fileExtension, typeTag, true);
-                            if (structure != null) {
-                                updateAnalysisTag(update, fileExtension, typeTag, structure);
+                        final FetchHandle handle = DeckLoadTracker.getInstance().handleFor(update.player, update.metadata.trackReference);
+                        TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "Analysis tag request", () -> {
+                            final FetchHandle previous = (handle == null)? FetchHandle.getCurrent() : handle.attach();
+                            try {
+                                RekordboxAnlz.TaggedSection structure = requestAnalysisTagInternal(
+                                        update.metadata.trackReference, fileExtension, typeTag, true);
+                                if (structure != null && (handle == null || !handle.isCancelled())) {
+                                    updateAnalysisTag(update, fileExtension, typeTag, structure);
+                                }
+                            } catch (CancellationException e) {
+                                logger.debug("Abandoned analysis tag request from update {} because a newer track was loaded", update);
+                            } catch (Exception e) {
+                                logger.warn("Problem requesting analysis tag of type {} in file with extension {} from update{}", typeTag, fileExtension, update, e);
+                            } finally {
+                                FetchHandle.restore(previous);
+                                activeRequests.remove(activeKey);
+                                DeckLoadTracker.getInstance().reprocessIfSuperseded(handle, update, this,
+                                    latest -> pendingUpdates.submit(latest.player, latest));
                             }
-                        } catch (Exception e) {
-                            logger.warn("Problem requesting analysis tag of type {} in file with extension {} from update{}", typeTag, fileExtension, update, e);
-                        } finally {
-                            activeRequests.remove(activeKey);
-                        }
-                    }).start();
+                        });
+                    }
                 }
             }
         }
@@ -675,19 +744,8 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
             MetadataFinder.getInstance().start();
             MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
             MetadataFinder.getInstance().addMountListener(mountListener);
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        // Interrupted due to MetadataFinder shutdown, presumably
-                    } catch (Throwable t) {
-                        logger.error("Problem processing metadata update", t);
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
             primeCache();
         }
@@ -701,17 +759,18 @@ public class AnalysisTagFinder extends LifecycleParticipant  {
         if (isRunning()) {
             MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             // Report the loss of our song structure information, on the proper thread, outside our lock.
-            final Map<DeckReference, Map<String, CacheEntry>> dyingCache = new HashMap<>(hotCache);
+            final List<Map.Entry<DeckReference, CacheEntry>> dyingCache = new ArrayList<>();
+            for (HotCache<CacheEntry> cache : hotCache.values()) {
+                dyingCache.addAll(cache.clear().entrySet());
+            }
             hotCache.clear();
             SwingUtilities.invokeLater(() -> {
-                for (Map.Entry<DeckReference, Map<String, CacheEntry>> entry : dyingCache.entrySet()) {  // Report the loss of our tags.
+                for (Map.Entry<DeckReference, CacheEntry> entry : dyingCache) {  // Report the loss of our tags.
                     if (entry.getKey().hotCue == 0) {
-                        deliverTagLossUpdate(entry.getKey().player, entry.getValue());
+                        deliverAnalysisTagUpdate(entry.getKey().player, entry.getValue().fileExtension, entry.getValue().typeTag, null);
                     }
                 }
             });
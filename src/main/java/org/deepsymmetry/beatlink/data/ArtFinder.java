@@ -9,10 +9,9 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Watches for new metadata to become available for tracks loaded on players, and queries the
@@ -35,15 +34,17 @@ public class ArtFinder extends LifecycleParticipant {
 
     /**
      * Keeps track of the current album art cached for each player. We hot cache art for any track which is currently
-     * on-deck in the player, as well as any that were loaded into a player's hot-cue slot.
+     * on-deck in the player, as well as any that were loaded into a player's hot-cue slot. Each piece of art is held
+     * once, no matter how many decks it is loaded on.
      */
-    private final Map<DeckReference, AlbumArt> hotCache = new ConcurrentHashMap<>();
+    private final HotCache<AlbumArt> hotCache = new HotCache<>(art -> art.artReference);
 
     /**
-     * A queue used to hold metadata updates we receive from the {@link MetadataFinder} so we can process them on a
-     * lower priority thread, and not hold up delivery to more time-sensitive listeners.
+     * Our stage of the {@link UpdatePipeline}, which holds the latest metadata update we have received from the
+     * {@link MetadataFinder} for each player, so we can process them on a shared worker thread, and not hold up
+     * delivery to more time-sensitive listeners.
      */
-    private final LinkedBlockingDeque<TrackMetadataUpdate> pendingUpdates = new LinkedBlockingDeque<>(100);
+    private final UpdatePipeline.Stage<TrackMetadataUpdate> pendingUpdates = UpdatePipeline.getInstance().createStage("ArtFinder", this::handleUpdate);
 
     /**
      * Our metadata listener just puts metadata updates on our queue, so we can process them on a lower
@@ -51,9 +52,7 @@ public class ArtFinder extends LifecycleParticipant {
      */
     private final TrackMetadataListener metadataListener = update -> {
         logger.debug("Received metadata update {}", update);
-        if (!pendingUpdates.offerLast(update)) {
-            logger.warn("Discarding metadata update because our queue is backed up.");
-        }
+        pendingUpdates.submit(update.player, update);
     };
 
     /**
@@ -61,10 +60,8 @@ public class ArtFinder extends LifecycleParticipant {
      *
      * @param artReference identifies the album art which should no longer be cached.
      */
-    private synchronized void removeArtFromCache(DataReference artReference) {
+    private void removeArtFromCache(DataReference artReference) {
         artCache.remove(artReference);
-        artCacheRecentlyUsed.remove(artReference);
-        artCacheEvictionQueue.remove(artReference);
     }
 
     /**
@@ -79,21 +76,10 @@ public class ArtFinder extends LifecycleParticipant {
 
         @Override
         public void mediaUnmounted(SlotReference slot) {
-            // Iterate over a copy to avoid concurrent modification issues.
-            final Set<DataReference> keys = new HashSet<>(artCache.keySet());
-            for (DataReference artReference : keys) {
-                if (SlotReference.getSlotReference(artReference) == slot) {
-                    logger.debug("Evicting cached artwork in response to unmount report {}", artReference);
-                    removeArtFromCache(artReference);
-                }
-            }
-            // Again iterate over a copy to avoid concurrent modification issues.
-            final Set<Map.Entry<DeckReference,AlbumArt>> copy = new HashSet<>(hotCache.entrySet());
-            for (Map.Entry<DeckReference, AlbumArt> entry : copy) {
-                if (slot == SlotReference.getSlotReference(entry.getValue().artReference)) {
-                    logger.debug("Evicting hot cached artwork in response to unmount report {}", entry.getValue());
-                    hotCache.remove(entry.getKey());
-                }
+            logger.debug("Evicting cached artwork in response to unmount report {}", slot);
+            artCache.removeIf(artReference -> SlotReference.getSlotReference(artReference) == slot);
+            for (AlbumArt evicted : hotCache.removeIf(artReference -> slot == artReference.getSlotReference()).values()) {
+                logger.debug("Evicting hot cached artwork in response to unmount report {}", evicted);
             }
         }
     };
@@ -138,12 +124,6 @@ public class ArtFinder extends LifecycleParticipant {
         return running.get();
     }
 
-    /**
-     * We process our player status updates on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow I/O.
-     */
-    private Thread queueHandler;
-
     /**
      * We have received an update that invalidates any previous metadata for a player, so clear its art, and alert
      * any listeners if this represents a change. This does not affect the hot cues; they will stick around until the
@@ -164,21 +144,12 @@ public class ArtFinder extends LifecycleParticipant {
      */
     private void clearArt(DeviceAnnouncement announcement) {
         final int player = announcement.getDeviceNumber();
-        // Iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(hotCache.keySet())) {
-            if (deck.player == player) {
-                hotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverAlbumArtUpdate(player, null);  // Inform listeners that the artwork is gone.
-                }
-            }
-        }
-        // Again iterate over a copy to avoid concurrent modification issues
-        for (DataReference art : new HashSet<>(artCache.keySet())) {
-            if (art.player == player) {
-                removeArtFromCache(art);
+        for (DeckReference deck : hotCache.removePlayer(player).keySet()) {
+            if (deck.hotCue == 0) {
+                deliverAlbumArtUpdate(player, null);  // Inform listeners that the artwork is gone.
             }
         }
+        artCache.removeIf(art -> art.player == player);
     }
 
     /**
@@ -188,17 +159,24 @@ public class ArtFinder extends LifecycleParticipant {
      * @param art the album art which we retrieved
      */
     private void updateArt(TrackMetadataUpdate update, AlbumArt art) {
-        hotCache.put(DeckReference.getDeckReference(update.player, 0), art);  // Main deck
-        if (update.metadata.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : update.metadata.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    hotCache.put(DeckReference.getDeckReference(update.player, entry.hotCueNumber), art);
-                }
-            }
-        }
+        hotCache.putLoaded(update.player, art, update.metadata.getCueList());
         deliverAlbumArtUpdate(update.player, art);
     }
 
+    /**
+     * Called by the {@link TrackBundleFetcher} when it has retrieved album art for a newly loaded track along with
+     * the rest of its data, so we can cache it and inform our listeners without making our own request.
+     *
+     * @param update describes the newly loaded track
+     * @param art the album art which was retrieved for it
+     */
+    void updateFromBundle(TrackMetadataUpdate update, AlbumArt art) {
+        if (isRunning()) {
+            addArtToCache(art.artReference, art);
+            updateArt(update, art);
+        }
+    }
+
     /**
      * Get the art available for all tracks currently loaded in any player, either on the play deck, or in a hot cue.
      *
@@ -210,7 +188,7 @@ public class ArtFinder extends LifecycleParticipant {
     public Map<DeckReference, AlbumArt> getLoadedArt() {
         ensureRunning();
         // Make a copy so callers get an immutable snapshot of the current state.
-        return Map.copyOf(hotCache);
+        return hotCache.snapshot();
     }
 
     /**
@@ -251,32 +229,16 @@ public class ArtFinder extends LifecycleParticipant {
     /**
      * Establish the second-level artwork cache. Since multiple tracks share the same art, it can be worthwhile to keep
      * art around even for tracks that are not currently loaded, to save on having to request it again when another
-     * track from the same album is loaded. This along with {@link #artCacheEvictionQueue} and
-     * {@link #artCacheRecentlyUsed} provide a simple implementation of the “clock” or “second-chance” variant on a
-     * least-recently-used cache. Thanks to Ben Manes for suggesting this approach as a replacement for the deprecated
-     * <a href="https://github.com/ben-manes/concurrentlinkedhashmap">ConcurrentLinkedHashMap</a> which was preventing
-     * Beat Link from working in GraalVM
-     * <a href="https://www.graalvm.org/latest/reference-manual/native-image/">native-image</a> environments, without
-     * forcing us to abandon Java 6 compatibility which is still useful for afterglow-max.
-     */
-    private final ConcurrentHashMap<DataReference, AlbumArt> artCache = new ConcurrentHashMap<>();
-
-    /**
-     * Keeps track of the order in which art has been added to the cache, so older and unused art is prioritized for
-     * eviction.
-     */
-    private final LinkedList<DataReference> artCacheEvictionQueue = new LinkedList<>();
-
-    /**
-     * Keeps track of whether artwork has been used since it was added to the cache or previously considered for
-     * eviction, so older and unused art is prioritized for eviction.
-     */
-    private final HashSet<DataReference> artCacheRecentlyUsed = new HashSet<>();
-
-    /**
-     * Establishes how many album art images we retain in our second-level cache.
+     * track from the same album is loaded. The {@link WeightedCache} uses frequency-aware admission so that art
+     * for albums which are played over and over is not flushed out by one-off tracks, weighs each image by its size
+     * so that high-resolution art counts for more than thumbnails, and never blocks lookups. Like the
+     * “clock” approach that it replaced (thanks to Ben Manes for suggesting that as a replacement for the deprecated
+     * <a href="https://github.com/ben-manes/concurrentlinkedhashmap">ConcurrentLinkedHashMap</a>), it has no external
+     * dependencies, so Beat Link continues to work in GraalVM
+     * <a href="https://www.graalvm.org/latest/reference-manual/native-image/">native-image</a> environments.
      */
-    private final AtomicInteger artCacheSize = new AtomicInteger(DEFAULT_ART_CACHE_SIZE);
+    private final WeightedCache<DataReference, AlbumArt> artCache = new WeightedCache<>("album art",
+            art -> 64L + art.getRawBytes().remaining(), DEFAULT_ART_CACHE_SIZE, 0);
 
     /**
      * Check how many album art images can be kept in the in-memory second-level cache.
@@ -286,28 +248,7 @@ public class ArtFinder extends LifecycleParticipant {
      */
     @API(status = API.Status.STABLE)
     public long getArtCacheSize() {
-        return artCacheSize.get();
-    }
-
-    /**
-     * Removes an element from the second-level artwork cache. Looks for the first item in the eviction queue that
-     * has not been used since it was created or considered for eviction and removes that. Any items which are found
-     * to have been used are instead moved to the end of the queue and marked unused. Must be called by one of the
-     * synchronized methods that deal with manipulating the cache.
-     */
-    private void evictFromArtCache() {
-        boolean evicted = false;
-        while (!evicted && !artCacheEvictionQueue.isEmpty()) {
-            DataReference candidate = artCacheEvictionQueue.removeFirst();
-            if (artCacheRecentlyUsed.remove(candidate)) {
-                // This artwork has been used, give it a second chance.
-                artCacheEvictionQueue.addLast(candidate);
-            } else {
-                // This candidate is ready to be evicted.
-                artCache.remove(candidate);
-                evicted = true;
-            }
-        }
+        return artCache.getMaxEntries();
     }
 
     /**
@@ -325,10 +266,42 @@ public class ArtFinder extends LifecycleParticipant {
             throw new IllegalArgumentException("size must be at least 1");
 
         }
-        artCacheSize.set(size);
-        while (artCache.size() > size) {
-            evictFromArtCache();
-        }
+        artCache.setLimits(size, artCache.getMaxWeight());
+    }
+
+    /**
+     * Set a limit on the total size of the album art images kept in the in-memory second-level cache, in addition
+     * to the limit on their number established by {@link #setArtCacheSize(int)}.
+     *
+     * @param bytes the maximum number of bytes of image data to keep in the in-memory art cache, or zero to limit
+     *              only the number of images
+     *
+     * @throws IllegalArgumentException if {@code bytes} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void setArtCacheByteLimit(long bytes) {
+        artCache.setLimits(artCache.getMaxEntries(), bytes);
+    }
+
+    /**
+     * Check the limit on the total size of the album art images kept in the in-memory second-level cache.
+     *
+     * @return the maximum number of bytes of image data kept in the in-memory art cache, or zero if only the number
+     *         of images is limited
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getArtCacheByteLimit() {
+        return artCache.getMaxWeight();
+    }
+
+    /**
+     * Get the in-memory second-level art cache, in order to monitor its effectiveness.
+     *
+     * @return the cache which holds album art that is not currently loaded in any player
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public WeightedCache<DataReference, AlbumArt> getArtCache() {
+        return artCache;
     }
 
     /**
@@ -357,14 +330,10 @@ public class ArtFinder extends LifecycleParticipant {
     }
 
     /**
-     * Adds artwork to our second-level cache, evicting older unused art if necessary to enforce the size limit.
+     * Adds artwork to our second-level cache, which evicts less valuable art if necessary to enforce its limits.
      */
-    private synchronized void addArtToCache(DataReference artReference, AlbumArt art) {
-        while (artCache.size() >= artCacheSize.get()) {
-            evictFromArtCache();
-        }
+    private void addArtToCache(DataReference artReference, AlbumArt art) {
         artCache.put(artReference, art);
-        artCacheEvictionQueue.addLast(artReference);
     }
 
     /**
@@ -379,6 +348,21 @@ public class ArtFinder extends LifecycleParticipant {
      */
     private AlbumArt requestArtworkInternal(final DataReference artReference,
                                             final boolean failIfPassive) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.ALBUM_ART, artReference,
+                requestHighResolutionArt.get() ? "high" : "low", failIfPassive,
+                () -> fetchArtworkInternal(artReference, failIfPassive));
+    }
+
+    /**
+     * Does the actual work of obtaining artwork for {@link #requestArtworkInternal(DataReference, boolean)} once we
+     * have determined that no identical request is already in progress.
+     *
+     * @param artReference uniquely identifies the desired album art
+     * @param failIfPassive will prevent the request from taking place if we are in passive mode
+     *
+     * @return the album art found, if any
+     */
+    private AlbumArt fetchArtworkInternal(final DataReference artReference, final boolean failIfPassive) {
 
         // First see if any registered metadata providers can offer it for us, provided it is a rekordbox track.
         final MediaDetails sourceDetails = MetadataFinder.getInstance().getMediaDetailsFor(artReference.getSlotReference());
@@ -406,6 +390,8 @@ public class ArtFinder extends LifecycleParticipant {
                 addArtToCache(artReference, artwork);
             }
             return artwork;
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting album art, returning null", e);
         }
@@ -496,20 +482,13 @@ public class ArtFinder extends LifecycleParticipant {
      */
     private AlbumArt findArtInMemoryCaches(DataReference artReference) {
         // First see if we can find the new track in the hot cache as a hot cue
-        for (AlbumArt cached : hotCache.values()) {
-            if (cached.artReference.equals(artReference)) {  // Found a hot cue hit, use it.
-                return cached;
-            }
+        final AlbumArt cached = hotCache.find(artReference);
+        if (cached != null) {  // Found a hot cue hit, use it.
+            return cached;
         }
 
-        // Not in the hot cache, see if it is in our LRU cache
-        synchronized (this) {
-            AlbumArt found = artCache.get(artReference);
-            if (found != null) {
-                artCacheRecentlyUsed.add(artReference);
-            }
-            return found;
-        }
+        // Not in the hot cache, see if it is in our second-level cache
+        return artCache.get(artReference);
     }
 
     /**
@@ -611,18 +590,25 @@ public class ArtFinder extends LifecycleParticipant {
                 if (activeRequests.add(update.player)) {
                     clearDeck(update);  // We won't know what it is until our request completes.
                     // We had to make sure we were not already asking for this track.
-                    new Thread(() -> {
+                    final FetchHandle handle = DeckLoadTracker.getInstance().handleFor(update.player, update.metadata.trackReference);
+                    TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "Album art request", () -> {
+                        final FetchHandle previous = (handle == null)? FetchHandle.getCurrent() : handle.attach();
                         try {
                             AlbumArt art = requestArtworkInternal(artReference, true);
-                            if (art != null) {
+                            if (art != null && (handle == null || !handle.isCancelled())) {
                                 updateArt(update, art);
                             }
+                        } catch (CancellationException e) {
+                            logger.debug("Abandoned album art request from update {} because a newer track was loaded", update);
                         } catch (Exception e) {
                             logger.warn("Problem requesting album art from update {}", update, e);
                         } finally {
+                            FetchHandle.restore(previous);
                             activeRequests.remove(update.player);
+                            DeckLoadTracker.getInstance().reprocessIfSuperseded(handle, update, this,
+                                    latest -> pendingUpdates.submit(latest.player, latest));
                         }
-                    }).start();
+                    });
                 }
             }
         }
@@ -664,17 +650,8 @@ public class ArtFinder extends LifecycleParticipant {
             MetadataFinder.getInstance().start();
             MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
             MetadataFinder.getInstance().addMountListener(mountListener);
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        // Interrupted due to MetadataFinder shutdown, presumably
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
 
             // Send ourselves "updates" about any tracks that were loaded before we started, since we missed those.
@@ -694,12 +671,10 @@ public class ArtFinder extends LifecycleParticipant {
         if (isRunning()) {
             MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             // Report the loss of our hot cached art and our shutdown, on the proper thread, and outside our lock
-            final Set<DeckReference> dyingCache = new HashSet<>(hotCache.keySet());
+            final Set<DeckReference> dyingCache = hotCache.clear().keySet();
             SwingUtilities.invokeLater(() -> {
                 for (DeckReference deck : dyingCache) {
                     if (deck.hotCue == 0) {
@@ -707,10 +682,7 @@ public class ArtFinder extends LifecycleParticipant {
                     }
                 }
             });
-            hotCache.clear();
             artCache.clear();
-            artCacheRecentlyUsed.clear();
-            artCacheEvictionQueue.clear();
             deliverLifecycleAnnouncement(logger, false);
         }
     }
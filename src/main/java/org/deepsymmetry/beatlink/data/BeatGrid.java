@@ -9,7 +9,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * Provides information about each beat in a track: the number of milliseconds after the start of the track that
@@ -69,6 +68,18 @@ public class BeatGrid {
      */
     private final long[] timeWithinTrackValues;
 
+    /**
+     * The width, in milliseconds, of the buckets into which we divide the track to find beats quickly. This is
+     * shorter than any plausible beat, so each bucket contains at most one beat boundary.
+     */
+    private static final int BUCKET_SIZE = 100;
+
+    /**
+     * For each {@link #BUCKET_SIZE}-millisecond bucket of the track, the number of beats which have begun by the
+     * start of that bucket, so {@link #findBeatAtTime(long)} can start from there rather than searching the whole grid.
+     */
+    private final int[] beatsBeforeBucket;
+
     /**
      * Constructor for when reading from the network.
      *
@@ -103,6 +114,7 @@ public class BeatGrid {
             bpmValues[beatNumber] = (int)Util.bytesToNumberLittleEndian(gridBytes, base + 2, 2);
             timeWithinTrackValues[beatNumber] = Util.bytesToNumberLittleEndian(gridBytes, base + 4, 4);
         }
+        beatsBeforeBucket = buildIndex(timeWithinTrackValues);
     }
 
     /**
@@ -142,6 +154,7 @@ public class BeatGrid {
             bpmValues[beatNumber] = beat.tempo();
             timeWithinTrackValues[beatNumber] = beat.time();
         }
+        beatsBeforeBucket = buildIndex(timeWithinTrackValues);
     }
 
     /**
@@ -166,6 +179,31 @@ public class BeatGrid {
         System.arraycopy(bpmValues, 0, this.bpmValues, 0, beatCount);
         this.timeWithinTrackValues = new long[beatCount];
         System.arraycopy(timeWithinTrackValues, 0, this.timeWithinTrackValues, 0, beatCount);
+        beatsBeforeBucket = buildIndex(this.timeWithinTrackValues);
+    }
+
+    /**
+     * Divide the track into buckets and record how many beats have begun by the start of each one.
+     *
+     * @param times the time at which each beat occurs, in milliseconds
+     *
+     * @return the number of beats at or before the start of each bucket
+     */
+    private static int[] buildIndex(long[] times) {
+        if (times.length == 0) {
+            return new int[0];
+        }
+        final int buckets = (int) (Math.max(0, times[times.length - 1]) / BUCKET_SIZE) + 1;
+        final int[] index = new int[buckets];
+        int beats = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            final long start = (long) bucket * BUCKET_SIZE;
+            while (beats < times.length && times[beats] <= start) {
+                beats++;
+            }
+            index[bucket] = beats;
+        }
+        return index;
     }
 
     /**
@@ -269,13 +307,125 @@ public class BeatGrid {
      */
     @API(status = API.Status.STABLE)
     public int findBeatAtTime(long milliseconds) {
-        int found = Arrays.binarySearch(timeWithinTrackValues, milliseconds);
-        if (found >= 0) {  // An exact match, just change 0-based array index to 1-based beat number
-            return found + 1;
-        } else if (found == -1) {  // We are before the first beat
-            return found;
-        } else {  // We are after some beat, report its beat number
-            return -(found + 1);
+        if (beatCount == 0 || milliseconds < timeWithinTrackValues[0]) {
+            return -1;  // The bucket index below is clamped, so it can't be trusted for times before the first beat.
+        }
+        // Start from the beats known to have begun by the start of this time's bucket, then step past any that begin
+        // within the bucket, of which there is at most one in any real beat grid.
+        final long bucket = Math.max(0, Math.min(milliseconds / BUCKET_SIZE, beatsBeforeBucket.length - 1));
+        int beats = beatsBeforeBucket[(int) bucket];
+        while (beats < beatCount && timeWithinTrackValues[beats] <= milliseconds) {
+            beats++;
+        }
+        return (beats == 0)? -1 : beats;
+    }
+
+    /**
+     * Finds the bar in which the specified track position falls.
+     *
+     * @param milliseconds how long the track has been playing
+     *
+     * @return the bar number represented by that time, as described in {@link #getBarNumber(int)}, or 0 if the time
+     *         is before the first beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int findBarAtTime(long milliseconds) {
+        final int beat = findBeatAtTime(milliseconds);
+        return (beat < 1)? 0 : getBarNumber(beat);
+    }
+
+    /**
+     * Determines how far through a beat the specified track position falls. The last beat is assumed to last as
+     * long as its tempo says it should.
+     *
+     * @param beatNumber the beat within which the time falls, as returned by {@link #findBeatAtTime(long)}
+     * @param milliseconds how long the track has been playing
+     *
+     * @return a value from 0.0 (right on the beat) up to, but not including, 1.0, or 0.0 if the beat is not in
+     *         the grid
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getBeatPhase(int beatNumber, long milliseconds) {
+        if (beatNumber < 1 || beatNumber > beatCount) {
+            return 0.0;
+        }
+        final long start = timeWithinTrackValues[beatNumber - 1];
+        final long end;
+        if (beatNumber < beatCount) {
+            end = timeWithinTrackValues[beatNumber];
+        } else {
+            final int bpm = bpmValues[beatNumber - 1];
+            end = (bpm > 0)? start + 6000000L / bpm : start;
+        }
+        if (end <= start) {
+            return 0.0;
+        }
+        return Math.min(Math.max((double) (milliseconds - start) / (end - start), 0.0), Math.nextDown(1.0));
+    }
+
+    /**
+     * Finds how far through its beat the specified track position falls.
+     *
+     * @param milliseconds how long the track has been playing
+     *
+     * @return a value from 0.0 (right on the beat) up to, but not including, 1.0, or 0.0 if the time is before the
+     *         first beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double findBeatPhaseAtTime(long milliseconds) {
+        return getBeatPhase(findBeatAtTime(milliseconds), milliseconds);
+    }
+
+    /**
+     * Finds the beats in which a whole series of track positions fall, for example the positions of every pixel of
+     * a waveform being drawn, without allocating any memory.
+     *
+     * @param milliseconds the track positions of interest
+     * @param beats will be filled in with the beat number at which each position falls, or -1 for positions before
+     *              the first beat
+     *
+     * @throws IllegalArgumentException if {@code beats} is shorter than {@code milliseconds}
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void findBeatsAtTimes(long[] milliseconds, int[] beats) {
+        if (beats.length < milliseconds.length) {
+            throw new IllegalArgumentException("beats must have room for a result for each time");
+        }
+        for (int i = 0; i < milliseconds.length; i++) {
+            beats[i] = findBeatAtTime(milliseconds[i]);
+        }
+    }
+
+    /**
+     * Finds the beats in which a whole series of track positions fall.
+     *
+     * @param milliseconds the track positions of interest
+     *
+     * @return the beat number at which each position falls, or -1 for positions before the first beat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int[] findBeatsAtTimes(long[] milliseconds) {
+        final int[] beats = new int[milliseconds.length];
+        findBeatsAtTimes(milliseconds, beats);
+        return beats;
+    }
+
+    /**
+     * Finds how far through their beats a whole series of track positions fall, without allocating any memory.
+     *
+     * @param milliseconds the track positions of interest
+     * @param phases will be filled in with the phase of each position within its beat, as described in
+     *               {@link #findBeatPhaseAtTime(long)}
+     *
+     * @throws IllegalArgumentException if {@code phases} is shorter than {@code milliseconds}
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void findBeatPhasesAtTimes(long[] milliseconds, double[] phases) {
+        if (phases.length < milliseconds.length) {
+            throw new IllegalArgumentException("phases must have room for a result for each time");
+        }
+        for (int i = 0; i < milliseconds.length; i++) {
+            phases[i] = findBeatPhaseAtTime(milliseconds[i]);
         }
     }
 
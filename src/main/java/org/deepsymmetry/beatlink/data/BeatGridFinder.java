@@ -4,6 +4,7 @@ import org.apiguardian.api.API;
 import org.deepsymmetry.beatlink.*;
 import org.deepsymmetry.beatlink.dbserver.Client;
 import org.deepsymmetry.beatlink.dbserver.ConnectionManager;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
 import org.deepsymmetry.beatlink.dbserver.Message;
 import org.deepsymmetry.beatlink.dbserver.NumberField;
 import org.slf4j.Logger;
@@ -12,8 +13,8 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -34,15 +35,36 @@ public class BeatGridFinder extends LifecycleParticipant {
 
     /**
      * Keeps track of the current beat grids cached for each player. We hot cache beat grids for any track which is
-     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot.
+     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot. Each track is
+     * held once, no matter how many decks it is loaded on.
      */
-    private final Map<DeckReference, BeatGrid> hotCache = new ConcurrentHashMap<>();
+    private final HotCache<BeatGrid> hotCache = new HotCache<>(beatGrid -> beatGrid.dataReference);
 
     /**
-     * A queue used to hold metadata updates we receive from the {@link MetadataFinder} so we can process them on a
-     * lower priority thread, and not hold up delivery to more time-sensitive listeners.
+     * Holds beat grids for tracks that were loaded recently, even after they are no longer in the hot cache, if the
+     * second-level cache has been enabled. The size estimate allows for the three values stored for each beat.
      */
-    private final LinkedBlockingDeque<TrackMetadataUpdate> pendingUpdates = new LinkedBlockingDeque<>(100);
+    private final SecondLevelCache<BeatGrid> secondLevelCache = new SecondLevelCache<>("beat grids",
+            beatGrid -> 128L + 16L * beatGrid.beatCount);
+
+    /**
+     * Get the second-level cache which can hold beat grids for tracks that are no longer loaded in any player, so
+     * they can be reused without being fetched again if the tracks are reloaded. The cache is disabled until limits
+     * are configured using {@link SecondLevelCache#setLimits(int, long)}.
+     *
+     * @return the beat grid cache
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public SecondLevelCache<BeatGrid> getSecondLevelCache() {
+        return secondLevelCache;
+    }
+
+    /**
+     * Our stage of the {@link UpdatePipeline}, which holds the latest metadata update we have received from the
+     * {@link MetadataFinder} for each player, so we can process them on a shared worker thread, and not hold up
+     * delivery to more time-sensitive listeners.
+     */
+    private final UpdatePipeline.Stage<TrackMetadataUpdate> pendingUpdates = UpdatePipeline.getInstance().createStage("BeatGridFinder", this::handleUpdate);
 
     /**
      * Our metadata listener just puts metadata updates on our queue, so we can process them on a lower
@@ -50,9 +72,7 @@ public class BeatGridFinder extends LifecycleParticipant {
      */
     private final TrackMetadataListener metadataListener = update -> {
         logger.debug("Received metadata update {}", update);
-        if (!pendingUpdates.offerLast(update)) {
-            logger.warn("Discarding metadata update because our queue is backed up.");
-        }
+        pendingUpdates.submit(update.player, update);
     };
 
     /**
@@ -67,13 +87,10 @@ public class BeatGridFinder extends LifecycleParticipant {
 
         @Override
         public void mediaUnmounted(SlotReference slot) {
-            // Iterate over a copy to avoid concurrent modification issues
-            for (Map.Entry<DeckReference, BeatGrid> entry : new HashMap<>(hotCache).entrySet()) {
-                if (slot == SlotReference.getSlotReference(entry.getValue().dataReference)) {
-                    logger.debug("Evicting cached beat grid in response to unmount report {}", entry.getValue());
-                    hotCache.remove(entry.getKey());
-                }
+            for (BeatGrid evicted : hotCache.removeIf(reference -> slot == reference.getSlotReference()).values()) {
+                logger.debug("Evicting cached beat grid in response to unmount report {}", evicted);
             }
+            secondLevelCache.removeSlot(slot);
         }
     };
 
@@ -117,12 +134,6 @@ public class BeatGridFinder extends LifecycleParticipant {
         return running.get();
     }
 
-    /**
-     * We process our player status updates on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow I/O.
-     */
-    private Thread queueHandler;
-
     /**
      * We have received an update that invalidates the beat grid for a player, so clear it and alert
      * any listeners if this represents a change. This does not affect the hot cues; they will stick around until the
@@ -143,15 +154,12 @@ public class BeatGridFinder extends LifecycleParticipant {
      */
     private void clearBeatGrids(DeviceAnnouncement announcement) {
         final int player = announcement.getDeviceNumber();
-        // Iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(hotCache.keySet())) {
-            if (deck.player == player) {
-                hotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverBeatGridUpdate(player, null);  // Inform listeners the beat grid is gone.
-                }
+        for (DeckReference deck : hotCache.removePlayer(player).keySet()) {
+            if (deck.hotCue == 0) {
+                deliverBeatGridUpdate(player, null);  // Inform listeners the beat grid is gone.
             }
         }
+        secondLevelCache.removePlayer(player);
     }
 
     /**
@@ -161,17 +169,24 @@ public class BeatGridFinder extends LifecycleParticipant {
      * @param beatGrid the beat grid which we retrieved
      */
     private void updateBeatGrid(TrackMetadataUpdate update, BeatGrid beatGrid) {
-        hotCache.put(DeckReference.getDeckReference(update.player, 0), beatGrid);  // Main deck
-        if (update.metadata.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : update.metadata.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    hotCache.put(DeckReference.getDeckReference(update.player, entry.hotCueNumber), beatGrid);
-                }
-            }
-        }
+        hotCache.putLoaded(update.player, beatGrid, update.metadata.getCueList());
+        secondLevelCache.put(beatGrid.dataReference, beatGrid);
         deliverBeatGridUpdate(update.player, beatGrid);
     }
 
+    /**
+     * Called by the {@link TrackBundleFetcher} when it has retrieved a beat grid for a newly loaded track along with
+     * the rest of its data, so we can cache it and inform our listeners without making our own request.
+     *
+     * @param update describes the newly loaded track
+     * @param beatGrid the beat grid which was retrieved for it
+     */
+    void updateFromBundle(TrackMetadataUpdate update, BeatGrid beatGrid) {
+        if (isRunning()) {
+            updateBeatGrid(update, beatGrid);
+        }
+    }
+
     /**
      * Get the beat grids available for all tracks currently loaded in any player, either on the play deck, or
      * in a hot cue.
@@ -184,7 +199,7 @@ public class BeatGridFinder extends LifecycleParticipant {
     public Map<DeckReference, BeatGrid> getLoadedBeatGrids() {
         ensureRunning();
         // Make a copy so callers get an immutable snapshot of the current state.
-        return Map.copyOf(hotCache);
+        return hotCache.snapshot();
     }
 
     /**
@@ -232,8 +247,28 @@ public class BeatGridFinder extends LifecycleParticipant {
      * @return the beat grid found, if any
      */
     private BeatGrid requestBeatGridInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.BEAT_GRID, trackReference, null,
+                fromUpdate != null, () -> fetchBeatGridInternal(trackReference, fromUpdate));
+    }
+
+    /**
+     * Does the actual work of obtaining a beat grid for {@link #requestBeatGridInternal(DataReference, TrackMetadataUpdate)}
+     * once we have determined that no identical request is already in progress.
+     *
+     * @param trackReference uniquely identifies the desired beat grid
+     * @param fromUpdate if not {@code null} this is an automatic update in response to a track change
+     *
+     * @return the beat grid found, if any
+     */
+    private BeatGrid fetchBeatGridInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
 
-        // First see if any registered metadata providers can offer it to us.
+        // First see if we still have it from a recent load.
+        final BeatGrid recent = secondLevelCache.get(trackReference);
+        if (recent != null) {
+            return recent;
+        }
+
+        // Next see if any registered metadata providers can offer it to us.
         final MediaDetails sourceDetails = MetadataFinder.getInstance().getMediaDetailsFor(trackReference.getSlotReference());
         if (sourceDetails !=  null) {
             final BeatGrid provided = MetadataFinder.getInstance().allMetadataProviders.getBeatGrid(sourceDetails, trackReference);
@@ -254,6 +289,8 @@ public class BeatGridFinder extends LifecycleParticipant {
 
         try {
             return ConnectionManager.getInstance().invokeWithClientSession(trackReference.player, task, "requesting beat grid");
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting beat grid, returning null", e);
         }
@@ -270,19 +307,13 @@ public class BeatGridFinder extends LifecycleParticipant {
      */
     @API(status = API.Status.STABLE)
     public BeatGrid requestBeatGridFrom(final DataReference track) {
-        for (BeatGrid cached : hotCache.values()) {
-            if (cached.dataReference.equals(track)) {  // Found a hot cue hit, use it.
-                return cached;
-            }
+        final BeatGrid cached = hotCache.find(track);
+        if (cached != null) {  // Found a hot cue hit, use it.
+            return cached;
         }
         return requestBeatGridInternal(track, null);
     }
 
-    /**
-     * Keeps track of whether we have a retry thread already in progress, so we never have more than one.
-     */
-    private final AtomicBoolean retrying = new AtomicBoolean(false);
-
     /**
      * Requests the beat grid for a specific track ID, given a connection to a player that has already been set up.
 
@@ -304,7 +335,7 @@ public class BeatGridFinder extends LifecycleParticipant {
         if (response.knownType == Message.KnownType.BEAT_GRID) {
             return new BeatGrid(new DataReference(slot, rekordboxId, trackType), response);
         }
-        if (WaveformFinder.retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "beat grid")) {
+        if (WaveformFinder.retryUnanalyzedTrack(fromUpdate, metadataListener, "beat grid")) {
             return null;  // We will hopefully get the data from the retry that has been queued.
         }
         logger.error("Unexpected response type when requesting beat grid: {}", response);
@@ -404,32 +435,40 @@ public class BeatGridFinder extends LifecycleParticipant {
             if (lastBeatGrid == null || !lastBeatGrid.dataReference.equals(update.metadata.trackReference)) {  // We have something new!
 
                 // First see if we can find the new preview in the hot cache
-                for (BeatGrid cached : hotCache.values()) {
-                    if (cached.dataReference.equals(update.metadata.trackReference)) {  // Found a hot cue hit, use it.
-                        updateBeatGrid(update, cached);
-                        return;
-                    }
+                final BeatGrid cached = hotCache.find(update.metadata.trackReference);
+                if (cached != null) {  // Found a hot cue hit, use it.
+                    updateBeatGrid(update, cached);
+                    return;
                 }
 
                 // Not in the cache so try actually retrieving it.
                 if (activeRequests.add(update.player)) {  // We had to make sure we were not already asking for this track.
                     clearDeck(update);  // We won't know what it is until our request completes.
 
-                    new Thread(() -> {
+                    final FetchHandle handle = DeckLoadTracker.getInstance().handleFor(update.player, update.metadata.trackReference);
+                    TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "Beat Grid request", () -> {
+                        final FetchHandle previous = (handle == null)? FetchHandle.getCurrent() : handle.attach();
                         try {
                             BeatGrid grid = requestBeatGridInternal(update.metadata.trackReference, update);
                             if (grid != null && grid.beatCount > 0) {
-                                updateBeatGrid(update, grid);
+                                if (handle == null || !handle.isCancelled()) {
+                                    updateBeatGrid(update, grid);
+                                }
                             } else {
-                                WaveformFinder.retryUnanalyzedTrack(update, retrying, metadataListener, "beat grid");
+                                WaveformFinder.retryUnanalyzedTrack(update, metadataListener, "beat grid");
                             }
+                        } catch (CancellationException e) {
+                            logger.debug("Abandoned beat grid request from update {} because a newer track was loaded", update);
                         } catch (Exception e) {
                             logger.warn("Problem requesting beat grid from update {}", update, e);
-                            WaveformFinder.retryUnanalyzedTrack(update, retrying, metadataListener, "beat grid");
+                            WaveformFinder.retryUnanalyzedTrack(update, metadataListener, "beat grid");
                         } finally {
+                            FetchHandle.restore(previous);
                             activeRequests.remove(update.player);
+                            DeckLoadTracker.getInstance().reprocessIfSuperseded(handle, update, this,
+                                    latest -> pendingUpdates.submit(latest.player, latest));
                         }
-                    }, "Beat Grid request").start();
+                    });
                 }
             }
         }
@@ -471,19 +510,8 @@ public class BeatGridFinder extends LifecycleParticipant {
             MetadataFinder.getInstance().start();
             MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
             MetadataFinder.getInstance().addMountListener(mountListener);
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        // Interrupted due to MetadataFinder shutdown, presumably
-                    } catch (Throwable t) {
-                        logger.error("Problem processing metadata update", t);
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
 
             // Send ourselves "updates" about any tracks that were loaded before we started, since we missed those.
@@ -505,12 +533,10 @@ public class BeatGridFinder extends LifecycleParticipant {
         if (isRunning()) {
             MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             // Report the loss of our previews, on the proper thread, and outside our lock.
-            final Set<DeckReference> dyingCache = new HashSet<>(hotCache.keySet());
+            final Set<DeckReference> dyingCache = hotCache.clear().keySet();
             SwingUtilities.invokeLater(() -> {
                 for (DeckReference deck : dyingCache) {
                     if (deck.hotCue == 0) {
@@ -518,7 +544,7 @@ public class BeatGridFinder extends LifecycleParticipant {
                     }
                 }
             });
-            hotCache.clear();
+            secondLevelCache.clear();
             deliverLifecycleAnnouncement(logger, false);
         }
     }
@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
@@ -20,7 +21,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -144,16 +147,6 @@ public class CrateDigger {
         throw new IllegalArgumentException("Don't know how to NFS mount filesystem for slot " + slot);
     }
 
-    /**
-     * How long we should back off, in milliseconds, before retrying after each failure to get a file.
-     */
-    private static final long RETRY_BACKOFF = 2000;
-
-    /**
-     * The maximum amount of time we should wait between retry attempts, in milliseconds.
-     */
-    private static final long MAX_RETRY_INTERVAL = 6000;
-
     /**
      * Helper method to call the {@link FileFetcher} with the right arguments to get a file for a particular slot. Also
      * arranges for the file to be deleted when we are shutting down in case we fail to clean it up ourselves. Will
@@ -172,7 +165,10 @@ public class CrateDigger {
     /**
      * Helper method to call the {@link FileFetcher} with the right arguments to get a file for a particular slot. Also
      * arranges for the file to be deleted when we are shutting down in case we fail to clean it up ourselves. Will
-     * retry up to the specific number of times passed in the {@code retryLimit} argument.
+     * retry up to the specific number of times passed in the {@code retryLimit} argument, and gives up immediately if
+     * the {@link RetryScheduler} has stopped sending requests to the player because too many in a row have failed.
+     * The retries are scheduled with the {@link RetryScheduler} after its backoff delay, rather than sleeping on the
+     * caller's thread; the caller simply waits for the outcome.
      *
      * @param slot the slot from which a file is desired
      * @param path the path to the file within the slot's mounted filesystem
@@ -186,36 +182,75 @@ public class CrateDigger {
         if (player == null) {
             throw new IOException("Cannot fetch file from player that is not found on the network; slot: " + slot);
         }
-        int triesMade = 0;
+        if (!RetryScheduler.getInstance().allowRequest(slot.player)) {
+            throw new IOException("Not fetching file from player " + slot.player + " because too many recent requests to it have failed; slot: " + slot);
+        }
         if (path.startsWith("PIONEER/") && mediaWithHiddenPioneerFolder.contains(slot)) {
             path = "." + path;  // We are dealing with HFS+ media, so skip the first, failed attempt to read it.
         }
-        while (triesMade < retryLimit) {
-            try {
-                FileFetcher.getInstance().fetch(player.getAddress(), mountPath(slot.slot), path, destination);
-                destination.deleteOnExit();
+        final CompletableFuture<Void> outcome = new CompletableFuture<>();
+        attemptFetch(player, slot, path, destination, retryLimit, 0, outcome);
+        try {
+            outcome.get();
+        } catch (InterruptedException e) {
+            outcome.cancel(false);  // Make sure no retry that is still scheduled goes on to write the file.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to fetch file " + path + " from " + slot);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Problem fetching file " + path + " from " + slot, e.getCause());
+        }
+    }
+
+    /**
+     * Make one attempt to fetch a file on behalf of {@link #fetchFile(SlotReference, String, File, int)}, scheduling
+     * the next attempt with the {@link RetryScheduler} if it fails and tries remain.
+     *
+     * @param player the player from which the file is being fetched
+     * @param slot the slot from which a file is desired
+     * @param path the path to the file within the slot's mounted filesystem
+     * @param destination where to write the file contents
+     * @param retryLimit the maximum number of tries that will be made to read the file
+     * @param triesMade the number of tries that have already failed
+     * @param outcome will be completed when the file has been fetched, or we have given up
+     */
+    private void attemptFetch(DeviceAnnouncement player, SlotReference slot, String path, File destination,
+                              int retryLimit, int triesMade, CompletableFuture<Void> outcome) {
+        if (outcome.isDone()) {
+            return;  // The caller stopped waiting for us.
+        }
+        final RetryScheduler scheduler = RetryScheduler.getInstance();
+        try {
+            FileFetcher.getInstance().fetch(player.getAddress(), mountPath(slot.slot), path, destination);
+            destination.deleteOnExit();
+            scheduler.recordSuccess(slot.player);
+            outcome.complete(null);
+        } catch (IOException e) {
+            if (path.startsWith("PIONEER/") && e.getMessage() != null &&
+                    e.getMessage().contains("lookup of element \"PIONEER\" returned status")) {
+                // Workaround for the fact that HFS+ formatted devices hide their PIONEER directory as a dot-file.
+                mediaWithHiddenPioneerFolder.add(slot);  // Skip the initial failed attempt next time we access it.
+                attemptFetch(player, slot, "." + path, destination, retryLimit, triesMade, outcome);
                 return;
-            } catch (IOException e) {
-                if (path.startsWith("PIONEER/") &&
-                        e.getMessage().contains("lookup of element \"PIONEER\" returned status")) {
-                    // Workaround for the fact that HFS+ formatted devices hide their PIONEER directory as a dot-file.
-                    mediaWithHiddenPioneerFolder.add(slot);  // Skip the initial failed attempt next time we access it.
-                    fetchFile(slot, "." + path, destination);
-                    return;
-                }
-                triesMade++;
-                if (triesMade < retryLimit) {
-                    logger.warn("Attempt to fetch file {} from {} to {} failed, tries left: {}", path, slot, destination, retryLimit - triesMade, e);
-                    try {
-                        //noinspection BusyWait
-                        Thread.sleep(Math.min(MAX_RETRY_INTERVAL, triesMade * RETRY_BACKOFF));
-                    } catch (InterruptedException ie) {
-                        logger.warn("Interrupted while sleeping between file fetch attempts. Retrying immediately.");
-                    }
-                } else {
-                    throw e;
-                }
             }
+            if (e instanceof FileNotFoundException) {
+                scheduler.recordSuccess(slot.player);  // The player answered us, even though the answer was no.
+                outcome.completeExceptionally(e);  // The file is not there, retrying will not make it appear.
+                return;
+            }
+            scheduler.recordFailure(slot.player);
+            final int failures = triesMade + 1;
+            if (failures < retryLimit && scheduler.allowRequest(slot.player)) {
+                logger.warn("Attempt to fetch file {} from {} to {} failed, tries left: {}", path, slot, destination, retryLimit - failures, e);
+                scheduler.schedule("CrateDigger file fetch retry for " + path, scheduler.backoffDelay(failures),
+                        () -> attemptFetch(player, slot, path, destination, retryLimit, failures, outcome));
+            } else {
+                outcome.completeExceptionally(e);
+            }
+        } catch (Throwable t) {
+            outcome.completeExceptionally(t);  // Never leave the caller waiting forever.
         }
     }
 
@@ -286,45 +321,79 @@ public class CrateDigger {
                 !jdbcConnections.containsKey(details.slotReference) &&  // ... or downloaded and connected to the SQLite version.
                 canUseDatabase(details.slotReference) &&  // The player uses a database format we can read.
                 activeRequests.add(details.slotReference)) {
-            new Thread(() -> {
-                final DeviceAnnouncement owner = DeviceFinder.getInstance().getLatestAnnouncementFrom(details.slotReference.player);
-                final String databaseFileName = owner.isUsingDeviceLibraryPlus? SQLITE_FILENAME : DEVICE_SQL_FILENAME;
-                final File file = localDatabaseFile(details.slotReference, databaseFileName);
-                try {
-                    logger.info("Fetching rekordbox {} from player {}, slot {}", databaseFileName,
-                            details.slotReference.player, details.slotReference.slot);
-                    long started = System.nanoTime();
-                    fetchFile(details.slotReference, "PIONEER/rekordbox/" + databaseFileName, file);
-                    long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
-                    logger.info("Finished fetching {} from player {}, slot {}; received {} in {}ms, {}/s.", databaseFileName,
-                            details.slotReference.player, details.slotReference.slot,
-                            humanReadableByteCount(file.length(), true), duration,
-                            humanReadableByteCount(file.length() * 1000 / duration, true));
-                    if (owner.isUsingDeviceLibraryPlus) {
-                        Connection connection = OpusProvider.getInstance().openSQLiteConnection(file);
-                        logger.info("Found a Device Library Plus database and opened a JDBC connection to it.");
-                        jdbcConnections.put(details.slotReference, connection);
-                        deliverConnectionUpdate(details.slotReference, connection, true);
-                    } else {
-                        // The device uses DeviceSQL databases; parse it and notify listeners about it.
-                        started = System.nanoTime();
-                        final Database database = new Database(file);
-                        duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
-                        logger.info("Parsing database took {}ms, {} tracks/s", duration, database.trackIndex.size() * 1000L / duration);
-                        databases.put(details.slotReference, database);
-                        deliverDatabaseUpdate(details.slotReference, database, true);
-                    }
-                } catch (Throwable t) {
-                    logger.error("Problem fetching rekordbox database for media {}, will not offer metadata for it.", details, t);
-                    //noinspection ResultOfMethodCallIgnored
-                    file.delete();
-                } finally {
-                    activeRequests.remove(details.slotReference);
-                }
-            }).start();
+            TaskExecutor.getInstance().execute(TaskClass.MEDIA_DOWNLOAD, "CrateDigger database download for " + details.slotReference,
+                    () -> downloadDatabase(details, 1));
         }
     };
 
+    /**
+     * Make an attempt to download and open the database for a newly-mounted media slot. If the attempt fails in a
+     * way that might succeed later, and we have not yet reached our {@link #getRetryLimit()}, another attempt is
+     * scheduled with the {@link RetryScheduler}, rather than tying up a download thread while we wait. The slot
+     * stays in {@link #activeRequests} until we have either succeeded or given up.
+     *
+     * @param details describes the media whose database is to be downloaded
+     * @param attempt the number of this attempt, starting at one
+     */
+    private void downloadDatabase(MediaDetails details, int attempt) {
+        final DeviceAnnouncement owner = DeviceFinder.getInstance().getLatestAnnouncementFrom(details.slotReference.player);
+        if (!isRunning() || owner == null || !MetadataFinder.getInstance().getMountedMediaSlots().contains(details.slotReference)) {
+            logger.info("Media {} is no longer available, abandoning database download.", details);
+            activeRequests.remove(details.slotReference);
+            return;
+        }
+        final String databaseFileName = owner.isUsingDeviceLibraryPlus? SQLITE_FILENAME : DEVICE_SQL_FILENAME;
+        final File file = localDatabaseFile(details.slotReference, databaseFileName);
+        boolean retrying = false;
+        try {
+            logger.info("Fetching rekordbox {} from player {}, slot {}", databaseFileName,
+                    details.slotReference.player, details.slotReference.slot);
+            long started = System.nanoTime();
+            fetchFile(details.slotReference, "PIONEER/rekordbox/" + databaseFileName, file, 1);
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            logger.info("Finished fetching {} from player {}, slot {}; received {} in {}ms, {}/s.", databaseFileName,
+                    details.slotReference.player, details.slotReference.slot,
+                    humanReadableByteCount(file.length(), true), duration,
+                    humanReadableByteCount(file.length() * 1000 / Math.max(1, duration), true));
+            if (owner.isUsingDeviceLibraryPlus) {
+                Connection connection = OpusProvider.getInstance().openSQLiteConnection(file);
+                logger.info("Found a Device Library Plus database and opened a JDBC connection to it.");
+                jdbcConnections.put(details.slotReference, connection);
+                deliverConnectionUpdate(details.slotReference, connection, true);
+            } else {
+                // The device uses DeviceSQL databases; parse it and notify listeners about it.
+                started = System.nanoTime();
+                final Database database = new Database(file);
+                duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                logger.info("Parsing database took {}ms, {} tracks/s", duration, database.trackIndex.size() * 1000L / Math.max(1, duration));
+                databases.put(details.slotReference, database);
+                deliverDatabaseUpdate(details.slotReference, database, true);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if (!(e instanceof FileNotFoundException) && attempt < getRetryLimit()) {
+                final long delay = RetryScheduler.getInstance().backoffDelay(attempt);
+                logger.warn("Attempt {} to fetch rekordbox database for media {} failed, trying again in {}ms.", attempt, details, delay, e);
+                retrying = true;
+                RetryScheduler.getInstance().schedule("CrateDigger database download retry for " + details.slotReference, delay,
+                        () -> TaskExecutor.getInstance().execute(TaskClass.MEDIA_DOWNLOAD,
+                                "CrateDigger database download for " + details.slotReference,
+                                () -> downloadDatabase(details, attempt + 1)));
+            } else {
+                logger.error("Problem fetching rekordbox database for media {}, will not offer metadata for it.", details, e);
+            }
+        } catch (Throwable t) {
+            logger.error("Problem fetching rekordbox database for media {}, will not offer metadata for it.", details, t);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        } finally {
+            if (!retrying) {
+                activeRequests.remove(details.slotReference);
+            }
+        }
+    }
+
     /**
      * Find the database we have downloaded and parsed that can provide information about the supplied data
      * reference, if any.
@@ -420,6 +489,10 @@ public class CrateDigger {
      * @return the parsed file containing the track analysis
      */
     private RekordboxAnlz findTrackAnalysis(DataReference track, Database database, String extension) {
+        final String artifact = NegativeCache.analysisFile(extension);
+        if (NegativeCache.getInstance().isKnownMissing(track, artifact)) {
+            return null;  // We recently found this file is not on the media, no point in looking again.
+        }
         final File file = trackAnalyisFile(track, extension);
         final RekordboxPdb.TrackRow trackRow = database.trackIndex.get((long) track.rekordboxId);
         try {
@@ -437,6 +510,9 @@ public class CrateDigger {
                         fetchFile(track.getSlotReference(), requestedPath, file);
                         return new RekordboxAnlz(new RandomAccessFileKaitaiStream(filePath));
                     }
+                } catch (FileNotFoundException e) {
+                    logger.info("Analysis file {} for track {} is not present on the media.", requestedPath, track);
+                    NegativeCache.getInstance().markMissing(track, artifact);
                 } catch (Exception e) {  // We can give a more specific error including the file path.
                     logger.error("Problem parsing requested analysis file {} for track {} from database {}", requestedPath, track, database, e);
                     //noinspection ResultOfMethodCallIgnored
@@ -502,6 +578,10 @@ public class CrateDigger {
      * @return the parsed file containing the track analysis
      */
     private RekordboxAnlz findTrackAnalysis(DataReference track, Connection connection, String extension) {
+        final String artifact = NegativeCache.analysisFile(extension);
+        if (NegativeCache.getInstance().isKnownMissing(track, artifact)) {
+            return null;  // We recently found this file is not on the media, no point in looking again.
+        }
         final File file = trackAnalyisFile(track, extension);
         try {
             String analyzePath = null;
@@ -527,6 +607,9 @@ public class CrateDigger {
                         fetchFile(track.getSlotReference(), requestedPath, file);
                         return new RekordboxAnlz(new RandomAccessFileKaitaiStream(filePath));
                     }
+                } catch (FileNotFoundException e) {
+                    logger.info("Analysis file {} for track {} is not present on the media.", requestedPath, track);
+                    NegativeCache.getInstance().markMissing(track, artifact);
                 } catch (Exception e) {  // We can give a more specific error including the file path.
                     logger.error("Problem parsing requested analysis file {} for track {} from JDBC connection {}", requestedPath, track, connection, e);
                     //noinspection ResultOfMethodCallIgnored
@@ -543,6 +626,40 @@ public class CrateDigger {
         return null;
     }
 
+    /**
+     * Download the analysis files for a track ahead of time, if we have not already done so, so that they are
+     * available locally when the track is loaded. Used by the {@link LibraryWarmer} for tracks in playlists that
+     * have been marked as set lists.
+     *
+     * @param track the track whose analysis files should be downloaded
+     *
+     * @return {@code true} if at least one analysis file for the track is now available locally
+     */
+    boolean prefetchAnalysis(DataReference track) {
+        boolean found = false;
+        for (String extension : new String[] {".DAT", ".EXT"}) {
+            RekordboxAnlz analysisFile = null;
+            final Connection connection = findJdbcConnection(track);
+            if (connection != null) {
+                analysisFile = findTrackAnalysis(track, connection, extension);
+            } else {
+                final Database database = findDatabase(track);
+                if (database != null) {
+                    analysisFile = findTrackAnalysis(track, database, extension);
+                }
+            }
+            if (analysisFile != null) {
+                found = true;
+                try {
+                    analysisFile._io().close();
+                } catch (Exception e) {
+                    logger.error("Problem closing analysis file {} prefetched for track {}", analysisFile, track, e);
+                }
+            }
+        }
+        return found;
+    }
+
     /**
      * Capture a log copy of a track analysis for which a data problem has been identified, to assist
      * in further research.
@@ -578,6 +695,14 @@ public class CrateDigger {
         @Override
         public TrackMetadata getTrackMetadata(MediaDetails sourceMedia, DataReference track) {
 
+            final TrackMetadata.Summary indexed = LibraryWarmer.getInstance().findIndexedMetadata(track);
+            if (indexed != null) {  // The library has been warmed up, so we only need the raw row and cue list.
+                final Database database = findDatabase(track);
+                final RekordboxPdb.TrackRow rawRow = (database == null)? null :
+                        database.trackIndex.get((long) track.rekordboxId);
+                return new TrackMetadata(track, indexed, rawRow, getCueList(sourceMedia, track));
+            }
+
             final Connection connection = findJdbcConnection(track);  // First try SQLite database if open.
             if (connection != null) {
                 try {
@@ -632,11 +757,14 @@ public class CrateDigger {
                         return new AlbumArt(art, file);
                     }
                     file.deleteOnExit();  // Prepare to download it.
-                    if (ArtFinder.getInstance().getRequestHighResolutionArt()) {
+                    if (ArtFinder.getInstance().getRequestHighResolutionArt() &&
+                            !NegativeCache.getInstance().isKnownMissing(art, NegativeCache.HIGH_RESOLUTION_ART)) {
                         try {
                             fetchFile(art.getSlotReference(), Util.highResolutionPath(artPath), file, 1);
                         } catch (IOException e) {
-                            if (!(e instanceof FileNotFoundException)) {
+                            if (e instanceof FileNotFoundException) {
+                                NegativeCache.getInstance().markMissing(art, NegativeCache.HIGH_RESOLUTION_ART);
+                            } else {
                                 logger.error("Unexpected exception type trying to load high resolution album art", e);
                             }
                             // Fall back to looking for the normal resolution art.
@@ -1220,14 +1348,14 @@ public class CrateDigger {
             // Allows us to automatically shut down when the MetadataFinder, which we depend on, does, and start back up once it resumes.
             @Override
             public void started(final LifecycleParticipant sender) {
-                new Thread(() -> {
+                TaskExecutor.getInstance().execute(TaskClass.LIFECYCLE, "CrateDigger startup", () -> {
                     try {
                         logger.info("CrateDigger starting because {} has.", sender);
                         start();
                     } catch (Throwable t) {
                         logger.error("Problem starting the CrateDigger in response to a lifecycle event.", t);
                     }
-                }).start();
+                });
             }
 
             @Override
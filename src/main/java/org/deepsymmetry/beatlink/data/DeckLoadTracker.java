@@ -0,0 +1,240 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.LifecycleParticipant;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * <p>Keeps track of the work being done to fetch data for the track most recently loaded on each deck, so that
+ * if the DJ loads a different track before that work is finished, it can be abandoned (at the next safe
+ * point in the dbserver conversation, see {@link FetchHandle}) rather than holding up the data for the newer
+ * track.</p>
+ *
+ * <p>The {@link MetadataFinder} tells us whenever it notices a new track on a deck, and the other finders attach
+ * the corresponding handle to the threads that fetch their data for that track. Also measures how long it takes
+ * from when each track was noticed to when the first data about it became available.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class DeckLoadTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeckLoadTracker.class);
+
+    /**
+     * Holds the information we track about the most recent track load on a deck.
+     */
+    private static class Load {
+        final DataReference track;
+        final FetchHandle handle;
+        final AtomicBoolean dataArrived = new AtomicBoolean(false);
+
+        Load(int player, DataReference track) {
+            this.track = track;
+            handle = new FetchHandle("fetching data for " + track + " loaded on player " + player);
+        }
+    }
+
+    /**
+     * Holds the load most recently noticed on each deck, keyed by player number.
+     */
+    private final Map<Integer, Load> loads = new ConcurrentHashMap<>();
+
+    /**
+     * Holds the number of milliseconds it took for the first data to become available for the most recent track
+     * loaded on each deck that has had data, keyed by player number.
+     */
+    private final Map<Integer, Long> loadToFirstDataTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Counts how many loads were superseded by a newer track, or the deck being emptied, before any data arrived.
+     */
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    /**
+     * Called by the {@link MetadataFinder} when it notices that a track is loaded on a deck. If this is a different
+     * track than the last one noticed on that deck, any work still underway for the older track is cancelled.
+     *
+     * @param player the player number of the deck
+     * @param track identifies the track that is loaded
+     *
+     * @return the handle which governs fetching data for that track on that deck
+     */
+    FetchHandle trackLoaded(int player, DataReference track) {
+        final Load previous = loads.get(player);
+        final Load load = loads.compute(player, (deck, existing) -> {
+            if (existing != null && existing.track.equals(track)) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.handle.cancel();
+                if (!existing.dataArrived.get()) {
+                    cancelledCount.incrementAndGet();
+                    logger.debug("Cancelled {} because {} has been loaded.", existing.handle, track);
+                }
+            }
+            loadToFirstDataTimes.remove(deck);
+            return new Load(deck, track);
+        });
+        if (load != previous) {
+            PrefetchEngine.getInstance().foregroundLoadStarted();  // Get any prefetching out of the way.
+        }
+        return load.handle;
+    }
+
+    /**
+     * Called by the {@link MetadataFinder} when a deck no longer has a track loaded, so any work still underway for
+     * the track it used to have is cancelled.
+     *
+     * @param player the player number of the deck
+     */
+    void deckCleared(int player) {
+        final Load existing = loads.remove(player);
+        if (existing != null) {
+            existing.handle.cancel();
+            if (!existing.dataArrived.get()) {
+                cancelledCount.incrementAndGet();
+                logger.debug("Cancelled {} because the deck is now empty.", existing.handle);
+            }
+        }
+        loadToFirstDataTimes.remove(player);
+    }
+
+    /**
+     * Find the handle which governs fetching data for a track on a deck.
+     *
+     * @param player the player number of the deck
+     * @param track identifies the track whose data is to be fetched
+     *
+     * @return the handle for that track, or {@code null} if it is not the track most recently noticed on that deck
+     */
+    FetchHandle handleFor(int player, DataReference track) {
+        final Load load = loads.get(player);
+        if (load != null && load.track.equals(track)) {
+            return load.handle;
+        }
+        return null;
+    }
+
+    /**
+     * Called when data has become available for a track on a deck. If this is the first data available for the
+     * track most recently loaded there, the time it took is recorded.
+     *
+     * @param player the player number of the deck
+     * @param track identifies the track for which data is available
+     */
+    void dataArrived(int player, DataReference track) {
+        final Load load = loads.get(player);
+        if (load != null && load.track.equals(track)) {
+            if (load.dataArrived.compareAndSet(false, true)) {
+                loadToFirstDataTimes.put(player, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - load.handle.createdAt));
+            }
+        }
+    }
+
+    /**
+     * Called by a finder once it has finished a request it made in response to a metadata update. If the request
+     * was abandoned because a newer track was loaded on the deck, the update announcing that newer track may have
+     * been ignored while the request was still active, so the finder is handed an update describing the track now
+     * loaded, to be processed again.
+     *
+     * @param handle the handle that governed the request, if any
+     * @param update the update that gave rise to the request
+     * @param finder the finder that made the request, which is only asked to reprocess if it is still running
+     * @param reprocess queues an update to be processed again by the finder
+     */
+    void reprocessIfSuperseded(FetchHandle handle, TrackMetadataUpdate update, LifecycleParticipant finder,
+                               Consumer<TrackMetadataUpdate> reprocess) {
+        if (handle != null && handle.isCancelled() && finder.isRunning()) {
+            final TrackMetadata latest = MetadataFinder.getInstance().getLatestMetadataFor(update.player);
+            if (latest != null) {
+                reprocess.accept(new TrackMetadataUpdate(update.player, latest));
+            }
+        }
+    }
+
+    /**
+     * Find out how long it took for the first data to become available about the track most recently loaded on
+     * a deck, measured from when we noticed that the track was loaded.
+     *
+     * @param player the player number of the deck
+     *
+     * @return the number of milliseconds that elapsed, or -1 if there is no track loaded or no data has yet arrived
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getLoadToFirstDataTime(int player) {
+        final Long result = loadToFirstDataTimes.get(player);
+        return (result == null)? -1 : result;
+    }
+
+    /**
+     * Get the load-to-first-data times for all decks for which they are currently known.
+     *
+     * @return the number of milliseconds it took for data to become available about the track most recently loaded
+     *         on each deck, keyed by player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Map<Integer, Long> getLoadToFirstDataTimes() {
+        return Map.copyOf(loadToFirstDataTimes);
+    }
+
+    /**
+     * Check whether we are still waiting for the first data about the track most recently loaded on a deck.
+     *
+     * @param player the player number of the deck
+     *
+     * @return {@code true} if there is a track loaded on that deck, and no data has yet arrived for it
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isAwaitingData(int player) {
+        final Load load = loads.get(player);
+        return load != null && !load.dataArrived.get();
+    }
+
+    /**
+     * Check how many track loads were abandoned because a newer track was loaded on the same deck, or the deck
+     * was emptied, before any data about them had become available.
+     *
+     * @return the number of abandoned loads since this class was loaded
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final DeckLoadTracker ourInstance = new DeckLoadTracker();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static DeckLoadTracker getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private DeckLoadTracker() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "DeckLoadTracker[loadToFirstDataTimes:" + loadToFirstDataTimes + ", cancelled:" + getCancelledCount() + "]";
+    }
+}
@@ -0,0 +1,313 @@
+package org.deepsymmetry.beatlink.data;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * <p>Holds the data that a finder has for tracks loaded on any deck of any player, either on the play deck or in a
+ * hot cue. Each distinct track's data is held exactly once, keyed by its {@link DataReference}, and each deck is just
+ * a pointer to the track it holds, so a track loaded on several decks or hot cues costs one entry rather than one
+ * per deck, and it is possible to find out in constant time whether a track is already loaded somewhere.</p>
+ *
+ * <p>A count is kept of the decks pointing at each track, and its data is discarded as soon as the last of them
+ * is cleared or loads something else.</p>
+ *
+ * <p>Lookups can happen on any thread without locking; changes are synchronized so that the deck pointers and
+ * reference counts always agree. A finder which needs to release resources held by its data (such as off-heap
+ * waveform storage) can supply a function to be called whenever a value is discarded or replaced.</p>
+ *
+ * @param <V> the type of data held for each track
+ *
+ * @author James Elliott
+ */
+final class HotCache<V> {
+
+    /**
+     * Holds the data for a single track, along with the number of decks that refer to it.
+     *
+     * @param <V> the type of data held for the track
+     */
+    private static class Holder<V> {
+
+        /**
+         * The data we are caching for the track; replaced if newer data arrives while decks still refer to it.
+         */
+        volatile V value;
+
+        /**
+         * How many decks (including hot cues) point at this track.
+         */
+        int references;
+
+        /**
+         * How many of those decks are hot cues. Volatile because {@link HotCache#findInHotCue(DataReference)} reads
+         * it without holding the lock that guards updates.
+         */
+        volatile int hotCueReferences;
+
+        /**
+         * Constructor simply sets the initial value.
+         *
+         * @param value the data being cached
+         */
+        Holder(V value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Extracts the reference that identifies the track to which a value belongs.
+     */
+    private final Function<V, DataReference> referenceOf;
+
+    /**
+     * Keeps track of which track is loaded on each deck.
+     */
+    private final Map<DeckReference, DataReference> decks = new ConcurrentHashMap<>();
+
+    /**
+     * Holds the data for each track that is loaded on at least one deck.
+     */
+    private final Map<DataReference, Holder<V>> tracks = new ConcurrentHashMap<>();
+
+    /**
+     * Called with each value that is no longer held by this cache, either because no deck refers to its track any
+     * longer, or because it was replaced by newer data for the same track.
+     */
+    private final Consumer<V> discardListener;
+
+    /**
+     * Create an empty hot cache.
+     *
+     * @param referenceOf obtains the reference identifying the track to which a cached value belongs
+     */
+    HotCache(Function<V, DataReference> referenceOf) {
+        this(referenceOf, value -> { });
+    }
+
+    /**
+     * Create an empty hot cache which reports values that it no longer holds.
+     *
+     * @param referenceOf obtains the reference identifying the track to which a cached value belongs
+     * @param discardListener will be called, while the cache is locked, with each value the cache stops holding
+     */
+    HotCache(Function<V, DataReference> referenceOf, Consumer<V> discardListener) {
+        this.referenceOf = referenceOf;
+        this.discardListener = discardListener;
+    }
+
+    /**
+     * Look up the data for the track loaded on a deck.
+     *
+     * @param deck the deck of interest
+     *
+     * @return the data for the track loaded there, or {@code null} if we have none
+     */
+    V get(DeckReference deck) {
+        final DataReference reference = decks.get(deck);
+        if (reference == null) {
+            return null;
+        }
+        final Holder<V> holder = tracks.get(reference);
+        return (holder == null)? null : holder.value;
+    }
+
+    /**
+     * Look up the data for a track if it is loaded on any deck.
+     *
+     * @param reference identifies the track of interest
+     *
+     * @return the data for that track, or {@code null} if it is not loaded anywhere
+     */
+    V find(DataReference reference) {
+        final Holder<V> holder = tracks.get(reference);
+        return (holder == null)? null : holder.value;
+    }
+
+    /**
+     * Look up the data for a track if it is loaded in any hot cue, ignoring tracks that are only loaded on play decks.
+     *
+     * @param reference identifies the track of interest
+     *
+     * @return the data for that track, or {@code null} if it is not loaded in a hot cue
+     */
+    V findInHotCue(DataReference reference) {
+        final Holder<V> holder = tracks.get(reference);
+        return (holder == null || holder.hotCueReferences == 0)? null : holder.value;
+    }
+
+    /**
+     * Record that the track to which some data belongs has been loaded on a deck.
+     *
+     * @param deck the deck on which the track was loaded
+     * @param value the data for the track
+     */
+    synchronized void put(DeckReference deck, V value) {
+        final DataReference reference = referenceOf.apply(value);
+        final DataReference previous = decks.put(deck, reference);
+        if (reference.equals(previous)) {
+            replace(tracks.get(reference), value);
+            return;
+        }
+        if (previous != null) {
+            release(previous, deck);
+        }
+        final Holder<V> holder = tracks.computeIfAbsent(reference, k -> new Holder<>(value));
+        replace(holder, value);
+        holder.references++;
+        if (deck.hotCue != 0) {
+            holder.hotCueReferences++;
+        }
+    }
+
+    /**
+     * Store new data for a track, reporting the old data if it is being replaced by a different value.
+     *
+     * @param holder holds the data for the track
+     * @param value the new data
+     */
+    private void replace(Holder<V> holder, V value) {
+        final V old = holder.value;
+        holder.value = value;
+        if (old != null && old != value) {
+            discardListener.accept(old);
+        }
+    }
+
+    /**
+     * Record that a track has been loaded on the play deck of a player, and in any hot cues it defines.
+     *
+     * @param player the player on which the track was loaded
+     * @param value the data for the track
+     * @param cueList the cue list of the track, if known, which identifies the hot cues to point at the track
+     */
+    synchronized void putLoaded(int player, V value, CueList cueList) {
+        put(DeckReference.getDeckReference(player, 0), value);  // Main deck
+        if (cueList != null) {  // Update the cache with any hot cues in this track as well
+            for (CueList.Entry entry : cueList.entries) {
+                if (entry.hotCueNumber != 0) {
+                    put(DeckReference.getDeckReference(player, entry.hotCueNumber), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that a deck no longer holds the track it used to.
+     *
+     * @param deck the deck that was cleared
+     *
+     * @return the data for the track that was loaded there, or {@code null} if we had none
+     */
+    synchronized V remove(DeckReference deck) {
+        final DataReference reference = decks.remove(deck);
+        if (reference == null) {
+            return null;
+        }
+        return release(reference, deck);
+    }
+
+    /**
+     * Decrement the reference count of a track that a deck no longer points to, discarding its data when no other
+     * deck refers to it.
+     *
+     * @param reference identifies the track that is no longer loaded on the deck
+     * @param deck the deck which no longer points at it
+     *
+     * @return the data that had been held for the track
+     */
+    private V release(DataReference reference, DeckReference deck) {
+        final Holder<V> holder = tracks.get(reference);
+        if (holder == null) {
+            return null;
+        }
+        if (deck.hotCue != 0) {
+            holder.hotCueReferences--;
+        }
+        if (--holder.references < 1) {
+            tracks.remove(reference);
+            discardListener.accept(holder.value);
+        }
+        return holder.value;
+    }
+
+    /**
+     * Clear all the decks of a player that has left the network.
+     *
+     * @param player the player number that is gone
+     *
+     * @return the data that had been held for each of the player's decks
+     */
+    synchronized Map<DeckReference, V> removePlayer(int player) {
+        final Map<DeckReference, V> result = new HashMap<>();
+        for (DeckReference deck : new ArrayList<>(decks.keySet())) {
+            if (deck.player == player) {
+                result.put(deck, remove(deck));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clear all decks holding tracks that match a condition, such as belonging to media that has been unmounted.
+     *
+     * @param condition identifies the tracks to be discarded
+     *
+     * @return the data that had been held for each deck that was cleared
+     */
+    synchronized Map<DeckReference, V> removeIf(Predicate<DataReference> condition) {
+        final Map<DeckReference, V> result = new HashMap<>();
+        for (Map.Entry<DeckReference, DataReference> entry : new HashMap<>(decks).entrySet()) {
+            if (condition.test(entry.getValue())) {
+                result.put(entry.getKey(), remove(entry.getKey()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clear all the decks.
+     *
+     * @return the data that had been held for each deck
+     */
+    synchronized Map<DeckReference, V> clear() {
+        final Map<DeckReference, V> result = snapshot();
+        final List<Holder<V>> discarded = new ArrayList<>(tracks.values());
+        decks.clear();
+        tracks.clear();
+        for (Holder<V> holder : discarded) {
+            discardListener.accept(holder.value);
+        }
+        return result;
+    }
+
+    /**
+     * Get the data for all loaded decks.
+     *
+     * @return an immutable map from each loaded deck to the data for the track loaded there
+     */
+    synchronized Map<DeckReference, V> snapshot() {
+        final Map<DeckReference, V> result = new HashMap<>();
+        for (Map.Entry<DeckReference, DataReference> entry : decks.entrySet()) {
+            result.put(entry.getKey(), tracks.get(entry.getValue()).value);
+        }
+        return Map.copyOf(result);
+    }
+
+    /**
+     * Check how many distinct tracks we are holding data for.
+     *
+     * @return the number of tracks loaded on at least one deck
+     */
+    int trackCount() {
+        return tracks.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HotCache[decks:" + decks.size() + ", tracks:" + tracks.size() + "]";
+    }
+}
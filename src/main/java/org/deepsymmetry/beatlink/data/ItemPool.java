@@ -0,0 +1,105 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.deepsymmetry.beatlink.LifecycleListener;
+import org.deepsymmetry.beatlink.LifecycleParticipant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Allows the many {@link TrackMetadata} objects built for tracks on the same media to share a single copy of each
+ * {@link SearchableItem} (artists, albums, genres, keys, labels, and so on), {@link ColorItem}, and commonly repeated
+ * string, rather than each holding its own copy of, for example, the same artist and its name. This makes a big
+ * difference to the heap used when indexing an entire library, as the {@link LibraryWarmer} does.</p>
+ *
+ * <p>There is a separate pool for each media slot, which is discarded when that media is unmounted (or the
+ * {@link MetadataFinder} stops), so nothing outlives the media it describes.</p>
+ *
+ * @author James Elliott
+ */
+final class ItemPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(ItemPool.class);
+
+    /**
+     * Holds the pool for each media slot from which metadata has been built.
+     */
+    private static final Map<SlotReference, ItemPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Holds the canonical instance of each value that has been interned in this pool. Values of different classes
+     * never compare equal, so they can all share the same map.
+     */
+    private final Map<Object, Object> values = new ConcurrentHashMap<>();
+
+    static {
+        MetadataFinder.getInstance().addMountListener(new MountListener() {
+            @Override
+            public void mediaMounted(SlotReference slot) {
+                // Nothing to do, a pool will be created when it is first needed.
+            }
+
+            @Override
+            public void mediaUnmounted(SlotReference slot) {
+                final ItemPool pool = pools.remove(slot);
+                if (pool != null) {
+                    logger.debug("Discarding item pool with {} values for unmounted slot {}", pool.values.size(), slot);
+                }
+            }
+        });
+        MetadataFinder.getInstance().addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void started(LifecycleParticipant sender) {
+                // Nothing to do.
+            }
+
+            @Override
+            public void stopped(LifecycleParticipant sender) {
+                pools.clear();
+            }
+        });
+    }
+
+    /**
+     * Find the pool that should be used for metadata about a particular track.
+     *
+     * @param reference the track whose metadata is being built
+     *
+     * @return the pool for the media on which the track is found
+     */
+    static ItemPool forTrack(DataReference reference) {
+        return pools.computeIfAbsent(reference.getSlotReference(), slot -> new ItemPool());
+    }
+
+    /**
+     * Prevent instantiation other than through {@link #forTrack(DataReference)}.
+     */
+    private ItemPool() {
+        // Nothing to do.
+    }
+
+    /**
+     * Find the canonical instance of a value, making this the canonical instance if no equal value has been
+     * interned yet.
+     *
+     * @param value the value (such as a {@link SearchableItem} or string) that is about to be stored
+     * @param <T> the type of value being interned
+     *
+     * @return the instance that should be stored instead, or {@code null} if {@code value} was {@code null}
+     */
+    @SuppressWarnings("unchecked")
+    <T> T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        final Object existing = values.putIfAbsent(value, value);
+        return (existing == null)? value : (T) existing;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemPool[values:" + values.size() + "]";
+    }
+}
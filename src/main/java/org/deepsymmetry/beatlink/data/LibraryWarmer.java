@@ -0,0 +1,591 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.LifecycleParticipant;
+import org.deepsymmetry.beatlink.TaskClass;
+import org.deepsymmetry.beatlink.TaskExecutor;
+import org.deepsymmetry.cratedigger.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Warms up the data for a whole rekordbox library as soon as the {@link CrateDigger} has downloaded its database,
+ * so that the first time a track is loaded during a show, its data is already at hand rather than being fetched
+ * lazily. Once started, whenever a DeviceSQL database is parsed or a Device Library Plus connection is opened for a
+ * media slot, a low-priority background thread reads the metadata of every track in the library into an in-memory
+ * index, which the {@link CrateDigger} then uses to answer metadata requests without going back to the database.</p>
+ *
+ * <p>Playlists can also be marked as set lists, using {@link #setSetListNames(Collection)}; the analysis files of
+ * every track found in a playlist with one of those names are downloaded ahead of time as well, so that the cue
+ * lists, beat grids, and waveforms of those tracks can be read from local files when they are loaded.</p>
+ *
+ * <p>To avoid competing with the time-sensitive work of the other finders, the warm-up thread runs at minimum
+ * priority and pauses between tracks (see {@link #setThrottleInterval(long)}). It can be cancelled for a slot using
+ * {@link #cancel(SlotReference)}, and is cancelled automatically if the media is unmounted or the warmer is stopped.
+ * The index for a slot is discarded when its database goes away.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class LibraryWarmer extends LifecycleParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryWarmer.class);
+
+    /**
+     * Keeps track of the warm-up work and results for a single media slot.
+     */
+    private static class SlotWarmup {
+
+        /**
+         * The slot whose library is being warmed.
+         */
+        final SlotReference slot;
+
+        /**
+         * Holds compact summaries of the metadata we have read for the tracks in the library, keyed by rekordbox ID.
+         */
+        final Map<Integer, TrackMetadata.Summary> index = new ConcurrentHashMap<>();
+
+        /**
+         * Will be set once the warm-up should stop.
+         */
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        /**
+         * Will be set once the warm-up has ended, whether it finished or was cancelled.
+         */
+        volatile boolean finished;
+
+        /**
+         * Constructor simply sets the slot.
+         *
+         * @param slot the slot whose library is being warmed
+         */
+        SlotWarmup(SlotReference slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Keep track of whether we are running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * The warm-up work for each slot whose library we have seen.
+     */
+    private final Map<SlotReference, SlotWarmup> warmups = new ConcurrentHashMap<>();
+
+    /**
+     * Whether we read the metadata of every track into our index.
+     */
+    private final AtomicBoolean indexingMetadata = new AtomicBoolean(true);
+
+    /**
+     * The names of the playlists whose tracks should have their analysis files downloaded ahead of time, in lower
+     * case so they can be matched regardless of case.
+     */
+    private final Set<String> setListNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * How many milliseconds to pause between tracks.
+     */
+    private final AtomicLong throttleInterval = new AtomicLong(10);
+
+    /**
+     * Counts the tracks whose analysis files have been downloaded ahead of time.
+     */
+    private final AtomicLong prefetchedCount = new AtomicLong();
+
+    /**
+     * Counts the metadata requests we were able to answer from our index.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Set whether the metadata of every track in a newly available library is read into an in-memory index.
+     *
+     * @param indexingMetadata {@code true} to index every track's metadata when the library becomes available
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setIndexingMetadata(boolean indexingMetadata) {
+        this.indexingMetadata.set(indexingMetadata);
+    }
+
+    /**
+     * Check whether the metadata of every track in a newly available library is read into an in-memory index.
+     *
+     * @return {@code true} if every track's metadata is indexed when the library becomes available
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isIndexingMetadata() {
+        return indexingMetadata.get();
+    }
+
+    /**
+     * Set the names of the playlists which should be treated as set lists, whose tracks will have their analysis
+     * files downloaded ahead of time. Names are matched without regard to case. This affects libraries which become
+     * available after the call.
+     *
+     * @param names the names of the set list playlists; an empty collection means no analysis files are prefetched
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setSetListNames(Collection<String> names) {
+        final Set<String> normalized = new HashSet<>();
+        for (String name : names) {
+            normalized.add(name.toLowerCase(Locale.ROOT));
+        }
+        setListNames.retainAll(normalized);
+        setListNames.addAll(normalized);
+    }
+
+    /**
+     * Get the names of the playlists which are treated as set lists.
+     *
+     * @return the set list names, in lower case
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Set<String> getSetListNames() {
+        return Set.copyOf(setListNames);
+    }
+
+    /**
+     * Set how long the warm-up thread pauses between tracks, to limit its impact on the players and on the rest of
+     * the application.
+     *
+     * @param milliseconds the pause between tracks, which may be zero to go as fast as possible
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setThrottleInterval(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("milliseconds cannot be negative");
+        }
+        throttleInterval.set(milliseconds);
+    }
+
+    /**
+     * Check how long the warm-up thread pauses between tracks.
+     *
+     * @return the pause between tracks, in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getThrottleInterval() {
+        return throttleInterval.get();
+    }
+
+    /**
+     * Check whether the library in a slot is currently being warmed up.
+     *
+     * @param slot the slot of interest
+     *
+     * @return {@code true} if the warm-up thread for that slot is still working
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isWarming(SlotReference slot) {
+        final SlotWarmup warmup = warmups.get(slot);
+        return warmup != null && !warmup.finished;
+    }
+
+    /**
+     * Stop warming up the library in a slot. Any metadata already indexed remains available.
+     *
+     * @param slot the slot whose warm-up should be abandoned
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void cancel(SlotReference slot) {
+        final SlotWarmup warmup = warmups.get(slot);
+        if (warmup != null) {
+            cancel(warmup);
+        }
+    }
+
+    /**
+     * Stop a warm-up, waking it up if it is pausing between tracks. We do not interrupt the thread, because it is a
+     * pooled {@link TaskExecutor} worker, which may have moved on to an unrelated task by the time the interrupt
+     * arrives.
+     *
+     * @param warmup the warm-up to be stopped
+     */
+    private void cancel(SlotWarmup warmup) {
+        synchronized (warmup) {
+            warmup.cancelled.set(true);
+            warmup.notifyAll();
+        }
+    }
+
+    /**
+     * Check how many tracks have had their metadata indexed for a slot.
+     *
+     * @param slot the slot of interest
+     *
+     * @return the number of tracks in the index for that slot
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getIndexedTrackCount(SlotReference slot) {
+        final SlotWarmup warmup = warmups.get(slot);
+        return (warmup == null)? 0 : warmup.index.size();
+    }
+
+    /**
+     * Check how many tracks have had their analysis files downloaded ahead of time because they were in a set list.
+     *
+     * @return the number of tracks prefetched since the warmer was created
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getPrefetchedCount() {
+        return prefetchedCount.get();
+    }
+
+    /**
+     * Check how many metadata requests have been answered from the index.
+     *
+     * @return the number of index hits since the warmer was created
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Look up the metadata we have indexed for a track. Used by the {@link CrateDigger} to answer metadata requests
+     * without querying the database again. The result holds only the interpreted fields; the raw database row and
+     * cue list must be attached by the caller.
+     *
+     * @param track the track whose metadata is desired
+     *
+     * @return the indexed metadata, or {@code null} if we have not indexed that track
+     */
+    TrackMetadata.Summary findIndexedMetadata(DataReference track) {
+        if (track.trackType != CdjStatus.TrackType.REKORDBOX) {
+            return null;
+        }
+        final SlotWarmup warmup = warmups.get(track.getSlotReference());
+        final TrackMetadata.Summary result = (warmup == null)? null : warmup.index.get(track.rekordboxId);
+        if (result != null) {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Pause between tracks, as configured.
+     *
+     * @param warmup the warm-up that is pausing
+     *
+     * @return {@code true} if the warm-up should keep going
+     */
+    private boolean pause(SlotWarmup warmup) {
+        final long interval = throttleInterval.get();
+        if (interval > 0) {
+            synchronized (warmup) {
+                if (!warmup.cancelled.get()) {
+                    try {
+                        warmup.wait(interval);  // Woken early if we are cancelled.
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        }
+        return !warmup.cancelled.get() && isRunning();
+    }
+
+    /**
+     * Start a low-priority thread to warm up a library that has become available.
+     *
+     * @param slot the slot in which the library is mounted
+     * @param allTracks supplies the rekordbox IDs of every track in the library
+     * @param setListTracks supplies the rekordbox IDs of every track found in a set list playlist
+     * @param indexer reads the metadata of a single track
+     * @param source describes the library for logging
+     */
+    private void warm(SlotReference slot, TrackIdSource allTracks, TrackIdSource setListTracks,
+                      MetadataReader indexer, Object source) {
+        final SlotWarmup warmup = new SlotWarmup(slot);
+        final SlotWarmup previous = warmups.put(slot, warmup);
+        if (previous != null) {
+            cancel(previous);
+        }
+        TaskExecutor.getInstance().execute(TaskClass.BACKGROUND, "beat-link library warm-up " + slot, () -> {
+            final long started = System.nanoTime();
+            try {
+                if (warmup.cancelled.get()) {
+                    return;  // We were cancelled while waiting for our turn to run.
+                }
+                // The set lists come first, because those are the tracks most likely to be loaded soon.
+                if (!setListNames.isEmpty()) {
+                    for (int id : setListTracks.ids()) {
+                        if (!pause(warmup)) {
+                            return;
+                        }
+                        if (CrateDigger.getInstance().prefetchAnalysis(new DataReference(slot, id))) {
+                            prefetchedCount.incrementAndGet();
+                        }
+                    }
+                }
+                if (indexingMetadata.get()) {
+                    for (int id : allTracks.ids()) {
+                        if (!pause(warmup)) {
+                            return;
+                        }
+                        try {
+                            warmup.index.put(id, indexer.read(new DataReference(slot, id)));
+                        } catch (Exception e) {
+                            logger.warn("Problem indexing metadata for track {} in {}", id, source, e);
+                        }
+                    }
+                }
+                logger.info("Warmed up library {} in slot {} in {}ms; {} tracks indexed.", source, slot,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), warmup.index.size());
+            } catch (Exception e) {
+                if (!warmup.cancelled.get()) {
+                    logger.warn("Problem warming up library {} in slot {}", source, slot, e);
+                }
+            } finally {
+                warmup.finished = true;
+                Thread.interrupted();  // Don't let any stray interrupt leak into the next task on this pooled thread.
+            }
+        });
+    }
+
+    /**
+     * Supplies the rekordbox IDs of a group of tracks in a library.
+     */
+    private interface TrackIdSource {
+
+        /**
+         * Find the tracks.
+         *
+         * @return the rekordbox IDs of the tracks
+         *
+         * @throws Exception if there is a problem reading the library
+         */
+        Collection<Integer> ids() throws Exception;
+    }
+
+    /**
+     * Reads the metadata of a track from a library.
+     */
+    private interface MetadataReader {
+
+        /**
+         * Read the metadata, without a cue list, and summarize it for the index.
+         *
+         * @param track the track of interest
+         *
+         * @return the summary of its metadata
+         *
+         * @throws Exception if there is a problem reading the library
+         */
+        TrackMetadata.Summary read(DataReference track) throws Exception;
+    }
+
+    /**
+     * Find the tracks in a DeviceSQL database which are in playlists marked as set lists.
+     *
+     * @param database the parsed database
+     *
+     * @return the rekordbox IDs of the tracks in the set lists, without duplicates, in playlist order
+     */
+    private Collection<Integer> setListTracks(Database database) {
+        final Set<Integer> result = new LinkedHashSet<>();
+        for (List<Database.PlaylistFolderEntry> folder : database.playlistFolderIndex.values()) {
+            for (Database.PlaylistFolderEntry entry : folder) {
+                if (!entry.isFolder && setListNames.contains(entry.name.toLowerCase(Locale.ROOT))) {
+                    final List<Long> tracks = database.playlistIndex.get(entry.id);
+                    if (tracks != null) {
+                        for (Long id : tracks) {
+                            result.add(id.intValue());
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the tracks in a Device Library Plus database which are in playlists marked as set lists.
+     *
+     * @param connection the connection to the database
+     *
+     * @return the rekordbox IDs of the tracks in the set lists, without duplicates, in playlist order
+     *
+     * @throws SQLException if there is a problem querying the database
+     */
+    private Collection<Integer> setListTracks(Connection connection) throws SQLException {
+        final Set<Integer> result = new LinkedHashSet<>();
+        for (String name : setListNames) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "select pc.content_id from playlist_content pc join playlist p on pc.playlist_id = p.playlist_id " +
+                            "where lower(p.name) = ? order by pc.playlist_id, pc.sequenceNo")) {
+                statement.setString(1, name);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        result.add(resultSet.getInt(1));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find all the tracks in a Device Library Plus database.
+     *
+     * @param connection the connection to the database
+     *
+     * @return the rekordbox IDs of the tracks
+     *
+     * @throws SQLException if there is a problem querying the database
+     */
+    private Collection<Integer> allTracks(Connection connection) throws SQLException {
+        final List<Integer> result = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select content_id from content")) {
+            while (resultSet.next()) {
+                result.add(resultSet.getInt(1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard the warm-up and index for a slot whose library has gone away.
+     *
+     * @param slot the slot whose library is gone
+     */
+    private void discard(SlotReference slot) {
+        final SlotWarmup warmup = warmups.remove(slot);
+        if (warmup != null) {
+            cancel(warmup);
+        }
+    }
+
+    /**
+     * Start warming up DeviceSQL libraries as they become available.
+     */
+    private final DatabaseListener databaseListener = new DatabaseListener() {
+        @Override
+        public void databaseMounted(SlotReference slot, Database database) {
+            warm(slot, () -> {
+                final List<Integer> result = new ArrayList<>();
+                for (Long id : database.trackIndex.keySet()) {
+                    result.add(id.intValue());
+                }
+                return result;
+            }, () -> setListTracks(database),
+                    track -> new TrackMetadata.Summary(new TrackMetadata(track, database, null)), database);
+        }
+
+        @Override
+        public void databaseUnmounted(SlotReference slot, Database database) {
+            discard(slot);
+        }
+    };
+
+    /**
+     * Start warming up Device Library Plus libraries as they become available.
+     */
+    private final SQLiteConnectionListener connectionListener = new SQLiteConnectionListener() {
+        @Override
+        public void databaseConnected(SlotReference slot, Connection connection) {
+            warm(slot, () -> allTracks(connection), () -> setListTracks(connection),
+                    track -> new TrackMetadata.Summary(new TrackMetadata(track, connection, null)), connection);
+        }
+
+        @Override
+        public void databaseDisconnected(SlotReference slot, Connection connection) {
+            discard(slot);
+        }
+    };
+
+    /**
+     * Start warming up libraries as the {@link CrateDigger} makes them available, including any that are already
+     * available.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() {
+        if (!isRunning()) {
+            running.set(true);
+            CrateDigger.getInstance().addDatabaseListener(databaseListener);
+            CrateDigger.getInstance().addSQLiteListener(connectionListener);
+            for (SlotReference slot : MetadataFinder.getInstance().getMountedMediaSlots()) {
+                final Database database = CrateDigger.getInstance().findDatabase(slot);
+                if (database != null) {
+                    databaseListener.databaseMounted(slot, database);
+                } else {
+                    final Connection connection = CrateDigger.getInstance().findJdbcConnection(slot);
+                    if (connection != null) {
+                        connectionListener.databaseConnected(slot, connection);
+                    }
+                }
+            }
+            deliverLifecycleAnnouncement(logger, true);
+        }
+    }
+
+    /**
+     * Stop warming up libraries, cancelling any warm-ups in progress and discarding the indexed metadata.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (isRunning()) {
+            CrateDigger.getInstance().removeDatabaseListener(databaseListener);
+            CrateDigger.getInstance().removeSQLiteListener(connectionListener);
+            running.set(false);
+            for (SlotReference slot : new HashSet<>(warmups.keySet())) {
+                discard(slot);
+            }
+            deliverLifecycleAnnouncement(logger, false);
+        }
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final LibraryWarmer ourInstance = new LibraryWarmer();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static LibraryWarmer getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private LibraryWarmer() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryWarmer[running:" + isRunning() + ", warming:" + warmups.keySet() + ", setLists:" +
+                setListNames + ", prefetched:" + getPrefetchedCount() + ", hits:" + getHitCount() + "]";
+    }
+}
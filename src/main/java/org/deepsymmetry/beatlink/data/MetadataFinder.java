@@ -4,6 +4,7 @@ import org.apiguardian.api.API;
 import org.deepsymmetry.beatlink.*;
 import org.deepsymmetry.beatlink.dbserver.Client;
 import org.deepsymmetry.beatlink.dbserver.ConnectionManager;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
 import org.deepsymmetry.beatlink.dbserver.Message;
 import org.deepsymmetry.beatlink.dbserver.NumberField;
 import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
@@ -13,11 +14,13 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>Watches for new tracks to be loaded on players, and queries the
@@ -94,38 +97,136 @@ public class MetadataFinder extends LifecycleParticipant {
      *
      * @return the metadata found, if any
      */
-    private TrackMetadata requestMetadataInternal(final DataReference track, final boolean failIfPassive) {
-        // First see if any registered metadata providers can offer it for us, provided it is a rekordbox track.
-        final MediaDetails sourceDetails = getMediaDetailsFor(track.getSlotReference());
-        if (sourceDetails != null) {
-            final TrackMetadata provided = allMetadataProviders.getTrackMetadata(sourceDetails, track);
-            if (provided != null) {
-                return provided;
-            }
+    TrackMetadata requestMetadataInternal(final DataReference track, final boolean failIfPassive) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.METADATA, track, null, failIfPassive,
+                () -> fetchMetadataInternal(track, failIfPassive));
+    }
+
+    /**
+     * Does the actual work of obtaining metadata for {@link #requestMetadataInternal(DataReference, boolean)} once we
+     * have determined that no identical request is already in progress.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     * @param failIfPassive will prevent the request from taking place if we are in passive mode
+     *
+     * @return the metadata found, if any
+     */
+    private TrackMetadata fetchMetadataInternal(final DataReference track, final boolean failIfPassive) {
+        // First see if we still have it from a recent load.
+        final TrackMetadata recent = secondLevelCache.get(track);
+        if (recent != null) {
+            return recent;
         }
 
-        // At this point, unless we are allowed to actively request the data, we are done. We can always actively
-        // request tracks from rekordbox.
-        if (passive.get() && failIfPassive && track.slot != CdjStatus.TrackSourceSlot.COLLECTION) {
-            return null;
+        // Next see if any registered metadata providers can offer it for us, provided it is a rekordbox track.
+        final ProviderPolicy policy = providerPolicy.get();
+        if (policy != ProviderPolicy.SEQUENTIAL) {
+            return raceMetadataSources(track, getMediaDetailsFor(track.getSlotReference()), failIfPassive, policy);
+        }
+        final TrackMetadata provided = findFromProviders(track);
+        if (provided != null) {
+            return provided;
         }
 
-        // Even if we are supposed to be able to make metadata queries, the Opus Quad does not have a DBServer port..
-        if (DeviceFinder.getInstance().getLatestAnnouncementFrom(track.player).isOpusQuad) {
+        if (!canQueryDbServer(track, failIfPassive)) {
             return null;
         }
 
-        // Use the dbserver protocol implementation to request the metadata.
-        ConnectionManager.ClientTask<TrackMetadata> task = client -> queryMetadata(track, client);
-
         try {
-            return ConnectionManager.getInstance().invokeWithClientSession(track.player, task, "requesting metadata");
+            return queryDbServer(track);
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting metadata, returning null", e);
         }
         return null;
     }
 
+    /**
+     * Ask the registered metadata providers, one at a time in order of preference, whether they can offer the
+     * metadata for a track, as is done under the {@link ProviderPolicy#SEQUENTIAL} policy.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     *
+     * @return the metadata offered by the first provider that had it, or {@code null} if none did
+     */
+    TrackMetadata findFromProviders(final DataReference track) {
+        final MediaDetails sourceDetails = getMediaDetailsFor(track.getSlotReference());
+        return (sourceDetails == null)? null : allMetadataProviders.getTrackMetadata(sourceDetails, track);
+    }
+
+    /**
+     * Look up a track's metadata in the cache of recently loaded tracks.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     *
+     * @return the metadata, if the track was loaded recently enough to still be cached
+     */
+    TrackMetadata findRecentMetadata(final DataReference track) {
+        return secondLevelCache.get(track);
+    }
+
+    /**
+     * Check whether we are able to ask a player's dbserver for track metadata.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     * @param failIfPassive will prevent the request from taking place if we are in passive mode
+     *
+     * @return {@code true} if a dbserver query can be made
+     */
+    private boolean canQueryDbServer(final DataReference track, final boolean failIfPassive) {
+        // Unless we are allowed to actively request the data, we are done. We can always actively
+        // request tracks from rekordbox.
+        if (passive.get() && failIfPassive && track.slot != CdjStatus.TrackSourceSlot.COLLECTION) {
+            return false;
+        }
+
+        // Even if we are supposed to be able to make metadata queries, the Opus Quad does not have a DBServer port..
+        return !DeviceFinder.getInstance().getLatestAnnouncementFrom(track.player).isOpusQuad;
+    }
+
+    /**
+     * Use the dbserver protocol implementation to request track metadata.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     *
+     * @return the metadata found, if any
+     *
+     * @throws Exception if there is a problem communicating with the player
+     */
+    private TrackMetadata queryDbServer(final DataReference track) throws Exception {
+        ConnectionManager.ClientTask<TrackMetadata> task = client -> queryMetadata(track, client);
+        return ConnectionManager.getInstance().invokeWithClientSession(track.player, task, "requesting metadata");
+    }
+
+    /**
+     * Ask all the registered metadata providers that might know about a track, and the player's dbserver, for its
+     * metadata at the same time, and use the answer chosen by the current {@link ProviderPolicy}.
+     *
+     * @param track uniquely identifies the track whose metadata is desired
+     * @param sourceDetails describes the media from which the track was loaded, if known
+     * @param failIfPassive will prevent a dbserver query if we are in passive mode
+     * @param policy determines which answer is used
+     *
+     * @return the metadata found, if any
+     */
+    private TrackMetadata raceMetadataSources(final DataReference track, final MediaDetails sourceDetails,
+                                              final boolean failIfPassive, final ProviderPolicy policy) {
+        final List<MetadataRace.Source<TrackMetadata>> sources = new ArrayList<>();
+        if (sourceDetails != null) {
+            final Set<MetadataProvider> providers = new LinkedHashSet<>(getMetadataProviders(sourceDetails));
+            providers.addAll(getMetadataProviders(null));
+            for (MetadataProvider provider : providers) {
+                sources.add(new MetadataRace.Source<>(getProviderStatistics(provider), providerDeadline.get(),
+                        () -> provider.getTrackMetadata(sourceDetails, track)));
+            }
+        }
+        if (canQueryDbServer(track, failIfPassive)) {
+            sources.add(new MetadataRace.Source<>(dbServerStatistics, dbServerDeadline.get(), () -> queryDbServer(track)));
+        }
+        return new MetadataRace<>(sources).run(policy == ProviderPolicy.PREFERENCE_ORDER);
+    }
+
     /**
      * How many seconds are we willing to wait to lock the database client for menu operations.
      */
@@ -309,15 +410,37 @@ public class MetadataFinder extends LifecycleParticipant {
 
    /**
      * Keeps track of the current metadata cached for each player. We cache metadata for any track which is currently
-     * on-deck in the player, as well as any that were loaded into a player's hot-cue slot.
+     * on-deck in the player, as well as any that were loaded into a player's hot-cue slot. Each track is held once,
+     * no matter how many decks it is loaded on.
+     */
+    private final HotCache<TrackMetadata> hotCache = new HotCache<>(metadata -> metadata.trackReference);
+
+    /**
+     * Holds metadata for tracks that were loaded recently, even after they are no longer in the hot cache, if the
+     * second-level cache has been enabled. The size estimate allows for the raw menu items and cue list entries.
+     */
+    private final SecondLevelCache<TrackMetadata> secondLevelCache = new SecondLevelCache<>("metadata",
+            metadata -> 512L + ((metadata.rawItems == null)? 2048L : 128L * metadata.rawItems.size()) +
+                    ((metadata.getCueList() == null)? 0L : 128L * metadata.getCueList().entries.size()));
+
+    /**
+     * Get the second-level cache which can hold metadata (including cue lists) for tracks that are no longer loaded
+     * in any player, so they can be reused without being fetched again if the tracks are reloaded. The cache is
+     * disabled until limits are configured using {@link SecondLevelCache#setLimits(int, long)}.
+     *
+     * @return the metadata cache
      */
-    private final Map<DeckReference, TrackMetadata> hotCache = new ConcurrentHashMap<>();
+    @API(status = API.Status.EXPERIMENTAL)
+    public SecondLevelCache<TrackMetadata> getSecondLevelCache() {
+        return secondLevelCache;
+    }
 
     /**
-     * A queue used to hold CDJ status updates we receive from the {@link VirtualCdj} so we can process them on a
-     * lower priority thread, and not hold up delivery to more time-sensitive listeners.
+     * Our stage of the {@link UpdatePipeline}, which holds the latest CDJ status update we have received from the
+     * {@link VirtualCdj} for each player, so we can process them on a shared worker thread, and not hold up delivery
+     * to more time-sensitive listeners.
      */
-    private final LinkedBlockingDeque<CdjStatus> pendingUpdates = new LinkedBlockingDeque<>(100);
+    private final UpdatePipeline.Stage<CdjStatus> pendingUpdates = UpdatePipeline.getInstance().createStage("MetadataFinder", this::handleUpdate);
 
     /**
      * Our update listener just puts appropriate device updates on our queue, so we can process them on a lower
@@ -326,9 +449,7 @@ public class MetadataFinder extends LifecycleParticipant {
     private final DeviceUpdateListener updateListener = update -> {
         logger.debug("Received device update {}", update);
         if (update instanceof CdjStatus) {
-            if (!pendingUpdates.offerLast((CdjStatus)update)) {
-                logger.warn("Discarding CDJ update because our queue is backed up.");
-            }
+            pendingUpdates.submit(update.getDeviceNumber(), (CdjStatus)update);
         }
     };
 
@@ -425,10 +546,192 @@ public class MetadataFinder extends LifecycleParticipant {
     }
 
     /**
-     * We process our player status updates on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow I/O.
+     * Indicates whether track metadata obtained from dbserver queries should keep the raw response messages.
+     */
+    private final AtomicBoolean retainingRawItems = new AtomicBoolean(false);
+
+    /**
+     * Check whether track metadata obtained from dbserver queries keeps the raw response messages in
+     * {@link TrackMetadata#rawItems}. They are kept regardless of this setting while the {@link PersistentMetadataCache}
+     * is running, because it needs them in order to save the metadata.
+     *
+     * @return {@code true} if the raw messages are always kept, {@code false} if they are kept only when needed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isRetainingRawItems() {
+        return retainingRawItems.get();
+    }
+
+    /**
+     * Set whether track metadata obtained from dbserver queries should keep the raw response messages in
+     * {@link TrackMetadata#rawItems}. These take up far more memory than the interpreted fields, so by default they
+     * are discarded unless the {@link PersistentMetadataCache} is running (and needs them). Turn this on if you are
+     * analyzing fields that have not yet been reliably understood. Only affects metadata obtained after the change.
+     *
+     * @param retain {@code true} if the raw messages should always be kept
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setRetainingRawItems(boolean retain) {
+        retainingRawItems.set(retain);
+    }
+
+    /**
+     * The ways in which we can consult the sources of track metadata available to us.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public enum ProviderPolicy {
+        /**
+         * Ask each registered {@link MetadataProvider} in turn, and only if none of them can offer the metadata,
+         * ask the player's dbserver. This is the default, and uses the fewest resources, but a slow provider will
+         * delay every track load.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Ask all the providers, and the player's dbserver, at the same time, and use whichever non-{@code null}
+         * answer arrives first, as long as it arrives before its source's deadline.
+         */
+        FIRST_RESULT,
+
+        /**
+         * Ask all the providers, and the player's dbserver, at the same time, but prefer their answers in the
+         * order they would be consulted by {@link #SEQUENTIAL}: a source's answer is only used once every more
+         * preferred source has either answered {@code null} or missed its deadline.
+         */
+        PREFERENCE_ORDER
+    }
+
+    /**
+     * How we consult the sources of track metadata available to us.
+     */
+    private final AtomicReference<ProviderPolicy> providerPolicy = new AtomicReference<>(ProviderPolicy.SEQUENTIAL);
+
+    /**
+     * How long, in milliseconds, a metadata provider has to answer when sources are being queried in parallel.
+     */
+    private final AtomicLong providerDeadline = new AtomicLong(2000);
+
+    /**
+     * How long, in milliseconds, a player's dbserver has to answer when sources are being queried in parallel.
+     */
+    private final AtomicLong dbServerDeadline = new AtomicLong(TimeUnit.SECONDS.toMillis(MENU_TIMEOUT));
+
+    /**
+     * Keeps track of how well each metadata provider has performed when sources are queried in parallel.
+     */
+    private final Map<MetadataProvider, ProviderStatistics> providerStatistics = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps track of how well the players' dbservers have performed when sources are queried in parallel.
+     */
+    private final ProviderStatistics dbServerStatistics = new ProviderStatistics("dbserver");
+
+    /**
+     * Check how we consult the sources of track metadata available to us.
+     *
+     * @return the policy used to choose between registered metadata providers and the players' dbservers
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public ProviderPolicy getProviderPolicy() {
+        return providerPolicy.get();
+    }
+
+    /**
+     * Set how we consult the sources of track metadata available to us. The parallel policies get metadata
+     * sooner when some providers are slow, at the cost of sending queries to players (and other providers) whose
+     * answers may not be needed.
+     *
+     * @param policy the policy used to choose between registered metadata providers and the players' dbservers
      */
-    private Thread queueHandler;
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setProviderPolicy(ProviderPolicy policy) {
+        providerPolicy.set(Objects.requireNonNull(policy, "policy must not be null"));
+    }
+
+    /**
+     * Check how long a metadata provider has to answer when sources are being queried in parallel.
+     *
+     * @return the deadline, in milliseconds from when the query started
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getProviderDeadline() {
+        return providerDeadline.get();
+    }
+
+    /**
+     * Set how long a metadata provider has to answer when sources are being queried in parallel. Later answers
+     * are ignored.
+     *
+     * @param milliseconds the deadline, measured from when the query started
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is less than one
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setProviderDeadline(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("milliseconds must be positive");
+        }
+        providerDeadline.set(milliseconds);
+    }
+
+    /**
+     * Check how long a player's dbserver has to answer when sources are being queried in parallel.
+     *
+     * @return the deadline, in milliseconds from when the query started
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getDbServerDeadline() {
+        return dbServerDeadline.get();
+    }
+
+    /**
+     * Set how long a player's dbserver has to answer when sources are being queried in parallel. Later answers
+     * are ignored.
+     *
+     * @param milliseconds the deadline, measured from when the query started
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is less than one
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setDbServerDeadline(long milliseconds) {
+        if (milliseconds < 1) {
+            throw new IllegalArgumentException("milliseconds must be positive");
+        }
+        dbServerDeadline.set(milliseconds);
+    }
+
+    /**
+     * Find or create the statistics for a metadata provider.
+     *
+     * @param provider the provider of interest
+     *
+     * @return where its performance is recorded
+     */
+    private ProviderStatistics getProviderStatistics(MetadataProvider provider) {
+        return providerStatistics.computeIfAbsent(provider, p -> new ProviderStatistics(p.toString()));
+    }
+
+    /**
+     * Get the statistics gathered about each registered metadata provider while sources have been queried in
+     * parallel. Nothing is gathered under the {@link ProviderPolicy#SEQUENTIAL} policy.
+     *
+     * @return the latency and win rate statistics of each provider that has been queried in parallel
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Map<MetadataProvider, ProviderStatistics> getProviderStatistics() {
+        return Map.copyOf(providerStatistics);
+    }
+
+    /**
+     * Get the statistics gathered about the players' dbservers while sources have been queried in parallel.
+     * Nothing is gathered under the {@link ProviderPolicy#SEQUENTIAL} policy.
+     *
+     * @return the latency and win rate statistics of dbserver queries
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public ProviderStatistics getDbServerStatistics() {
+        return dbServerStatistics;
+    }
 
     /**
      * We have received an update that invalidates any previous metadata for that player, so clear it out, and alert
@@ -450,15 +753,12 @@ public class MetadataFinder extends LifecycleParticipant {
      */
     private void clearMetadata(DeviceAnnouncement announcement) {
         final int player = announcement.getDeviceNumber();
-        // Iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(hotCache.keySet())) {
-            if (deck.player == player) {
-                hotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverTrackMetadataUpdate(player, null);  // Inform listeners the metadata is gone.
-                }
+        for (DeckReference deck : hotCache.removePlayer(player).keySet()) {
+            if (deck.hotCue == 0) {
+                deliverTrackMetadataUpdate(player, null);  // Inform listeners the metadata is gone.
             }
         }
+        secondLevelCache.removePlayer(player);
     }
 
     /**
@@ -468,14 +768,9 @@ public class MetadataFinder extends LifecycleParticipant {
      * @param data the metadata which we received
      */
     private void updateMetadata(CdjStatus update, TrackMetadata data) {
-        hotCache.put(DeckReference.getDeckReference(update.getDeviceNumber(), 0), data);  // Main deck
-        if (data.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : data.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    hotCache.put(DeckReference.getDeckReference(update.getDeviceNumber(), entry.hotCueNumber), data);
-                }
-            }
-        }
+        hotCache.putLoaded(update.getDeviceNumber(), data, data.getCueList());
+        secondLevelCache.put(data.trackReference, data);
+        DeckLoadTracker.getInstance().dataArrived(update.getDeviceNumber(), data.trackReference);
         deliverTrackMetadataUpdate(update.getDeviceNumber(), data);
     }
 
@@ -490,7 +785,7 @@ public class MetadataFinder extends LifecycleParticipant {
     public Map<DeckReference, TrackMetadata> getLoadedTracks() {
         ensureRunning();
         // Make a copy so callers get an immutable snapshot of the current state.
-        return Map.copyOf(hotCache);
+        return hotCache.snapshot();
     }
 
     /**
@@ -533,13 +828,10 @@ public class MetadataFinder extends LifecycleParticipant {
      * longer valid.
      */
     private void flushHotCacheSlot(SlotReference slot) {
-        // Iterate over a copy to avoid concurrent modification issues
-        for (Map.Entry<DeckReference, TrackMetadata> entry : new HashMap<>(hotCache).entrySet()) {
-            if (slot == SlotReference.getSlotReference(entry.getValue().trackReference)) {
-                logger.debug("Evicting cached metadata in response to unmount report {}", entry.getValue());
-                hotCache.remove(entry.getKey());
-            }
+        for (TrackMetadata evicted : hotCache.removeIf(reference -> slot == reference.getSlotReference()).values()) {
+            logger.debug("Evicting cached metadata in response to unmount report {}", evicted);
         }
+        secondLevelCache.removeSlot(slot);
     }
 
     /**
@@ -838,6 +1130,7 @@ public class MetadataFinder extends LifecycleParticipant {
         for (Set<MetadataProvider> providers : metadataProviders.values()) {
             providers.remove(provider);
         }
+        providerStatistics.remove(provider);
     }
 
     /**
@@ -1031,18 +1324,21 @@ public class MetadataFinder extends LifecycleParticipant {
                 update.getTrackSourceSlot() == CdjStatus.TrackSourceSlot.NO_TRACK ||
                 update.getTrackSourceSlot() == CdjStatus.TrackSourceSlot.UNKNOWN ||
                 update.getRekordboxId() == 0) {  // We no longer have metadata for this device.
+            DeckLoadTracker.getInstance().deckCleared(update.getDeviceNumber());
             clearDeck(update);
         } else {  // We can offer metadata for this device; check if we already looked up this track.
             final TrackMetadata lastMetadata = hotCache.get(DeckReference.getDeckReference(update.getDeviceNumber(), 0));
             final DataReference trackReference = new DataReference(update.getTrackSourcePlayer(),
                     update.getTrackSourceSlot(), update.getRekordboxId(), update.getTrackType());
             if (lastMetadata == null || !lastMetadata.trackReference.equals(trackReference)) {  // We have something new!
+                // Abandon any work still underway for a track that used to be loaded on this deck.
+                final FetchHandle handle = DeckLoadTracker.getInstance().trackLoaded(update.getDeviceNumber(), trackReference);
+
                 // First see if we can find the new track in the hot cache as a hot cue
-                for (TrackMetadata cached : hotCache.values()) {
-                    if (cached.trackReference.equals(trackReference)) {  // Found a hot cue hit, use it.
-                        updateMetadata(update, cached);
-                        return;
-                    }
+                final TrackMetadata cached = hotCache.find(trackReference);
+                if (cached != null) {  // Found a hot cue hit, use it.
+                    updateMetadata(update, cached);
+                    return;
                 }
 
                 // Not in the hot cache so try actually retrieving it, if possible.
@@ -1051,18 +1347,24 @@ public class MetadataFinder extends LifecycleParticipant {
                     if (activeRequests.add(update.getTrackSourcePlayer())) {
                         // We had to make sure we were not already asking for this track.
                         clearDeck(update);  // We won't know what it is until our request completes.
-                        new Thread(() -> {
+                        TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "MetadataFinder metadata request", () -> {
+                            final FetchHandle previous = handle.attach();
                             try {
-                                TrackMetadata data = requestMetadataInternal(trackReference, true);
-                                if (data != null) {
+                                TrackMetadata data = TrackBundleFetcher.getInstance().isEnabled()?
+                                        TrackBundleFetcher.getInstance().fetchForDeck(update.getDeviceNumber(), trackReference) :
+                                        requestMetadataInternal(trackReference, true);
+                                if (data != null && !handle.isCancelled()) {
                                     updateMetadata(update, data);
                                 }
+                            } catch (CancellationException e) {
+                                logger.debug("Abandoned track metadata request from update {} because a newer track was loaded", update);
                             } catch (Exception e) {
                                 logger.warn("Problem requesting track metadata from update {}", update, e);
                             } finally {
+                                FetchHandle.restore(previous);
                                 activeRequests.remove(update.getTrackSourcePlayer());
                             }
-                        }, "MetadataFinder metadata request").start();
+                        });
                     }
                 }
             }
@@ -1106,19 +1408,8 @@ public class MetadataFinder extends LifecycleParticipant {
             VirtualCdj.getInstance().addLifecycleListener(lifecycleListener);
             VirtualCdj.getInstance().start();
             VirtualCdj.getInstance().addUpdateListener(updateListener);
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        logger.debug("Interrupted, presumably due to MetadataFinder shutdown.", e);
-                    } catch (Exception e) {
-                        logger.error("Problem handling CDJ status update.", e);
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
 
             // If there are already any rekordbox instances on the network, "mount" their collections.
@@ -1136,12 +1427,10 @@ public class MetadataFinder extends LifecycleParticipant {
         if (isRunning()) {
             VirtualCdj.getInstance().removeUpdateListener(updateListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             // Report the loss of our hot cached metadata on the proper thread, outside our lock
-            final Set<DeckReference> dyingCache = new HashSet<>(hotCache.keySet());
+            final Set<DeckReference> dyingCache = hotCache.clear().keySet();
             SwingUtilities.invokeLater(() -> {
                 for (DeckReference deck : dyingCache) {
                     if (deck.hotCue == 0) {
@@ -1150,7 +1439,7 @@ public class MetadataFinder extends LifecycleParticipant {
                 }
 
             });
-            hotCache.clear();
+            secondLevelCache.clear();
             deliverLifecycleAnnouncement(logger, false);
         }
     }
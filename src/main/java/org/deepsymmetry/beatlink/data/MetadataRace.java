@@ -0,0 +1,220 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.deepsymmetry.beatlink.TaskClass;
+import org.deepsymmetry.beatlink.TaskExecutor;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Queries several sources of the same data at once on behalf of the {@link MetadataFinder}, when it has been
+ * configured with a {@link MetadataFinder.ProviderPolicy} other than {@link MetadataFinder.ProviderPolicy#SEQUENTIAL},
+ * and decides which answer to use. Each source has its own deadline, measured from the start of the race; answers
+ * that arrive later than that are ignored. Sources that lose the race are allowed to finish in the background, so
+ * their statistics stay meaningful, but their answers are discarded.
+ *
+ * @param <T> the type of data being raced for
+ *
+ * @author James Elliott
+ */
+class MetadataRace<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetadataRace.class);
+
+    /**
+     * Something we can ask for the data.
+     *
+     * @param <T> the type of data it provides
+     */
+    static class Source<T> {
+
+        /**
+         * Where we record how the source performs.
+         */
+        final ProviderStatistics statistics;
+
+        /**
+         * How long the source has to answer, in nanoseconds from the start of the race.
+         */
+        final long deadline;
+
+        /**
+         * Asks the source for the data.
+         */
+        final Callable<T> query;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param statistics where to record how the source performs
+         * @param deadline how long the source has to answer, in milliseconds
+         * @param query asks the source for the data
+         */
+        Source(ProviderStatistics statistics, long deadline, Callable<T> query) {
+            this.statistics = statistics;
+            this.deadline = TimeUnit.MILLISECONDS.toNanos(deadline);
+            this.query = query;
+        }
+    }
+
+    /**
+     * What a source said, and how long it took to say it.
+     *
+     * @param <T> the type of data being raced for
+     */
+    private static class Outcome<T> {
+        final T value;
+        final boolean inTime;
+
+        Outcome(T value, boolean inTime) {
+            this.value = value;
+            this.inTime = inTime;
+        }
+    }
+
+    /**
+     * The sources being raced, in order of preference.
+     */
+    private final List<Source<T>> sources;
+
+    /**
+     * Will hold what each source said, when it finishes.
+     */
+    private final List<CompletableFuture<Outcome<T>>> outcomes = new ArrayList<>();
+
+    /**
+     * Receives the index of each source as it finishes.
+     */
+    private final BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+
+    /**
+     * The {@link System#nanoTime()} at which we started the race.
+     */
+    private long started;
+
+    /**
+     * Set up a race.
+     *
+     * @param sources the sources to be raced, in order of preference
+     */
+    MetadataRace(List<Source<T>> sources) {
+        this.sources = sources;
+    }
+
+    /**
+     * Start all the sources working, and wait until we have an answer to use, or have given up on all of them.
+     * Any {@link FetchHandle} attached to the calling thread is attached to the threads querying each source too,
+     * so the whole race can be abandoned when it is no longer needed.
+     *
+     * @param preferenceOrder if {@code true}, use the answer of the first source in the list that answers before its
+     *                        deadline; otherwise use the first answer that arrives
+     *
+     * @return the chosen answer, or {@code null} if no source had one in time
+     *
+     * @throws CancellationException if the {@link FetchHandle} attached to the current thread has been cancelled
+     */
+    T run(boolean preferenceOrder) {
+        if (sources.isEmpty()) {
+            return null;
+        }
+        final FetchHandle handle = FetchHandle.getCurrent();
+        started = System.nanoTime();
+        for (int i = 0; i < sources.size(); i++) {
+            final Source<T> source = sources.get(i);
+            final CompletableFuture<Outcome<T>> outcome = new CompletableFuture<>();
+            final int index = i;
+            outcomes.add(outcome);
+            TaskExecutor.getInstance().execute(TaskClass.PROVIDER_QUERY,
+                    "Metadata query to " + source.statistics.getDescription(), () -> {
+                final FetchHandle previous = (handle == null)? null : handle.attach();
+                T value = null;
+                boolean failed = false;
+                try {
+                    value = source.query.call();
+                } catch (CancellationException e) {
+                    logger.debug("Metadata query to {} abandoned.", source.statistics.getDescription());
+                } catch (Exception e) {
+                    failed = true;
+                    logger.warn("Problem querying {} for metadata", source.statistics.getDescription(), e);
+                } finally {
+                    if (handle != null) {
+                        FetchHandle.restore(previous);
+                    }
+                }
+                final long latency = System.nanoTime() - started;
+                final boolean inTime = latency <= source.deadline;
+                source.statistics.recordCompletion(latency, value != null, failed, !inTime);
+                outcome.complete(new Outcome<>(value, inTime));
+                finished.add(index);
+            });
+        }
+
+        int winner = -1;
+        try {
+            winner = preferenceOrder? awaitPreferred() : awaitFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        FetchHandle.checkCurrent();
+        if (winner < 0) {
+            return null;
+        }
+        final Source<T> source = sources.get(winner);
+        source.statistics.recordWin();
+        return outcomes.get(winner).getNow(null).value;
+    }
+
+    /**
+     * Wait for the first source to answer in time.
+     *
+     * @return the index of the winning source, or -1 if none answered in time
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    private int awaitFirst() throws InterruptedException {
+        long latestDeadline = 0;
+        for (Source<T> source : sources) {
+            latestDeadline = Math.max(latestDeadline, source.deadline);
+        }
+        for (int reported = 0; reported < sources.size(); reported++) {
+            final long remaining = latestDeadline - (System.nanoTime() - started);
+            final Integer index = finished.poll(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+            if (index == null) {
+                return -1;  // Everyone still working is past their deadline.
+            }
+            final Outcome<T> outcome = outcomes.get(index).getNow(null);
+            if (outcome.value != null && outcome.inTime) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Wait for each source in turn, until one answers in time.
+     *
+     * @return the index of the most preferred source that answered in time, or -1 if none did
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    private int awaitPreferred() throws InterruptedException {
+        for (int i = 0; i < sources.size(); i++) {
+            final long remaining = sources.get(i).deadline - (System.nanoTime() - started);
+            try {
+                final Outcome<T> outcome = outcomes.get(i).get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                if (outcome.value != null && outcome.inTime) {
+                    return i;
+                }
+            } catch (TimeoutException e) {
+                logger.debug("{} missed its deadline, moving on to the next source.", sources.get(i).statistics.getDescription());
+            } catch (ExecutionException e) {
+                logger.error("Unexpected failure waiting for metadata from {}", sources.get(i).statistics.getDescription(), e);
+            }
+        }
+        return -1;
+    }
+}
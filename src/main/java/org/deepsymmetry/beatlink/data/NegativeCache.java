@@ -0,0 +1,295 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Remembers, for a limited time, which artifacts have turned out not to exist for particular tracks, such as the
+ * color or 3-band waveforms of tracks analyzed by older versions of rekordbox, analysis files that are missing from
+ * the media, or high resolution album art that was never exported. Without this, every deck load, hot cue, and
+ * metadata update involving such a track would repeat the same doomed requests, along with their retries and
+ * back-off delays, before falling back to whatever is actually available.</p>
+ *
+ * <p>Entries expire after {@link #getTimeToLive()} milliseconds, so that data which appears later (for example
+ * because the track was analyzed while we were watching) is eventually found, and all entries for a media slot are
+ * discarded as soon as that media is mounted or unmounted, since a media change means everything we knew about it
+ * may be wrong. Only definite answers are recorded here: requests which fail because of communication problems are
+ * never treated as evidence that the data is missing.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class NegativeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(NegativeCache.class);
+
+    /**
+     * Identifies the color waveform preview of a track.
+     */
+    static final String COLOR_WAVEFORM_PREVIEW = "PWV4";
+
+    /**
+     * Identifies the color waveform detail of a track.
+     */
+    static final String COLOR_WAVEFORM_DETAIL = "PWV5";
+
+    /**
+     * Identifies the 3-band waveform preview of a track.
+     */
+    static final String THREE_BAND_WAVEFORM_PREVIEW = "PWV6";
+
+    /**
+     * Identifies the 3-band waveform detail of a track.
+     */
+    static final String THREE_BAND_WAVEFORM_DETAIL = "PWV7";
+
+    /**
+     * Identifies the high resolution version of a piece of album art.
+     */
+    static final String HIGH_RESOLUTION_ART = "ART-HIGH";
+
+    /**
+     * Build the identifier for an analysis file of a track.
+     *
+     * @param extension the file extension (such as ".DAT" or ".EXT") which identifies the type of analysis file
+     *
+     * @return the artifact identifier to use for that analysis file
+     */
+    static String analysisFile(String extension) {
+        return "ANLZ" + extension.toUpperCase();
+    }
+
+    /**
+     * Identifies an entry in the cache: a particular kind of artifact for a particular track or piece of art.
+     */
+    private static class Key {
+
+        /**
+         * The track or art to which the artifact belongs.
+         */
+        final DataReference reference;
+
+        /**
+         * Identifies the kind of artifact that was missing.
+         */
+        final String artifact;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param reference the track or art to which the artifact belongs
+         * @param artifact identifies the kind of artifact
+         */
+        Key(DataReference reference, String artifact) {
+            this.reference = reference;
+            this.artifact = artifact;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return reference.equals(key.reference) && artifact.equals(key.artifact);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(reference, artifact);
+        }
+
+        @Override
+        public String toString() {
+            return artifact + " of " + reference;
+        }
+    }
+
+    /**
+     * The largest number of entries we will hold; when this is reached, expired entries are purged, and if that
+     * does not free up room, everything is discarded, which costs nothing worse than some repeated requests.
+     */
+    private static final int MAX_ENTRIES = 4096;
+
+    /**
+     * Holds the time, in {@link System#nanoTime()} units, at which each entry expires.
+     */
+    private final Map<Key, Long> expirations = new ConcurrentHashMap<>();
+
+    /**
+     * How long, in milliseconds, we trust that an artifact is still missing.
+     */
+    private final AtomicLong timeToLive = new AtomicLong(TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Counts the requests we have been able to avoid.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Set how long we trust that an artifact which was found to be missing is still missing. Setting this to zero
+     * disables the cache, and discards any entries it already holds.
+     *
+     * @param milliseconds how long entries should live
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setTimeToLive(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("milliseconds cannot be negative");
+        }
+        timeToLive.set(milliseconds);
+        if (milliseconds == 0) {
+            clear();
+        }
+    }
+
+    /**
+     * Check how long we trust that an artifact which was found to be missing is still missing.
+     *
+     * @return the number of milliseconds for which entries live, or zero if the cache is disabled
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getTimeToLive() {
+        return timeToLive.get();
+    }
+
+    /**
+     * Record that an artifact turned out not to exist, so there is no point asking for it again for a while.
+     *
+     * @param reference the track or art to which the artifact belongs
+     * @param artifact identifies the kind of artifact that was missing
+     */
+    void markMissing(DataReference reference, String artifact) {
+        final long ttl = timeToLive.get();
+        if (ttl == 0) {
+            return;
+        }
+        if (expirations.size() >= MAX_ENTRIES) {
+            purgeExpired();
+            if (expirations.size() >= MAX_ENTRIES) {
+                logger.debug("Negative cache full, discarding all entries.");
+                expirations.clear();
+            }
+        }
+        expirations.put(new Key(reference, artifact), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl));
+        logger.debug("Recorded that {} of {} is missing.", artifact, reference);
+    }
+
+    /**
+     * Check whether an artifact was recently found not to exist, in which case the caller should not bother
+     * asking for it.
+     *
+     * @param reference the track or art to which the artifact belongs
+     * @param artifact identifies the kind of artifact of interest
+     *
+     * @return {@code true} if the artifact was found to be missing and that knowledge has not yet expired
+     */
+    boolean isKnownMissing(DataReference reference, String artifact) {
+        if (expirations.isEmpty()) {
+            return false;
+        }
+        final Key key = new Key(reference, artifact);
+        final Long expiration = expirations.get(key);
+        if (expiration == null) {
+            return false;
+        }
+        if (System.nanoTime() - expiration >= 0) {
+            expirations.remove(key, expiration);
+            return false;
+        }
+        hitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Discard everything we know about artifacts missing from a particular media slot.
+     *
+     * @param slot the slot whose media has changed
+     */
+    void clearSlot(SlotReference slot) {
+        expirations.keySet().removeIf(key -> key.reference.getSlotReference() == slot);
+    }
+
+    /**
+     * Discard any entries which have expired.
+     */
+    private void purgeExpired() {
+        final long now = System.nanoTime();
+        expirations.values().removeIf(expiration -> now - expiration >= 0);
+    }
+
+    /**
+     * Discard everything we know about missing artifacts, so they will all be requested again.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void clear() {
+        expirations.clear();
+    }
+
+    /**
+     * Check how many missing artifacts we are currently remembering, including any that have expired but not yet
+     * been discarded.
+     *
+     * @return the number of entries in the cache
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int size() {
+        return expirations.size();
+    }
+
+    /**
+     * Check how many requests have been avoided because we knew the artifact was missing.
+     *
+     * @return the number of times an artifact was found in the cache
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final NegativeCache ourInstance = new NegativeCache();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static NegativeCache getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation, and arrange to forget about the media in any slot as soon as it changes.
+     */
+    private NegativeCache() {
+        MetadataFinder.getInstance().addMountListener(new MountListener() {
+            @Override
+            public void mediaMounted(SlotReference slot) {
+                clearSlot(slot);
+            }
+
+            @Override
+            public void mediaUnmounted(SlotReference slot) {
+                clearSlot(slot);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache[entries:" + expirations.size() + ", timeToLive:" + timeToLive.get() +
+                ", hits:" + hitCount.get() + "]";
+    }
+}
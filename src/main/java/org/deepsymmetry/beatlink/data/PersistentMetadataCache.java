@@ -0,0 +1,982 @@
+package org.deepsymmetry.beatlink.data;
+
+import io.kaitai.struct.ByteBufferKaitaiStream;
+import io.kaitai.struct.KaitaiStream;
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.LifecycleParticipant;
+import org.deepsymmetry.beatlink.MediaDetails;
+import org.deepsymmetry.beatlink.dbserver.Field;
+import org.deepsymmetry.beatlink.dbserver.Message;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Saves the track metadata, cue lists, beat grids, waveforms, album art, and analysis tags that the finders
+ * obtain from players into files on disk, so that they survive a restart of the application. Once started, the
+ * cache registers itself as a {@link MetadataProvider}, so after a restart (for example in the middle of a set),
+ * the finders are able to recover all the data for the tracks loaded on the players from local files in
+ * milliseconds, rather than having to request it all again over the network.</p>
+ *
+ * <p>Each media device gets its own file in the cache directory, identified by {@link MediaDetails#hashKey()}.
+ * The file starts with the details of the media at the time it was first cached, followed by entries which are
+ * appended as new data is obtained. Entries are identified by the kind of data, the track type, and rekordbox ID
+ * (plus the waveform style or analysis tag where relevant), so they can be used no matter which player or slot the
+ * media is later mounted in. Files are memory-mapped when read. If the media is found to have changed since it was
+ * cached (as determined by {@link MediaDetails#hasChanged(MediaDetails)}), its file is discarded and caching starts
+ * over.</p>
+ *
+ * <p>Only data whose original form can be faithfully preserved is cached. In particular, track metadata that did
+ * not come from a dbserver query (and so can presumably be obtained locally from the same source again), and
+ * media whose details were not obtained from a media response packet, are not cached.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PersistentMetadataCache extends LifecycleParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentMetadataCache.class);
+
+    /**
+     * Identifies files containing cached metadata.
+     */
+    private static final int FILE_MAGIC = 0x424c4d43;  // "BLMC"
+
+    /**
+     * The version of the cache file format we read and write.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The extension used for cache files.
+     */
+    private static final String FILE_EXTENSION = ".bmc";
+
+    /**
+     * The kinds of data that can be cached.
+     */
+    private enum Kind {
+        METADATA,
+        BEAT_GRID,
+        WAVEFORM_PREVIEW,
+        WAVEFORM_DETAIL,
+        ALBUM_ART,
+        ANALYSIS_TAG
+    }
+
+    /**
+     * Build the string that identifies an entry within a media cache file.
+     *
+     * @param kind the kind of data stored in the entry
+     * @param reference identifies the track or artwork; the player and slot are ignored
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     *
+     * @return the key under which the entry is stored
+     */
+    private static String entryKey(Kind kind, DataReference reference, String style) {
+        return kind.name() + ":" + reference.trackType.name() + ":" + reference.rekordboxId + ":" +
+                ((style == null)? "" : style);
+    }
+
+    /**
+     * Represents the cache file for a single media device, along with the index of entries found within it.
+     */
+    private static class MediaFile {
+        final File file;
+        final MediaDetails details;
+        final FileChannel channel;
+        final Map<String, long[]> index = new HashMap<>();  // Entry key to payload offset and length.
+        MappedByteBuffer mapped;
+
+        /**
+         * Create a brand-new file for a media device, replacing any that existed.
+         */
+        MediaFile(File file, MediaDetails details) throws IOException {
+            this.file = file;
+            this.details = details;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(details.hashKey());
+            final ByteBuffer raw = details.getRawBytes();
+            out.writeInt(raw.remaining());
+            final byte[] rawBytes = new byte[raw.remaining()];
+            raw.get(rawBytes);
+            out.write(rawBytes);
+            out.flush();
+            writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+
+        /**
+         * Open an existing file, reading its header and building the index of its entries.
+         */
+        MediaFile(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                final ByteBuffer buffer = map();
+                if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+                    throw new IOException("Not a metadata cache file of a supported version");
+                }
+                final byte[] keyBytes = new byte[buffer.getShort() & 0xffff];
+                buffer.get(keyBytes);
+                final byte[] rawDetails = new byte[buffer.getInt()];
+                buffer.get(rawDetails);
+                details = new MediaDetails(rawDetails, rawDetails.length);
+                int entryStart = buffer.position();
+                while (buffer.remaining() >= 8) {
+                    // Anything that does not fit is a partially written entry, from being interrupted; discard it.
+                    final int keyLength = buffer.getInt();
+                    if (keyLength < 0 || keyLength > buffer.remaining() - 4) {
+                        break;
+                    }
+                    final byte[] entryKey = new byte[keyLength];
+                    buffer.get(entryKey);
+                    final int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    index.put(new String(entryKey, StandardCharsets.UTF_8), new long[] {buffer.position(), length});
+                    buffer.position(buffer.position() + length);
+                    entryStart = buffer.position();
+                }
+                channel.truncate(entryStart);
+                channel.position(entryStart);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw (e instanceof IOException)? (IOException) e : new IOException("Corrupt metadata cache file", e);
+            }
+        }
+
+        /**
+         * Map the current contents of the file into memory.
+         *
+         * @return a buffer positioned at the start of the file
+         */
+        private ByteBuffer map() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return mapped.duplicate();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Look up the payload of an entry.
+         *
+         * @param key identifies the entry
+         *
+         * @return a read-only view of the payload, or {@code null} if there is no such entry
+         */
+        synchronized ByteBuffer get(String key) throws IOException {
+            final long[] location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            if (mapped == null || location[0] + location[1] > mapped.capacity()) {
+                map();  // Entries have been added since we last mapped the file.
+            }
+            final ByteBuffer result = mapped.duplicate();
+            result.position((int) location[0]);
+            result.limit((int) (location[0] + location[1]));
+            return result.slice().asReadOnlyBuffer();
+        }
+
+        synchronized boolean contains(String key) {
+            return index.containsKey(key);
+        }
+
+        /**
+         * Append a new entry to the file, unless one with the same key already exists.
+         */
+        synchronized void put(String key, byte[] payload) throws IOException {
+            if (index.containsKey(key)) {
+                return;
+            }
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer buffer = ByteBuffer.allocate(8 + keyBytes.length + payload.length);
+            buffer.putInt(keyBytes.length).put(keyBytes).putInt(payload.length).put(payload).flip();
+            final long start = channel.position();
+            writeFully(buffer);
+            index.put(key, new long[] {start + 8 + keyBytes.length, payload.length});
+        }
+
+        synchronized int size() {
+            return index.size();
+        }
+
+        synchronized void close() {
+            mapped = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Problem closing metadata cache file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Describes data that has been obtained by one of the finders and needs to be written to the cache.
+     */
+    private static class PendingStore {
+        final MediaDetails media;
+        final Kind kind;
+        final DataReference reference;
+        final String style;
+        final Object value;
+
+        PendingStore(MediaDetails media, Kind kind, DataReference reference, String style, Object value) {
+            this.media = media;
+            this.kind = kind;
+            this.reference = reference;
+            this.style = style;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Keeps track of whether we are running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * The directory in which our cache files are stored.
+     */
+    private final AtomicReference<File> cacheDirectory = new AtomicReference<>();
+
+    /**
+     * The cache files that we have opened, keyed by media {@link MediaDetails#hashKey()}.
+     */
+    private final Map<String, MediaFile> openFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Data waiting to be written to the cache, so that the finders' listener threads are not slowed down by disk
+     * writes.
+     */
+    private final LinkedBlockingDeque<PendingStore> pendingStores = new LinkedBlockingDeque<>(1000);
+
+    /**
+     * The thread that writes pending data to the cache. A thread left over from before a quick restart notices that
+     * it has been replaced and exits, rather than writing alongside the new one.
+     */
+    private volatile Thread writer;
+
+    /**
+     * Check whether the calling thread is the one that should be writing pending data to the cache.
+     *
+     * @return {@code true} if we are running and have not started a newer writer thread
+     */
+    private boolean isCurrentWriter() {
+        return isRunning() && Thread.currentThread() == writer;
+    }
+
+    /**
+     * Counts the requests we were able to answer from the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Counts the requests we were unable to answer.
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Counts the entries that have been written to the cache.
+     */
+    private final AtomicLong storeCount = new AtomicLong();
+
+    /**
+     * Counts the cache files that were discarded because their media had changed.
+     */
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Set the directory in which cache files should be stored. This must be done before the cache is started.
+     *
+     * @param directory an existing directory in which the cache can create its files
+     *
+     * @throws IllegalArgumentException if {@code directory} is not an existing directory
+     * @throws IllegalStateException if the cache is running
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void setCacheDirectory(File directory) {
+        if (isRunning()) {
+            throw new IllegalStateException("Cannot change the cache directory while the cache is running.");
+        }
+        if (directory == null || !directory.isDirectory()) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+        cacheDirectory.set(directory);
+    }
+
+    /**
+     * Get the directory in which cache files are stored.
+     *
+     * @return the cache directory, or {@code null} if none has yet been set
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public File getCacheDirectory() {
+        return cacheDirectory.get();
+    }
+
+    /**
+     * Find the cache file for a media device, opening or creating it if necessary, and discarding it if the media
+     * has changed since it was cached.
+     *
+     * @param media the details of the media, as currently mounted
+     * @param create if {@code true}, a new file will be created if one does not already exist
+     *
+     * @return the cache file for that media, or {@code null} if there is none, or the media cannot be cached
+     */
+    private MediaFile fileFor(MediaDetails media, boolean create) {
+        final File directory = cacheDirectory.get();
+        if (media == null || directory == null || !media.getRawBytes().hasRemaining()) {
+            return null;
+        }
+        final String key = media.hashKey();
+        synchronized (openFiles) {
+            MediaFile result = openFiles.get(key);
+            final File file = new File(directory, UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) +
+                    FILE_EXTENSION);
+            if (result == null && file.exists()) {
+                try {
+                    result = new MediaFile(file);
+                    if (!result.details.hashKey().equals(key)) {
+                        logger.warn("Metadata cache file {} belongs to different media, discarding.", file);
+                        result.close();
+                        result = null;
+                    } else {
+                        openFiles.put(key, result);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Unable to read metadata cache file {}, discarding.", file, e);
+                    result = null;
+                }
+            }
+            if (result != null && result.details != media && media.hasChanged(result.details)) {
+                logger.info("Media {} has changed since it was cached, discarding cache file.", media);
+                invalidationCount.incrementAndGet();
+                openFiles.remove(key);
+                result.close();
+                result = null;
+                if (!file.delete()) {
+                    logger.warn("Unable to delete outdated metadata cache file {}", file);
+                }
+            }
+            if (result == null && create) {
+                try {
+                    result = new MediaFile(file, media);
+                    openFiles.put(key, result);
+                } catch (IOException e) {
+                    logger.error("Unable to create metadata cache file {}", file, e);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Look up the payload of a cached entry, updating our statistics.
+     *
+     * @param media the media the data belongs to
+     * @param kind the kind of data desired
+     * @param reference identifies the track or art desired
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     *
+     * @return a view of the cached payload, or {@code null} if we don't have it
+     */
+    private ByteBuffer lookup(MediaDetails media, Kind kind, DataReference reference, String style) {
+        if (isRunning()) {
+            final MediaFile mediaFile = fileFor(media, false);
+            if (mediaFile != null) {
+                try {
+                    final ByteBuffer result = mediaFile.get(entryKey(kind, reference, style));
+                    if (result != null) {
+                        hitCount.incrementAndGet();
+                        return result;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Problem reading metadata cache file {}", mediaFile.file, e);
+                }
+            }
+            missCount.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Get a stream from which the contents of a payload can be read.
+     *
+     * @param payload the payload found in the cache
+     *
+     * @return a stream that will read the bytes of the payload
+     */
+    private static DataInputStream payloadStream(ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Write a dbserver message as the series of fields that make it up.
+     */
+    private static void writeMessage(Message message, DataOutputStream out) throws IOException {
+        for (Field field : message.fields) {
+            final ByteBuffer bytes = field.getBytes();
+            final byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            out.write(array);
+        }
+    }
+
+    /**
+     * Write a list of byte buffers, preceded by the count, with each preceded by its length.
+     */
+    private static void writeBuffers(List<ByteBuffer> buffers, DataOutputStream out) throws IOException {
+        out.writeInt(buffers.size());
+        for (ByteBuffer buffer : buffers) {
+            final ByteBuffer copy = buffer.duplicate();
+            copy.rewind();
+            final byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a list of byte buffers written by {@link #writeBuffers(List, DataOutputStream)}.
+     */
+    private static List<ByteBuffer> readBuffers(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        final List<ByteBuffer> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            result.add(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+        }
+        return result;
+    }
+
+    /**
+     * Write a cue list, preserving whichever raw form it was created from.
+     */
+    private static void writeCueList(CueList cueList, DataOutputStream out) throws IOException {
+        if (cueList == null) {
+            out.writeByte(0);
+        } else if (cueList.rawMessage != null) {
+            out.writeByte(1);
+            writeMessage(cueList.rawMessage, out);
+        } else {
+            out.writeByte(2);
+            writeBuffers(cueList.rawTags, out);
+            writeBuffers((cueList.rawExtendedTags == null)? Collections.emptyList() : cueList.rawExtendedTags, out);
+        }
+    }
+
+    /**
+     * Read a cue list written by {@link #writeCueList(CueList, DataOutputStream)}.
+     */
+    private static CueList readCueList(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case 1:
+                return new CueList(Message.read(in));
+            case 2:
+                return new CueList(readBuffers(in), readBuffers(in));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Obtain the bytes that make up an analysis section which was parsed on its own (as happens when it is obtained
+     * from a dbserver), so it can be parsed again later.
+     *
+     * @param section the parsed section
+     *
+     * @return the raw bytes, or {@code null} if the section was parsed as part of a larger file
+     */
+    private static byte[] sectionBytes(RekordboxAnlz.TaggedSection section) {
+        final KaitaiStream io = section._io();
+        if (io.size() != section.lenTag()) {
+            return null;
+        }
+        synchronized (section) {
+            final long position = io.pos();
+            io.seek(0);
+            final byte[] result = io.readBytes(section.lenTag());
+            io.seek(position);
+            return result;
+        }
+    }
+
+    /**
+     * Convert data obtained by a finder into the form in which it is stored in the cache.
+     *
+     * @param pending describes the data to be stored
+     *
+     * @return the payload to store, or {@code null} if the data cannot be cached
+     *
+     * @throws IOException if there is a problem serializing the data
+     */
+    private static byte[] serialize(PendingStore pending) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        switch (pending.kind) {
+            case METADATA:
+                final TrackMetadata metadata = (TrackMetadata) pending.value;
+                if (metadata.rawItems == null) {
+                    return null;
+                }
+                writeCueList(metadata.getCueList(), out);
+                out.writeInt(metadata.rawItems.size());
+                for (Message item : metadata.rawItems) {
+                    writeMessage(item, out);
+                }
+                break;
+
+            case BEAT_GRID:
+                final BeatGrid beatGrid = (BeatGrid) pending.value;
+                out.writeInt(beatGrid.beatCount);
+                for (int beat = 1; beat <= beatGrid.beatCount; beat++) {
+                    out.writeByte(beatGrid.getBeatWithinBar(beat));
+                    out.writeInt(beatGrid.getBpm(beat));
+                    out.writeLong(beatGrid.getTimeWithinTrack(beat));
+                }
+                break;
+
+            case WAVEFORM_PREVIEW:
+                writeBuffers(Collections.singletonList(((WaveformPreview) pending.value).getData()), out);
+                break;
+
+            case WAVEFORM_DETAIL:
+                writeBuffers(Collections.singletonList(((WaveformDetail) pending.value).getData()), out);
+                break;
+
+            case ALBUM_ART:
+                writeBuffers(Collections.singletonList(((AlbumArt) pending.value).getRawBytes()), out);
+                break;
+
+            case ANALYSIS_TAG:
+                final byte[] section = sectionBytes((RekordboxAnlz.TaggedSection) pending.value);
+                if (section == null) {
+                    return null;
+                }
+                out.write(section);
+                break;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a piece of pending data to the appropriate cache file.
+     *
+     * @param pending describes the data to be stored
+     */
+    private void store(PendingStore pending) {
+        final MediaFile mediaFile = fileFor(pending.media, true);
+        if (mediaFile == null) {
+            return;
+        }
+        final String key = entryKey(pending.kind, pending.reference, pending.style);
+        if (mediaFile.contains(key)) {
+            return;  // Most likely we supplied this ourselves.
+        }
+        try {
+            final byte[] payload = serialize(pending);
+            if (payload != null) {
+                mediaFile.put(key, payload);
+                storeCount.incrementAndGet();
+            }
+        } catch (Exception e) {
+            logger.warn("Problem caching {} for {}", pending.kind, pending.reference, e);
+        }
+    }
+
+    /**
+     * Arrange for a piece of data that a finder has obtained to be written to the cache.
+     *
+     * @param kind the kind of data
+     * @param reference identifies the track or art
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     * @param value the data to be cached
+     */
+    private void enqueue(Kind kind, DataReference reference, String style, Object value) {
+        if (value == null || !isRunning()) {
+            return;
+        }
+        final MediaDetails media = MetadataFinder.getInstance().getMediaDetailsFor(reference.getSlotReference());
+        if (media == null || !media.getRawBytes().hasRemaining()) {
+            return;  // We can't identify the media, so we can't cache its data.
+        }
+        if (!pendingStores.offerLast(new PendingStore(media, kind, reference, style, value))) {
+            logger.warn("Discarding {} for {} because the metadata cache queue is backed up.", kind, reference);
+        }
+    }
+
+    /**
+     * Called by the {@link AnalysisTagFinder} whenever it has obtained an analysis tag for a track, because its
+     * listeners are registered per tag, and we want to cache all of them.
+     *
+     * @param track identifies the track the section belongs to
+     * @param fileExtension identifies the analysis file from which the section was obtained
+     * @param typeTag the four-character type code of the section
+     * @param section the parsed section
+     */
+    void analysisTagFound(DataReference track, String fileExtension, String typeTag, RekordboxAnlz.TaggedSection section) {
+        enqueue(Kind.ANALYSIS_TAG, track, typeTag + fileExtension, section);
+    }
+
+    private final TrackMetadataListener metadataListener = update -> {
+        if (update.metadata != null) {
+            enqueue(Kind.METADATA, update.metadata.trackReference, null, update.metadata);
+        }
+    };
+
+    private final BeatGridListener beatGridListener = update -> {
+        if (update.beatGrid != null) {
+            enqueue(Kind.BEAT_GRID, update.beatGrid.dataReference, null, update.beatGrid);
+        }
+    };
+
+    private final WaveformListener waveformListener = new WaveformListener() {
+        @Override
+        public void previewChanged(WaveformPreviewUpdate update) {
+            if (update.preview != null) {
+                enqueue(Kind.WAVEFORM_PREVIEW, update.preview.dataReference, update.preview.style.name(), update.preview);
+            }
+        }
+
+        @Override
+        public void detailChanged(WaveformDetailUpdate update) {
+            if (update.detail != null) {
+                enqueue(Kind.WAVEFORM_DETAIL, update.detail.dataReference, update.detail.style.name(), update.detail);
+            }
+        }
+    };
+
+    private final AlbumArtListener artListener = update -> {
+        if (update.art != null) {
+            enqueue(Kind.ALBUM_ART, update.art.artReference, null, update.art);
+        }
+    };
+
+    /**
+     * The metadata provider we register to offer cached data to the finders.
+     */
+    private final MetadataProvider provider = new MetadataProvider() {
+        @Override
+        public List<MediaDetails> supportedMedia() {
+            return Collections.emptyList();  // We check the media ourselves when asked.
+        }
+
+        @Override
+        public TrackMetadata getTrackMetadata(MediaDetails sourceMedia, DataReference track) {
+            final ByteBuffer payload = lookup(sourceMedia, Kind.METADATA, track, null);
+            if (payload != null) {
+                try {
+                    final DataInputStream in = payloadStream(payload);
+                    final CueList cueList = readCueList(in);
+                    final int count = in.readInt();
+                    final List<Message> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(Message.read(in));
+                    }
+                    return new TrackMetadata(track, track.trackType, items, cueList);
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached metadata for {}", track, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public AlbumArt getAlbumArt(MediaDetails sourceMedia, DataReference art) {
+            final ByteBuffer payload = lookup(sourceMedia, Kind.ALBUM_ART, art, null);
+            if (payload != null) {
+                try {
+                    return new AlbumArt(art, readBuffers(payloadStream(payload)).get(0));
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached album art for {}", art, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public BeatGrid getBeatGrid(MediaDetails sourceMedia, DataReference track) {
+            final ByteBuffer payload = lookup(sourceMedia, Kind.BEAT_GRID, track, null);
+            if (payload != null) {
+                try {
+                    final DataInputStream in = payloadStream(payload);
+                    final int beatCount = in.readInt();
+                    final int[] beatWithinBarValues = new int[beatCount];
+                    final int[] bpmValues = new int[beatCount];
+                    final long[] timeWithinTrackValues = new long[beatCount];
+                    for (int i = 0; i < beatCount; i++) {
+                        beatWithinBarValues[i] = in.readByte();
+                        bpmValues[i] = in.readInt();
+                        timeWithinTrackValues[i] = in.readLong();
+                    }
+                    return new BeatGrid(track, beatWithinBarValues, bpmValues, timeWithinTrackValues);
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached beat grid for {}", track, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public CueList getCueList(MediaDetails sourceMedia, DataReference track) {
+            final ByteBuffer payload = lookup(sourceMedia, Kind.METADATA, track, null);
+            if (payload != null) {
+                try {
+                    return readCueList(payloadStream(payload));
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached cue list for {}", track, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public WaveformPreview getWaveformPreview(MediaDetails sourceMedia, DataReference track) {
+            final WaveformFinder.WaveformStyle style = WaveformFinder.getInstance().getPreferredStyle();
+            final ByteBuffer payload = lookup(sourceMedia, Kind.WAVEFORM_PREVIEW, track, style.name());
+            if (payload != null) {
+                try {
+                    return new WaveformPreview(track, readBuffers(payloadStream(payload)).get(0), style);
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached waveform preview for {}", track, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public WaveformDetail getWaveformDetail(MediaDetails sourceMedia, DataReference track) {
+            final WaveformFinder.WaveformStyle style = WaveformFinder.getInstance().getPreferredStyle();
+            final ByteBuffer payload = lookup(sourceMedia, Kind.WAVEFORM_DETAIL, track, style.name());
+            if (payload != null) {
+                try {
+                    return new WaveformDetail(track, readBuffers(payloadStream(payload)).get(0), style);
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached waveform detail for {}", track, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public RekordboxAnlz.TaggedSection getAnalysisSection(MediaDetails sourceMedia, DataReference track,
+                                                              String fileExtension, String typeTag) {
+            final ByteBuffer payload = lookup(sourceMedia, Kind.ANALYSIS_TAG, track, typeTag + fileExtension);
+            if (payload != null) {
+                try {
+                    final byte[] bytes = new byte[payload.remaining()];
+                    payload.get(bytes);
+                    return new RekordboxAnlz.TaggedSection(new ByteBufferKaitaiStream(bytes));
+                } catch (Exception e) {
+                    logger.warn("Problem reading cached analysis section for {}", track, e);
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Check how many requests have been answered from the cache since it was started.
+     *
+     * @return the number of cache hits
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Check how many requests could not be answered from the cache since it was started.
+     *
+     * @return the number of cache misses
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Check how many entries have been written to the cache since it was started.
+     *
+     * @return the number of entries stored
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getStoreCount() {
+        return storeCount.get();
+    }
+
+    /**
+     * Check how many cache files have been discarded because their media had changed since they were created.
+     *
+     * @return the number of cache files invalidated since the cache was started
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    /**
+     * Check how many entries are cached for a media device.
+     *
+     * @param media the media of interest
+     *
+     * @return the number of cached entries for that media
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getEntryCount(MediaDetails media) {
+        final MediaFile mediaFile = fileFor(media, false);
+        return (mediaFile == null)? 0 : mediaFile.size();
+    }
+
+    /**
+     * Discard everything that has been cached, deleting all cache files.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void clear() {
+        synchronized (openFiles) {
+            for (MediaFile mediaFile : openFiles.values()) {
+                mediaFile.close();
+            }
+            openFiles.clear();
+            final File directory = cacheDirectory.get();
+            if (directory != null) {
+                final File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.delete()) {
+                            logger.warn("Unable to delete metadata cache file {}", file);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the cache, registering it as a metadata provider so the finders can use the data it holds, and as a
+     * listener for the data they obtain, so it can be saved.
+     *
+     * @throws IllegalStateException if no cache directory has been set
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() {
+        if (!isRunning()) {
+            if (cacheDirectory.get() == null) {
+                throw new IllegalStateException("A cache directory must be set before the cache can be started.");
+            }
+            final Thread thread = new Thread(() -> {
+                while (isCurrentWriter()) {
+                    try {
+                        final PendingStore pending = pendingStores.take();
+                        if (isCurrentWriter()) {
+                            store(pending);
+                        } else {
+                            pendingStores.offerFirst(pending);  // Leave it for the writer that replaced us.
+                        }
+                    } catch (InterruptedException e) {
+                        // Interrupted due to shutdown, presumably
+                    }
+                }
+            }, "Persistent metadata cache writer");
+            thread.setDaemon(true);
+            writer = thread;
+            running.set(true);
+            thread.start();
+            MetadataFinder.getInstance().addMetadataProvider(provider);
+            MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
+            BeatGridFinder.getInstance().addBeatGridListener(beatGridListener);
+            WaveformFinder.getInstance().addWaveformListener(waveformListener);
+            ArtFinder.getInstance().addAlbumArtListener(artListener);
+            deliverLifecycleAnnouncement(logger, true);
+        }
+    }
+
+    /**
+     * Stop the cache, so that it is no longer consulted or updated, and close its files. Anything that was still
+     * waiting to be written is discarded.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (isRunning()) {
+            MetadataFinder.getInstance().removeMetadataProvider(provider);
+            MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
+            BeatGridFinder.getInstance().removeBeatGridListener(beatGridListener);
+            WaveformFinder.getInstance().removeWaveformListener(waveformListener);
+            ArtFinder.getInstance().removeAlbumArtListener(artListener);
+            running.set(false);
+            pendingStores.clear();
+            writer.interrupt();
+            writer = null;
+            synchronized (openFiles) {
+                for (MediaFile mediaFile : openFiles.values()) {
+                    mediaFile.close();
+                }
+                openFiles.clear();
+            }
+            deliverLifecycleAnnouncement(logger, false);
+        }
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final PersistentMetadataCache ourInstance = new PersistentMetadataCache();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static PersistentMetadataCache getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private PersistentMetadataCache() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentMetadataCache[running:" + isRunning() + ", cacheDirectory:" + cacheDirectory.get() +
+                ", hits:" + getHitCount() + ", misses:" + getMissCount() + ", stores:" + getStoreCount() +
+                ", invalidations:" + getInvalidationCount() + "]";
+    }
+}
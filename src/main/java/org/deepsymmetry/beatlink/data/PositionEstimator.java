@@ -0,0 +1,287 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+/**
+ * <p>Tracks the playback position of one player by fusing all the position information the {@link TimeFinder}
+ * receives from it (beat packets, precise position packets, and status updates, each with the time it was received)
+ * into a continuously-corrected estimate, rather than extrapolating from only the most recent packet. This is used
+ * by {@link TimeFinder#getTimeFor(int)} when {@link TimeFinder#setUsingPositionEstimator(boolean)} has been turned
+ * on, so that network jitter no longer causes the reported position to jump back and forth.</p>
+ *
+ * <p>The estimator works like a phase-locked loop (or, equivalently, an alpha-beta filter): each measurement is
+ * compared with where the estimate predicted the player would be at the moment it was received, and the estimate is
+ * nudged part of the way towards it, while the rate at which the estimate advances is nudged to absorb any consistent
+ * lead or lag. The rate starts from the pitch reported by the player, so only small corrections are ever needed.
+ * Measurements that disagree wildly with the prediction (because the DJ jumped, or changed direction, pitch, or
+ * play state) simply restart the estimate from that measurement.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PositionEstimator {
+
+    /**
+     * If a measurement differs from our prediction by more than this many milliseconds, we assume the player has
+     * jumped, and start over from the measurement rather than trying to smooth our way there.
+     */
+    private static final double JUMP_THRESHOLD = 250.0;
+
+    /**
+     * The largest fraction of the reported playback rate that we are willing to add or subtract to track a
+     * consistent drift.
+     */
+    private static final double MAX_RATE_CORRECTION = 0.02;
+
+    /**
+     * How far we move towards precise position packets, which are frequent and accurate.
+     */
+    private static final double PRECISE_GAIN = 0.3;
+
+    /**
+     * How far we move towards beat packets, which mark definitive beat positions but arrive less often.
+     */
+    private static final double BEAT_GAIN = 0.5;
+
+    /**
+     * How far we move towards positions inferred from status packets, which carry the least information.
+     */
+    private static final double STATUS_GAIN = 0.1;
+
+    /**
+     * How quickly the error statistics respond to new measurements.
+     */
+    private static final double STATISTICS_WEIGHT = 0.05;
+
+    /**
+     * The player number whose position we estimate.
+     */
+    private final int player;
+
+    /**
+     * Whether we have received any measurement since being created or reset.
+     */
+    private boolean locked;
+
+    /**
+     * The {@link System#nanoTime()} at which our estimate was last corrected.
+     */
+    private long anchorTimestamp;
+
+    /**
+     * Our estimate of the playback position at {@link #anchorTimestamp}, in milliseconds.
+     */
+    private double anchorPosition;
+
+    /**
+     * Whether the player was playing at our last measurement.
+     */
+    private boolean playing;
+
+    /**
+     * Whether the player was playing backwards at our last measurement.
+     */
+    private boolean reverse;
+
+    /**
+     * The pitch multiplier reported by the player at our last measurement.
+     */
+    private double reportedPitch;
+
+    /**
+     * The amount we are adding to the reported playback rate to track consistent drift, in milliseconds of track
+     * per millisecond of real time.
+     */
+    private double rateCorrection;
+
+    /**
+     * Exponentially weighted averages of the measurement errors and their squares, in milliseconds.
+     */
+    private double meanError;
+    private double meanSquaredError;
+
+    /**
+     * Counters for monitoring.
+     */
+    private long measurementCount;
+    private long resetCount;
+
+    /**
+     * Create an estimator for a player.
+     *
+     * @param player the player number whose position will be estimated
+     */
+    PositionEstimator(int player) {
+        this.player = player;
+    }
+
+    /**
+     * Start our estimate over from a measurement.
+     *
+     * @param measurement the position that the player has been found at
+     */
+    private void restart(TrackPositionUpdate measurement) {
+        if (locked && (playing || measurement.playing)) {
+            resetCount++;  // Staying stopped is not interesting, but jumps and changes in play state are.
+        }
+        locked = true;
+        anchorTimestamp = measurement.timestamp;
+        anchorPosition = measurement.milliseconds;
+        playing = measurement.playing;
+        reverse = measurement.reverse;
+        reportedPitch = measurement.pitch;
+        rateCorrection = 0.0;
+    }
+
+    /**
+     * Calculate the rate at which playback is currently moving through the track.
+     *
+     * @return the milliseconds of track which go by in each millisecond of real time, negative when playing backwards
+     */
+    private double rate() {
+        if (!playing) {
+            return 0.0;
+        }
+        return (reverse? -reportedPitch : reportedPitch) + rateCorrection;
+    }
+
+    /**
+     * Incorporate a new measurement of the player's position into our estimate.
+     *
+     * @param measurement the position information the {@link TimeFinder} has worked out from a packet
+     */
+    synchronized void update(TrackPositionUpdate measurement) {
+        measurementCount++;
+        if (!locked || !measurement.playing || !playing || measurement.reverse != reverse ||
+                Math.abs(measurement.pitch - reportedPitch) > 0.0001) {
+            restart(measurement);
+            return;
+        }
+        final double elapsed = (measurement.timestamp - anchorTimestamp) / 1000000.0;
+        if (elapsed <= 0.0) {
+            return;  // Arrived out of order with respect to one we have already used.
+        }
+        final double predicted = anchorPosition + rate() * elapsed;
+        final double error = measurement.milliseconds - predicted;
+        if (Math.abs(error) > JUMP_THRESHOLD) {
+            restart(measurement);
+            return;
+        }
+
+        final double alpha = measurement.precise? PRECISE_GAIN : (measurement.fromBeat? BEAT_GAIN : STATUS_GAIN);
+        final double beta = alpha * alpha / (2.0 - alpha);  // Critically damped response for this alpha.
+        anchorTimestamp = measurement.timestamp;
+        anchorPosition = predicted + alpha * error;
+        final double limit = MAX_RATE_CORRECTION * reportedPitch;
+        rateCorrection = Math.max(-limit, Math.min(limit, rateCorrection + beta * error / elapsed));
+
+        meanError += STATISTICS_WEIGHT * (error - meanError);
+        meanSquaredError += STATISTICS_WEIGHT * (error * error - meanSquaredError);
+    }
+
+    /**
+     * Forget everything we know about the player's position, because it no longer has a usable track loaded.
+     */
+    synchronized void reset() {
+        locked = false;
+        rateCorrection = 0.0;
+    }
+
+    /**
+     * Get the player number whose position is being estimated.
+     *
+     * @return the player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getPlayer() {
+        return player;
+    }
+
+    /**
+     * Check whether we currently have an estimate of the player's position.
+     *
+     * @return {@code true} if a position has been measured since the player last lost its track
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized boolean isLocked() {
+        return locked;
+    }
+
+    /**
+     * Estimate where the player's playback position will be at a particular moment.
+     *
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the number of milliseconds into the track we expect playback to be, or -1 if we have no estimate
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized long getTimeAt(long timestamp) {
+        if (!locked) {
+            return -1;
+        }
+        final double position = anchorPosition + rate() * ((timestamp - anchorTimestamp) / 1000000.0);
+        return Math.max(0, Math.round(position));
+    }
+
+    /**
+     * Get our estimate of how fast playback is moving through the track, which will differ slightly from the pitch
+     * reported by the player if its packets have consistently been arriving ahead of or behind that pitch.
+     *
+     * @return the milliseconds of track played in each millisecond of real time, negative when playing backwards,
+     *         or zero if the player is stopped
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized double getRate() {
+        return rate();
+    }
+
+    /**
+     * Get the average difference between where measurements said the player was and where we predicted it would be.
+     * A consistent offset reflects how much later (negative) or earlier (positive) than our estimate the packets are
+     * being received, which is mostly network and processing latency.
+     *
+     * @return the recent average measurement error in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized double getMeanError() {
+        return meanError;
+    }
+
+    /**
+     * Get the typical size of the difference between where measurements said the player was and where we predicted
+     * it would be, which reflects the jitter being smoothed out.
+     *
+     * @return the recent root-mean-square measurement error in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized double getJitter() {
+        return Math.sqrt(meanSquaredError);
+    }
+
+    /**
+     * Check how many measurements have been given to the estimator.
+     *
+     * @return the number of measurements
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized long getMeasurementCount() {
+        return measurementCount;
+    }
+
+    /**
+     * Check how many times the estimate has been restarted because the player jumped or changed state.
+     *
+     * @return the number of restarts
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized long getResetCount() {
+        return resetCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PositionEstimator[player:" + player + ", locked:" + locked + ", rate:" + rate() + ", meanError:" +
+                meanError + ", jitter:" + getJitter() + ", measurements:" + measurementCount + ", resets:" +
+                resetCount + "]";
+    }
+}
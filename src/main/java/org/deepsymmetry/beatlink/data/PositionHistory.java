@@ -0,0 +1,324 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Remembers the recent playback positions and tempos of one player, as worked out by the {@link TimeFinder} each
+ * time position information arrives from it, so that questions like "where was this player at a particular moment"
+ * or "how has its tempo changed over the last thirty seconds" can be answered after the fact, without every
+ * interested component having to keep its own copy of every update. Obtain one from
+ * {@link TimeFinder#getPositionHistory(int)}.</p>
+ *
+ * <p>The history is a fixed-size ring buffer holding the most recent {@link #CAPACITY} samples. Status updates, beat
+ * packets, and precise position packets all add samples to the same buffer, so a player sending all three produces
+ * around forty samples a second, and the buffer is sized to cover at least the last minute even then. Samples are
+ * stored in primitive arrays, and the threads delivering the different kinds of update take turns recording them
+ * through a lock which is almost never contended, so keeping the history costs the {@link TimeFinder} almost
+ * nothing. Readers never take that lock, and never block writers: each slot carries a sequence stamp which is
+ * checked before and after reading it. Because writers finish in the order they started, only the newest sample
+ * can still be in the middle of being written, and any older sample that was overwritten while being read is
+ * treated as having already aged out of the history.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PositionHistory {
+
+    /**
+     * The number of samples the history can hold before the oldest are overwritten. Must be a power of two.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static final int CAPACITY = 4096;
+
+    /**
+     * Used to find the slot in which a sample is stored.
+     */
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * Flag bits recording the play state of a sample.
+     */
+    private static final byte PLAYING = 1;
+    private static final byte REVERSE = 2;
+
+    /**
+     * The player number whose history this is.
+     */
+    private final int player;
+
+    /**
+     * The number of samples that have ever been claimed by writers; the next sample will be given this sequence
+     * number.
+     */
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * For each slot, one more than the sequence number of the sample it holds, zero if it has never held one, or
+     * -1 while it is being written.
+     */
+    private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+
+    private final long[] timestamps = new long[CAPACITY];
+    private final long[] milliseconds = new long[CAPACITY];
+    private final int[] beatNumbers = new int[CAPACITY];
+    private final byte[] flags = new byte[CAPACITY];
+    private final double[] pitches = new double[CAPACITY];
+    private final double[] tempos = new double[CAPACITY];
+
+    /**
+     * Create an empty history for a player.
+     *
+     * @param player the player number whose positions will be recorded
+     */
+    PositionHistory(int player) {
+        this.player = player;
+    }
+
+    /**
+     * Store a sample in the next slot of the ring buffer. Writers are serialized so that a slot is never still being
+     * written once a later one has been finished, which is what allows readers to treat any unreadable slot other
+     * than the newest as overwritten.
+     *
+     * @param timestamp when the position information was received
+     * @param position how far into the track the player had reached, or -1 if unknown
+     * @param beatNumber the beat within which playback fell
+     * @param state the {@link #PLAYING} and {@link #REVERSE} flags
+     * @param pitch the playback pitch
+     * @param tempo the effective tempo
+     */
+    private synchronized void store(long timestamp, long position, int beatNumber, byte state, double pitch, double tempo) {
+        final long sequence = written.getAndIncrement();
+        final int slot = (int) (sequence & MASK);
+        stamps.set(slot, -1);
+        VarHandle.storeStoreFence();  // Make sure readers see the slot is busy before any of its contents change.
+        timestamps[slot] = timestamp;
+        milliseconds[slot] = position;
+        beatNumbers[slot] = beatNumber;
+        flags[slot] = state;
+        pitches[slot] = pitch;
+        tempos[slot] = tempo;
+        stamps.set(slot, sequence + 1);
+    }
+
+    /**
+     * Record a position that the {@link TimeFinder} has worked out for the player.
+     *
+     * @param position the new position information
+     */
+    void record(TrackPositionUpdate position) {
+        double tempo = 0.0;
+        final BeatGrid beatGrid = position.beatGrid;
+        if (beatGrid != null && position.beatNumber >= 1 && position.beatNumber <= beatGrid.beatCount) {
+            tempo = beatGrid.getBpm(position.beatNumber) / 100.0 * position.pitch;
+        }
+        final byte state = (byte) ((position.playing? PLAYING : 0) | (position.reverse? REVERSE : 0));
+        store(position.timestamp, position.milliseconds, position.beatNumber, state, position.pitch, tempo);
+    }
+
+    /**
+     * Record that the player's position is no longer known.
+     *
+     * @param timestamp the {@link System#nanoTime()} at which the position was lost
+     */
+    void recordUnknown(long timestamp) {
+        store(timestamp, -1, 0, (byte) 0, 0.0, 0.0);
+    }
+
+    /**
+     * Read a sample from the ring buffer, if it is still there.
+     *
+     * @param sequence the sequence number of the desired sample
+     *
+     * @return the sample, or {@code null} if it has been (or is being) overwritten
+     */
+    private PositionSample read(long sequence) {
+        final int slot = (int) (sequence & MASK);
+        final long stamp = stamps.get(slot);
+        if (stamp != sequence + 1) {
+            return null;
+        }
+        final long timestamp = timestamps[slot];
+        final long position = milliseconds[slot];
+        final int beatNumber = beatNumbers[slot];
+        final byte state = flags[slot];
+        final double pitch = pitches[slot];
+        final double tempo = tempos[slot];
+        VarHandle.loadLoadFence();  // Make sure we have finished reading the contents before rechecking the stamp.
+        if (stamps.get(slot) != stamp) {
+            return null;
+        }
+        return new PositionSample(timestamp, position, beatNumber, (state & PLAYING) != 0, (state & REVERSE) != 0,
+                pitch, tempo);
+    }
+
+    /**
+     * Get the player number whose history this is.
+     *
+     * @return the player number
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getPlayer() {
+        return player;
+    }
+
+    /**
+     * Check how many samples have ever been recorded, including those that have since been overwritten.
+     *
+     * @return the number of samples recorded
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getSampleCount() {
+        return written.get();
+    }
+
+    /**
+     * Find the sample that was in effect at a particular moment, which is the latest one received no later than
+     * that moment. The search works backwards from the most recent sample, so it is fastest for recent moments.
+     *
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the sample describing where the player was, or {@code null} if that moment is earlier than anything
+     *         remaining in the history
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public PositionSample getSampleAt(long timestamp) {
+        final long end = written.get();
+        for (long sequence = end - 1; sequence >= Math.max(0, end - CAPACITY); sequence--) {
+            final PositionSample sample = read(sequence);
+            if (sample == null) {
+                if (sequence < end - 1) {
+                    return null;  // Anything older than this has been overwritten.
+                }
+            } else if (sample.timestamp <= timestamp) {
+                return sample;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find where the player's playback position was at a particular moment, by extrapolating from the sample that
+     * was in effect then.
+     *
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the playback position in milliseconds, or -1 if it was unknown or is no longer in the history
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getTimeAt(long timestamp) {
+        final PositionSample sample = getSampleAt(timestamp);
+        return (sample == null)? -1 : sample.extrapolate(timestamp);
+    }
+
+    /**
+     * Get all the samples received since a particular moment.
+     *
+     * @param since the {@link System#nanoTime()} after which samples are desired
+     *
+     * @return the matching samples that remain in the history, oldest first
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public List<PositionSample> getSamplesSince(long since) {
+        final List<PositionSample> result = new ArrayList<>();
+        final long end = written.get();
+        for (long sequence = end - 1; sequence >= Math.max(0, end - CAPACITY); sequence--) {
+            final PositionSample sample = read(sequence);
+            if (sample == null) {
+                if (sequence < end - 1) {
+                    break;  // Anything older than this has been overwritten.
+                }
+            } else if (sample.timestamp > since) {
+                result.add(sample);
+            } else {
+                break;
+            }
+        }
+        Collections.reverse(result);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get the samples received during the last few seconds, for example to chart how the player's tempo has changed.
+     *
+     * @param duration how far back to go
+     * @param unit the units in which {@code duration} is expressed
+     *
+     * @return the matching samples that remain in the history, oldest first; the {@link PositionSample#tempo} fields
+     *         trace the tempo curve over that period
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public List<PositionSample> getRecentSamples(long duration, TimeUnit unit) {
+        return getSamplesSince(System.nanoTime() - unit.toNanos(duration));
+    }
+
+    /**
+     * Fill in arrays describing the player's tempo over the last few seconds, without allocating any memory, for
+     * components that chart it on every frame. The most recent samples are kept if the arrays are too small to hold
+     * them all.
+     *
+     * @param duration how far back to go
+     * @param unit the units in which {@code duration} is expressed
+     * @param timestamps will be filled in with the {@link System#nanoTime()} at which each tempo was observed,
+     *                   oldest first
+     * @param tempos will be filled in with the corresponding effective tempos, in beats per minute, or zero where
+     *               the tempo was unknown
+     *
+     * @return the number of array elements that were filled in
+     *
+     * @throws IllegalArgumentException if the arrays have different lengths
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getTempoCurve(long duration, TimeUnit unit, long[] timestamps, double[] tempos) {
+        if (timestamps.length != tempos.length) {
+            throw new IllegalArgumentException("timestamps and tempos must have the same length");
+        }
+        final long since = System.nanoTime() - unit.toNanos(duration);
+        long end = written.get();
+        long first = end;  // Find the oldest sample we can report, working backwards.
+        while (first > Math.max(0, end - CAPACITY) && end - first < timestamps.length) {
+            final int slot = (int) ((first - 1) & MASK);
+            final long stamp = stamps.get(slot);
+            final long timestamp = this.timestamps[slot];
+            VarHandle.loadLoadFence();
+            if (stamp != first || stamps.get(slot) != stamp) {
+                if (first == end) {
+                    end--;  // The newest sample is still being written, so leave it out.
+                    first--;
+                    continue;
+                }
+                break;
+            }
+            if (timestamp <= since) {
+                break;
+            }
+            first--;
+        }
+        int count = 0;
+        for (long sequence = first; sequence < end; sequence++) {
+            final int slot = (int) (sequence & MASK);
+            final long stamp = stamps.get(slot);
+            final long timestamp = this.timestamps[slot];
+            final double tempo = this.tempos[slot];
+            VarHandle.loadLoadFence();
+            if (stamp == sequence + 1 && stamps.get(slot) == stamp) {
+                timestamps[count] = timestamp;
+                tempos[count] = tempo;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "PositionHistory[player:" + player + ", samples:" + Math.min(written.get(), CAPACITY) + "]";
+    }
+}
@@ -0,0 +1,104 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+/**
+ * One entry in a player's {@link PositionHistory}: where the {@link TimeFinder} found the player to be, and how fast
+ * it was playing, at the moment some position information was received from it.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PositionSample {
+
+    /**
+     * The {@link System#nanoTime()} at which the position information was received.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long timestamp;
+
+    /**
+     * How far into the track the player had reached, in milliseconds, or -1 if the position became unknown (for
+     * example because the track was unloaded).
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long milliseconds;
+
+    /**
+     * The beat within which the playback position fell, or zero if unknown.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int beatNumber;
+
+    /**
+     * Whether the player was playing.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final boolean playing;
+
+    /**
+     * Whether the player was playing backwards.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final boolean reverse;
+
+    /**
+     * The playback pitch, where 1.0 is normal speed.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final double pitch;
+
+    /**
+     * The tempo at which the track was being played, taking the pitch into account, in beats per minute, or zero
+     * if there was no beat grid to find the track's tempo.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final double tempo;
+
+    /**
+     * Constructor simply sets the fields of this immutable value class.
+     *
+     * @param timestamp when the position information was received
+     * @param milliseconds how far into the track the player had reached, or -1 if unknown
+     * @param beatNumber the beat within which playback fell
+     * @param playing whether the player was playing
+     * @param reverse whether the player was playing backwards
+     * @param pitch the playback pitch
+     * @param tempo the effective tempo
+     */
+    PositionSample(long timestamp, long milliseconds, int beatNumber, boolean playing, boolean reverse,
+                   double pitch, double tempo) {
+        this.timestamp = timestamp;
+        this.milliseconds = milliseconds;
+        this.beatNumber = beatNumber;
+        this.playing = playing;
+        this.reverse = reverse;
+        this.pitch = pitch;
+        this.tempo = tempo;
+    }
+
+    /**
+     * Work out where playback would have been at a later moment, assuming the player carried on as it was when this
+     * sample was taken.
+     *
+     * @param when the {@link System#nanoTime()} of interest, which should not be earlier than {@link #timestamp}
+     *
+     * @return the extrapolated playback position in milliseconds, or -1 if the position was unknown
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long extrapolate(long when) {
+        if (milliseconds < 0 || !playing) {
+            return milliseconds;
+        }
+        final double elapsed = (when - timestamp) / 1000000.0;
+        final long moved = Math.round(elapsed * pitch);
+        return reverse? Math.max(0, milliseconds - moved) : milliseconds + moved;
+    }
+
+    @Override
+    public String toString() {
+        return "PositionSample[timestamp:" + timestamp + ", milliseconds:" + milliseconds + ", beatNumber:" +
+                beatNumber + ", playing:" + playing + ", reverse:" + reverse + ", pitch:" + pitch + ", tempo:" +
+                tempo + "]";
+    }
+}
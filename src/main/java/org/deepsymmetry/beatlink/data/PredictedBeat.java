@@ -0,0 +1,115 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes a beat that the {@link PredictiveBeatScheduler} expects a player to reach shortly.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PredictedBeat {
+
+    /**
+     * The player number that is expected to reach the beat.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int player;
+
+    /**
+     * The number of the beat within the track, as found in its {@link BeatGrid}.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int beatNumber;
+
+    /**
+     * Where the beat falls within its bar, a number from 1 to 4, where 1 is the downbeat.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int beatWithinBar;
+
+    /**
+     * Whether the beat starts a phrase, according to the track's phrase analysis. Will be {@code false} if no phrase
+     * analysis is available.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final boolean phraseStart;
+
+    /**
+     * Whether the player was the tempo master when the prediction was made.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final boolean tempoMaster;
+
+    /**
+     * The {@link System#nanoTime()} at which we expect the player to reach the beat.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long expectedAt;
+
+    /**
+     * How far into the track the beat falls, in milliseconds.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long trackTime;
+
+    /**
+     * The tempo at which the player is playing, in beats per minute, taking its pitch into account.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final double tempo;
+
+    /**
+     * Constructor simply sets the fields of this immutable value class.
+     *
+     * @param player the player number that is expected to reach the beat
+     * @param beatNumber the number of the beat within the track
+     * @param beatWithinBar where the beat falls within its bar
+     * @param phraseStart whether the beat starts a phrase
+     * @param tempoMaster whether the player is the tempo master
+     * @param expectedAt the {@link System#nanoTime()} at which we expect the beat
+     * @param trackTime how far into the track the beat falls
+     * @param tempo the effective tempo of the player
+     */
+    PredictedBeat(int player, int beatNumber, int beatWithinBar, boolean phraseStart, boolean tempoMaster,
+                  long expectedAt, long trackTime, double tempo) {
+        this.player = player;
+        this.beatNumber = beatNumber;
+        this.beatWithinBar = beatWithinBar;
+        this.phraseStart = phraseStart;
+        this.tempoMaster = tempoMaster;
+        this.expectedAt = expectedAt;
+        this.trackTime = trackTime;
+        this.tempo = tempo;
+    }
+
+    /**
+     * Check whether the beat is the first beat of a bar.
+     *
+     * @return {@code true} if this is a downbeat
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isBarStart() {
+        return beatWithinBar == 1;
+    }
+
+    /**
+     * Check how long it will be until the beat, as of now.
+     *
+     * @return the number of milliseconds until the player is expected to reach the beat, which will be negative if
+     *         that has already happened
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMillisecondsUntil() {
+        return TimeUnit.NANOSECONDS.toMillis(expectedAt - System.nanoTime());
+    }
+
+    @Override
+    public String toString() {
+        return "PredictedBeat[player:" + player + ", beatNumber:" + beatNumber + ", beatWithinBar:" + beatWithinBar +
+                ", phraseStart:" + phraseStart + ", tempoMaster:" + tempoMaster + ", expectedAt:" + expectedAt +
+                ", trackTime:" + trackTime + ", tempo:" + tempo + "]";
+    }
+}
@@ -0,0 +1,31 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+/**
+ * The listener interface for receiving advance notice of beats that players are about to reach, as predicted by the
+ * {@link PredictiveBeatScheduler}. Register with {@link PredictiveBeatScheduler#addPredictedBeatListener(PredictedBeatListener)}.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public interface PredictedBeatListener {
+
+    /**
+     * <p>Invoked a configurable lead time before a player is expected to reach a beat, so that equipment with its own
+     * latency can be told about the beat in time for it to land when the beat does.</p>
+     *
+     * <p>To keep timing tight, predictions are delivered directly on the scheduler's own thread, so if you want to
+     * interact with user interface objects in this method, you need to use
+     * <code><a href="http://docs.oracle.com/javase/8/docs/api/javax/swing/SwingUtilities.html#invokeLater-java.lang.Runnable-">javax.swing.SwingUtilities.invokeLater(Runnable)</a></code>
+     * to do so on the Event Dispatch Thread.</p>
+     *
+     * <p>Even if you are not interacting with user interface objects, any code in this method
+     * <em>must</em> finish quickly, or it will delay predictions for other players and listeners.
+     * If you want to perform lengthy processing of any sort, do so on another thread.</p>
+     *
+     * @param beat describes the beat that is about to occur
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    void beatPredicted(PredictedBeat beat);
+}
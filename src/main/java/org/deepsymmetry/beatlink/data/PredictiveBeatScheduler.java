@@ -0,0 +1,514 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.*;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Predicts when players are going to reach their upcoming beats, bars, and (when phrase analysis is available)
+ * phrases, using the positions tracked by the {@link TimeFinder} and the tracks' {@link BeatGrid}s, and tells
+ * registered {@link PredictedBeatListener}s about each one a configurable lead time before it happens. This gives
+ * lighting and video equipment that has its own latency a chance to land its response right on the beat, rather
+ * than reacting to beat packets, which are already late by the time they have crossed the network.</p>
+ *
+ * <p>When real beat packets arrive, they are compared with the predictions: the difference is reported as a
+ * prediction error metric, and any consistent difference for a player is fed back into its future predictions.
+ * If a player jumps to a different part of its track, predictions resume from the new position.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PredictiveBeatScheduler extends LifecycleParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(PredictiveBeatScheduler.class);
+
+    /**
+     * The longest we will sleep between checks on the players, in nanoseconds, so that we notice changes in
+     * playback promptly even when no beat is due.
+     */
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * How quickly the per-player corrections and error statistics respond to new beat packets.
+     */
+    private static final double CORRECTION_WEIGHT = 0.1;
+
+    /**
+     * Prediction errors larger than this, in nanoseconds, are assumed to mean the player jumped or stopped, rather
+     * than that our prediction was off, so they are not used for correction or statistics.
+     */
+    private static final long MAX_PLAUSIBLE_ERROR = TimeUnit.MILLISECONDS.toNanos(150);
+
+    /**
+     * Keeps track of what we have predicted for each player.
+     */
+    private static class PlayerState {
+
+        /**
+         * The beat grid in effect when we last predicted a beat, so we notice when a new track is loaded.
+         */
+        BeatGrid beatGrid;
+
+        /**
+         * The number of the last beat we announced.
+         */
+        int announcedBeat;
+
+        /**
+         * The {@link System#nanoTime()} at which we expected the last announced beat to occur.
+         */
+        volatile long announcedAt;
+
+        /**
+         * The consistent difference between when beat packets arrive and when we expected them, in nanoseconds,
+         * which is added to future predictions.
+         */
+        volatile double correction;
+    }
+
+    /**
+     * The state of each player, indexed by player number.
+     */
+    private final PlayerState[] players = new PlayerState[TimeSnapshot.PLAYER_SLOTS];
+
+    /**
+     * The phrase analysis of the track loaded in each player, if we are tracking phrases and it is available.
+     */
+    private final AtomicReferenceArray<RekordboxAnlz.SongStructureTag> songStructures =
+            new AtomicReferenceArray<>(TimeSnapshot.PLAYER_SLOTS);
+
+    /**
+     * How far ahead of each beat, in milliseconds, our listeners should be told about it.
+     */
+    private final AtomicLong leadTime = new AtomicLong(50);
+
+    /**
+     * Whether we should look up phrase analysis so that we can report phrase boundaries.
+     */
+    private final AtomicBoolean trackingPhrases = new AtomicBoolean(false);
+
+    /**
+     * Counters and averages for the prediction error metrics, in nanoseconds.
+     */
+    private final AtomicLong predictionCount = new AtomicLong();
+    private final AtomicLong confirmedCount = new AtomicLong();
+    private volatile double meanError;
+    private volatile double meanAbsoluteError;
+
+    /**
+     * The thread running our prediction loop, when we are running. A thread left over from before a quick restart
+     * notices that it has been replaced and exits, rather than predicting alongside the new one.
+     */
+    private volatile Thread predictionThread;
+
+    /**
+     * Keep track of whether we are running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * Check whether we are currently running.
+     *
+     * @return true if beats are being predicted for all active players
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Check how far ahead of each beat our listeners are told about it.
+     *
+     * @return the lead time in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getLeadTime() {
+        return leadTime.get();
+    }
+
+    /**
+     * Set how far ahead of each beat our listeners should be told about it. This should match the latency of the
+     * equipment that is reacting to the beats. Longer lead times make it more likely that a beat will be announced
+     * even though the DJ stops or jumps before it is reached.
+     *
+     * @param milliseconds the lead time
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative, or more than a second
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setLeadTime(long milliseconds) {
+        if (milliseconds < 0 || milliseconds > 1000) {
+            throw new IllegalArgumentException("milliseconds must be between 0 and 1000");
+        }
+        leadTime.set(milliseconds);
+    }
+
+    /**
+     * Check whether we report phrase boundaries, which requires us to use the {@link AnalysisTagFinder} to obtain
+     * phrase analysis for loaded tracks.
+     *
+     * @return {@code true} if predicted beats that start phrases are marked as such
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isTrackingPhrases() {
+        return trackingPhrases.get();
+    }
+
+    /**
+     * Set whether we should report phrase boundaries, which requires us to start the {@link AnalysisTagFinder} and
+     * have it obtain phrase analysis for loaded tracks. Takes effect the next time we are started.
+     *
+     * @param track {@code true} if predicted beats that start phrases should be marked as such
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setTrackingPhrases(boolean track) {
+        trackingPhrases.set(track);
+    }
+
+    /**
+     * Check how many beats we have predicted.
+     *
+     * @return the number of predictions delivered to listeners
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getPredictionCount() {
+        return predictionCount.get();
+    }
+
+    /**
+     * Check how many of our predictions have been confirmed by a beat packet arriving close to the expected time.
+     *
+     * @return the number of predictions that have been compared with real beats
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getConfirmedCount() {
+        return confirmedCount.get();
+    }
+
+    /**
+     * Get the recent average difference between when beat packets arrived and when we predicted the beats. Positive
+     * values mean the packets arrived later than predicted.
+     *
+     * @return the mean prediction error in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getMeanError() {
+        return meanError / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Get the recent average size of the difference between when beat packets arrived and when we predicted the
+     * beats, regardless of direction.
+     *
+     * @return the mean absolute prediction error in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getMeanAbsoluteError() {
+        return meanAbsoluteError / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Keeps track of the registered predicted beat listeners.
+     */
+    private final Set<PredictedBeatListener> predictedBeatListeners = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Adds the specified listener to be told about beats shortly before players reach them. If {@code listener} is
+     * {@code null} or already present in the set of registered listeners, no exception is thrown and no action is
+     * performed.
+     *
+     * @param listener the predicted beat listener to add
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void addPredictedBeatListener(PredictedBeatListener listener) {
+        if (listener != null) {
+            predictedBeatListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes the specified predicted beat listener so that it is no longer told about upcoming beats. If
+     * {@code listener} is {@code null} or not present in the set of registered listeners, no exception is thrown
+     * and no action is performed.
+     *
+     * @param listener the predicted beat listener to remove
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void removePredictedBeatListener(PredictedBeatListener listener) {
+        if (listener != null) {
+            predictedBeatListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Get the set of currently-registered predicted beat listeners.
+     *
+     * @return the listeners that are currently registered for predicted beats
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Set<PredictedBeatListener> getPredictedBeatListeners() {
+        // Make a copy so callers get an immutable snapshot of the current state.
+        return Set.copyOf(predictedBeatListeners);
+    }
+
+    /**
+     * Send a predicted beat to all registered listeners.
+     *
+     * @param beat the beat that is about to occur
+     */
+    private void deliverPredictedBeat(PredictedBeat beat) {
+        predictionCount.incrementAndGet();
+        for (final PredictedBeatListener listener : predictedBeatListeners) {
+            try {
+                listener.beatPredicted(beat);
+            } catch (Throwable t) {
+                logger.warn("Problem delivering predicted beat to listener", t);
+            }
+        }
+    }
+
+    /**
+     * Check whether a beat starts a phrase in the track loaded on a player.
+     *
+     * @param player the player number
+     * @param beatNumber the beat of interest
+     *
+     * @return {@code true} if we have phrase analysis for the track, and it says a phrase starts on that beat
+     */
+    private boolean isPhraseStart(int player, int beatNumber) {
+        final RekordboxAnlz.SongStructureTag structure = songStructures.get(player);
+        if (structure == null) {
+            return false;
+        }
+        for (int i = 0; i < structure.lenEntries(); i++) {
+            final int phraseBeat = structure.body().entries().get(i).beat();
+            if (phraseBeat == beatNumber) {
+                return true;
+            }
+            if (phraseBeat > beatNumber) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the calling thread is the one that should be predicting beats.
+     *
+     * @return {@code true} if we are running and have not started a newer prediction thread
+     */
+    private boolean isCurrentPredictionThread() {
+        return isRunning() && Thread.currentThread() == predictionThread;
+    }
+
+    /**
+     * Check all the players, announcing any beats that are now within our lead time.
+     *
+     * @param snapshot reused on every pass through the calling thread's loop to find out where all the players are
+     *
+     * @return the {@link System#nanoTime()} at which we next need to check, because a beat will then be due
+     */
+    private long predictBeats(TimeSnapshot snapshot) {
+        final long now = TimeFinder.getInstance().snapshot(snapshot).getTimestamp();
+        final long lead = TimeUnit.MILLISECONDS.toNanos(leadTime.get());
+        final DeviceUpdate master = VirtualCdj.getInstance().getTempoMaster();
+        final int masterPlayer = (master == null)? 0 : master.getDeviceNumber();
+        long nextCheck = now + MAX_SLEEP;
+
+        for (int player = 1; player < TimeSnapshot.PLAYER_SLOTS; player++) {
+            final PlayerState state = players[player];
+            if (!snapshot.isPlaying(player)) {
+                state.beatGrid = null;  // Start fresh once it is playing again.
+                continue;
+            }
+            final TrackPositionUpdate position = TimeFinder.getInstance().getLatestPositionFor(player);
+            final BeatGrid beatGrid = (position == null)? null : position.beatGrid;
+            if (beatGrid == null || position.reverse || position.pitch <= 0.0) {
+                continue;  // We can only predict beats when playing forwards through a known beat grid.
+            }
+            final int currentBeat = snapshot.getBeatNumber(player);
+            if (beatGrid != state.beatGrid || currentBeat < state.announcedBeat - 1 || currentBeat > state.announcedBeat) {
+                // A new track, or we jumped somewhere we did not expect; resume predictions from here.
+                state.beatGrid = beatGrid;
+                state.announcedBeat = currentBeat;
+                state.announcedAt = 0;
+            }
+            final int nextBeat = currentBeat + 1;
+            if (nextBeat > beatGrid.beatCount || nextBeat <= state.announcedBeat) {
+                continue;  // Past the end of the grid, or already announced.
+            }
+            final double millisecondsAway = (beatGrid.getTimeWithinTrack(nextBeat) - snapshot.getTime(player)) / position.pitch;
+            final long expectedAt = now + Math.round(millisecondsAway * TimeUnit.MILLISECONDS.toNanos(1) + state.correction);
+            final long announceAt = expectedAt - lead;
+            if (announceAt <= now) {
+                if (!isCurrentPredictionThread()) {
+                    break;  // We have been stopped or replaced, so must not announce anything more.
+                }
+                state.announcedBeat = nextBeat;
+                state.announcedAt = expectedAt;
+                deliverPredictedBeat(new PredictedBeat(player, nextBeat, beatGrid.getBeatWithinBar(nextBeat),
+                        isPhraseStart(player, nextBeat), player == masterPlayer, expectedAt,
+                        beatGrid.getTimeWithinTrack(nextBeat), beatGrid.getBpm(nextBeat) / 100.0 * position.pitch));
+            } else {
+                nextCheck = Math.min(nextCheck, announceAt);
+            }
+        }
+        return nextCheck;
+    }
+
+    /**
+     * Compares real beat packets with our predictions, to measure our error and correct future predictions.
+     */
+    private final BeatListener beatListener = beat -> {
+        final int player = beat.getDeviceNumber();
+        if (player < 1 || player >= TimeSnapshot.PLAYER_SLOTS) {
+            return;
+        }
+        final PlayerState state = players[player];
+        final long announcedAt = state.announcedAt;
+        if (announcedAt == 0) {
+            return;  // We have not predicted anything to compare with.
+        }
+        final long error = beat.getTimestamp() - announcedAt;
+        if (Math.abs(error) > MAX_PLAUSIBLE_ERROR) {
+            return;  // This beat does not correspond to the one we predicted.
+        }
+        state.announcedAt = 0;  // Only compare each prediction once.
+        state.correction += CORRECTION_WEIGHT * error;
+        confirmedCount.incrementAndGet();
+        meanError += CORRECTION_WEIGHT * (error - meanError);
+        meanAbsoluteError += CORRECTION_WEIGHT * (Math.abs(error) - meanAbsoluteError);
+    };
+
+    /**
+     * Keeps track of the phrase analysis of the tracks loaded in each player.
+     */
+    private final AnalysisTagListener songStructureListener = update -> {
+        if (update.player > 0 && update.player < TimeSnapshot.PLAYER_SLOTS) {
+            final RekordboxAnlz.TaggedSection section = update.taggedSection;
+            songStructures.set(update.player, (section == null)? null : (RekordboxAnlz.SongStructureTag) section.body());
+        }
+    };
+
+    /**
+     * Set up to automatically stop if anything we depend on stops.
+     */
+    private final LifecycleListener lifecycleListener = new LifecycleListener() {
+        @Override
+        public void started(LifecycleParticipant sender) {
+            logger.debug("The PredictiveBeatScheduler does not auto-start when {} does.", sender);
+        }
+
+        @Override
+        public void stopped(LifecycleParticipant sender) {
+            if (isRunning()) {
+                logger.info("PredictiveBeatScheduler stopping because {} has.", sender);
+                stop();
+            }
+        }
+    };
+
+    /**
+     * <p>Start predicting beats for all active players. Starts the {@link TimeFinder} if it is not already running,
+     * because we need it to know where the players are, and the {@link AnalysisTagFinder} if we are tracking
+     * phrases.</p>
+     *
+     * @throws Exception if there is a problem starting the required components
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() throws Exception {
+        if (!isRunning()) {
+            TimeFinder.getInstance().addLifecycleListener(lifecycleListener);
+            TimeFinder.getInstance().start();
+            if (trackingPhrases.get()) {
+                AnalysisTagFinder.getInstance().addLifecycleListener(lifecycleListener);
+                AnalysisTagFinder.getInstance().start();
+                AnalysisTagFinder.getInstance().addAnalysisTagListener(songStructureListener, ".EXT", "PSSI");
+            }
+            for (int player = 0; player < TimeSnapshot.PLAYER_SLOTS; player++) {
+                players[player] = new PlayerState();  // Must exist before our beat listener can be called.
+            }
+            BeatFinder.getInstance().addBeatListener(beatListener);
+            running.set(true);
+            final Thread thread = new Thread(() -> {
+                final TimeSnapshot snapshot = new TimeSnapshot();  // Each thread needs its own.
+                while (isCurrentPredictionThread()) {
+                    try {
+                        final long nextCheck = predictBeats(snapshot);
+                        LockSupport.parkNanos(Math.max(0, nextCheck - System.nanoTime()));
+                    } catch (IllegalStateException e) {
+                        // The TimeFinder stopped; wait for its lifecycle announcement to stop us too.
+                        logger.debug("TimeFinder stopped while we were predicting beats.");
+                        LockSupport.parkNanos(MAX_SLEEP);
+                    } catch (Throwable t) {
+                        logger.error("Problem predicting beats", t);
+                        LockSupport.parkNanos(MAX_SLEEP);
+                    }
+                }
+            }, "beat-link predictive beat scheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            predictionThread = thread;
+            thread.start();
+            deliverLifecycleAnnouncement(logger, true);
+        }
+    }
+
+    /**
+     * Stop predicting beats.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (isRunning()) {
+            running.set(false);
+            BeatFinder.getInstance().removeBeatListener(beatListener);
+            AnalysisTagFinder.getInstance().removeAnalysisTagListener(songStructureListener, ".EXT", "PSSI");
+            LockSupport.unpark(predictionThread);
+            predictionThread = null;
+            for (int player = 0; player < TimeSnapshot.PLAYER_SLOTS; player++) {
+                songStructures.set(player, null);
+            }
+            deliverLifecycleAnnouncement(logger, false);
+        }
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final PredictiveBeatScheduler ourInstance = new PredictiveBeatScheduler();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static PredictiveBeatScheduler getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private PredictiveBeatScheduler() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "PredictiveBeatScheduler[running:" + isRunning() + ", leadTime:" + leadTime.get() + ", predictions:" +
+                predictionCount.get() + ", confirmed:" + confirmedCount.get() + ", meanAbsoluteError:" +
+                getMeanAbsoluteError() + "ms]";
+    }
+}
@@ -0,0 +1,755 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.LifecycleParticipant;
+import org.deepsymmetry.beatlink.MediaDetails;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
+import org.deepsymmetry.beatlink.dbserver.Message;
+import org.deepsymmetry.beatlink.dbserver.NumberField;
+import org.deepsymmetry.cratedigger.Database;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+import org.deepsymmetry.cratedigger.pdb.RekordboxPdb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * <p>Predicts which tracks are likely to be loaded next, and fetches their metadata, beat grids, waveform previews,
+ * and album art in the background, so that they are already at hand when one of them is loaded. Whenever a new track
+ * is loaded on a deck, candidates are chosen from the same media: first the tracks near it in any playlist that
+ * contains it, then tracks in the same key with a similar tempo, and finally tracks from the most recent history
+ * session. When the {@link CrateDigger} has a local copy of the media's database, the candidates are found there;
+ * otherwise the player is asked for the corresponding menus, unless the {@link MetadataFinder} is passive.</p>
+ *
+ * <p>Prefetched data is held in a bounded cache whose entry and byte limits can be configured with
+ * {@link #setCacheLimits(int, long)}, and the number of candidates considered for each load with
+ * {@link #setCandidateLimit(int)}. While the engine is running it is registered as a {@link MetadataProvider}, so
+ * the finders find prefetched data before going to the network.</p>
+ *
+ * <p>Prefetching always gives way to the finders' own work: as soon as a new track is loaded on any deck, any
+ * prefetch request in progress is abandoned, and the engine waits for the deck to settle and for all other requests
+ * to finish before it starts fetching again.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class PrefetchEngine extends LifecycleParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchEngine.class);
+
+    /**
+     * The kinds of data we prefetch.
+     */
+    private enum Kind {
+        METADATA,
+        BEAT_GRID,
+        WAVEFORM_PREVIEW,
+        ALBUM_ART
+    }
+
+    /**
+     * Identifies an entry in the prefetch cache.
+     */
+    private static class Key {
+
+        /**
+         * The kind of data cached.
+         */
+        final Kind kind;
+
+        /**
+         * The track (or artwork) to which the data belongs.
+         */
+        final DataReference reference;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param kind the kind of data cached
+         * @param reference the track (or artwork) to which the data belongs
+         */
+        Key(Kind kind, DataReference reference) {
+            this.kind = kind;
+            this.reference = reference;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * kind.hashCode() + reference.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && ((Key) obj).kind == kind && ((Key) obj).reference.equals(reference);
+        }
+
+        @Override
+        public String toString() {
+            return "Key[kind:" + kind + ", reference:" + reference + "]";
+        }
+    }
+
+    /**
+     * Describes the prefetching to be done after a track has been loaded.
+     */
+    private static class Batch {
+
+        /**
+         * The metadata of the track that was loaded.
+         */
+        final TrackMetadata loaded;
+
+        /**
+         * Allows the batch to be abandoned when something else is loaded.
+         */
+        final FetchHandle handle;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param loaded the metadata of the track that was loaded
+         */
+        Batch(TrackMetadata loaded) {
+            this.loaded = loaded;
+            handle = new FetchHandle("prefetch for " + loaded.trackReference);
+        }
+    }
+
+    /**
+     * Holds the data we have prefetched.
+     */
+    private final WeightedCache<Key, Object> cache = new WeightedCache<>("prefetch", PrefetchEngine::weigh, 64, 16L * 1024 * 1024);
+
+    /**
+     * Estimates how many bytes of memory a prefetched value uses.
+     *
+     * @param value the value to be cached
+     *
+     * @return the estimated size of the value
+     */
+    private static long weigh(Object value) {
+        if (value instanceof BeatGrid) {
+            return 128L + 16L * ((BeatGrid) value).beatCount;
+        }
+        if (value instanceof WaveformPreview) {
+            return 128L + ((WaveformPreview) value).getData().remaining();
+        }
+        if (value instanceof AlbumArt) {
+            return 64L + ((AlbumArt) value).getRawBytes().remaining();
+        }
+        return 2048L;
+    }
+
+    /**
+     * Keep track of whether we are running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * The maximum number of candidate tracks prefetched for each load.
+     */
+    private final AtomicInteger candidateLimit = new AtomicInteger(8);
+
+    /**
+     * How many milliseconds to wait after a load before starting to prefetch.
+     */
+    private final AtomicLong settleDelay = new AtomicLong(2000);
+
+    /**
+     * The percentage by which a candidate's tempo may differ from that of the loaded track.
+     */
+    private static final int TEMPO_RANGE_PERCENT = 4;
+
+    /**
+     * Holds the batch waiting to be worked on; only the most recent load matters.
+     */
+    private final LinkedBlockingDeque<Batch> pendingBatches = new LinkedBlockingDeque<>(1);
+
+    /**
+     * The batch currently being worked on, if any.
+     */
+    private final AtomicReference<Batch> currentBatch = new AtomicReference<>();
+
+    /**
+     * The thread which performs the prefetching.
+     */
+    private Thread worker;
+
+    /**
+     * Counts the tracks whose data we have prefetched.
+     */
+    private final AtomicLong prefetchedCount = new AtomicLong();
+
+    /**
+     * Counts the requests answered from the prefetch cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Counts the batches abandoned because something else was loaded.
+     */
+    private final AtomicLong abandonedCount = new AtomicLong();
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Set the maximum number of candidate tracks whose data is prefetched each time a track is loaded.
+     *
+     * @param limit the number of candidates to prefetch, zero to stop prefetching
+     *
+     * @throws IllegalArgumentException if {@code limit} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setCandidateLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit cannot be negative");
+        }
+        candidateLimit.set(limit);
+    }
+
+    /**
+     * Check the maximum number of candidate tracks whose data is prefetched each time a track is loaded.
+     *
+     * @return the number of candidates prefetched per load
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getCandidateLimit() {
+        return candidateLimit.get();
+    }
+
+    /**
+     * Set how long to wait after a track is loaded before starting to prefetch, giving the finders time to obtain
+     * the data for the track that was actually loaded.
+     *
+     * @param milliseconds the delay before prefetching begins
+     *
+     * @throws IllegalArgumentException if {@code milliseconds} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setSettleDelay(long milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException("milliseconds cannot be negative");
+        }
+        settleDelay.set(milliseconds);
+    }
+
+    /**
+     * Check how long we wait after a track is loaded before starting to prefetch.
+     *
+     * @return the delay before prefetching begins, in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getSettleDelay() {
+        return settleDelay.get();
+    }
+
+    /**
+     * Set the limits of the cache holding prefetched data. The least valuable entries are discarded as needed to
+     * stay within both limits. If both limits are zero, nothing is kept, so prefetching becomes pointless.
+     *
+     * @param maxEntries the maximum number of entries to hold, or zero for no limit on the count
+     * @param maxWeight the maximum estimated number of bytes to hold, or zero for no limit on the size
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setCacheLimits(int maxEntries, long maxWeight) {
+        cache.setLimits(maxEntries, maxWeight);
+    }
+
+    /**
+     * Check the maximum number of entries the prefetch cache can hold.
+     *
+     * @return the entry limit, or zero if there is none
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getMaxCacheEntries() {
+        return cache.getMaxEntries();
+    }
+
+    /**
+     * Check the maximum estimated number of bytes the prefetch cache can hold.
+     *
+     * @return the size limit, or zero if there is none
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMaxCacheWeight() {
+        return cache.getMaxWeight();
+    }
+
+    /**
+     * Check how many entries are in the prefetch cache.
+     *
+     * @return the number of prefetched values being held
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Check how many tracks have had their data prefetched.
+     *
+     * @return the number of tracks prefetched since the engine was created
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getPrefetchedCount() {
+        return prefetchedCount.get();
+    }
+
+    /**
+     * Check how many requests from the finders were answered with prefetched data.
+     *
+     * @return the number of prefetch cache hits since the engine was created
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Check how many batches of prefetching were abandoned because another track was loaded.
+     *
+     * @return the number of abandoned batches since the engine was created
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getAbandonedCount() {
+        return abandonedCount.get();
+    }
+
+    /**
+     * Called by the {@link DeckLoadTracker} when a new track is loaded on a deck, so that any prefetching in
+     * progress gets out of the way of the finders.
+     */
+    void foregroundLoadStarted() {
+        final Batch batch = currentBatch.get();
+        if (batch != null && batch.handle.cancel()) {
+            abandonedCount.incrementAndGet();
+            logger.debug("Abandoned {} because a track was loaded", batch.handle);
+        }
+    }
+
+    /**
+     * Look up a value we have prefetched.
+     *
+     * @param kind the kind of data desired
+     * @param reference the track (or artwork) whose data is desired
+     *
+     * @return the prefetched value, or {@code null} if we do not have it
+     */
+    private Object lookUp(Kind kind, DataReference reference) {
+        final Object result = cache.get(new Key(kind, reference));
+        if (result != null) {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Offers our prefetched data to the finders.
+     */
+    private final MetadataProvider provider = new MetadataProvider() {
+        @Override
+        public List<MediaDetails> supportedMedia() {
+            return Collections.emptyList();  // We can potentially answer any query.
+        }
+
+        @Override
+        public TrackMetadata getTrackMetadata(MediaDetails sourceMedia, DataReference track) {
+            return (TrackMetadata) lookUp(Kind.METADATA, track);
+        }
+
+        @Override
+        public AlbumArt getAlbumArt(MediaDetails sourceMedia, DataReference art) {
+            return (AlbumArt) lookUp(Kind.ALBUM_ART, art);
+        }
+
+        @Override
+        public BeatGrid getBeatGrid(MediaDetails sourceMedia, DataReference track) {
+            return (BeatGrid) lookUp(Kind.BEAT_GRID, track);
+        }
+
+        @Override
+        public CueList getCueList(MediaDetails sourceMedia, DataReference track) {
+            return null;
+        }
+
+        @Override
+        public WaveformPreview getWaveformPreview(MediaDetails sourceMedia, DataReference track) {
+            final WaveformPreview preview = (WaveformPreview) cache.get(new Key(Kind.WAVEFORM_PREVIEW, track));
+            if (preview != null && preview.style == WaveformFinder.getInstance().getPreferredStyle()) {
+                hitCount.incrementAndGet();
+                return preview;
+            }
+            return null;
+        }
+
+        @Override
+        public WaveformDetail getWaveformDetail(MediaDetails sourceMedia, DataReference track) {
+            return null;
+        }
+
+        @Override
+        public RekordboxAnlz.TaggedSection getAnalysisSection(MediaDetails sourceMedia, DataReference track, String fileExtension, String typeTag) {
+            return null;
+        }
+    };
+
+    /**
+     * Queues up prefetching whenever a new track's metadata becomes available.
+     */
+    private final TrackMetadataListener metadataListener = update -> {
+        if (update.metadata != null && update.metadata.trackType == CdjStatus.TrackType.REKORDBOX &&
+                candidateLimit.get() > 0) {
+            pendingBatches.clear();  // Only the most recent load matters.
+            if (!pendingBatches.offerLast(new Batch(update.metadata))) {
+                logger.debug("Discarding prefetch request because another just arrived.");
+            }
+        }
+    };
+
+    /**
+     * Discards prefetched data for media that has been unmounted.
+     */
+    private final MountListener mountListener = new MountListener() {
+        @Override
+        public void mediaMounted(SlotReference slot) {
+            logger.debug("PrefetchEngine doesn't need to do anything in response to a media mount.");
+        }
+
+        @Override
+        public void mediaUnmounted(SlotReference slot) {
+            cache.removeIf(key -> key.reference.getSlotReference() == slot);
+        }
+    };
+
+    /**
+     * Extract the rekordbox IDs of the tracks found in a menu response.
+     *
+     * @param items the rendered menu items
+     *
+     * @return the IDs of the items that represent tracks
+     */
+    private static List<Integer> trackIds(List<Message> items) {
+        final List<Integer> result = new ArrayList<>();
+        for (Message item : items) {
+            if (item.getMenuItemType().name().startsWith("TRACK_TITLE")) {
+                result.add((int) ((NumberField) item.arguments.get(1)).getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find candidates for the next load from a parsed DeviceSQL database: tracks that follow the loaded one in any
+     * playlist containing it, then tracks in the same key with a similar tempo.
+     *
+     * @param loaded the track that was loaded
+     * @param database the parsed database for the media from which it was loaded
+     * @param candidates collects the candidate rekordbox IDs in priority order
+     */
+    private void findCandidates(TrackMetadata loaded, Database database, Set<Integer> candidates) {
+        final int limit = candidateLimit.get();
+        final long id = loaded.trackReference.rekordboxId;
+        for (List<Long> playlist : database.playlistIndex.values()) {
+            final int position = playlist.indexOf(id);
+            if (position >= 0) {
+                for (int i = position + 1; i < playlist.size() && i <= position + limit; i++) {
+                    candidates.add(playlist.get(i).intValue());
+                }
+            }
+        }
+        final RekordboxPdb.TrackRow loadedRow = database.trackIndex.get(id);
+        if (loadedRow == null) {
+            return;
+        }
+        final long tempo = loadedRow.tempo();
+        for (RekordboxPdb.TrackRow row : database.trackIndex.values()) {
+            if (candidates.size() >= 3 * limit) {
+                return;
+            }
+            if (row.keyId() == loadedRow.keyId() &&
+                    Math.abs(row.tempo() - tempo) * 100 <= tempo * TEMPO_RANGE_PERCENT) {
+                candidates.add((int) row.id());
+            }
+        }
+    }
+
+    /**
+     * Find candidates for the next load from a Device Library Plus database: tracks that follow the loaded one in any
+     * playlist containing it, then tracks in the same key with a similar tempo.
+     *
+     * @param loaded the track that was loaded
+     * @param connection the connection to the database for the media from which it was loaded
+     * @param candidates collects the candidate rekordbox IDs in priority order
+     *
+     * @throws SQLException if there is a problem querying the database
+     */
+    private void findCandidates(TrackMetadata loaded, Connection connection, Set<Integer> candidates) throws SQLException {
+        final int limit = candidateLimit.get();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select next.content_id from playlist_content here join playlist_content next " +
+                        "on next.playlist_id = here.playlist_id and next.sequenceNo > here.sequenceNo " +
+                        "and next.sequenceNo <= here.sequenceNo + ? where here.content_id = ? " +
+                        "order by next.sequenceNo - here.sequenceNo")) {
+            statement.setInt(1, limit);
+            statement.setInt(2, loaded.trackReference.rekordboxId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    candidates.add(resultSet.getInt(1));
+                }
+            }
+        }
+        final int tempo = loaded.getTempo();
+        if (loaded.getKey() != null && tempo > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "select content_id from content where key_id = ? and bpmx100 between ? and ? limit ?")) {
+                statement.setInt(1, loaded.getKey().id);
+                statement.setInt(2, tempo * (100 - TEMPO_RANGE_PERCENT) / 100);
+                statement.setInt(3, tempo * (100 + TEMPO_RANGE_PERCENT) / 100);
+                statement.setInt(4, 2 * limit);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        candidates.add(resultSet.getInt(1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find candidates for the next load by asking the player's dbserver: tracks in the same key which also have a
+     * similar tempo come first, then the rest of the similar-tempo tracks, then the most recent history session.
+     *
+     * @param loaded the track that was loaded
+     * @param candidates collects the candidate rekordbox IDs in priority order
+     *
+     * @throws Exception if there is a problem obtaining the menus
+     */
+    private void findCandidatesFromPlayer(TrackMetadata loaded, Set<Integer> candidates) throws Exception {
+        final SlotReference slot = loaded.trackReference.getSlotReference();
+        final MenuLoader menuLoader = MenuLoader.getInstance();
+        final int tempo = loaded.getTempo();
+        final List<Integer> similarTempo = (tempo > 0)?
+                trackIds(menuLoader.requestTracksByBpmRangeFrom(slot, 0, tempo / 100, TEMPO_RANGE_PERCENT)) :
+                Collections.emptyList();
+        FetchHandle.checkCurrent();
+        if (loaded.getKey() != null) {
+            final Set<Integer> sameKey = new HashSet<>(trackIds(menuLoader.requestTracksByKeyAndDistanceFrom(slot, 0, loaded.getKey().id, 0)));
+            FetchHandle.checkCurrent();
+            for (Integer id : similarTempo) {
+                if (sameKey.contains(id)) {
+                    candidates.add(id);
+                }
+            }
+        }
+        candidates.addAll(similarTempo);
+        if (candidates.size() < candidateLimit.get()) {
+            int latestHistory = 0;
+            for (Message item : menuLoader.requestHistoryMenuFrom(slot, 0)) {
+                latestHistory = Math.max(latestHistory, (int) ((NumberField) item.arguments.get(1)).getValue());
+            }
+            FetchHandle.checkCurrent();
+            if (latestHistory > 0) {
+                candidates.addAll(trackIds(menuLoader.requestHistoryPlaylistFrom(slot, 0, latestHistory)));
+            }
+        }
+    }
+
+    /**
+     * Wait until no other requests are in progress, so we do not compete with the finders.
+     *
+     * @param batch the batch we are working on
+     *
+     * @throws InterruptedException if we are interrupted while waiting
+     */
+    private void awaitIdle(Batch batch) throws InterruptedException {
+        while (RequestCoalescer.getInstance().getInFlightCount() > 0) {
+            FetchHandle.checkCurrent();
+            Thread.sleep(50);
+        }
+        if (batch.handle.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Fetch and cache one kind of data for a candidate track, unless we already have it.
+     *
+     * @param batch the batch we are working on
+     * @param kind the kind of data
+     * @param reference identifies the data
+     * @param fetcher obtains the data
+     *
+     * @return the data, which may have already been cached, or {@code null} if it could not be found
+     *
+     * @throws InterruptedException if we are interrupted while waiting for other requests to finish
+     */
+    private Object prefetch(Batch batch, Kind kind, DataReference reference, Supplier<Object> fetcher)
+            throws InterruptedException {
+        final Key key = new Key(kind, reference);
+        Object result = cache.get(key);
+        if (result == null) {
+            awaitIdle(batch);
+            result = fetcher.get();
+            if (result != null) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the candidates for a batch and prefetch their data.
+     *
+     * @param batch the batch to be worked on
+     *
+     * @throws Exception if there is a problem finding candidates
+     */
+    private void process(Batch batch) throws Exception {
+        Thread.sleep(settleDelay.get());
+        awaitIdle(batch);
+        final DataReference loaded = batch.loaded.trackReference;
+        final Set<Integer> candidates = new LinkedHashSet<>();
+        final Database database = CrateDigger.getInstance().findDatabase(loaded);
+        final Connection connection = CrateDigger.getInstance().findJdbcConnection(loaded);
+        if (database != null) {
+            findCandidates(batch.loaded, database, candidates);
+        } else if (connection != null) {
+            findCandidates(batch.loaded, connection, candidates);
+        } else if (!MetadataFinder.getInstance().isPassive() && loaded.slot != CdjStatus.TrackSourceSlot.COLLECTION) {
+            findCandidatesFromPlayer(batch.loaded, candidates);
+        }
+        candidates.remove(loaded.rekordboxId);
+        logger.debug("Prefetch candidates for {}: {}", loaded, candidates);
+
+        int fetched = 0;
+        for (Integer id : candidates) {
+            if (fetched >= candidateLimit.get()) {
+                return;
+            }
+            final DataReference track = new DataReference(loaded.getSlotReference(), id);
+            final TrackMetadata metadata = MetadataFinder.getInstance().isRunning()?
+                    (TrackMetadata) prefetch(batch, Kind.METADATA, track, () -> MetadataFinder.getInstance().requestMetadataFrom(track)) :
+                    null;
+            if (BeatGridFinder.getInstance().isRunning()) {
+                prefetch(batch, Kind.BEAT_GRID, track, () -> BeatGridFinder.getInstance().requestBeatGridFrom(track));
+            }
+            if (WaveformFinder.getInstance().isRunning()) {
+                prefetch(batch, Kind.WAVEFORM_PREVIEW, track, () -> WaveformFinder.getInstance().requestWaveformPreviewFrom(track));
+            }
+            if (metadata != null && metadata.getArtworkId() != 0 && ArtFinder.getInstance().isRunning()) {
+                final DataReference art = new DataReference(loaded.getSlotReference(), metadata.getArtworkId());
+                prefetch(batch, Kind.ALBUM_ART, art, () -> ArtFinder.getInstance().requestArtworkFrom(art, metadata.trackType));
+            }
+            prefetchedCount.incrementAndGet();
+            fetched++;
+        }
+    }
+
+    /**
+     * Start prefetching the data of likely next tracks whenever a track is loaded, starting the
+     * {@link MetadataFinder} if it is not already running.
+     *
+     * @throws Exception if there is a problem starting the {@link MetadataFinder}
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() throws Exception {
+        if (!isRunning()) {
+            MetadataFinder.getInstance().start();
+            worker = new Thread(() -> {
+                while (isRunning()) {
+                    Batch batch = null;
+                    try {
+                        batch = pendingBatches.take();
+                        currentBatch.set(batch);
+                        final FetchHandle previous = batch.handle.attach();
+                        try {
+                            process(batch);
+                        } finally {
+                            FetchHandle.restore(previous);
+                        }
+                    } catch (CancellationException e) {
+                        logger.debug("Prefetching abandoned because a track was loaded.");
+                    } catch (InterruptedException e) {
+                        // Interrupted due to shutdown, presumably
+                    } catch (Exception e) {
+                        logger.warn("Problem prefetching likely next tracks for {}", (batch == null)? null : batch.loaded, e);
+                    } finally {
+                        currentBatch.set(null);
+                    }
+                }
+            }, "beat-link prefetch");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            running.set(true);
+            worker.start();
+            MetadataFinder.getInstance().addMetadataProvider(provider);
+            MetadataFinder.getInstance().addMountListener(mountListener);
+            MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
+            deliverLifecycleAnnouncement(logger, true);
+        }
+    }
+
+    /**
+     * Stop prefetching, abandoning any work in progress and discarding prefetched data.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void stop() {
+        if (isRunning()) {
+            MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
+            MetadataFinder.getInstance().removeMountListener(mountListener);
+            MetadataFinder.getInstance().removeMetadataProvider(provider);
+            running.set(false);
+            pendingBatches.clear();
+            foregroundLoadStarted();
+            worker.interrupt();
+            worker = null;
+            cache.clear();
+            deliverLifecycleAnnouncement(logger, false);
+        }
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final PrefetchEngine ourInstance = new PrefetchEngine();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static PrefetchEngine getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private PrefetchEngine() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "PrefetchEngine[running:" + isRunning() + ", candidateLimit:" + getCandidateLimit() +
+                ", cacheSize:" + getCacheSize() + ", prefetched:" + getPrefetchedCount() + ", hits:" + getHitCount() +
+                ", abandoned:" + getAbandonedCount() + "]";
+    }
+}
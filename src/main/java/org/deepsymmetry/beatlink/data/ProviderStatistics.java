@@ -0,0 +1,172 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how well one source of track metadata (a registered {@link MetadataProvider}, or the players'
+ * dbserver ports) has performed when sources are queried in parallel, as configured by
+ * {@link MetadataFinder#setProviderPolicy(MetadataFinder.ProviderPolicy)}. This can help decide whether a slow
+ * provider is worth keeping registered.
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class ProviderStatistics {
+
+    /**
+     * Describes the source whose statistics these are.
+     */
+    private final String description;
+
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong answers = new AtomicLong();
+    private final AtomicLong wins = new AtomicLong();
+    private final AtomicLong lateAnswers = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Constructor sets the immutable field.
+     *
+     * @param description describes the source whose statistics are being gathered
+     */
+    ProviderStatistics(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Record that the source has finished being asked for metadata.
+     *
+     * @param latency how long it took, in nanoseconds
+     * @param answered whether it returned non-{@code null} metadata
+     * @param failed whether it threw an exception
+     * @param late whether it took longer than its deadline, so its answer could not be used
+     */
+    void recordCompletion(long latency, boolean answered, boolean failed, boolean late) {
+        attempts.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+        if (answered) {
+            answers.incrementAndGet();
+        }
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        if (late) {
+            lateAnswers.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that the source's answer was the one we used.
+     */
+    void recordWin() {
+        wins.incrementAndGet();
+    }
+
+    /**
+     * Get the description of the source.
+     *
+     * @return the provider's string representation, or "dbserver"
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Check how many times the source has finished being asked for metadata.
+     *
+     * @return the number of completed queries
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getAttemptCount() {
+        return attempts.get();
+    }
+
+    /**
+     * Check how many times the source has had metadata to offer.
+     *
+     * @return the number of queries which returned a non-{@code null} result
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getAnswerCount() {
+        return answers.get();
+    }
+
+    /**
+     * Check how many times the source's answer was the one we used.
+     *
+     * @return the number of races won
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getWinCount() {
+        return wins.get();
+    }
+
+    /**
+     * Check what fraction of the queries to the source produced the answer we used.
+     *
+     * @return the number of races won divided by the number of completed queries, or zero if there have been none
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getWinRate() {
+        final long completed = attempts.get();
+        return (completed == 0)? 0.0 : (double) wins.get() / completed;
+    }
+
+    /**
+     * Check how many times the source took longer than its deadline to respond.
+     *
+     * @return the number of late responses
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getLateCount() {
+        return lateAnswers.get();
+    }
+
+    /**
+     * Check how many times the source threw an exception when asked for metadata.
+     *
+     * @return the number of failed queries
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Check how long the source takes to respond, on average.
+     *
+     * @return the average latency in milliseconds, or zero if there have been no queries
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getAverageLatency() {
+        final long completed = attempts.get();
+        if (completed == 0) {
+            return 0.0;
+        }
+        return (double) totalLatency.get() / completed / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Check the longest the source has taken to respond.
+     *
+     * @return the maximum latency in milliseconds
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMaxLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderStatistics[description:" + description + ", attempts:" + attempts.get() + ", answers:" +
+                answers.get() + ", wins:" + wins.get() + ", late:" + lateAnswers.get() + ", failures:" +
+                failures.get() + ", averageLatency:" + getAverageLatency() + "ms]";
+    }
+}
@@ -0,0 +1,361 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * <p>Makes sure that when several threads want the same piece of metadata at the same time, only one of them actually
+ * goes to the trouble of fetching it (from a metadata provider, over NFS, or via a dbserver query), and the others
+ * simply wait for and share that result. This happens a lot when a track is loaded: the automatic update path of
+ * a finder may be working on a beat grid or waveform at the same moment that user code calls, say,
+ * {@link WaveformFinder#requestWaveformPreviewFrom(DataReference)} for the very same track.</p>
+ *
+ * <p>Fetches are identified by the kind of data being fetched, the {@link DataReference} it is being fetched for,
+ * and an optional style (such as the waveform style, or the analysis tag and file extension). Automatic fetches
+ * (which are allowed to give up when the {@link MetadataFinder} is passive) join an explicit fetch of the same data
+ * that is already in progress, since an explicit fetch never gives up. The reverse is not allowed: an explicit
+ * request only shares other explicit fetches, so it will never be handed a {@code null} result simply because it
+ * happened to overlap with a passive automatic one.</p>
+ *
+ * <p>If the thread performing a shared fetch gives up because the work it was doing was cancelled (see
+ * {@link org.deepsymmetry.beatlink.dbserver.FetchHandle}), any other threads that were waiting for it and are not
+ * themselves cancelled start a new fetch of their own.</p>
+ *
+ * <p>Statistics about the number of fetches that are currently in flight and the number that were satisfied by
+ * sharing an existing fetch are available for monitoring purposes.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class RequestCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    /**
+     * Identifies the kinds of data that the finders fetch on our behalf.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public enum DataType {
+        /**
+         * Track metadata, fetched by the {@link MetadataFinder}.
+         */
+        METADATA,
+        /**
+         * Album art, fetched by the {@link ArtFinder}.
+         */
+        ALBUM_ART,
+        /**
+         * Beat grids, fetched by the {@link BeatGridFinder}.
+         */
+        BEAT_GRID,
+        /**
+         * Waveform previews, fetched by the {@link WaveformFinder}.
+         */
+        WAVEFORM_PREVIEW,
+        /**
+         * Waveform details, fetched by the {@link WaveformFinder}.
+         */
+        WAVEFORM_DETAIL,
+        /**
+         * Track analysis tags, fetched by the {@link AnalysisTagFinder}.
+         */
+        ANALYSIS_TAG
+    }
+
+    /**
+     * Uniquely identifies a fetch that might be shared. A simple immutable value class.
+     */
+    private static class Key {
+        final DataType type;
+        final DataReference reference;
+        final String style;
+        final boolean automatic;
+        private final int hash;
+
+        Key(DataType type, DataReference reference, String style, boolean automatic) {
+            this.type = type;
+            this.reference = reference;
+            this.style = style;
+            this.automatic = automatic;
+
+            int scratch = 7;
+            scratch = scratch * 31 + type.hashCode();
+            scratch = scratch * 31 + reference.hashCode();
+            scratch = scratch * 31 + (style == null ? 0 : style.hashCode());
+            hash = scratch * 31 + (automatic ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return other.type == type && other.reference.equals(reference) && other.automatic == automatic &&
+                        (style == null ? other.style == null : style.equals(other.style));
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Key[type:" + type + ", reference:" + reference + ", style:" + style + ", automatic:" + automatic + "]";
+        }
+    }
+
+    /**
+     * Holds the futures that will deliver the results of fetches which are currently in progress.
+     */
+    private final Map<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the fetches that actually had to be performed.
+     */
+    private final AtomicLong fetchCount = new AtomicLong();
+
+    /**
+     * Counts the requests that were satisfied by sharing a fetch that was already in progress.
+     */
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    /**
+     * Find a fetch in progress that a request can share, or register the request's own fetch if there is none.
+     * Automatic requests first look for an explicit fetch of the same data.
+     *
+     * @param key identifies the request
+     * @param explicitKey identifies the explicit fetch an automatic request may join, or {@code null} for an
+     *                    explicit request
+     * @param ours the future that will deliver the results of our own fetch, if we have to perform it
+     *
+     * @return the fetch to share, or {@code null} if {@code ours} has been registered and we must perform the fetch
+     */
+    private CompletableFuture<Object> findShareable(Key key, Key explicitKey, CompletableFuture<Object> ours) {
+        if (explicitKey != null) {
+            final CompletableFuture<Object> explicit = inFlight.get(explicitKey);
+            if (explicit != null) {
+                return explicit;
+            }
+        }
+        return inFlight.putIfAbsent(key, ours);
+    }
+
+    /**
+     * Obtain the result of a fetch, either by performing it ourselves, or, if an identical fetch is already in
+     * progress on another thread, by waiting for that fetch to complete and sharing its result.
+     *
+     * @param type the kind of data being fetched
+     * @param reference identifies the track (or artwork) for which data is being fetched
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     * @param automatic {@code true} if this fetch is being made in response to a track change, and so is allowed
+     *                  to give up if the {@link MetadataFinder} is in passive mode
+     * @param fetcher performs the actual work of the fetch if it turns out to be necessary
+     * @param <T> the type of data being fetched
+     *
+     * @return the data that was fetched, or {@code null} if none could be found, or the thread was interrupted
+     *         while waiting for another thread to fetch it
+     *
+     * @throws CancellationException if the {@link org.deepsymmetry.beatlink.dbserver.FetchHandle} attached to the
+     *         current thread was cancelled
+     */
+    @SuppressWarnings("unchecked")
+    <T> T fetch(DataType type, DataReference reference, String style, boolean automatic, Supplier<T> fetcher) {
+        final Key key = new Key(type, reference, style, automatic);
+        final Key explicitKey = automatic? new Key(type, reference, style, false) : null;
+        final CompletableFuture<Object> ours = new CompletableFuture<>();
+        CompletableFuture<Object> existing = findShareable(key, explicitKey, ours);
+        while (existing != null) {  // Someone else is already working on this, share their result.
+            logger.debug("Sharing in-flight fetch for {}", key);
+            try {
+                final T result = (T) existing.get();
+                deduplicatedCount.incrementAndGet();  // Counted only once we know the sharing worked.
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for shared fetch of {}, returning null", key);
+                return null;
+            } catch (ExecutionException e) {
+                logger.error("Problem with shared fetch of {}, returning null", key, e.getCause());
+                return null;
+            } catch (CancellationException e) {
+                // The fetch we were sharing was abandoned, so unless we are also being abandoned, try again ourselves.
+                FetchHandle.checkCurrent();
+                logger.debug("Shared fetch of {} was abandoned, retrying", key);
+            }
+            existing = findShareable(key, explicitKey, ours);
+        }
+
+        fetchCount.incrementAndGet();
+        try {
+            final T result = fetcher.get();
+            ours.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, ours);
+            if (!ours.isDone()) {  // Some unexpected Error escaped; don't leave anyone waiting forever.
+                ours.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Represents a fetch that has been registered with {@link #claim(DataType, DataReference, String)} by code that
+     * gathers several kinds of data at once, such as the {@link TrackBundleFetcher}. Any request for the same data
+     * that arrives while the claim is outstanding waits for it, just as it would for a fetch made through
+     * {@link #fetch(DataType, DataReference, String, boolean, Supplier)}. Exactly one of {@link #complete(Object)}
+     * or {@link #abandon()} must be called once the outcome is known.
+     */
+    final class Claim {
+        private final Key key;
+        private final CompletableFuture<Object> future;
+
+        private Claim(Key key, CompletableFuture<Object> future) {
+            this.key = key;
+            this.future = future;
+        }
+
+        /**
+         * Report the data that was fetched, sharing it with any requests that are waiting for it.
+         *
+         * @param result the data, or {@code null} if it does not exist
+         */
+        void complete(Object result) {
+            inFlight.remove(key, future);
+            future.complete(result);
+        }
+
+        /**
+         * Report that the data was not fetched after all, so any requests waiting for it should fetch it themselves.
+         */
+        void abandon() {
+            inFlight.remove(key, future);
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Register a fetch that will be performed as part of a larger batch of work, so that other requests for the
+     * same data share its result rather than going to the network themselves. The claim is registered as an
+     * explicit fetch, so both explicit and automatic requests will wait for it; the caller must therefore only
+     * complete it with data that was actually found (or found not to exist), and must {@link Claim#abandon()} it
+     * if it gives up for any other reason.
+     *
+     * @param type the kind of data being fetched
+     * @param reference identifies the track (or artwork) for which data is being fetched
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     *
+     * @return the claim, or {@code null} if the same data is already being fetched, in which case the caller
+     *         should leave it to that fetch
+     */
+    Claim claim(DataType type, DataReference reference, String style) {
+        final Key key = new Key(type, reference, style, false);
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(key, future) != null) {
+            return null;
+        }
+        fetchCount.incrementAndGet();
+        return new Claim(key, future);
+    }
+
+    /**
+     * Check how many fetches are currently in progress.
+     *
+     * @return the number of distinct fetches that are currently being performed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Check how many fetches of a particular kind of data are currently in progress.
+     *
+     * @param type the kind of data of interest
+     *
+     * @return the number of distinct fetches of that kind of data that are currently being performed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getInFlightCount(DataType type) {
+        int result = 0;
+        for (Key key : inFlight.keySet()) {
+            if (key.type == type) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check how many fetches have actually been performed since this class was loaded (or the statistics were last
+     * reset).
+     *
+     * @return the number of fetches that were not able to share an existing fetch
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /**
+     * Check how many requests were satisfied by sharing a fetch that was already in progress, since this class was
+     * loaded (or the statistics were last reset).
+     *
+     * @return the number of duplicate fetches that were avoided
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    /**
+     * Reset the fetch and deduplication counters to zero.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void resetStatistics() {
+        fetchCount.set(0);
+        deduplicatedCount.set(0);
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final RequestCoalescer ourInstance = new RequestCoalescer();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static RequestCoalescer getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private RequestCoalescer() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "RequestCoalescer[inFlight:" + getInFlightCount() + ", fetches:" + getFetchCount() +
+                ", deduplicated:" + getDeduplicatedCount() + "]";
+    }
+}
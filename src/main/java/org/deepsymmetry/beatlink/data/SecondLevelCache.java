@@ -0,0 +1,56 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>An optional, bounded cache of data for tracks that are no longer loaded on any deck, so that if a track that
+ * was played a while ago is loaded again, its data can be reused rather than fetched again. Each of the
+ * {@link MetadataFinder}, {@link BeatGridFinder}, and {@link WaveformFinder} has one (the waveform finder has
+ * one for previews and one for details), which can be obtained from the finder and configured.</p>
+ *
+ * <p>The caches start out disabled. They can be bounded by the number of entries they hold, by an estimate of
+ * the number of bytes used by those entries, or both, using {@link #setLimits(int, long)}. Entries from media that
+ * is unmounted, or players which disappear from the network, are discarded along with the finders' hot caches.</p>
+ *
+ * <p>Since the point of these caches is to make it cheap to reload tracks that were played recently, they start out
+ * keeping the most recently used entries. Frequency-based admission can be turned on using
+ * {@link #setAdmissionFiltering(boolean)} if you would rather favor tracks that are loaded over and over.</p>
+ *
+ * @param <V> the type of data held in the cache
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class SecondLevelCache<V> extends WeightedCache<DataReference, V> {
+
+    /**
+     * Create a disabled cache.
+     *
+     * @param name describes the cache for logging
+     * @param weigher estimates how many bytes of memory a cached value uses
+     */
+    SecondLevelCache(String name, ToLongFunction<V> weigher) {
+        super(name, weigher, 0, 0);
+        setAdmissionFiltering(false);
+    }
+
+    /**
+     * Remove all values belonging to media in a particular slot.
+     *
+     * @param slot the slot whose media has been unmounted
+     */
+    void removeSlot(SlotReference slot) {
+        removeIf(reference -> reference.getSlotReference() == slot);
+    }
+
+    /**
+     * Remove all values belonging to a particular player.
+     *
+     * @param player the player number which has disappeared from the network
+     */
+    void removePlayer(int player) {
+        removeIf(reference -> reference.player == player);
+    }
+}
@@ -11,7 +11,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -29,10 +28,11 @@ public class SignatureFinder extends LifecycleParticipant {
     private static final Logger logger = LoggerFactory.getLogger(SignatureFinder.class);
 
     /**
-     * A queue used to hold players whose tracks now have enough information to calculate a signature, so we can
-     * process them on a lower priority thready, and not hold up delivery to more time-sensitive listeners.
+     * Our stage of the {@link UpdatePipeline}, which holds players whose tracks may now have enough information to
+     * calculate a signature, so we can process them on a shared worker thread, and not hold up delivery to more
+     * time-sensitive listeners.
      */
-    private final LinkedBlockingDeque<Integer> pendingUpdates = new LinkedBlockingDeque<>(20);
+    private final UpdatePipeline.Stage<Integer> pendingUpdates = UpdatePipeline.getInstance().createStage("SignatureFinder", this::handleUpdate);
 
     /**
      * Holds the currently-recognized track signatures for each track loaded in a player.
@@ -53,13 +53,12 @@ public class SignatureFinder extends LifecycleParticipant {
 
     /**
      * Called whenever we have a new piece of information that might complete our ability to calculate a track
-     * signature. Enqueues a message to the signature builder thread that will cause it to see if it has everything
-     * it needs for that player, and if so, build and report the new signature.
+     * signature. Submits the player to our update stage, which will see if it has everything it needs for that
+     * player, and if so, build and report the new signature. If the player is already waiting there, one check
+     * is enough.
      */
     private void checkIfSignatureReady(int player) {
-        if (!pendingUpdates.offerLast(player)) {
-            logger.warn("Discarding signature check for player {} because our queue is backed up.", player);
-        }
+        pendingUpdates.submit(player, player);
     }
 
     /**
@@ -124,12 +123,6 @@ public class SignatureFinder extends LifecycleParticipant {
         return running.get();
     }
 
-    /**
-     * We compute signatures on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow cryptographic computation.
-     */
-    private Thread queueHandler;
-
     /**
      * Get the signatures that have been computed for all tracks currently loaded in any player for which we have
      * been able to obtain all necessary metadata.
@@ -382,19 +375,8 @@ public class SignatureFinder extends LifecycleParticipant {
             BeatGridFinder.getInstance().start();
             BeatGridFinder.getInstance().addBeatGridListener(beatGridListener);
 
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        // Interrupted due to one of our finders shutting down, presumably.
-                    } catch (Throwable t) {
-                        logger.error("Problem processing track signature update", t);
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
             checkExistingTracks();
         }
@@ -410,9 +392,7 @@ public class SignatureFinder extends LifecycleParticipant {
             AnalysisTagFinder.getInstance().removeAnalysisTagListener(rgbWaveformListener, ".EXT", "PWV5");
             BeatGridFinder.getInstance().removeBeatGridListener(beatGridListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             // Report the loss of our signatures, on the proper thread, outside our lock
             final Set<Integer> dyingSignatures = new HashSet<>(signatures.keySet());
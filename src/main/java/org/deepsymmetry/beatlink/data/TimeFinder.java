@@ -5,6 +5,7 @@ import org.deepsymmetry.beatlink.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -12,6 +13,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * <p>Watches the beat packets and transport information contained in player status update to infer the current
@@ -63,6 +66,8 @@ public class TimeFinder extends LifecycleParticipant {
             logger.info("Clearing position information in response to the loss of a device, {}", announcement);
             positions.remove(announcement.getDeviceNumber());
             updates.remove(announcement.getDeviceNumber());
+            estimators.remove(announcement.getDeviceNumber());
+            histories.remove(announcement.getDeviceNumber());
         }
     };
 
@@ -257,6 +262,98 @@ public class TimeFinder extends LifecycleParticipant {
         }
     }
 
+    /**
+     * Holds the position estimators we have created for each player, indexed by player number.
+     */
+    private final ConcurrentHashMap<Integer, PositionEstimator> estimators = new ConcurrentHashMap<>();
+
+    /**
+     * Tracks whether we should report positions from our position estimators rather than by extrapolating from the
+     * most recent packet.
+     */
+    private final AtomicBoolean usingPositionEstimator = new AtomicBoolean(false);
+
+    /**
+     * Control whether {@link #getTimeFor(int)} reports positions from a {@link PositionEstimator} for each player,
+     * which fuses all the beat, precise position, and status packets received from the player to smooth out
+     * network jitter, rather than extrapolating from the most recent packet. The estimators are always kept up
+     * to date while we are running, so this can be changed at any time.
+     *
+     * @param use whether positions should be reported from the estimators
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setUsingPositionEstimator(boolean use) {
+        usingPositionEstimator.set(use);
+    }
+
+    /**
+     * Check whether {@link #getTimeFor(int)} reports positions from a {@link PositionEstimator} for each player,
+     * rather than by extrapolating from the most recent packet.
+     *
+     * @return an indication of whether positions are being smoothed by the estimators
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isUsingPositionEstimator() {
+        return usingPositionEstimator.get();
+    }
+
+    /**
+     * Get the position estimator for a player, to examine its estimates of tempo and the jitter it is smoothing out.
+     *
+     * @param player the player number of interest
+     *
+     * @return the estimator for that player, or {@code null} if we have not yet received any position information
+     *         for it
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public PositionEstimator getPositionEstimator(int player) {
+        return estimators.get(player);
+    }
+
+    /**
+     * Holds the position histories we have created for each player, indexed by player number.
+     */
+    private final ConcurrentHashMap<Integer, PositionHistory> histories = new ConcurrentHashMap<>();
+
+    /**
+     * Get the recent position history of a player, to find out where it was at a particular moment in the past, or
+     * how its tempo has changed over the last few seconds. The history is kept up to date while we are running.
+     *
+     * @param player the player number of interest
+     *
+     * @return the history for that player, or {@code null} if we have not yet received any position information
+     *         for it
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public PositionHistory getPositionHistory(int player) {
+        return histories.get(player);
+    }
+
+    /**
+     * Record that we have worked out a new position for a player, by feeding it to the player's position estimator
+     * and history, and informing any interested listeners.
+     *
+     * @param player the player number whose position has been updated
+     * @param position the new position information, or {@code null} if the position is no longer known
+     * @param beat if this update was triggered by a beat packet, contains the packet to pass on to interested listeners
+     */
+    private void positionUpdated(int player, TrackPositionUpdate position, Beat beat) {
+        if (position == null) {
+            final PositionEstimator estimator = estimators.get(player);
+            if (estimator != null) {
+                estimator.reset();
+            }
+            final PositionHistory history = histories.get(player);
+            if (history != null) {
+                history.recordUnknown(System.nanoTime());
+            }
+        } else {
+            estimators.computeIfAbsent(player, PositionEstimator::new).update(position);
+            histories.computeIfAbsent(player, PositionHistory::new).record(position);
+        }
+        updateListenersIfNeeded(player, position, beat);
+    }
+
     /**
      * Get the best guess we have for the current track position on the specified player.
      *
@@ -268,13 +365,76 @@ public class TimeFinder extends LifecycleParticipant {
      */
     @API(status = API.Status.STABLE)
     public long getTimeFor(int player) {
-        TrackPositionUpdate update = positions.get(player);
+        return timeAt(player, positions.get(player), System.nanoTime());
+    }
+
+    /**
+     * Work out where a player's playback position will be at a particular moment, using its position estimator
+     * if we have been configured to, or by extrapolating from its latest position information.
+     *
+     * @param player the player number whose position is desired
+     * @param update the latest position information for that player, if any
+     * @param timestamp the {@link System#nanoTime()} of interest
+     *
+     * @return the milliseconds into the track that we believe playback will have reached, or -1 if we don't know
+     */
+    private long timeAt(int player, TrackPositionUpdate update, long timestamp) {
+        if (usingPositionEstimator.get()) {
+            final PositionEstimator estimator = estimators.get(player);
+            if (estimator != null && estimator.isLocked()) {
+                return estimator.getTimeAt(timestamp);
+            }
+        }
         if (update != null) {
-            return interpolateTimeSinceUpdate(update, System.nanoTime());
+            return interpolateTimeSinceUpdate(update, timestamp);
         }
         return  -1;  // We don't know.
     }
 
+    /**
+     * Evaluate the playback position, tempo, and beat phase of every player at the same instant, so they can be
+     * compared consistently. The results are written into a snapshot supplied by the caller, which can be reused
+     * over and over (for example on every frame of an animation) without allocating any memory.
+     *
+     * @param snapshot will be filled in with the state of all players at the current moment
+     *
+     * @return the snapshot, for convenience
+     *
+     * @throws IllegalStateException if the TimeFinder is not running
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public TimeSnapshot snapshot(TimeSnapshot snapshot) {
+        ensureRunning();
+        final long now = System.nanoTime();
+        snapshot.clear(now);
+        for (int player = 1; player < TimeSnapshot.PLAYER_SLOTS; player++) {
+            final TrackPositionUpdate update = positions.get(player);
+            if (update == null) {
+                continue;
+            }
+            final long time = timeAt(player, update, now);
+            if (time < 0) {
+                continue;
+            }
+            final BeatGrid beatGrid = update.beatGrid;
+            int beat = 0;
+            int withinBar = 0;
+            double phase = 0.0;
+            double tempo = 0.0;
+            if (beatGrid != null && beatGrid.beatCount > 0) {
+                beat = Math.max(0, beatGrid.findBeatAtTime(time));
+                final int tempoBeat = Math.max(1, beat);
+                tempo = beatGrid.getBpm(tempoBeat) / 100.0 * update.pitch;
+                if (beat > 0) {
+                    withinBar = beatGrid.getBeatWithinBar(beat);
+                    phase = beatGrid.getBeatPhase(beat, time);
+                }
+            }
+            snapshot.set(player, update.playing, time, update.pitch, tempo, beat, withinBar, phase);
+        }
+        return snapshot;
+    }
+
     /**
      * Get the best guess we have for the current track position on the player that sent the specified update.
      *
@@ -290,25 +450,97 @@ public class TimeFinder extends LifecycleParticipant {
     }
 
     /**
-     * Keeps track of the listeners that have registered interest in closely following track playback for a particular
-     * player. The keys are the listener interface, and the values are the last update that was sent to that
-     * listener. If no information was known during the last update, the special value {@link #NO_INFORMATION} is
-     * used to represent it, rather than trying to store a {@code null} value in the hash map.
+     * Records the registration of a listener that wants to closely follow track playback for a particular player,
+     * along with the last update that was sent to it. If no information was known during the last update, the
+     * special value {@link #NO_INFORMATION} is used to represent it, so that a {@code null} value can mean we have
+     * not yet told the listener anything.
+     */
+    private static final class Registration {
+
+        /**
+         * The listener that registered interest.
+         */
+        final TrackPositionListener listener;
+
+        /**
+         * The player number the listener is interested in.
+         */
+        final int player;
+
+        /**
+         * The listener, if it also wants to hear about every beat, or {@code null} if it does not.
+         */
+        final TrackPositionBeatListener beatListener;
+
+        /**
+         * The last update that was sent to the listener. This is updated with compare-and-set, so that when
+         * updates for the player arrive on different threads at the same time, only one of them is delivered.
+         */
+        final AtomicReference<TrackPositionUpdate> lastDelivered;
+
+        /**
+         * Constructor sets all the immutable fields.
+         *
+         * @param listener the listener that registered interest
+         * @param player the player number it is interested in
+         * @param lastDelivered the update it was sent when it registered
+         */
+        Registration(TrackPositionListener listener, int player, TrackPositionUpdate lastDelivered) {
+            this.listener = listener;
+            this.player = player;
+            this.beatListener = (listener instanceof TrackPositionBeatListener)? (TrackPositionBeatListener) listener : null;
+            this.lastDelivered = new AtomicReference<>(lastDelivered);
+        }
+    }
+
+    /**
+     * Used when there are no listeners interested in a player.
      */
-    private final ConcurrentHashMap<TrackPositionListener, TrackPositionUpdate> trackPositionListeners = new ConcurrentHashMap<>();
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
 
     /**
-     * Keeps track of the player numbers that registered track position listeners are interested in.
+     * Keeps track of the listeners that have registered interest in closely following track playback, so they can
+     * be found when they are removed or re-registered.
      */
-    private final ConcurrentHashMap<TrackPositionListener, Integer> listenerPlayerNumbers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TrackPositionListener, Registration> trackPositionListeners = new ConcurrentHashMap<>();
 
     /**
-     * This is used to represent the fact that we have told a listener that there is no information for it, since
-     * we can't actually store a {@code null} value in a {@link ConcurrentHashMap}.
+     * Holds the registrations of the listeners interested in each player, indexed by player number (device numbers
+     * are a single byte). The arrays are never modified, but replaced whenever a listener is added or removed, so
+     * status, beat, and position packets can be delivered by walking the array for their player without allocating
+     * anything or taking any locks.
+     */
+    private final AtomicReferenceArray<Registration[]> listenersByPlayer = new AtomicReferenceArray<>(256);
+
+    /**
+     * This is used to represent the fact that we have told a listener that there is no information for it.
      */
     private final TrackPositionUpdate NO_INFORMATION = new TrackPositionUpdate(0, 0, 0,
             false, false, 0, false, null, false, false);
 
+    /**
+     * Add or remove a registration from the array of those interested in its player. Changes are rare, so they are
+     * made by replacing the array under a lock.
+     *
+     * @param registration the registration to be added or removed
+     * @param add {@code true} to add the registration, {@code false} to remove it
+     */
+    private synchronized void updatePlayerListeners(Registration registration, boolean add) {
+        if (registration.player < 0 || registration.player >= listenersByPlayer.length()) {
+            return;  // No updates will ever be delivered for such a player.
+        }
+        final Registration[] current = listenersByPlayer.get(registration.player);
+        final Registration[] existing = (current == null)? NO_REGISTRATIONS : current;
+        final Registration[] replacement;
+        if (add) {
+            replacement = Arrays.copyOf(existing, existing.length + 1);
+            replacement[existing.length] = registration;
+        } else {
+            replacement = Arrays.stream(existing).filter(candidate -> candidate != registration).toArray(Registration[]::new);
+        }
+        listenersByPlayer.set(registration.player, (replacement.length == 0)? null : replacement);
+    }
+
     /**
      * Add a listener that wants to closely follow track playback for a particular player. The listener will be called
      * as soon as there is an initial {@link TrackPositionUpdate} for the specified player, and whenever there is an
@@ -326,9 +558,14 @@ public class TimeFinder extends LifecycleParticipant {
      */
     @API(status = API.Status.STABLE)
     public void addTrackPositionListener(int player, TrackPositionListener listener) {
-        listenerPlayerNumbers.put(listener, player);
         TrackPositionUpdate currentPosition = positions.get(player);
-        trackPositionListeners.put(listener, currentPosition == null? NO_INFORMATION : currentPosition);
+        final Registration registration = new Registration(listener, player,
+                currentPosition == null? NO_INFORMATION : currentPosition);
+        final Registration former = trackPositionListeners.put(listener, registration);
+        if (former != null) {
+            updatePlayerListeners(former, false);
+        }
+        updatePlayerListeners(registration, true);
         listener.movementChanged(currentPosition);  // If this throws an exception, the caller will catch it.
     }
 
@@ -339,8 +576,10 @@ public class TimeFinder extends LifecycleParticipant {
      */
     @API(status = API.Status.STABLE)
     public void removeTrackPositionListener(TrackPositionListener listener) {
-        trackPositionListeners.remove(listener);
-        listenerPlayerNumbers.remove(listener);
+        final Registration former = trackPositionListeners.remove(listener);
+        if (former != null) {
+            updatePlayerListeners(former, false);
+        }
     }
 
     /**
@@ -420,44 +659,48 @@ public class TimeFinder extends LifecycleParticipant {
      * @param beat if this update was triggered by a beat packet, contains the packet to pass on to interested listeners
      */
     private void updateListenersIfNeeded(int player, TrackPositionUpdate update, Beat beat) {
-        // Iterate over a copy to avoid issues with concurrent modification
-        for (Map.Entry<TrackPositionListener, TrackPositionUpdate> entry : new HashMap<>(trackPositionListeners).entrySet()) {
-            if (player == listenerPlayerNumbers.get(entry.getKey())) {  // This listener is interested in this player
-                if (update == null) {  // We are reporting a loss of information
-                    if (entry.getValue() != NO_INFORMATION) {
-                        if (trackPositionListeners.replace(entry.getKey(), entry.getValue(), NO_INFORMATION)) {
-                            try {
-                                entry.getKey().movementChanged(null);
-                            } catch (Throwable t) {
-                                logger.warn("Problem delivering null movementChanged update", t);
-                            }
-                        }
-                    }
-                } else {  // We have some information, see if it is a significant change from what was last reported
-                    final TrackPositionUpdate lastUpdate = entry.getValue();
-                    if (lastUpdate == NO_INFORMATION ||
-                            lastUpdate.playing != update.playing ||
-                            pitchesDiffer(lastUpdate, update) ||
-                            interpolationsDisagree(lastUpdate, update)) {
-                        if (trackPositionListeners.replace(entry.getKey(), entry.getValue(), update)) {
-                            try {
-                                entry.getKey().movementChanged(update);
-                            } catch (Throwable t) {
-                                logger.warn("Problem delivering movementChanged update", t);
-                            }
+        if (player < 0 || player >= listenersByPlayer.length()) {
+            return;
+        }
+        final Registration[] registrations = listenersByPlayer.get(player);
+        if (registrations == null) {
+            return;  // Nobody is interested in this player.
+        }
+        for (Registration registration : registrations) {
+            final TrackPositionUpdate lastUpdate = registration.lastDelivered.get();
+            if (update == null) {  // We are reporting a loss of information
+                if (lastUpdate != NO_INFORMATION) {
+                    if (registration.lastDelivered.compareAndSet(lastUpdate, NO_INFORMATION)) {
+                        try {
+                            registration.listener.movementChanged(null);
+                        } catch (Throwable t) {
+                            logger.warn("Problem delivering null movementChanged update", t);
                         }
                     }
-
-                    // And regardless of whether this was a significant change, if this was a new beat and the listener
-                    // implements the interface that requests all beats, send that information.
-                    if (update.fromBeat && entry.getKey() instanceof TrackPositionBeatListener) {
+                }
+            } else {  // We have some information, see if it is a significant change from what was last reported
+                if (lastUpdate == NO_INFORMATION ||
+                        lastUpdate.playing != update.playing ||
+                        pitchesDiffer(lastUpdate, update) ||
+                        interpolationsDisagree(lastUpdate, update)) {
+                    if (registration.lastDelivered.compareAndSet(lastUpdate, update)) {
                         try {
-                            ((TrackPositionBeatListener) entry.getKey()).newBeat(beat, update);
+                            registration.listener.movementChanged(update);
                         } catch (Throwable t) {
-                            logger.warn("Problem delivering newBeat update", t);
+                            logger.warn("Problem delivering movementChanged update", t);
                         }
                     }
                 }
+
+                // And regardless of whether this was a significant change, if this was a new beat and the listener
+                // implements the interface that requests all beats, send that information.
+                if (update.fromBeat && registration.beatListener != null) {
+                    try {
+                        registration.beatListener.newBeat(beat, update);
+                    } catch (Throwable t) {
+                        logger.warn("Problem delivering newBeat update", t);
+                    }
+                }
             }
         }
     }
@@ -508,14 +751,14 @@ public class TimeFinder extends LifecycleParticipant {
                         done = positions.replace(device, lastPosition, newPosition);
                     }
                     if (done) {
-                        updateListenersIfNeeded(device, newPosition, null);
+                        positionUpdated(device, newPosition, null);
                     } else {  // Some other thread updated the position while we were working, re-evaluate.
                         lastPosition = positions.get(device);
                     }
                 }
             } else {
                 positions.remove(device);  // We can't say where that player is.
-                updateListenersIfNeeded(device, null, null);
+                positionUpdated(device, null, null);
             }
         }
     };
@@ -592,14 +835,14 @@ public class TimeFinder extends LifecycleParticipant {
                         Util.pitchToMultiplier(beat.getPitch()), false, beatGrid,
                         lastPosition.precise, true);
                 positions.put(device, newPosition);
-                updateListenersIfNeeded(device, newPosition, beat);
+                positionUpdated(device, newPosition, beat);
             } else {
                 // We can't determine where the player is. That's ok if it is sending us precise position packets,
                 // (e.g. a CDJ-3000 playing an unanalyzed track), we will just wait for the next one in that case.
                 // Otherwise, clear our notion of the playback position.
                 if (lastPosition != null && !lastPosition.precise) {
                     positions.remove(device);
-                    updateListenersIfNeeded(device, null, beat);
+                    positionUpdated(device, null, beat);
                 }
             }
         }
@@ -671,7 +914,7 @@ public class TimeFinder extends LifecycleParticipant {
                         position.getPlaybackPosition(), beatNumber, true, playing,
                         Util.pitchToMultiplier(position.getPitch()), reverse, beatGrid, true, false);
                 positions.put(device, newPosition);
-                updateListenersIfNeeded(device, newPosition, null);
+                positionUpdated(device, newPosition, null);
             }
         }
     };
@@ -731,6 +974,8 @@ public class TimeFinder extends LifecycleParticipant {
             running.set(false);
             positions.clear();
             updates.clear();
+            estimators.clear();
+            histories.clear();
             deliverLifecycleAnnouncement(logger, false);
         }
     }
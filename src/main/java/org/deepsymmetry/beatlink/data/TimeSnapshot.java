@@ -0,0 +1,212 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.util.Arrays;
+
+/**
+ * <p>Holds the playback state of every player as evaluated by {@link TimeFinder#snapshot(TimeSnapshot)} at a single
+ * instant, so that the players can be compared with each other consistently (for example to check how closely their
+ * beats are aligned), rather than each being evaluated at a slightly different time by separate calls to
+ * {@link TimeFinder#getTimeFor(int)}.</p>
+ *
+ * <p>Snapshots are designed to be created once and then filled in over and over, for example once per frame by
+ * a visualizer, so filling one in allocates no memory. A snapshot is not thread-safe: it should only be used by the
+ * thread that fills it in.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class TimeSnapshot {
+
+    /**
+     * The number of player numbers a snapshot has room for. Players are numbered from 1 up to one less than this.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static final int PLAYER_SLOTS = 16;
+
+    /**
+     * The {@link System#nanoTime()} at which the snapshot was taken.
+     */
+    private long timestamp;
+
+    private final boolean[] known = new boolean[PLAYER_SLOTS];
+    private final boolean[] playing = new boolean[PLAYER_SLOTS];
+    private final long[] time = new long[PLAYER_SLOTS];
+    private final double[] pitch = new double[PLAYER_SLOTS];
+    private final double[] tempo = new double[PLAYER_SLOTS];
+    private final int[] beatNumber = new int[PLAYER_SLOTS];
+    private final int[] beatWithinBar = new int[PLAYER_SLOTS];
+    private final double[] beatPhase = new double[PLAYER_SLOTS];
+
+    /**
+     * Create an empty snapshot, ready to be filled in by {@link TimeFinder#snapshot(TimeSnapshot)}.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public TimeSnapshot() {
+        clear(0);
+    }
+
+    /**
+     * Forget everything in the snapshot, in preparation for filling it in again.
+     *
+     * @param timestamp the {@link System#nanoTime()} at which the new snapshot is being taken
+     */
+    void clear(long timestamp) {
+        this.timestamp = timestamp;
+        Arrays.fill(known, false);
+        Arrays.fill(playing, false);
+        Arrays.fill(time, -1);
+        Arrays.fill(pitch, 0.0);
+        Arrays.fill(tempo, 0.0);
+        Arrays.fill(beatNumber, 0);
+        Arrays.fill(beatWithinBar, 0);
+        Arrays.fill(beatPhase, 0.0);
+    }
+
+    /**
+     * Record the state of a player at the moment the snapshot is being taken.
+     *
+     * @param player the player number
+     * @param isPlaying whether the player is playing
+     * @param milliseconds how far into the track playback has reached
+     * @param playerPitch the playback pitch, where 1.0 is normal speed
+     * @param effectiveTempo the tempo at which the track is being played, in beats per minute
+     * @param beat the beat within which playback falls, or zero if it is before the first beat or there is no beat grid
+     * @param withinBar where that beat falls within its bar, or zero if unknown
+     * @param phase how far playback has progressed through that beat, from 0.0 up to (but not including) 1.0
+     */
+    void set(int player, boolean isPlaying, long milliseconds, double playerPitch, double effectiveTempo,
+             int beat, int withinBar, double phase) {
+        known[player] = true;
+        playing[player] = isPlaying;
+        time[player] = milliseconds;
+        pitch[player] = playerPitch;
+        tempo[player] = effectiveTempo;
+        beatNumber[player] = beat;
+        beatWithinBar[player] = withinBar;
+        beatPhase[player] = phase;
+    }
+
+    /**
+     * Get the moment at which the snapshot was taken.
+     *
+     * @return the {@link System#nanoTime()} at which all the players were evaluated
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Check whether the snapshot has information about a player.
+     *
+     * @param player the player number of interest
+     *
+     * @return {@code true} if the player's position was known when the snapshot was taken
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isKnown(int player) {
+        return player >= 0 && player < PLAYER_SLOTS && known[player];
+    }
+
+    /**
+     * Check whether a player was playing when the snapshot was taken.
+     *
+     * @param player the player number of interest
+     *
+     * @return {@code true} if the player was known and playing
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isPlaying(int player) {
+        return isKnown(player) && playing[player];
+    }
+
+    /**
+     * Get how far into its track a player had reached when the snapshot was taken.
+     *
+     * @param player the player number of interest
+     *
+     * @return the playback position in milliseconds, or -1 if unknown
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getTime(int player) {
+        return isKnown(player)? time[player] : -1;
+    }
+
+    /**
+     * Get the playback pitch of a player when the snapshot was taken.
+     *
+     * @param player the player number of interest
+     *
+     * @return the pitch, where 1.0 is normal speed, or 0.0 if unknown
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getPitch(int player) {
+        return isKnown(player)? pitch[player] : 0.0;
+    }
+
+    /**
+     * Get the tempo at which a player was playing its track when the snapshot was taken, taking its pitch into
+     * account.
+     *
+     * @param player the player number of interest
+     *
+     * @return the effective tempo in beats per minute, or 0.0 if unknown or there is no beat grid
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getTempo(int player) {
+        return isKnown(player)? tempo[player] : 0.0;
+    }
+
+    /**
+     * Get the beat within which a player's playback position fell when the snapshot was taken.
+     *
+     * @param player the player number of interest
+     *
+     * @return the beat number, or zero if unknown, before the first beat, or there is no beat grid
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getBeatNumber(int player) {
+        return isKnown(player)? beatNumber[player] : 0;
+    }
+
+    /**
+     * Get where within its bar the beat that a player had reached fell when the snapshot was taken.
+     *
+     * @param player the player number of interest
+     *
+     * @return a number from 1 to 4, where 1 is the downbeat, or zero if unknown
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getBeatWithinBar(int player) {
+        return isKnown(player)? beatWithinBar[player] : 0;
+    }
+
+    /**
+     * Get how far through its current beat a player had progressed when the snapshot was taken. Comparing the
+     * phases of two players shows how closely their beats are aligned.
+     *
+     * @param player the player number of interest
+     *
+     * @return a value from 0.0 (right on the beat) up to, but not including, 1.0, or 0.0 if unknown
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getBeatPhase(int player) {
+        return isKnown(player)? beatPhase[player] : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("TimeSnapshot[timestamp:").append(timestamp);
+        for (int player = 0; player < PLAYER_SLOTS; player++) {
+            if (known[player]) {
+                sb.append(", player ").append(player).append(":[time:").append(time[player])
+                        .append(", playing:").append(playing[player]).append(", tempo:").append(tempo[player])
+                        .append(", beat:").append(beatNumber[player]).append(", phase:").append(beatPhase[player])
+                        .append("]");
+            }
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,382 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+import org.deepsymmetry.beatlink.DeviceAnnouncement;
+import org.deepsymmetry.beatlink.DeviceFinder;
+import org.deepsymmetry.beatlink.dbserver.Client;
+import org.deepsymmetry.beatlink.dbserver.ConnectionManager;
+import org.deepsymmetry.beatlink.dbserver.FetchHandle;
+import org.deepsymmetry.cratedigger.pdb.RekordboxAnlz;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>When enabled, changes the way the {@link MetadataFinder} responds to a newly loaded track that must be
+ * retrieved from a player's dbserver: rather than fetching just the metadata, and then letting each of the other
+ * finders separately obtain a client session, lock it for menu operations, and request its own piece of data, the
+ * metadata, cue list, beat grid, waveform preview and detail, album art, and any analysis tags that are being
+ * tracked are all retrieved in order using a single client session.</p>
+ *
+ * <p>The results are then published to the hot caches (and listeners) of each of the finders that are running,
+ * before the metadata itself is announced, so when the other finders learn about the new track they find
+ * everything they need is already present and do not need to make any requests of their own.</p>
+ *
+ * <p>Everything is retrieved while holding the client's menu lock, and each piece is registered with the
+ * {@link RequestCoalescer} while it is being retrieved, so that requests made through the finders in the meantime
+ * share our results instead of going to the network themselves.</p>
+ *
+ * <p>Tracks whose metadata can be obtained from a {@link MetadataProvider} (such as Crate Digger), or which can't be
+ * queried because we are in passive mode or talking to an Opus Quad, are handled in the normal way, as are all
+ * tracks when the {@link MetadataFinder} is racing its metadata sources.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class TrackBundleFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackBundleFetcher.class);
+
+    /**
+     * Gathers the pieces of a bundle as they are retrieved, so that we can make use of whatever we were able to
+     * get even if a problem prevents us from getting everything.
+     */
+    private static class Bundle {
+        TrackMetadata metadata;
+        BeatGrid beatGrid;
+        WaveformPreview preview;
+        WaveformDetail detail;
+        AlbumArt art;
+        final Map<String, RekordboxAnlz.TaggedSection> analysisTags = new HashMap<>();
+
+        /**
+         * Becomes {@code true} once the metadata claim has been completed with what the dbserver told us.
+         */
+        boolean metadataSettled;
+    }
+
+    /**
+     * Tracks whether bundle fetches should be used for newly loaded tracks.
+     */
+    private final AtomicBoolean enabled = new AtomicBoolean(false);
+
+    /**
+     * Check whether the {@link MetadataFinder} will use bundle fetches when a new track is loaded.
+     *
+     * @return {@code true} if all the data needed by the running finders will be gathered in a single client session
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isEnabled() {
+        return enabled.get();
+    }
+
+    /**
+     * Set whether the {@link MetadataFinder} should use bundle fetches when a new track is loaded.
+     *
+     * @param enable if {@code true}, all the data needed by the running finders will be gathered in a single client
+     *               session whenever a newly loaded track needs to be queried using the dbserver protocol
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setEnabled(boolean enable) {
+        enabled.set(enable);
+    }
+
+    /**
+     * Holds the number of milliseconds taken by the most recent bundle fetch for each deck, keyed by player number.
+     */
+    private final Map<Integer, Long> bundleTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the bundle fetches that have been completed.
+     */
+    private final AtomicLong bundleCount = new AtomicLong();
+
+    /**
+     * Find out how long the most recent bundle fetch took for a deck, from the start of the request until all the
+     * data had been published to the finders.
+     *
+     * @param player the player number of the deck
+     *
+     * @return the number of milliseconds taken, or -1 if no bundle fetch has been performed for that deck
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getLastBundleTime(int player) {
+        final Long result = bundleTimes.get(player);
+        return (result == null)? -1 : result;
+    }
+
+    /**
+     * Check how many bundle fetches have been completed.
+     *
+     * @return the number of tracks whose data was gathered using bundle fetches since this class was loaded
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getBundleCount() {
+        return bundleCount.get();
+    }
+
+    /**
+     * Called by the {@link MetadataFinder} when bundle fetches are enabled and a new track has been loaded on a deck.
+     * Retrieves the metadata for the track, and if it must be requested from the dbserver, gathers and publishes the
+     * other data needed by the running finders in the same client session.
+     *
+     * <p>Each piece of data is registered with the {@link RequestCoalescer} while it is being gathered, so any
+     * other request for it waits for our result rather than going to the network too, and we leave out any piece
+     * that is already being fetched by someone else. When the {@link MetadataFinder} is racing metadata providers
+     * against the dbserver (see {@link MetadataFinder#setProviderPolicy(MetadataFinder.ProviderPolicy)}), that race
+     * decides where the metadata comes from, so no bundle is gathered and the track is handled in the normal way.</p>
+     *
+     * @param player the player number of the deck on which the track was loaded
+     * @param track identifies the track that was loaded
+     *
+     * @return the metadata for the track, if it could be found; the caller is responsible for publishing it
+     *
+     * @throws CancellationException if the {@link FetchHandle} attached to the current thread is cancelled
+     */
+    TrackMetadata fetchForDeck(final int player, final DataReference track) {
+        final MetadataFinder metadataFinder = MetadataFinder.getInstance();
+        if (metadataFinder.getProviderPolicy() != MetadataFinder.ProviderPolicy.SEQUENTIAL) {
+            return metadataFinder.requestMetadataInternal(track, true);
+        }
+        final RequestCoalescer.Claim claim = RequestCoalescer.getInstance().claim(RequestCoalescer.DataType.METADATA,
+                track, null);
+        if (claim == null) {  // Someone else is already fetching this metadata, so share their result.
+            return metadataFinder.requestMetadataInternal(track, true);
+        }
+
+        final Bundle bundle = new Bundle();
+        boolean claimSettled = false;
+        try {
+            // If we loaded the track recently, or a metadata provider can offer it, there is no dbserver session to share.
+            TrackMetadata local = metadataFinder.findRecentMetadata(track);
+            if (local == null) {
+                local = metadataFinder.findFromProviders(track);
+            }
+            if (local != null) {
+                claim.complete(local);
+                claimSettled = true;
+                return local;
+            }
+
+            // Honor passive mode, and the fact that the Opus Quad has no dbserver.
+            if (metadataFinder.isPassive() && track.slot != CdjStatus.TrackSourceSlot.COLLECTION) {
+                return null;
+            }
+            final DeviceAnnouncement announcement = DeviceFinder.getInstance().getLatestAnnouncementFrom(track.player);
+            if (announcement == null || announcement.isOpusQuad) {
+                return null;
+            }
+
+            final long started = System.nanoTime();
+            try {
+                ConnectionManager.getInstance().invokeWithClientSession(track.player, client -> {
+                    gatherBundle(track, client, bundle, claim);
+                    return null;
+                }, "fetching track data bundle");
+            } catch (CancellationException e) {
+                throw e;  // Let our caller know the request was abandoned rather than failing.
+            } catch (Exception e) {
+                logger.error("Problem fetching track data bundle for {}, publishing whatever was retrieved", track, e);
+            }
+            claimSettled = bundle.metadataSettled;
+
+            if (bundle.metadata != null) {
+                FetchHandle.checkCurrent();  // Don't publish anything if the deck has moved on to another track.
+                publishBundle(player, bundle);
+                bundleTimes.put(player, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                bundleCount.incrementAndGet();
+            }
+            return bundle.metadata;
+        } finally {
+            if (!claimSettled) {
+                claim.abandon();  // Anyone waiting for us will have to look for the metadata themselves.
+            }
+        }
+    }
+
+    /**
+     * Something that queries the dbserver for one piece of a bundle.
+     *
+     * @param <T> the type of data retrieved
+     */
+    private interface Query<T> {
+
+        /**
+         * Perform the query.
+         *
+         * @return the data found, or {@code null} if it does not exist
+         *
+         * @throws Exception if there is a problem communicating with the player
+         */
+        T run() throws Exception;
+    }
+
+    /**
+     * Retrieve one piece of a bundle, unless someone else is already fetching it, registering it with the
+     * {@link RequestCoalescer} while we do so that any other request for it shares our result.
+     *
+     * @param type the kind of data being fetched
+     * @param reference identifies the track (or artwork) for which data is being fetched
+     * @param style distinguishes different flavors of the same kind of data, may be {@code null}
+     * @param query retrieves the data
+     * @param <T> the type of data being fetched
+     *
+     * @return the data found, or {@code null} if it does not exist or is being fetched by someone else (in which
+     *         case the finder that needs it will pick up their result in the normal way)
+     *
+     * @throws Exception if there is a problem communicating with the player
+     */
+    private <T> T fetchClaimed(RequestCoalescer.DataType type, DataReference reference, String style, Query<T> query)
+            throws Exception {
+        final RequestCoalescer.Claim claim = RequestCoalescer.getInstance().claim(type, reference, style);
+        if (claim == null) {
+            return null;
+        }
+        boolean completed = false;
+        try {
+            final T result = query.run();
+            claim.complete(result);
+            completed = true;
+            return result;
+        } finally {
+            if (!completed) {
+                claim.abandon();
+            }
+        }
+    }
+
+    /**
+     * Retrieve all the data needed by the running finders using a single client session, holding the client's menu
+     * lock throughout so no other task can interleave its own requests. The metadata comes first, because the
+     * other requests depend on it (for example to find the artwork ID), followed by the items that are most
+     * important for synchronization and display.
+     *
+     * @param track identifies the track whose data is desired
+     * @param client the dbserver client that is communicating with the appropriate player
+     * @param bundle where the results are to be stored as they are retrieved
+     * @param metadataClaim the claim registered for the track's metadata, to be completed as soon as it is known
+     *
+     * @throws Exception if there is a problem communicating with the player
+     */
+    private void gatherBundle(final DataReference track, final Client client, final Bundle bundle,
+                              final RequestCoalescer.Claim metadataClaim) throws Exception {
+        if (!client.tryLockingForMenuOperations(MetadataFinder.MENU_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new TimeoutException("Unable to lock the player for menu operations");
+        }
+        try {
+            bundle.metadata = MetadataFinder.getInstance().queryMetadata(track, client);  // Includes the cue list.
+            metadataClaim.complete(bundle.metadata);
+            bundle.metadataSettled = true;
+            if (bundle.metadata == null) {
+                return;
+            }
+            final SlotReference slot = track.getSlotReference();
+
+            final BeatGridFinder beatGridFinder = BeatGridFinder.getInstance();
+            if (beatGridFinder.isRunning()) {
+                bundle.beatGrid = fetchClaimed(RequestCoalescer.DataType.BEAT_GRID, track, null, () ->
+                        beatGridFinder.getBeatGrid(track.rekordboxId, slot, track.trackType, null, client));
+            }
+
+            final WaveformFinder waveformFinder = WaveformFinder.getInstance();
+            if (waveformFinder.isRunning()) {
+                final String style = waveformFinder.getPreferredStyle().name();
+                bundle.preview = fetchClaimed(RequestCoalescer.DataType.WAVEFORM_PREVIEW, track, style, () ->
+                        waveformFinder.getWaveformPreview(track.rekordboxId, slot, track.trackType, null, client));
+                if (waveformFinder.isFindingDetails()) {
+                    bundle.detail = fetchClaimed(RequestCoalescer.DataType.WAVEFORM_DETAIL, track, style, () ->
+                            waveformFinder.getWaveformDetail(track.rekordboxId, slot, track.trackType, null, client));
+                }
+            }
+
+            final ArtFinder artFinder = ArtFinder.getInstance();
+            final int artworkId = bundle.metadata.getArtworkId();
+            if (artFinder.isRunning() && artworkId != 0) {
+                bundle.art = fetchClaimed(RequestCoalescer.DataType.ALBUM_ART,
+                        new DataReference(slot, artworkId, track.trackType),
+                        artFinder.getRequestHighResolutionArt()? "high" : "low",
+                        () -> artFinder.getArtwork(artworkId, slot, track.trackType, client));
+            }
+
+            final AnalysisTagFinder analysisTagFinder = AnalysisTagFinder.getInstance();
+            if (analysisTagFinder.isRunning() && track.trackType == CdjStatus.TrackType.REKORDBOX) {
+                for (String trackedTag : analysisTagFinder.getTrackedTags()) {
+                    final String fileExtension = trackedTag.substring(trackedTag.indexOf("."));
+                    final String typeTag = trackedTag.substring(0, trackedTag.indexOf("."));
+                    final RekordboxAnlz.TaggedSection section = fetchClaimed(RequestCoalescer.DataType.ANALYSIS_TAG,
+                            track, typeTag + fileExtension, () ->
+                                    analysisTagFinder.getTagViaDbServer(track.rekordboxId, slot, fileExtension, typeTag, client));
+                    if (section != null) {
+                        bundle.analysisTags.put(trackedTag, section);
+                    }
+                }
+            }
+        } finally {
+            client.unlockForMenuOperations();
+        }
+    }
+
+    /**
+     * Hand the data we gathered to the finders that use it, so they can add it to their hot caches and inform
+     * their listeners.
+     *
+     * @param player the player number of the deck on which the track was loaded
+     * @param bundle the data that was gathered
+     */
+    private void publishBundle(final int player, final Bundle bundle) {
+        final TrackMetadataUpdate update = new TrackMetadataUpdate(player, bundle.metadata);
+        if (bundle.beatGrid != null && bundle.beatGrid.beatCount > 0) {
+            BeatGridFinder.getInstance().updateFromBundle(update, bundle.beatGrid);
+        }
+        if (bundle.preview != null) {
+            WaveformFinder.getInstance().updatePreviewFromBundle(update, bundle.preview);
+        }
+        if (bundle.detail != null) {
+            WaveformFinder.getInstance().updateDetailFromBundle(update, bundle.detail);
+        }
+        if (bundle.art != null) {
+            ArtFinder.getInstance().updateFromBundle(update, bundle.art);
+        }
+        for (Map.Entry<String, RekordboxAnlz.TaggedSection> entry : bundle.analysisTags.entrySet()) {
+            final String trackedTag = entry.getKey();
+            AnalysisTagFinder.getInstance().updateFromBundle(update, trackedTag.substring(trackedTag.indexOf(".")),
+                    trackedTag.substring(0, trackedTag.indexOf(".")), entry.getValue());
+        }
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final TrackBundleFetcher ourInstance = new TrackBundleFetcher();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static TrackBundleFetcher getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private TrackBundleFetcher() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "TrackBundleFetcher[enabled:" + isEnabled() + ", bundles:" + getBundleCount() + "]";
+    }
+}
@@ -51,7 +51,9 @@ public class TrackMetadata {
      * Can be used to analyze fields that have not yet been reliably understood,
      * and was previously used for storing the metadata in a file. Will be {@code null} if
      * the metadata was constructed from a {@link org.deepsymmetry.cratedigger.pdb.RekordboxPdb.TrackRow}
-     * or a Device Library Plus SQLite connection.
+     * or a Device Library Plus SQLite connection, and is only kept for metadata read over the network when
+     * {@link MetadataFinder#setRetainingRawItems(boolean)} has been turned on or the {@link PersistentMetadataCache}
+     * is running.
      *
      * @deprecated This information is rarely available since the development of Crate Digger.
      * @see #rawRow
@@ -165,11 +167,12 @@ public class TrackMetadata {
      * Creates a searchable item that represents a metadata field found for a track.
      *
      * @param menuItem the rendered menu item containing the searchable metadata field
+     * @param pool the pool in which items for the track's media are shared
      * @return the searchable metadata field
      */
-    private SearchableItem buildSearchableItem(Message menuItem) {
-        return new SearchableItem((int) ((NumberField) menuItem.arguments.get(1)).getValue(),
-                ((StringField) menuItem.arguments.get(3)).getValue());
+    private SearchableItem buildSearchableItem(Message menuItem, ItemPool pool) {
+        return pool.intern(new SearchableItem((int) ((NumberField) menuItem.arguments.get(1)).getValue(),
+                ((StringField) menuItem.arguments.get(3)).getValue()));
     }
 
     /**
@@ -193,6 +196,7 @@ public class TrackMetadata {
         trackReference = reference;
         trackType = CdjStatus.TrackType.REKORDBOX;  // These are the only kind of tracks in a rekordbox database.
         this.cueList = cueList;
+        final ItemPool pool = ItemPool.forTrack(reference);
 
         title = Database.getText(rawRow.title());
         artworkId = (int)rawRow.artworkId();
@@ -200,31 +204,31 @@ public class TrackMetadata {
         // Look up the track artist, if there is one.
         RekordboxPdb.ArtistRow artistRow = database.artistIndex.get(rawRow.artistId());
         if (artistRow != null) {
-            artist = new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name()));
+            artist = pool.intern(new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name())));
         }
 
         // Look up the original artist, if there is one.
         artistRow = database.artistIndex.get(rawRow.originalArtistId());
         if (artistRow != null) {
-            originalArtist = new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name()));
+            originalArtist = pool.intern(new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name())));
         }
 
         // Look up the remixer, if there is one.
         artistRow = database.artistIndex.get(rawRow.originalArtistId());
         if (artistRow != null) {
-            remixer = new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name()));
+            remixer = pool.intern(new SearchableItem((int) artistRow.id(), Database.getText(artistRow.name())));
         }
 
         // Look up the album, if there is one.
         RekordboxPdb.AlbumRow albumRow = database.albumIndex.get(rawRow.albumId());
         if (albumRow !=  null) {
-            album = new SearchableItem((int) albumRow.id(), Database.getText(albumRow.name()));
+            album = pool.intern(new SearchableItem((int) albumRow.id(), Database.getText(albumRow.name())));
         }
 
         // Look up the label, if there is one.
         RekordboxPdb.LabelRow labelRow = database.labelIndex.get(rawRow.labelId());
         if (labelRow != null) {
-            label = new SearchableItem((int) labelRow.id(), Database.getText(labelRow.name()));
+            label = pool.intern(new SearchableItem((int) labelRow.id(), Database.getText(labelRow.name())));
         }
 
         duration = rawRow.duration();
@@ -234,7 +238,7 @@ public class TrackMetadata {
         // Look up the musical key, if there is one.
         RekordboxPdb.KeyRow keyRow = database.musicalKeyIndex.get(rawRow.keyId());
         if (keyRow != null) {
-            key = new SearchableItem((int) keyRow.id(), Database.getText(keyRow.name()));
+            key = pool.intern(new SearchableItem((int) keyRow.id(), Database.getText(keyRow.name())));
         }
 
         rating = rawRow.rating();
@@ -242,18 +246,18 @@ public class TrackMetadata {
         // Associate the track color, if there is one.
         RekordboxPdb.ColorRow colorRow = database.colorIndex.get((long)rawRow.colorId());
         if (colorRow != null) {
-            color = new ColorItem(rawRow.colorId(), Database.getText(colorRow.name()));
+            color = pool.intern(new ColorItem(rawRow.colorId(), Database.getText(colorRow.name())));
         } else {
-            color = new ColorItem(rawRow.colorId(), "");  // For backwards compatibility with "No Color".
+            color = pool.intern(new ColorItem(rawRow.colorId(), ""));  // For backwards compatibility with "No Color".
         }
 
         // Look up the genre, if there is one.
         RekordboxPdb.GenreRow genreRow = database.genreIndex.get(rawRow.genreId());
         if (genreRow != null) {
-            genre = new SearchableItem((int) genreRow.id(), Database.getText((genreRow.name())));
+            genre = pool.intern(new SearchableItem((int) genreRow.id(), Database.getText((genreRow.name()))));
         }
 
-        dateAdded = Database.getText(rawRow.dateAdded());
+        dateAdded = pool.intern(Database.getText(rawRow.dateAdded()));
         bitRate = (int)rawRow.bitrate();
         year = rawRow.year();
     }
@@ -276,6 +280,7 @@ public class TrackMetadata {
         trackReference = reference;
         trackType = CdjStatus.TrackType.REKORDBOX;  // These are the only kind of tracks in a rekordbox database.
         this.cueList = cueList;
+        final ItemPool pool = ItemPool.forTrack(reference);
         try (Statement statement = connection.createStatement();
              ResultSet trackSet = statement.executeQuery("select * from content where content_id=" + trackReference.rekordboxId)) {
             if (!trackSet.next()) {
@@ -287,24 +292,24 @@ public class TrackMetadata {
             //noinspection SpellCheckingInspection
             tempo = trackSet.getInt("bpmx100");
             comment = trackSet.getString("djComment");
-            dateAdded = trackSet.getString("dateAdded");
+            dateAdded = pool.intern(trackSet.getString("dateAdded"));
             //noinspection SpellCheckingInspection
             bitRate = trackSet.getInt("bitrate");
             year = trackSet.getInt("releaseYear");
 
             // And load any related rows that are supposed to be present.
-            artist = extractRelatedName(connection, "artist", trackSet.getInt("artist_id_artist"));
-            originalArtist = extractRelatedName(connection, "artist", trackSet.getInt("artist_id_originalArtist"));
-            remixer = extractRelatedName(connection, "artist", trackSet.getInt("artist_id_remixer"));
+            artist = pool.intern(extractRelatedName(connection, "artist", trackSet.getInt("artist_id_artist")));
+            originalArtist = pool.intern(extractRelatedName(connection, "artist", trackSet.getInt("artist_id_originalArtist")));
+            remixer = pool.intern(extractRelatedName(connection, "artist", trackSet.getInt("artist_id_remixer")));
 
-            album = extractRelatedName(connection, "album", trackSet.getInt("album_id"));
-            label = extractRelatedName(connection, "label", trackSet.getInt("label_id"));
-            key = extractRelatedName(connection, "key", trackSet.getInt("key_id"));
-            genre = extractRelatedName(connection, "genre", trackSet.getInt("genre_id"));
+            album = pool.intern(extractRelatedName(connection, "album", trackSet.getInt("album_id")));
+            label = pool.intern(extractRelatedName(connection, "label", trackSet.getInt("label_id")));
+            key = pool.intern(extractRelatedName(connection, "key", trackSet.getInt("key_id")));
+            genre = pool.intern(extractRelatedName(connection, "genre", trackSet.getInt("genre_id")));
 
             final SearchableItem colorTemp = extractRelatedName(connection, "color", trackSet.getInt("color_id"));
             if (colorTemp != null) {
-                color = new ColorItem(colorTemp.id, colorTemp.label);
+                color = pool.intern(new ColorItem(colorTemp.id, colorTemp.label));
             }
         }
     }
@@ -348,9 +353,14 @@ public class TrackMetadata {
         trackReference = reference;
         this.trackType = trackType;
         this.cueList = cueList;
-        rawItems = Collections.unmodifiableList(new LinkedList<>(items));
+        if (MetadataFinder.getInstance().isRetainingRawItems() || PersistentMetadataCache.getInstance().isRunning()) {
+            rawItems = Collections.unmodifiableList(new ArrayList<>(items));
+        } else {
+            rawItems = null;  // Nobody needs them, and they are far bigger than the fields we interpret from them.
+        }
+        final ItemPool pool = ItemPool.forTrack(reference);
         for (Message item : items) {
-            parseMetadataItem(item);
+            parseMetadataItem(item, pool);
         }
         // Protect against missing string elements
         if (title == null) {
@@ -364,13 +374,98 @@ public class TrackMetadata {
         }
     }
 
+    /**
+     * A compact projection of the interpreted fields of a track's metadata, without its track reference, raw data,
+     * or cue list, used by the {@link LibraryWarmer} to index every track in a library without keeping a full
+     * metadata object for each one. The searchable items are shared through the media's {@link ItemPool}.
+     */
+    static class Summary {
+        private final SearchableItem album;
+        private final SearchableItem artist;
+        private final ColorItem color;
+        private final String comment;
+        private final String dateAdded;
+        private final int duration;
+        private final SearchableItem genre;
+        private final SearchableItem key;
+        private final SearchableItem label;
+        private final SearchableItem originalArtist;
+        private final int rating;
+        private final SearchableItem remixer;
+        private final int tempo;
+        private final int year;
+        private final int bitRate;
+        private final String title;
+        private final int artworkId;
+
+        /**
+         * Capture the interpreted fields of a track's metadata.
+         *
+         * @param source the metadata to be summarized
+         */
+        Summary(TrackMetadata source) {
+            album = source.album;
+            artist = source.artist;
+            color = source.color;
+            comment = source.comment;
+            dateAdded = source.dateAdded;
+            duration = source.duration;
+            genre = source.genre;
+            key = source.key;
+            label = source.label;
+            originalArtist = source.originalArtist;
+            rating = source.rating;
+            remixer = source.remixer;
+            tempo = source.tempo;
+            year = source.year;
+            bitRate = source.bitRate;
+            title = source.title;
+            artworkId = source.artworkId;
+        }
+    }
+
+    /**
+     * Constructor for rebuilding full metadata from a {@link Summary} gathered ahead of time by the
+     * {@link LibraryWarmer}, once a track is actually needed.
+     *
+     * @param reference the unique track reference for which track metadata is desired
+     * @param summary the interpreted fields that were indexed for the track
+     * @param rawRow the database row describing the track, if it came from a DeviceSQL database
+     * @param cueList the cues associated with the track, if any
+     */
+    TrackMetadata(DataReference reference, Summary summary, RekordboxPdb.TrackRow rawRow, CueList cueList) {
+        trackReference = reference;
+        trackType = CdjStatus.TrackType.REKORDBOX;  // Libraries only contain rekordbox tracks.
+        rawItems = null;  // We did not create this from a dbserver response.
+        this.rawRow = rawRow;
+        this.cueList = cueList;
+        album = summary.album;
+        artist = summary.artist;
+        color = summary.color;
+        comment = summary.comment;
+        dateAdded = summary.dateAdded;
+        duration = summary.duration;
+        genre = summary.genre;
+        key = summary.key;
+        label = summary.label;
+        originalArtist = summary.originalArtist;
+        rating = summary.rating;
+        remixer = summary.remixer;
+        tempo = summary.tempo;
+        year = summary.year;
+        bitRate = summary.bitRate;
+        title = summary.title;
+        artworkId = summary.artworkId;
+    }
+
     /**
      * Processes one of the menu responses that jointly constitute the track metadata, updating our
      * fields accordingly.
      *
      * @param item the menu response to be considered
+     * @param pool the pool in which items for the track's media are shared
      */
-    private void parseMetadataItem(Message item) {
+    private void parseMetadataItem(Message item, ItemPool pool) {
         switch (item.getMenuItemType()) {
             case TRACK_TITLE:
                 title = ((StringField) item.arguments.get(3)).getValue();
@@ -378,22 +473,22 @@ public class TrackMetadata {
                 break;
 
             case ARTIST:
-                artist = buildSearchableItem(item);
+                artist = buildSearchableItem(item, pool);
                 break;
 
             case ORIGINAL_ARTIST:
-                originalArtist = buildSearchableItem(item);
+                originalArtist = buildSearchableItem(item, pool);
                 break;
 
             case REMIXER:
-                remixer = buildSearchableItem(item);
+                remixer = buildSearchableItem(item, pool);
 
             case ALBUM_TITLE:
-                album = buildSearchableItem(item);
+                album = buildSearchableItem(item, pool);
                 break;
 
             case LABEL:
-                label = buildSearchableItem(item);
+                label = buildSearchableItem(item, pool);
                 break;
 
             case DURATION:
@@ -409,7 +504,7 @@ public class TrackMetadata {
                 break;
 
             case KEY:
-                key = buildSearchableItem(item);
+                key = buildSearchableItem(item, pool);
                 break;
 
             case RATING:
@@ -427,15 +522,15 @@ public class TrackMetadata {
             case COLOR_YELLOW:
                 final int colorId = (int) ((NumberField) item.arguments.get(1)).getValue();
                 final String label = ((StringField) item.arguments.get(3)).getValue();
-                color = new ColorItem(colorId, label);
+                color = pool.intern(new ColorItem(colorId, label));
                 break;
 
             case GENRE:
-                genre = buildSearchableItem(item);
+                genre = buildSearchableItem(item, pool);
                 break;
 
             case DATE_ADDED:
-                dateAdded = ((StringField) item.arguments.get(3)).getValue();
+                dateAdded = pool.intern(((StringField) item.arguments.get(3)).getValue());
                 break;
 
             case YEAR:
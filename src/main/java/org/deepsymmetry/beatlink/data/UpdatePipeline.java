@@ -0,0 +1,333 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.TaskClass;
+import org.deepsymmetry.beatlink.TaskExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * <p>Gets the updates that the finders react to off of the time-sensitive threads that deliver them, and processes
+ * them on a small set of shared worker threads instead of a dedicated thread for each finder.</p>
+ *
+ * <p>Each finder has its own {@link Stage}, which handles its updates one at a time, in the order in which the
+ * players they relate to first needed attention. If a new update arrives for a player while an earlier one is still
+ * waiting, the new one replaces it (we say the updates are <em>conflated</em>), because only the most recent state of
+ * a player matters. This means updates never have to be discarded when they arrive faster than they can be
+ * processed, and no player is ever left with stale information after a burst of status packets.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class UpdatePipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpdatePipeline.class);
+
+    /**
+     * The most updates a stage will handle before giving its worker thread a chance to serve other stages.
+     */
+    private static final int BATCH_LIMIT = 16;
+
+    /**
+     * <p>Processes the updates for one finder, keeping at most one waiting update for each player.</p>
+     *
+     * <p>Stages are created by the finders; the public methods exist so that the behavior of the pipeline can be
+     * monitored.</p>
+     *
+     * @param <T> the type of update handled by the stage
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static class Stage<T> {
+
+        /**
+         * Identifies the stage in thread names, logging, and monitoring.
+         */
+        private final String name;
+
+        /**
+         * Does the work of the stage.
+         */
+        private final Consumer<T> handler;
+
+        /**
+         * The update waiting for each player, in the order the players first needed attention, along with the
+         * {@link System#nanoTime()} at which that happened.
+         */
+        private final LinkedHashMap<Integer, Pending<T>> waiting = new LinkedHashMap<>();
+
+        /**
+         * Whether we have a worker processing our updates.
+         */
+        private boolean draining;
+
+        /**
+         * Whether the finder that owns this stage is running, so we should accept updates.
+         */
+        private boolean active;
+
+        /**
+         * Counters for monitoring.
+         */
+        private final AtomicLong submittedCount = new AtomicLong();
+        private final AtomicLong conflatedCount = new AtomicLong();
+        private final AtomicLong processedCount = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        /**
+         * Create a stage.
+         *
+         * @param name identifies the stage
+         * @param handler does the work of the stage
+         */
+        private Stage(String name, Consumer<T> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        /**
+         * Start accepting updates. Called when the finder that owns the stage starts.
+         */
+        synchronized void start() {
+            active = true;
+        }
+
+        /**
+         * Stop accepting updates and discard any that are waiting. Called when the finder that owns the stage stops.
+         * An update which is already being handled will finish.
+         */
+        synchronized void stop() {
+            active = false;
+            waiting.clear();
+        }
+
+        /**
+         * Queue an update to be handled, replacing any that is already waiting for the same player.
+         *
+         * @param player the player number to which the update relates
+         * @param update the update to be handled
+         */
+        void submit(int player, T update) {
+            synchronized (this) {
+                if (!active) {
+                    return;
+                }
+                submittedCount.incrementAndGet();
+                final Pending<T> existing = waiting.get(player);
+                if (existing != null) {
+                    existing.update = update;  // The player keeps its place in line, but with its latest state.
+                    conflatedCount.incrementAndGet();
+                    return;
+                }
+                waiting.put(player, new Pending<>(update, System.nanoTime()));
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            TaskExecutor.getInstance().execute(TaskClass.UPDATE_PIPELINE, name + " update handler", this::drain);
+        }
+
+        /**
+         * Handle waiting updates until there are none left, or until we have handled enough that we should let other
+         * stages have a turn.
+         */
+        private void drain() {
+            for (int handled = 0; handled < BATCH_LIMIT; handled++) {
+                final Pending<T> next;
+                synchronized (this) {
+                    final Iterator<Pending<T>> iterator = waiting.values().iterator();
+                    if (!iterator.hasNext()) {
+                        draining = false;
+                        return;
+                    }
+                    next = iterator.next();
+                    iterator.remove();
+                }
+                try {
+                    handler.accept(next.update);
+                } catch (Throwable t) {
+                    logger.error("Problem handling {} update {}", name, next.update, t);
+                }
+                final long latency = System.nanoTime() - next.since;
+                processedCount.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                maxLatency.accumulateAndGet(latency, Math::max);
+            }
+            synchronized (this) {
+                if (waiting.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+            }
+            TaskExecutor.getInstance().execute(TaskClass.UPDATE_PIPELINE, name + " update handler", this::drain);
+        }
+
+        /**
+         * Get the name of the stage.
+         *
+         * @return identifies the stage, usually the finder which owns it
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Check how many players have updates waiting to be handled.
+         *
+         * @return the number of waiting updates
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public synchronized int getPendingCount() {
+            return waiting.size();
+        }
+
+        /**
+         * Check how many updates have been given to this stage.
+         *
+         * @return the number of updates submitted while the stage was active
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public long getSubmittedCount() {
+            return submittedCount.get();
+        }
+
+        /**
+         * Check how many updates have replaced an earlier update for the same player that was still waiting.
+         *
+         * @return the number of conflated updates
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public long getConflatedCount() {
+            return conflatedCount.get();
+        }
+
+        /**
+         * Check how many updates have been handled.
+         *
+         * @return the number of updates handled
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public long getProcessedCount() {
+            return processedCount.get();
+        }
+
+        /**
+         * Check the average time between a player needing attention and the stage finishing handling its update.
+         *
+         * @return the average latency in milliseconds, or zero if no updates have been handled
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public double getAverageLatency() {
+            final long processed = processedCount.get();
+            if (processed == 0) {
+                return 0.0;
+            }
+            return (double) totalLatency.get() / processed / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        /**
+         * Check the longest time between a player needing attention and the stage finishing handling its update.
+         *
+         * @return the maximum latency in milliseconds
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public long getMaxLatency() {
+            return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+        }
+
+        @Override
+        public String toString() {
+            return "UpdatePipeline.Stage[name:" + name + ", pending:" + getPendingCount() + ", submitted:" +
+                    submittedCount.get() + ", conflated:" + conflatedCount.get() + ", processed:" +
+                    processedCount.get() + ", maxLatency:" + getMaxLatency() + "ms]";
+        }
+    }
+
+    /**
+     * An update waiting to be handled.
+     *
+     * @param <T> the type of update
+     */
+    private static class Pending<T> {
+
+        /**
+         * The most recent update for the player.
+         */
+        T update;
+
+        /**
+         * The {@link System#nanoTime()} at which the player first needed attention.
+         */
+        final long since;
+
+        Pending(T update, long since) {
+            this.update = update;
+            this.since = since;
+        }
+    }
+
+    /**
+     * All the stages that have been created.
+     */
+    private final List<Stage<?>> stages = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a stage for a finder. Finders are singletons, so this happens once for each of them.
+     *
+     * @param name identifies the stage
+     * @param handler does the work of the stage
+     * @param <T> the type of update handled by the stage
+     *
+     * @return the new stage, which will not accept updates until it is started
+     */
+    <T> Stage<T> createStage(String name, Consumer<T> handler) {
+        final Stage<T> stage = new Stage<>(name, handler);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Get the stages of the pipeline, so their behavior can be monitored.
+     *
+     * @return the stages that have been created by the finders
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public List<Stage<?>> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Holds the singleton instance of this class.
+     */
+    private static final UpdatePipeline ourInstance = new UpdatePipeline();
+
+    /**
+     * Get the singleton instance of this class.
+     *
+     * @return the only instance of this class which exists.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static UpdatePipeline getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Prevent direct instantiation.
+     */
+    private UpdatePipeline() {
+        // Nothing to do.
+    }
+
+    @Override
+    public String toString() {
+        return "UpdatePipeline[stages:" + stages + "]";
+    }
+}
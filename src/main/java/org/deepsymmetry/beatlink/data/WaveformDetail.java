@@ -50,7 +50,9 @@ public class WaveformDetail {
     /**
      * The message holding the detail as it was read over the network. This can be used to analyze fields
      * that have not yet been reliably understood, and is also used for storing the cue list in a file.
-     * This will be {@code null} if the data was obtained from Crate Digger.
+     * This will be {@code null} if the data was obtained from Crate Digger, or if it has been moved out of the heap
+     * because the {@link WaveformFinder} is using {@link WaveformFinder.WaveformStorage#DIRECT} or
+     * {@link WaveformFinder.WaveformStorage#MAPPED} storage.
      */
     @API(status = API.Status.STABLE)
     public final Message rawMessage;
@@ -296,6 +298,21 @@ public class WaveformDetail {
         this.style = style;
     }
 
+    /**
+     * Constructor used by the {@link WaveformStore} to move the data of a detail out of the heap. The raw message
+     * is not kept, since it holds a heap copy of the same data.
+     *
+     * @param original the detail whose data has been copied
+     * @param data a read-only buffer holding the same data as the original
+     */
+    WaveformDetail(WaveformDetail original, ByteBuffer data) {
+        dataReference = original.dataReference;
+        rawMessage = null;
+        detailBuffer = data;
+        isColor = original.isColor;
+        style = original.style;
+    }
+
     /**
      * The different colors the monochrome (blue) waveform can be based on its intensity.
      */
@@ -661,7 +661,7 @@ public class WaveformDetailComponent extends JComponent {
                 TimeFinder.getInstance().start();
                 if (!animating.getAndSet(true)) {
                     // Create the thread to update our position smoothly as the track plays
-                    new Thread(() -> {
+                    TaskExecutor.getInstance().execute(TaskClass.ANIMATION, "Waveform detail animation", () -> {
                         while (animating.get()) {
                             try {
                                 //noinspection BusyWait
@@ -672,7 +672,7 @@ public class WaveformDetailComponent extends JComponent {
                             }
                             setPlaybackPosition(TimeFinder.getInstance().getTimeFor(getMonitoredPlayer()));
                         }
-                    }).start();
+                    });
                 }
             } catch (Exception e) {
                 logger.error("Unable to start the TimeFinder to animate the waveform detail view");
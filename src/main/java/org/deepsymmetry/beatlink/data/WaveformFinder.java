@@ -10,10 +10,11 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -54,6 +55,28 @@ public class WaveformFinder extends LifecycleParticipant {
         THREE_BAND
     }
 
+    /**
+     * Identifies the ways in which the data of cached waveforms can be stored.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public enum WaveformStorage {
+        /**
+         * Waveform data is kept in ordinary byte arrays on the Java heap.
+         */
+        HEAP,
+
+        /**
+         * Waveform data is copied into direct buffers, outside the heap, so it adds nothing to garbage collection work.
+         */
+        DIRECT,
+
+        /**
+         * Waveform data is written to temporary files which are memory-mapped, so the operating system can page
+         * it in and out as needed, and it uses neither heap nor committed native memory.
+         */
+        MAPPED
+    }
+
     /**
      * The frequency bands that are drawn for three-band waveforms, along with the colors used to draw them.
      */
@@ -96,15 +119,59 @@ public class WaveformFinder extends LifecycleParticipant {
 
     /**
      * Keeps track of the current waveform previews cached for each player. We hot cache data for any track which is
-     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot.
+     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot. Each track is
+     * held once, no matter how many decks it is loaded on.
      */
-    private final Map<DeckReference, WaveformPreview> previewHotCache = new ConcurrentHashMap<>();
+    private final HotCache<WaveformPreview> previewHotCache = new HotCache<>(preview -> preview.dataReference,
+            this::releasePreviewIfUnused);
 
     /**
      * Keeps track of the current waveform details cached for each player. We hot cache data for any track which is
-     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot.
+     * currently on-deck in the player, as well as any that were loaded into a player's hot-cue slot. Each track is
+     * held once, no matter how many decks it is loaded on.
+     */
+    private final HotCache<WaveformDetail> detailHotCache = new HotCache<>(detail -> detail.dataReference,
+            this::releaseDetailIfUnused);
+
+    /**
+     * Holds waveform previews for tracks that were loaded recently, even after they are no longer in the hot cache,
+     * if the second-level cache has been enabled.
+     */
+    private final SecondLevelCache<WaveformPreview> previewSecondLevelCache = new SecondLevelCache<>("waveform previews",
+            preview -> 128L + preview.getData().remaining());
+
+    /**
+     * Holds waveform details for tracks that were loaded recently, even after they are no longer in the hot cache,
+     * if the second-level cache has been enabled.
      */
-    private final Map<DeckReference, WaveformDetail> detailHotCache = new ConcurrentHashMap<>();
+    private final SecondLevelCache<WaveformDetail> detailSecondLevelCache = new SecondLevelCache<>("waveform details",
+            detail -> 128L + detail.getData().remaining());
+
+    /**
+     * Get the second-level cache which can hold waveform previews for tracks that are no longer loaded in any
+     * player, so they can be reused without being fetched again if the tracks are reloaded. The cache is disabled
+     * until limits are configured using {@link SecondLevelCache#setLimits(int, long)}, and is emptied whenever the
+     * preferred waveform style changes.
+     *
+     * @return the waveform preview cache
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public SecondLevelCache<WaveformPreview> getPreviewSecondLevelCache() {
+        return previewSecondLevelCache;
+    }
+
+    /**
+     * Get the second-level cache which can hold waveform details for tracks that are no longer loaded in any
+     * player, so they can be reused without being fetched again if the tracks are reloaded. The cache is disabled
+     * until limits are configured using {@link SecondLevelCache#setLimits(int, long)}, and is emptied whenever the
+     * preferred waveform style changes. Since waveform details are large, a byte limit is recommended.
+     *
+     * @return the waveform detail cache
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public SecondLevelCache<WaveformDetail> getDetailSecondLevelCache() {
+        return detailSecondLevelCache;
+    }
 
     /**
      * Should we ask for details as well as the previews?
@@ -124,8 +191,8 @@ public class WaveformFinder extends LifecycleParticipant {
             primeCache();  // Get details for any tracks that were already loaded on players.
         } else {
             // Inform our listeners, on the proper thread, that the detailed waveforms are no longer available
-            final Set<DeckReference> dyingCache = new HashSet<>(detailHotCache.keySet());
-            detailHotCache.clear();
+            final Set<DeckReference> dyingCache = detailHotCache.clear().keySet();
+            detailSecondLevelCache.clear();
             SwingUtilities.invokeLater(() -> {
                 for (DeckReference deck : dyingCache) {
                     deliverWaveformDetailUpdate(deck.player, null);
@@ -145,6 +212,74 @@ public class WaveformFinder extends LifecycleParticipant {
         return findDetails.get();
     }
 
+    /**
+     * Keeps track of where the data of waveforms we cache should be stored.
+     */
+    private final AtomicReference<WaveformStorage> storage = new AtomicReference<>(WaveformStorage.HEAP);
+
+    /**
+     * Manages the waveform data we have moved out of the heap.
+     */
+    private final WaveformStore waveformStore = new WaveformStore();
+
+    /**
+     * Set where the data of waveforms that we cache should be stored. When many tracks' waveforms are cached (for
+     * example because the second-level caches have been enabled), keeping them out of the heap can avoid garbage
+     * collection pauses. The data is released as soon as a waveform leaves both the hot cache and the second-level
+     * cache. Waveforms that are already cached are not affected by a change; {@link WaveformPreview#getData()} and
+     * {@link WaveformDetail#getData()} work the same way regardless of where the data is stored.
+     *
+     * @param storage where the data of newly cached waveforms should be kept
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setStorage(WaveformStorage storage) {
+        this.storage.set(Objects.requireNonNull(storage));
+    }
+
+    /**
+     * Check where the data of waveforms that we cache is being stored.
+     *
+     * @return the storage being used for newly cached waveforms
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public WaveformStorage getStorage() {
+        return storage.get();
+    }
+
+    /**
+     * Check how much cached waveform data is currently being kept outside the heap.
+     *
+     * @return the number of bytes of waveform data in direct buffers or memory-mapped files
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getOffHeapBytes() {
+        return waveformStore.getBytesStored();
+    }
+
+    /**
+     * Release the off-heap storage of a waveform preview if neither of our caches still holds it.
+     *
+     * @param preview a preview which has left one of the caches
+     */
+    private void releasePreviewIfUnused(WaveformPreview preview) {
+        if (previewHotCache.find(preview.dataReference) != preview &&
+                !previewSecondLevelCache.holds(preview.dataReference, preview)) {
+            waveformStore.release(preview);
+        }
+    }
+
+    /**
+     * Release the off-heap storage of a waveform detail if neither of our caches still holds it.
+     *
+     * @param detail a detail which has left one of the caches
+     */
+    private void releaseDetailIfUnused(WaveformDetail detail) {
+        if (detailHotCache.find(detail.dataReference) != detail &&
+                !detailSecondLevelCache.holds(detail.dataReference, detail)) {
+            waveformStore.release(detail);
+        }
+    }
+
     /**
      * Keeps track of the waveform style that the user has specified they prefer to see. We may need to retrieve
      * other styles as well, either because the preferred style is not available, or because a listener has requested
@@ -217,10 +352,11 @@ public class WaveformFinder extends LifecycleParticipant {
     }
 
     /**
-     * A queue used to hold metadata updates we receive from the {@link MetadataFinder} so we can process them on a
-     * lower priority thread, and not hold up delivery to more time-sensitive listeners.
+     * Our stage of the {@link UpdatePipeline}, which holds the latest metadata update we have received from the
+     * {@link MetadataFinder} for each player, so we can process them on a shared worker thread, and not hold up
+     * delivery to more time-sensitive listeners.
      */
-    private final LinkedBlockingDeque<TrackMetadataUpdate> pendingUpdates = new LinkedBlockingDeque<>(100);
+    private final UpdatePipeline.Stage<TrackMetadataUpdate> pendingUpdates = UpdatePipeline.getInstance().createStage("WaveformFinder", this::handleUpdate);
 
     /**
      * Our metadata listener just puts metadata updates on our queue, so we can process them on a lower
@@ -228,9 +364,7 @@ public class WaveformFinder extends LifecycleParticipant {
      */
     private final TrackMetadataListener metadataListener = update -> {
         logger.debug("Received metadata update {}", update);
-        if (!pendingUpdates.offerLast(update)) {
-            logger.warn("Discarding metadata update because our queue is backed up.");
-        }
+        pendingUpdates.submit(update.player, update);
     };
 
     /**
@@ -245,21 +379,14 @@ public class WaveformFinder extends LifecycleParticipant {
 
         @Override
         public void mediaUnmounted(SlotReference slot) {
-            // Iterate over a copy to avoid concurrent modification issues
-            for (Map.Entry<DeckReference, WaveformPreview> entry : new HashMap<>(previewHotCache).entrySet()) {
-                if (slot == SlotReference.getSlotReference(entry.getValue().dataReference)) {
-                    logger.debug("Evicting cached waveform preview in response to unmount report {}", entry.getValue());
-                    previewHotCache.remove(entry.getKey());
-                }
+            for (WaveformPreview evicted : previewHotCache.removeIf(reference -> slot == reference.getSlotReference()).values()) {
+                logger.debug("Evicting cached waveform preview in response to unmount report {}", evicted);
             }
-
-            // Again iterate over a copy to avoid concurrent modification issues
-            for (Map.Entry<DeckReference, WaveformDetail> entry : new HashMap<>(detailHotCache).entrySet()) {
-                if (slot == SlotReference.getSlotReference(entry.getValue().dataReference)) {
-                    logger.debug("Evicting cached waveform detail in response to unmount report {}", entry.getValue());
-                    detailHotCache.remove(entry.getKey());
-                }
+            for (WaveformDetail evicted : detailHotCache.removeIf(reference -> slot == reference.getSlotReference()).values()) {
+                logger.debug("Evicting cached waveform detail in response to unmount report {}", evicted);
             }
+            previewSecondLevelCache.removeSlot(slot);
+            detailSecondLevelCache.removeSlot(slot);
         }
     };
 
@@ -303,12 +430,6 @@ public class WaveformFinder extends LifecycleParticipant {
         return running.get();
     }
 
-    /**
-     * We process our player status updates on a separate thread so as not to slow down the high-priority update
-     * delivery thread; we perform potentially slow I/O.
-     */
-    private Thread queueHandler;
-
     /**
      * We have received an update that invalidates the waveform preview for a player, so clear it and alert
      * any listeners if this represents a change. This does not affect the hot cues; they will stick around until the
@@ -354,62 +475,78 @@ public class WaveformFinder extends LifecycleParticipant {
      */
     private void clearWaveforms(DeviceAnnouncement announcement) {
         final int player = announcement.getDeviceNumber();
-        // Iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(previewHotCache.keySet())) {
-            if (deck.player == player) {
-                previewHotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverWaveformPreviewUpdate(player, null);  // Inform listeners that preview is gone.
-                }
+        for (DeckReference deck : previewHotCache.removePlayer(player).keySet()) {
+            if (deck.hotCue == 0) {
+                deliverWaveformPreviewUpdate(player, null);  // Inform listeners that preview is gone.
             }
         }
-        // Again iterate over a copy to avoid concurrent modification issues
-        for (DeckReference deck : new HashSet<>(detailHotCache.keySet())) {
-            if (deck.player == player) {
-                detailHotCache.remove(deck);
-                if (deck.hotCue == 0) {
-                    deliverWaveformDetailUpdate(player, null);  // Inform listeners that detail is gone.
-                }
+        for (DeckReference deck : detailHotCache.removePlayer(player).keySet()) {
+            if (deck.hotCue == 0) {
+                deliverWaveformDetailUpdate(player, null);  // Inform listeners that detail is gone.
             }
         }
+        previewSecondLevelCache.removePlayer(player);
+        detailSecondLevelCache.removePlayer(player);
     }
 
     /**
-     * We have obtained a waveform preview for a device, so store it and alert any listeners.
+     * We have obtained a waveform preview for a device, so store it (out of the heap, if so configured) and alert
+     * any listeners.
      *
      * @param update the update which caused us to retrieve this waveform preview
-     * @param preview the waveform preview which we retrieved
-     */
-    private void updatePreview(TrackMetadataUpdate update, WaveformPreview preview) {
-        previewHotCache.put(DeckReference.getDeckReference(update.player, 0), preview);  // Main deck
-        if (update.metadata.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : update.metadata.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    previewHotCache.put(DeckReference.getDeckReference(update.player, entry.hotCueNumber), preview);
-                }
-            }
+     * @param original the waveform preview which we retrieved
+     */
+    private void updatePreview(TrackMetadataUpdate update, WaveformPreview original) {
+        final WaveformPreview preview = waveformStore.store(original, storage.get());
+        previewHotCache.putLoaded(update.player, preview, update.metadata.getCueList());
+        if (preview.style == preferredStyle.get()) {
+            previewSecondLevelCache.put(preview.dataReference, preview);
         }
         deliverWaveformPreviewUpdate(update.player, preview);
     }
 
     /**
-     * We have obtained waveform detail for a device, so store it and alert any listeners.
+     * We have obtained waveform detail for a device, so store it (out of the heap, if so configured) and alert
+     * any listeners.
      *
      * @param update the update which caused us to retrieve this waveform detail
-     * @param detail the waveform detail which we retrieved
-     */
-    private void updateDetail(TrackMetadataUpdate update, WaveformDetail detail) {
-        detailHotCache.put(DeckReference.getDeckReference(update.player, 0), detail);  // Main deck
-        if (update.metadata.getCueList() != null) {  // Update the cache with any hot cues in this track as well
-            for (CueList.Entry entry : update.metadata.getCueList().entries) {
-                if (entry.hotCueNumber != 0) {
-                    detailHotCache.put(DeckReference.getDeckReference(update.player, entry.hotCueNumber), detail);
-                }
-            }
+     * @param original the waveform detail which we retrieved
+     */
+    private void updateDetail(TrackMetadataUpdate update, WaveformDetail original) {
+        final WaveformDetail detail = waveformStore.store(original, storage.get());
+        detailHotCache.putLoaded(update.player, detail, update.metadata.getCueList());
+        if (detail.style == preferredStyle.get()) {
+            detailSecondLevelCache.put(detail.dataReference, detail);
         }
         deliverWaveformDetailUpdate(update.player, detail);
     }
 
+    /**
+     * Called by the {@link TrackBundleFetcher} when it has retrieved a waveform preview for a newly loaded track along
+     * with the rest of its data, so we can cache it and inform our listeners without making our own request.
+     *
+     * @param update describes the newly loaded track
+     * @param preview the waveform preview which was retrieved for it
+     */
+    void updatePreviewFromBundle(TrackMetadataUpdate update, WaveformPreview preview) {
+        if (isRunning()) {
+            updatePreview(update, preview);
+        }
+    }
+
+    /**
+     * Called by the {@link TrackBundleFetcher} when it has retrieved waveform detail for a newly loaded track along
+     * with the rest of its data, so we can cache it and inform our listeners without making our own request.
+     *
+     * @param update describes the newly loaded track
+     * @param detail the waveform detail which was retrieved for it
+     */
+    void updateDetailFromBundle(TrackMetadataUpdate update, WaveformDetail detail) {
+        if (isRunning() && isFindingDetails()) {
+            updateDetail(update, detail);
+        }
+    }
+
     /**
      * Get the waveform previews available for all tracks currently loaded in any player, either on the play deck, or
      * in a hot cue.
@@ -422,7 +559,7 @@ public class WaveformFinder extends LifecycleParticipant {
     public Map<DeckReference, WaveformPreview> getLoadedPreviews() {
         ensureRunning();
         // Make a copy so callers get an immutable snapshot of the current state.
-        return Map.copyOf(previewHotCache);
+        return previewHotCache.snapshot();
     }
 
     /**
@@ -440,7 +577,7 @@ public class WaveformFinder extends LifecycleParticipant {
             throw new IllegalStateException("WaveformFinder is not configured to find waveform details.");
         }
         // Make a copy so callers get an immutable snapshot of the current state.
-        return Map.copyOf(detailHotCache);
+        return detailHotCache.snapshot();
     }
 
     /**
@@ -512,8 +649,29 @@ public class WaveformFinder extends LifecycleParticipant {
      * @return the waveform preview found, if any
      */
     private WaveformPreview requestPreviewInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.WAVEFORM_PREVIEW, trackReference,
+                preferredStyle.get().name(), fromUpdate != null, () -> fetchPreviewInternal(trackReference, fromUpdate));
+    }
+
+    /**
+     * Does the actual work of obtaining a waveform preview for
+     * {@link #requestPreviewInternal(DataReference, TrackMetadataUpdate)} once we have determined that no identical
+     * request is already in progress.
+     *
+     * @param trackReference uniquely identifies the desired waveform preview
+     * @param fromUpdate if not {@code null} this is an automatic update in response to a track change
+     *
+     * @return the waveform preview found, if any
+     */
+    private WaveformPreview fetchPreviewInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
 
-        // First see if any registered metadata providers can offer it for us.
+        // First see if we still have it from a recent load.
+        final WaveformPreview recent = previewSecondLevelCache.get(trackReference);
+        if (recent != null && recent.style == preferredStyle.get()) {
+            return recent;
+        }
+
+        // Next see if any registered metadata providers can offer it for us.
         final MediaDetails sourceDetails = MetadataFinder.getInstance().getMediaDetailsFor(trackReference.getSlotReference());
         if (sourceDetails !=  null) {
             final WaveformPreview provided = MetadataFinder.getInstance().allMetadataProviders.getWaveformPreview(sourceDetails, trackReference);
@@ -534,6 +692,8 @@ public class WaveformFinder extends LifecycleParticipant {
 
         try {
             return ConnectionManager.getInstance().invokeWithClientSession(trackReference.player, task, "requesting waveform preview");
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting waveform preview, returning null", e);
         }
@@ -553,10 +713,9 @@ public class WaveformFinder extends LifecycleParticipant {
     @API(status = API.Status.STABLE)
     public WaveformPreview requestWaveformPreviewFrom(final DataReference dataReference) {
         ensureRunning();
-        for (WaveformPreview cached : previewHotCache.values()) {
-            if (cached.dataReference.equals(dataReference)) {  // Found a hot cue hit, use it.
-                return cached;
-            }
+        final WaveformPreview cached = previewHotCache.find(dataReference);
+        if (cached != null) {  // Found a hot cue hit, use it.
+            return cached;
         }
         return requestPreviewInternal(dataReference, null);
     }
@@ -567,41 +726,59 @@ public class WaveformFinder extends LifecycleParticipant {
     static final long MAXIMUM_ANALYSIS_WAIT = TimeUnit.SECONDS.toNanos(90);
 
     /**
-     * How long we should wait, in milliseconds, after a failed/partial response during CDJ-3000 analysis to try again.
+     * Counts the retries we have made while waiting for a player to analyze a track, so that they can back off.
      */
-    static final long ANALYSIS_UPDATE_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    private static class AnalysisRetries {
+
+        /**
+         * The metadata of the track being analyzed.
+         */
+        final TrackMetadata metadata;
+
+        /**
+         * How many retries have been scheduled for it.
+         */
+        final AtomicInteger attempts = new AtomicInteger();
+
+        AnalysisRetries(TrackMetadata metadata) {
+            this.metadata = metadata;
+        }
+    }
 
     /**
-     * Keeps track of whether we have a retry thread already in progress, so we never have more than one.
+     * Keeps track of the retries made while waiting for players to analyze tracks, keyed by the kind of data and the
+     * player number, so each retry waits longer than the one before, according to the {@link RetryScheduler}.
      */
-    private final AtomicBoolean retrying = new AtomicBoolean(false);
+    private static final Map<String, AnalysisRetries> analysisRetries = new ConcurrentHashMap<>();
 
     /**
      * Helper method to check if we should retry a request because it seems the player may still be in the process
      * of analyzing an unanalyzed track, and to produce an informative log message about the decision.
      *
      * @param fromUpdate    the metadata update that led to this attempt, or {@code null} if it was an explicit request via our API
-     * @param retryFlag     the flag that is being used to record that the finder class has already scheduled a retry attempt
      * @param retryListener the listener to which the metadata update should be re-delivered when it is time to retry
      * @param description   the text to use in log messages describing the data we are retrying to obtain
      *
      * @return {@code true} if we have kicked off the process of waiting and trying again
      */
-    static boolean retryUnanalyzedTrack(TrackMetadataUpdate fromUpdate, AtomicBoolean retryFlag, TrackMetadataListener retryListener, String description) {
+    static boolean retryUnanalyzedTrack(TrackMetadataUpdate fromUpdate, TrackMetadataListener retryListener, String description) {
         if (fromUpdate == null || fromUpdate.metadata.trackType != CdjStatus.TrackType.UNANALYZED) {
             logger.debug("retryUnanalyzedTrack bailing for {}, fromUpdate: {}", description, fromUpdate);
             return false;
         }
 
         final TrackMetadata currentMetadata = MetadataFinder.getInstance().getLatestMetadataFor(fromUpdate.player);
+        final String key = "unanalyzed " + description + " " + fromUpdate.player;
 
         if (currentMetadata == null || !currentMetadata.equals(fromUpdate.metadata)) {
+            analysisRetries.remove(key);
             logger.info("Track changed while waiting for player {} to analyze {} for track {} in slot {}, current metadata: {}, giving up.", fromUpdate.player,
                     description, fromUpdate.metadata.trackReference.rekordboxId, fromUpdate.metadata.trackReference.slot, currentMetadata);
             return false;
         }
 
         if (System.nanoTime() - fromUpdate.metadata.timestamp > MAXIMUM_ANALYSIS_WAIT) {
+            analysisRetries.remove(key);
             logger.warn("Waited too long for player {} to analyze {} for track {} in slot {}, giving up.", fromUpdate.player,
                     description, fromUpdate.metadata.trackReference.rekordboxId, fromUpdate.metadata.trackReference.slot);
             return false;
@@ -609,27 +786,41 @@ public class WaveformFinder extends LifecycleParticipant {
 
         logger.info("Did not find full {} data yet, still waiting for player {} to analyze track {} in slot {}.", description, fromUpdate.player,
                 fromUpdate.metadata.trackReference.rekordboxId, fromUpdate.metadata.trackReference.slot);
-        if (retryFlag.compareAndSet(false, true)) {
-            new Thread(() -> {
+        // Only one retry is ever pending for each kind of data and player; the scheduler holds no thread while waiting,
+        // and waits longer each time we have to try again for the same track.
+        final AnalysisRetries retries = analysisRetries.compute(key, (k, existing) ->
+                (existing != null && existing.metadata.equals(currentMetadata))? existing : new AnalysisRetries(currentMetadata));
+        final RetryScheduler scheduler = RetryScheduler.getInstance();
+        final int attempt = retries.attempts.get() + 1;
+        if (scheduler.scheduleOnce(key, "Unanalyzed " + description + " data request retry", scheduler.backoffDelay(attempt), () -> {
+            if (currentMetadata.equals(MetadataFinder.getInstance().getLatestMetadataFor(fromUpdate.player))) {
                 try {
-                    Thread.sleep(ANALYSIS_UPDATE_INTERVAL);
-                } catch (InterruptedException e) {
-                    logger.info("interrupted while waiting to retry loading {} data for unanalyzed track {}", description, currentMetadata);
-                }
-                retryFlag.set(false);
-                if (currentMetadata.equals(MetadataFinder.getInstance().getLatestMetadataFor(fromUpdate.player))) {
-                    try {
-                        logger.info("Retrying {} requests for unanalyzed track in player {}.", description, fromUpdate.player);
-                        retryListener.metadataChanged(fromUpdate);
-                    } catch (Throwable t) {
-                        logger.error("Problem processing retry for {} data of unanalyzed track {}", description, fromUpdate, t);
-                    }
+                    logger.info("Retrying {} requests for unanalyzed track in player {}.", description, fromUpdate.player);
+                    retryListener.metadataChanged(fromUpdate);
+                } catch (Throwable t) {
+                    logger.error("Problem processing retry for {} data of unanalyzed track {}", description, fromUpdate, t);
                 }
-            }, "Unanalyzed " + description + " data request retry").start();
+            }
+        })) {
+            retries.attempts.incrementAndGet();
         }
         return true;
     }
 
+    /**
+     * Record that the player told us a track has no color or 3-band waveform, so that for a while we go straight to the
+     * blue version rather than asking again every time the track is loaded or updated. This is only
+     * done for rekordbox tracks, because players may still be building the waveforms of unanalyzed tracks.
+     *
+     * @param reference the track whose waveform was missing
+     * @param artifact identifies the style and type of waveform that was missing
+     */
+    private void recordMissingWaveform(DataReference reference, String artifact) {
+        if (reference.trackType == CdjStatus.TrackType.REKORDBOX) {
+            NegativeCache.getInstance().markMissing(reference, artifact);
+        }
+    }
+
     /**
      * Requests the waveform preview for a specific track ID, given a connection to a player that has already been
      * set up.
@@ -648,43 +839,48 @@ public class WaveformFinder extends LifecycleParticipant {
             throws IOException {
 
         final NumberField idField = new NumberField(rekordboxId);
+        final DataReference reference = new DataReference(slot, rekordboxId, trackType);
 
-        // First try to get the NXS2-style color waveform if we are supposed to.
-        if (getPreferredStyle() == WaveformStyle.RGB) {
+        // First try to get the NXS2-style color waveform if we are supposed to, unless we know it is missing.
+        if (getPreferredStyle() == WaveformStyle.RGB &&
+                !NegativeCache.getInstance().isKnownMissing(reference, NegativeCache.COLOR_WAVEFORM_PREVIEW)) {
             try {
                 Message response = client.simpleRequest(Message.KnownType.ANLZ_TAG_REQ, Message.KnownType.ANLZ_TAG,
                         client.buildRMST(Message.MenuIdentifier.MAIN_MENU, slot.slot, trackType), idField,
                         new NumberField(Message.ANLZ_FILE_TAG_COLOR_WAVEFORM_PREVIEW), new NumberField(Message.ALNZ_FILE_TYPE_EXT));
                 if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-                    return new WaveformPreview(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.RGB);
+                    return new WaveformPreview(reference, response, WaveformStyle.RGB);
                 } else {
-                    if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                    if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                         return null;  // We will hopefully get the data from the retry that has been queued.
                     }
+                    recordMissingWaveform(reference, NegativeCache.COLOR_WAVEFORM_PREVIEW);
                     logger.info("No color waveform preview available for slot {}, id {}; requesting blue version.", slot, rekordboxId);
                 }
             } catch (Exception e) {
-                if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                     return null;  // We will hopefully get the data from the retry that has been queued.
                 }
                 logger.info("No color waveform preview available for slot {}, id {}; requesting blue version.", slot, rekordboxId, e);
             }
-        } else if (getPreferredStyle() == WaveformStyle.THREE_BAND) {
+        } else if (getPreferredStyle() == WaveformStyle.THREE_BAND &&
+                !NegativeCache.getInstance().isKnownMissing(reference, NegativeCache.THREE_BAND_WAVEFORM_PREVIEW)) {
             // Or try to get the CDJ-3000-style 3-band waveform if we are supposed to.
             try {
                 Message response = client.simpleRequest(Message.KnownType.ANLZ_TAG_REQ, Message.KnownType.ANLZ_TAG,
                         client.buildRMST(Message.MenuIdentifier.MAIN_MENU, slot.slot, trackType), idField,
                         new NumberField(Message.ANLZ_FILE_TAG_3BAND_WAVEFORM_PREVIEW), new NumberField(Message.ALNZ_FILE_TYPE_2EX));
                 if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-                    return new WaveformPreview(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.THREE_BAND);
+                    return new WaveformPreview(reference, response, WaveformStyle.THREE_BAND);
                 } else {
-                    if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                    if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                         return null;  // We will hopefully get the data from the retry that has been queued.
                     }
+                    recordMissingWaveform(reference, NegativeCache.THREE_BAND_WAVEFORM_PREVIEW);
                     logger.info("No 3-band waveform preview available for slot {}, id {}; requesting blue version.", slot, rekordboxId);
                 }
             } catch (Exception e) {
-                if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                     return null;  // We will hopefully get the data from the retry that has been queued.
                 }
                 logger.info("No 3-band waveform preview available for slot {}, id {}; requesting blue version.", slot, rekordboxId, e);
@@ -695,9 +891,9 @@ public class WaveformFinder extends LifecycleParticipant {
                 client.buildRMST(Message.MenuIdentifier.DATA, slot.slot, trackType), NumberField.WORD_1,
                 idField, NumberField.WORD_0);
         if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-            return new WaveformPreview(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.BLUE);
+            return new WaveformPreview(reference, response, WaveformStyle.BLUE);
         }
-        retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform");
+        retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform");
         return null;
     }
 
@@ -712,8 +908,29 @@ public class WaveformFinder extends LifecycleParticipant {
      * @return the waveform preview found, if any
      */
     private WaveformDetail requestDetailInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
+        return RequestCoalescer.getInstance().fetch(RequestCoalescer.DataType.WAVEFORM_DETAIL, trackReference,
+                preferredStyle.get().name(), fromUpdate != null, () -> fetchDetailInternal(trackReference, fromUpdate));
+    }
+
+    /**
+     * Does the actual work of obtaining a waveform detail for
+     * {@link #requestDetailInternal(DataReference, TrackMetadataUpdate)} once we have determined that no identical
+     * request is already in progress.
+     *
+     * @param trackReference uniquely identifies the desired waveform detail
+     * @param fromUpdate if not {@code null} this is an automatic update in response to a track change
+     *
+     * @return the waveform detail found, if any
+     */
+    private WaveformDetail fetchDetailInternal(final DataReference trackReference, final TrackMetadataUpdate fromUpdate) {
+
+        // First see if we still have it from a recent load.
+        final WaveformDetail recent = detailSecondLevelCache.get(trackReference);
+        if (recent != null && recent.style == preferredStyle.get()) {
+            return recent;
+        }
 
-        // First see if any registered metadata providers can offer it to us.
+        // Next see if any registered metadata providers can offer it to us.
         final MediaDetails sourceDetails = MetadataFinder.getInstance().getMediaDetailsFor(trackReference.getSlotReference());
         if (sourceDetails !=  null) {
             final WaveformDetail provided = MetadataFinder.getInstance().allMetadataProviders.getWaveformDetail(sourceDetails, trackReference);
@@ -734,6 +951,8 @@ public class WaveformFinder extends LifecycleParticipant {
 
         try {
             return ConnectionManager.getInstance().invokeWithClientSession(trackReference.player, task, "requesting waveform detail");
+        } catch (CancellationException e) {
+            throw e;  // Let our caller know the request was abandoned rather than failing.
         } catch (Exception e) {
             logger.error("Problem requesting waveform preview, returning null", e);
         }
@@ -753,10 +972,9 @@ public class WaveformFinder extends LifecycleParticipant {
     @API(status = API.Status.STABLE)
     public WaveformDetail requestWaveformDetailFrom(final DataReference dataReference) {
         ensureRunning();
-        for (WaveformDetail cached : detailHotCache.values()) {
-            if (cached.dataReference.equals(dataReference)) {  // Found a hot cue hit, use it.
-                return cached;
-            }
+        final WaveformDetail cached = detailHotCache.find(dataReference);
+        if (cached != null) {  // Found a hot cue hit, use it.
+            return cached;
         }
         return requestDetailInternal(dataReference, null);
     }
@@ -778,43 +996,48 @@ public class WaveformFinder extends LifecycleParticipant {
     WaveformDetail getWaveformDetail(int rekordboxId, SlotReference slot, CdjStatus.TrackType trackType, TrackMetadataUpdate fromUpdate, Client client)
             throws IOException {
         final NumberField idField = new NumberField(rekordboxId);
+        final DataReference reference = new DataReference(slot, rekordboxId, trackType);
 
-        // First try to get the NXS2-style color waveform if we are supposed to.
-        if (preferredStyle.get() == WaveformStyle.RGB) {
+        // First try to get the NXS2-style color waveform if we are supposed to, unless we know it is missing.
+        if (preferredStyle.get() == WaveformStyle.RGB &&
+                !NegativeCache.getInstance().isKnownMissing(reference, NegativeCache.COLOR_WAVEFORM_DETAIL)) {
             try {
                 Message response = client.simpleRequest(Message.KnownType.ANLZ_TAG_REQ, Message.KnownType.ANLZ_TAG,
                         client.buildRMST(Message.MenuIdentifier.MAIN_MENU, slot.slot, trackType), idField,
                         new NumberField(Message.ANLZ_FILE_TAG_COLOR_WAVEFORM_DETAIL), new NumberField(Message.ALNZ_FILE_TYPE_EXT));
                 if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-                    return new WaveformDetail(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.RGB);
+                    return new WaveformDetail(reference, response, WaveformStyle.RGB);
                 } else {
-                    if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                    if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                         return null;  // We will hopefully get the data from the retry that has been queued.
                     }
+                    recordMissingWaveform(reference, NegativeCache.COLOR_WAVEFORM_DETAIL);
                     logger.info("No color waveform detail available for slot {}, id {}; requesting blue version.", slot, rekordboxId);
                 }
             } catch (Exception e) {
-                if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                     return null;  // We will hopefully get the data from the retry that has been queued.
                 }
                 logger.info("Problem requesting color waveform detail for slot {}, id {}; requesting blue version.", slot, rekordboxId, e);
             }
-        } else if (preferredStyle.get() == WaveformStyle.THREE_BAND) {
+        } else if (preferredStyle.get() == WaveformStyle.THREE_BAND &&
+                !NegativeCache.getInstance().isKnownMissing(reference, NegativeCache.THREE_BAND_WAVEFORM_DETAIL)) {
             // Or try to get the CDJ-3000-style 3-band waveform if we are supposed to.
             try {
                 Message response = client.simpleRequest(Message.KnownType.ANLZ_TAG_REQ, Message.KnownType.ANLZ_TAG,
                         client.buildRMST(Message.MenuIdentifier.MAIN_MENU, slot.slot, trackType), idField,
                         new NumberField(Message.ANLZ_FILE_TAG_3BAND_WAVEFORM_DETAIL), new NumberField(Message.ALNZ_FILE_TYPE_2EX));
                 if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-                    return new WaveformDetail(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.THREE_BAND);
+                    return new WaveformDetail(reference, response, WaveformStyle.THREE_BAND);
                 } else {
-                    if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                    if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                         return null;  // We will hopefully get the data from the retry that has been queued.
                     }
+                    recordMissingWaveform(reference, NegativeCache.THREE_BAND_WAVEFORM_DETAIL);
                     logger.info("No 3-band waveform detail available for slot {}, id {}; requesting blue version.", slot, rekordboxId);
                 }
             } catch (Exception e) {
-                if (retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform")) {
+                if (retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform")) {
                     return null;  // We will hopefully get the data from the retry that has been queued.
                 }
                 logger.info("Problem requesting 3-band waveform detail for slot {}, id {}; requesting blue version.", slot, rekordboxId, e);
@@ -824,9 +1047,9 @@ public class WaveformFinder extends LifecycleParticipant {
         Message response = client.simpleRequest(Message.KnownType.WAVE_DETAIL_REQ, Message.KnownType.WAVE_DETAIL,
                 client.buildRMST(Message.MenuIdentifier.MAIN_MENU, slot.slot, trackType), idField, NumberField.WORD_0);
         if (response.knownType != Message.KnownType.UNAVAILABLE && response.arguments.get(3).getSize() > 0) {
-            return new WaveformDetail(new DataReference(slot, rekordboxId, trackType), response, WaveformStyle.BLUE);
+            return new WaveformDetail(reference, response, WaveformStyle.BLUE);
         }
-        retryUnanalyzedTrack(fromUpdate, retrying, metadataListener, "waveform");
+        retryUnanalyzedTrack(fromUpdate, metadataListener, "waveform");
         return null;
     }
 
@@ -954,32 +1177,37 @@ public class WaveformFinder extends LifecycleParticipant {
             if (lastPreview == null || !lastPreview.dataReference.equals(update.metadata.trackReference) || update.metadata.trackType == CdjStatus.TrackType.UNANALYZED) {  // We may have something new!
 
                 // First see if we can find the new preview in the hot cache
-                for (Map.Entry<DeckReference, WaveformPreview> cached : previewHotCache.entrySet()) {
-                    if (cached.getKey().hotCue != 0 &&  cached.getValue().dataReference.equals(update.metadata.trackReference)) {  // Found a hot cue hit, use it.
-                        updatePreview(update, cached.getValue());
-                        foundInCache = true;
-                        break;
-                    }
+                final WaveformPreview cached = previewHotCache.findInHotCue(update.metadata.trackReference);
+                if (cached != null) {  // Found a hot cue hit, use it.
+                    updatePreview(update, cached);
+                    foundInCache = true;
                 }
 
                 // If not found in the cache, try actually retrieving it unless that is already in progress.
                 if (!foundInCache && activePreviewRequests.add(update.player)) {
                     clearDeckPreview(update);  // We won't know what it is until our request completes.
-                    new Thread(() -> {
+                    final FetchHandle handle = DeckLoadTracker.getInstance().handleFor(update.player, update.metadata.trackReference);
+                    TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "Waveform preview request", () -> {
+                        final FetchHandle previous = (handle == null)? FetchHandle.getCurrent() : handle.attach();
                         try {
                             WaveformPreview preview = requestPreviewInternal(update.metadata.trackReference, update);
-                            if (preview != null) {
+                            if (preview != null && (handle == null || !handle.isCancelled())) {
                                 updatePreview(update, preview);
                                 if (!preview.equals(lastPreview)) {
-                                    retryUnanalyzedTrack(update, retrying, metadataListener, "waveform");  // The preview is still changing, so retry for more.
+                                    retryUnanalyzedTrack(update, metadataListener, "waveform");  // The preview is still changing, so retry for more.
                                 }
                             }
+                        } catch (CancellationException e) {
+                            logger.debug("Abandoned waveform preview request from update {} because a newer track was loaded", update);
                         } catch (Exception e) {
                             logger.warn("Problem requesting waveform preview from update {}", update, e);
                         } finally {
+                            FetchHandle.restore(previous);
                             activePreviewRequests.remove(update.player);
+                            DeckLoadTracker.getInstance().reprocessIfSuperseded(handle, update, this,
+                                    latest -> pendingUpdates.submit(latest.player, latest));
                         }
-                    }).start();
+                    });
                 }
             }
 
@@ -990,32 +1218,37 @@ public class WaveformFinder extends LifecycleParticipant {
                     update.metadata.trackType == CdjStatus.TrackType.UNANALYZED)) {  // We may have something new!
 
                 // First see if we can find the new detailed waveform in the hot cache
-                for (Map.Entry<DeckReference,WaveformDetail> cached : detailHotCache.entrySet()) {
-                    if (cached.getKey().hotCue != 0 && cached.getValue().dataReference.equals(update.metadata.trackReference)) {  // Found a hot cue hit, use it.
-                        updateDetail(update, cached.getValue());
-                        foundInCache = true;
-                        break;
-                    }
+                final WaveformDetail cached = detailHotCache.findInHotCue(update.metadata.trackReference);
+                if (cached != null) {  // Found a hot cue hit, use it.
+                    updateDetail(update, cached);
+                    foundInCache = true;
                 }
 
                 // If not found in the cache try actually retrieving it, unless that is already in progress.
                 if (!foundInCache && activeDetailRequests.add(update.player)) {
                     clearDeckDetail(update);  // We won't know what it is until our request completes.
-                    new Thread(() -> {
+                    final FetchHandle handle = DeckLoadTracker.getInstance().handleFor(update.player, update.metadata.trackReference);
+                    TaskExecutor.getInstance().execute(TaskClass.METADATA_REQUEST, "Waveform detail request", () -> {
+                        final FetchHandle previous = (handle == null)? FetchHandle.getCurrent() : handle.attach();
                         try {
                             WaveformDetail detail = requestDetailInternal(update.metadata.trackReference, update);
-                            if (detail != null) {
+                            if (detail != null && (handle == null || !handle.isCancelled())) {
                                 updateDetail(update, detail);
                                 if (!detail.equals(lastDetail)) {
-                                    retryUnanalyzedTrack(update, retrying, metadataListener, "waveform");  // The detail is still changing, so retry for more.
+                                    retryUnanalyzedTrack(update, metadataListener, "waveform");  // The detail is still changing, so retry for more.
                                 }
                             }
+                        } catch (CancellationException e) {
+                            logger.debug("Abandoned waveform detail request from update {} because a newer track was loaded", update);
                         } catch (Exception e) {
                             logger.warn("Problem requesting waveform detail from update {}", update, e);
                         } finally {
+                            FetchHandle.restore(previous);
                             activeDetailRequests.remove(update.player);
+                            DeckLoadTracker.getInstance().reprocessIfSuperseded(handle, update, this,
+                                    latest -> pendingUpdates.submit(latest.player, latest));
                         }
-                    }).start();
+                    });
                 }
             }
         }
@@ -1073,19 +1306,8 @@ public class WaveformFinder extends LifecycleParticipant {
             MetadataFinder.getInstance().start();
             MetadataFinder.getInstance().addTrackMetadataListener(metadataListener);
             MetadataFinder.getInstance().addMountListener(mountListener);
-            queueHandler = new Thread(() -> {
-                while (isRunning()) {
-                    try {
-                        handleUpdate(pendingUpdates.take());
-                    } catch (InterruptedException e) {
-                        // Interrupted due to MetadataFinder shutdown, presumably
-                    } catch (Throwable t) {
-                        logger.error("Problem processing metadata update", t);
-                    }
-                }
-            });
             running.set(true);
-            queueHandler.start();
+            pendingUpdates.start();
             deliverLifecycleAnnouncement(logger, true);
             primeCache();
         }
@@ -1099,11 +1321,10 @@ public class WaveformFinder extends LifecycleParticipant {
         if (isRunning()) {
             MetadataFinder.getInstance().removeTrackMetadataListener(metadataListener);
             running.set(false);
-            pendingUpdates.clear();
-            queueHandler.interrupt();
-            queueHandler = null;
+            pendingUpdates.stop();
 
             clearAllWaveforms();
+            waveformStore.deleteFiles();  // Clean up any mapped files that were still in use when released.
             deliverLifecycleAnnouncement(logger, false);
         }
     }
@@ -1112,10 +1333,10 @@ public class WaveformFinder extends LifecycleParticipant {
      * Report the loss of all waveforms, on the proper thread, outside any lock.
      */
     private void clearAllWaveforms() {
-        final Set<DeckReference> dyingPreviewCache = new HashSet<>(previewHotCache.keySet());
-        previewHotCache.clear();
-        final Set<DeckReference> dyingDetailCache = new HashSet<>(detailHotCache.keySet());
-        detailHotCache.clear();
+        previewSecondLevelCache.clear();
+        detailSecondLevelCache.clear();
+        final Set<DeckReference> dyingPreviewCache = previewHotCache.clear().keySet();
+        final Set<DeckReference> dyingDetailCache = detailHotCache.clear().keySet();
         SwingUtilities.invokeLater(() -> {
             for (DeckReference deck : dyingPreviewCache) {  // Report the loss of our previews.
                 if (deck.hotCue == 0) {
@@ -1149,6 +1370,8 @@ public class WaveformFinder extends LifecycleParticipant {
      * Prevent direct instantiation.
      */
     private WaveformFinder() {
+        previewSecondLevelCache.setRemovalListener(this::releasePreviewIfUnused);
+        detailSecondLevelCache.setRemovalListener(this::releaseDetailIfUnused);
     }
 
     @Override
@@ -39,7 +39,9 @@ public class WaveformPreview {
     /**
      * The message holding the preview as it was read over the network, if it came from the dbserver.
      * This can be used to analyze fields that have not yet been reliably understood, and is also used for storing
-     * the cue list in a file.
+     * the cue list in a file. This will be {@code null} if the data has been moved out of the heap because the
+     * {@link WaveformFinder} is using {@link WaveformFinder.WaveformStorage#DIRECT} or
+     * {@link WaveformFinder.WaveformStorage#MAPPED} storage.
      */
     @API(status = API.Status.STABLE)
     public final Message rawMessage;
@@ -282,6 +284,23 @@ public class WaveformPreview {
         maxHeight = getMaxHeight();
     }
 
+    /**
+     * Constructor used by the {@link WaveformStore} to move the data of a preview out of the heap. The raw message
+     * is not kept, since it holds a heap copy of the same data.
+     *
+     * @param original the preview whose data has been copied
+     * @param data a read-only buffer holding the same data as the original
+     */
+    WaveformPreview(WaveformPreview original, ByteBuffer data) {
+        dataReference = original.dataReference;
+        rawMessage = null;
+        isColor = original.isColor;
+        style = original.style;
+        expandedData = data;
+        segmentCount = original.segmentCount;
+        maxHeight = original.maxHeight;
+    }
+
 
     /**
      * The color at which segments of the blue waveform marked most intense are drawn.
@@ -760,7 +760,7 @@ public class WaveformPreviewComponent extends JComponent {
                 TimeFinder.getInstance().start();
                 if (!animating.getAndSet(true)) {
                     // Create the thread to update our position smoothly as the track plays
-                    new Thread(() -> {
+                    TaskExecutor.getInstance().execute(TaskClass.ANIMATION, "Waveform preview animation", () -> {
                         while (animating.get()) {
                             try {
                                 //noinspection BusyWait
@@ -771,7 +771,7 @@ public class WaveformPreviewComponent extends JComponent {
                             }
                             setPlaybackPosition(TimeFinder.getInstance().getTimeFor(getMonitoredPlayer()));
                         }
-                    }).start();
+                    });
                 }
             } catch (Exception e) {
                 logger.error("Unable to start the TimeFinder to animate the waveform preview");
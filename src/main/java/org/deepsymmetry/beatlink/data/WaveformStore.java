@@ -0,0 +1,249 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Moves waveform data out of the Java heap for the {@link WaveformFinder}, when it has been configured to use
+ * {@link WaveformFinder.WaveformStorage#DIRECT} or {@link WaveformFinder.WaveformStorage#MAPPED} storage, and
+ * keeps track of the space used, so it can be released when the waveform is evicted from the finder's caches.</p>
+ *
+ * <p>Releasing a waveform stops counting its space and deletes any file backing it, but never frees memory that
+ * the waveform's buffer still refers to: listeners or user interface components may still be drawing it, and
+ * freeing it out from under them would crash the JVM. The memory itself is returned once the last reference to the
+ * buffer has been garbage collected, which for mapped files does not even require the space to be paged in.</p>
+ *
+ * <p>Files that could not be deleted when they were released (because the operating system does not allow a file
+ * to be deleted while it is mapped) are cleaned up when the {@link WaveformFinder} stops, with a single shutdown
+ * hook as a backstop, rather than registering each one with {@link File#deleteOnExit()}, which would remember every
+ * file created for the life of the JVM.</p>
+ *
+ * @author James Elliott
+ */
+final class WaveformStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(WaveformStore.class);
+
+    /**
+     * Describes the storage we set up for a waveform.
+     */
+    private static class Allocation {
+
+        /**
+         * The read-only buffer holding the waveform data.
+         */
+        final ByteBuffer buffer;
+
+        /**
+         * The file holding the data, if it has been memory-mapped.
+         */
+        final File file;
+
+        /**
+         * Constructor simply sets the immutable fields.
+         *
+         * @param buffer holds the waveform data
+         * @param file the file backing the buffer, or {@code null} if it is in direct memory
+         */
+        Allocation(ByteBuffer buffer, File file) {
+            this.buffer = buffer;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Keeps track of the storage we have set up for each waveform object that is still cached. These must be
+     * compared by identity, because two waveforms with the same content are still separate allocations.
+     */
+    private final Map<Object, Allocation> allocations = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Counts the bytes of waveform data we are holding outside the heap.
+     */
+    private final AtomicLong bytesStored = new AtomicLong();
+
+    /**
+     * The directory in which memory-mapped waveform files are created, once we need one.
+     */
+    private File directory;
+
+    /**
+     * Set once we have registered the shutdown hook that cleans up our directory.
+     */
+    private boolean shutdownHookRegistered;
+
+    /**
+     * Find or create the directory in which memory-mapped waveform files are created.
+     *
+     * @return the directory
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    private synchronized File getDirectory() throws IOException {
+        if (directory == null || !directory.isDirectory()) {
+            directory = Files.createTempDirectory("beatlink-waveforms").toFile();
+            if (!shutdownHookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::deleteFiles, "beat-link waveform file cleanup"));
+                shutdownHookRegistered = true;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Delete any memory-mapped waveform files that are left in our directory, and the directory itself if that
+     * empties it. Called when the {@link WaveformFinder} stops, and when the JVM shuts down.
+     */
+    synchronized void deleteFiles() {
+        if (directory == null) {
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    logger.debug("Unable to delete mapped waveform file {}, it may still be in use.", file);
+                }
+            }
+        }
+        if (directory.delete()) {
+            directory = null;
+        }
+    }
+
+    /**
+     * Copy waveform data out of the heap.
+     *
+     * @param data the waveform data to be copied, which will not be modified
+     * @param storage the kind of storage desired, which must not be {@link WaveformFinder.WaveformStorage#HEAP}
+     *
+     * @return the new storage, or {@code null} if it could not be set up, in which case the data should stay on the heap
+     */
+    private Allocation copy(ByteBuffer data, WaveformFinder.WaveformStorage storage) {
+        final ByteBuffer source = data.duplicate();
+        if (storage == WaveformFinder.WaveformStorage.DIRECT) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(source.remaining());
+            buffer.put(source);
+            buffer.flip();
+            return new Allocation(buffer.asReadOnlyBuffer(), null);
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("waveform-", ".bin", getDirectory());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                final int size = source.remaining();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+                final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return new Allocation(mapped, file);  // The mapping remains valid after the channel is closed.
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to memory-map waveform data, keeping it on the heap", e);
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Create a copy of a waveform preview whose data is held outside the heap, unless it already is.
+     *
+     * @param preview the preview to be stored
+     * @param storage the kind of storage desired
+     *
+     * @return the preview to cache, which will be the original one if it is already off the heap, heap storage has
+     *         been requested, or the new storage could not be set up
+     */
+    WaveformPreview store(WaveformPreview preview, WaveformFinder.WaveformStorage storage) {
+        final ByteBuffer data = preview.getData();
+        if (storage == WaveformFinder.WaveformStorage.HEAP || data.isDirect()) {
+            return preview;
+        }
+        final Allocation allocation = copy(data, storage);
+        if (allocation == null) {
+            return preview;
+        }
+        final WaveformPreview result = new WaveformPreview(preview, allocation.buffer);
+        register(result, allocation);
+        return result;
+    }
+
+    /**
+     * Create a copy of a waveform detail whose data is held outside the heap, unless it already is.
+     *
+     * @param detail the detail to be stored
+     * @param storage the kind of storage desired
+     *
+     * @return the detail to cache, which will be the original one if it is already off the heap, heap storage has
+     *         been requested, or the new storage could not be set up
+     */
+    WaveformDetail store(WaveformDetail detail, WaveformFinder.WaveformStorage storage) {
+        final ByteBuffer data = detail.getData();
+        if (storage == WaveformFinder.WaveformStorage.HEAP || data.isDirect()) {
+            return detail;
+        }
+        final Allocation allocation = copy(data, storage);
+        if (allocation == null) {
+            return detail;
+        }
+        final WaveformDetail result = new WaveformDetail(detail, allocation.buffer);
+        register(result, allocation);
+        return result;
+    }
+
+    /**
+     * Record the storage used by a waveform we have created.
+     *
+     * @param waveform the waveform preview or detail
+     * @param allocation the storage it uses
+     */
+    private void register(Object waveform, Allocation allocation) {
+        allocations.put(waveform, allocation);
+        bytesStored.addAndGet(allocation.buffer.capacity());
+    }
+
+    /**
+     * Release the storage of a waveform that is no longer cached. Does nothing if the waveform is on the heap
+     * or has already been released.
+     *
+     * @param waveform the waveform preview or detail which is no longer needed
+     */
+    void release(Object waveform) {
+        final Allocation allocation = allocations.remove(waveform);
+        if (allocation != null) {
+            bytesStored.addAndGet(-allocation.buffer.capacity());
+            if (allocation.file != null && !allocation.file.delete()) {
+                logger.debug("Unable to delete mapped waveform file {} while it is in use, will delete it when the WaveformFinder stops.", allocation.file);
+            }
+        }
+    }
+
+    /**
+     * Check how much waveform data is being held outside the heap.
+     *
+     * @return the number of bytes in direct buffers or memory-mapped files for waveforms that are still cached
+     */
+    long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WaveformStore[waveforms:" + allocations.size() + ", bytes:" + bytesStored.get() + "]";
+    }
+}
@@ -0,0 +1,667 @@
+package org.deepsymmetry.beatlink.data;
+
+import org.apiguardian.api.API;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * <p>A bounded in-memory cache used by the finders to hold data that is not currently loaded on any deck, but which
+ * is likely to be needed again. It is designed to be safe to use from many threads at once, and to make good
+ * decisions about what to keep, without depending on any external libraries (which keeps Beat Link working in
+ * GraalVM <a href="https://www.graalvm.org/latest/reference-manual/native-image/">native-image</a> environments).</p>
+ *
+ * <ul>
+ *     <li>Lookups never block: entries are held in a {@link ConcurrentHashMap}, and using one simply marks it as
+ *     recently used and records the access in a frequency sketch.</li>
+ *     <li>The cache can be bounded by the number of entries, by their total weight (an estimate of the bytes
+ *     they use, so that large high-resolution album art counts for more than thumbnails), or both.</li>
+ *     <li>New entries first enter a small admission window. When an entry leaves the window and the main area of
+ *     the cache is full, it is only admitted if it has been used more often (according to a compact count-min
+ *     sketch of recent access frequencies, in the style of TinyLFU) than the entry that would be evicted to make
+ *     room for it. This keeps one-off items from flushing out data that is used over and over again. Within each
+ *     area, eviction candidates are chosen using the “clock” or “second-chance” approach.</li>
+ *     <li>Hit, miss, eviction, and rejection counts are available for monitoring.</li>
+ * </ul>
+ *
+ * <p>If both limits are zero, the cache is disabled, and holds nothing.</p>
+ *
+ * @param <K> the type of the keys used to look up cached values
+ * @param <V> the type of the cached values
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class WeightedCache<K, V> {
+
+    /**
+     * Holds a cached value along with the information needed to manage it.
+     */
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        volatile boolean recentlyUsed;
+        boolean inWindow = true;  // Only accessed while holding the eviction lock.
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A count-min sketch which estimates how often each key has been used recently, using four rows of small
+     * saturating counters. Once enough accesses have been recorded, all the counters are halved, so that the
+     * estimates reflect recent popularity rather than all of history.
+     */
+    private static class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0xb7fd4a35, 0xd1b54a33, 0x6a09e667 };
+
+        private final AtomicIntegerArray counters;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicLong additions = new AtomicLong();
+
+        FrequencySketch(int expectedEntries) {
+            int width = 16;
+            while (width < expectedEntries * 4 && width < (1 << 24)) {
+                width <<= 1;
+            }
+            counters = new AtomicIntegerArray(width * SEEDS.length);
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        private int index(int row, int hash) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        int frequency(Object key) {
+            final int hash = key.hashCode();
+            int result = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                result = Math.min(result, counters.get(index(row, hash)));
+            }
+            return result;
+        }
+
+        void increment(Object key) {
+            final int hash = key.hashCode();
+            for (int row = 0; row < SEEDS.length; row++) {
+                final int i = index(row, hash);
+                int current;
+                do {
+                    current = counters.get(i);
+                } while (current < MAX_COUNT && !counters.compareAndSet(i, current, current + 1));
+            }
+            if (additions.incrementAndGet() >= sampleSize) {
+                age();
+            }
+        }
+
+        private synchronized void age() {
+            if (additions.get() < sampleSize) {
+                return;  // Another thread already did this.
+            }
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, counters.get(i) >>> 1);
+            }
+            additions.set(0);
+        }
+    }
+
+    /**
+     * Describes the cache for logging.
+     */
+    private final String name;
+
+    /**
+     * Estimates how many bytes of memory a cached value uses.
+     */
+    private final ToLongFunction<V> weigher;
+
+    /**
+     * Holds the cached entries.
+     */
+    private final Map<K, Node<K, V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Protects the eviction queues and weights. Never held during lookups.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Keeps track of entries in the admission window, in the order they were added. Entries which have been removed
+     * by other means are skipped when they reach the front of the queue.
+     */
+    private final ArrayDeque<Node<K, V>> windowQueue = new ArrayDeque<>();
+
+    /**
+     * Keeps track of entries in the main area of the cache, in the order they were admitted.
+     */
+    private final ArrayDeque<Node<K, V>> mainQueue = new ArrayDeque<>();
+
+    /**
+     * Estimates how often keys have been used recently, to decide which entries deserve to be kept.
+     */
+    private volatile FrequencySketch sketch;
+
+    /**
+     * The maximum number of entries we hold, or zero if there is no limit on the count.
+     */
+    private volatile int maxEntries;
+
+    /**
+     * The maximum total weight of the entries we hold, or zero if there is no limit on the weight.
+     */
+    private volatile long maxWeight;
+
+    /**
+     * The number and total weight of the entries in the admission window and main area. Only accessed while
+     * holding the eviction lock.
+     */
+    private int windowEntries;
+    private long windowWeight;
+    private int mainEntries;
+    private long mainWeight;
+
+    /**
+     * Called with each value that leaves the cache, for whatever reason, so that any resources it holds can be
+     * released once nothing else needs it.
+     */
+    private volatile Consumer<V> removalListener = value -> { };
+
+    /**
+     * Controls whether entries leaving the window need to be used more often than the ones they would displace.
+     */
+    private boolean admissionFiltering = true;
+
+    /**
+     * Counters for monitoring the effectiveness of the cache.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param name describes the cache for logging
+     * @param weigher estimates how many bytes of memory a cached value uses
+     * @param maxEntries the maximum number of entries to hold, or zero for no limit on the count
+     * @param maxWeight the maximum total weight of the entries, or zero for no limit on the weight
+     */
+    WeightedCache(String name, ToLongFunction<V> weigher, int maxEntries, long maxWeight) {
+        this.name = name;
+        this.weigher = weigher;
+        setLimits(maxEntries, maxWeight);
+    }
+
+    /**
+     * Arrange for a function to be called with each value that leaves the cache, whether it is evicted, rejected,
+     * replaced, removed, or cleared. The function is called while the cache is locked, so it must be quick and
+     * must not use the cache.
+     *
+     * @param listener the function to call with values that are no longer cached
+     */
+    void setRemovalListener(Consumer<V> listener) {
+        removalListener = listener;
+    }
+
+    /**
+     * Check whether a particular value is currently cached under a key, without counting as a use of the entry.
+     *
+     * @param key identifies the value
+     * @param value the value of interest
+     *
+     * @return {@code true} if that exact value is in the cache
+     */
+    boolean holds(K key, V value) {
+        final Node<K, V> node = entries.get(key);
+        return node != null && node.value == value;
+    }
+
+    /**
+     * Check whether the cache is in use.
+     *
+     * @return {@code true} if either an entry or weight limit has been set
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isEnabled() {
+        return maxEntries > 0 || maxWeight > 0;
+    }
+
+    /**
+     * Configure the limits of the cache. If both limits are zero, the cache is disabled and emptied. If the new
+     * limits are lower than the current contents, entries are discarded immediately.
+     *
+     * @param maxEntries the maximum number of entries to hold, or zero for no limit on the count
+     * @param maxWeight the maximum estimated number of bytes the entries may use, or zero for no limit on the weight
+     *
+     * @throws IllegalArgumentException if either limit is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setLimits(int maxEntries, long maxWeight) {
+        if (maxEntries < 0 || maxWeight < 0) {
+            throw new IllegalArgumentException("Cache limits cannot be negative");
+        }
+        evictionLock.lock();
+        try {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+            if (maxEntries == 0 && maxWeight == 0) {
+                clear();
+                return;
+            }
+            final int expected = (maxEntries > 0)? maxEntries : (int) Math.min(1 << 20, Math.max(64, maxWeight / 4096));
+            sketch = new FrequencySketch(expected);
+            while (windowOverLimit()) {
+                evictFrom(windowQueue, true);
+            }
+            while (mainOverLimit(0, 0) && !mainQueue.isEmpty()) {
+                evictFrom(mainQueue, false);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Check the maximum number of entries the cache will hold.
+     *
+     * @return the entry limit, or zero if there is no limit on the count
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Check the maximum total weight of the cache entries.
+     *
+     * @return the weight limit (an estimate of bytes used), or zero if there is no limit on the weight
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Set whether entries leaving the admission window must have been used more often than the entry they would
+     * displace in order to be kept. When this is {@code false}, the cache simply keeps the most recently used
+     * entries. The default is {@code true}.
+     *
+     * @param filtering whether frequency-based admission should be used
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setAdmissionFiltering(boolean filtering) {
+        evictionLock.lock();
+        try {
+            admissionFiltering = filtering;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Check whether entries leaving the admission window must have been used more often than the entry they would
+     * displace in order to be kept.
+     *
+     * @return {@code true} if frequency-based admission is being used
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isAdmissionFiltering() {
+        evictionLock.lock();
+        try {
+            return admissionFiltering;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Check whether the admission window holds more than its share of the cache, which is one percent of each
+     * limit, but always at least one entry.
+     */
+    private boolean windowOverLimit() {
+        if (windowQueue.isEmpty()) {
+            return false;
+        }
+        return (maxEntries > 0 && windowEntries > Math.max(1, maxEntries / 100)) ||
+                (maxWeight > 0 && windowWeight > Math.max(1, maxWeight / 100));
+    }
+
+    /**
+     * Check whether the main area would exceed its share of the cache if the specified entries were added.
+     */
+    private boolean mainOverLimit(int extraEntries, long extraWeight) {
+        final int mainMaxEntries = (maxEntries > 0)? maxEntries - Math.max(1, maxEntries / 100) : 0;
+        final long mainMaxWeight = (maxWeight > 0)? maxWeight - Math.max(1, maxWeight / 100) : 0;
+        return (maxEntries > 0 && mainEntries + extraEntries > mainMaxEntries) ||
+                (maxWeight > 0 && mainWeight + extraWeight > mainMaxWeight);
+    }
+
+    /**
+     * Find the next victim in one of the queues using the clock approach, giving entries that have been used
+     * since they were last considered a second chance. Must be called while holding the eviction lock.
+     *
+     * @param queue the queue to search
+     *
+     * @return the victim, which has been removed from the front of the queue, or {@code null} if the queue is empty
+     */
+    private Node<K, V> nextVictim(ArrayDeque<Node<K, V>> queue) {
+        while (!queue.isEmpty()) {
+            final Node<K, V> candidate = queue.removeFirst();
+            if (entries.get(candidate.key) != candidate) {
+                continue;  // Already removed or replaced.
+            }
+            if (candidate.recentlyUsed) {
+                candidate.recentlyUsed = false;
+                queue.addLast(candidate);
+            } else {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discard an entry that has been chosen as a victim. Must be called while holding the eviction lock.
+     */
+    private void discard(Node<K, V> node) {
+        if (entries.remove(node.key, node)) {
+            if (node.inWindow) {
+                windowEntries--;
+                windowWeight -= node.weight;
+            } else {
+                mainEntries--;
+                mainWeight -= node.weight;
+            }
+            removalListener.accept(node.value);
+        }
+    }
+
+    /**
+     * Remove an entry from one of the areas of the cache. When it comes from the window, and admission filtering
+     * is enabled, it is instead moved to the main area if it has been used more often than the entries it would
+     * displace. Must be called while holding the eviction lock.
+     *
+     * @param queue the queue from which a victim should be chosen
+     * @param fromWindow {@code true} if the queue is the admission window
+     */
+    private void evictFrom(ArrayDeque<Node<K, V>> queue, boolean fromWindow) {
+        final Node<K, V> candidate = nextVictim(queue);
+        if (candidate == null) {
+            return;
+        }
+        if (!fromWindow) {
+            discard(candidate);
+            evictionCount.incrementAndGet();
+            return;
+        }
+
+        // The candidate is leaving the window; see if it deserves a place in the main area.
+        while (mainOverLimit(1, candidate.weight)) {
+            final Node<K, V> victim = nextVictim(mainQueue);
+            if (victim == null) {
+                break;  // The main area is empty, so the candidate is simply too big; it will be rejected below.
+            }
+            if (admissionFiltering && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                mainQueue.addFirst(victim);  // The victim survives, keeping its place.
+                discard(candidate);
+                rejectionCount.incrementAndGet();
+                return;
+            }
+            discard(victim);
+            evictionCount.incrementAndGet();
+        }
+        if (mainOverLimit(1, candidate.weight)) {
+            discard(candidate);
+            rejectionCount.incrementAndGet();
+            return;
+        }
+        windowEntries--;
+        windowWeight -= candidate.weight;
+        candidate.inWindow = false;
+        mainEntries++;
+        mainWeight += candidate.weight;
+        mainQueue.addLast(candidate);
+    }
+
+    /**
+     * Look up a value in the cache. Never blocks.
+     *
+     * @param key identifies the value desired
+     *
+     * @return the cached value, or {@code null} if it is not present
+     */
+    V get(K key) {
+        final FrequencySketch currentSketch = sketch;
+        if (currentSketch != null) {
+            currentSketch.increment(key);
+        }
+        final Node<K, V> node = entries.get(key);
+        if (node == null) {
+            if (currentSketch != null && isEnabled()) {
+                missCount.incrementAndGet();
+            }
+            return null;
+        }
+        node.recentlyUsed = true;
+        hitCount.incrementAndGet();
+        return node.value;
+    }
+
+    /**
+     * Add a value to the cache, if it is enabled, evicting other entries if needed to stay within the limits.
+     *
+     * @param key identifies the value
+     * @param value the value to be cached
+     */
+    void put(K key, V value) {
+        if (value == null) {
+            return;
+        }
+        final long weight = weigher.applyAsLong(value);
+        evictionLock.lock();
+        try {
+            if (!isEnabled() || (maxWeight > 0 && weight > maxWeight)) {
+                return;
+            }
+            sketch.increment(key);
+            final Node<K, V> existing = entries.get(key);
+            if (existing != null) {
+                discard(existing);
+            }
+            final Node<K, V> node = new Node<>(key, value, weight);
+            entries.put(key, node);
+            windowEntries++;
+            windowWeight += weight;
+            windowQueue.addLast(node);
+            while (windowOverLimit()) {
+                evictFrom(windowQueue, true);
+            }
+            compact(windowQueue);
+            compact(mainQueue);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Drop references to entries which have been removed from the cache from one of the queues, if there are too
+     * many of them. Must be called while holding the eviction lock.
+     */
+    private void compact(ArrayDeque<Node<K, V>> queue) {
+        if (queue.size() > 2 * entries.size() + 16) {
+            queue.removeIf(node -> entries.get(node.key) != node);
+        }
+    }
+
+    /**
+     * Remove a value from the cache, if it is present.
+     *
+     * @param key identifies the value to be discarded
+     */
+    void remove(K key) {
+        evictionLock.lock();
+        try {
+            final Node<K, V> node = entries.get(key);
+            if (node != null) {
+                discard(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Remove all values whose keys match a predicate, for example because they belong to media that has been
+     * unmounted.
+     *
+     * @param predicate identifies the keys of the values to be discarded
+     */
+    void removeIf(Predicate<K> predicate) {
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : entries.values()) {
+                if (predicate.test(node.key)) {
+                    discard(node);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Discard all cached values. Statistics are not affected.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void clear() {
+        evictionLock.lock();
+        try {
+            final ArrayDeque<Node<K, V>> removed = new ArrayDeque<>(entries.values());
+            entries.clear();
+            windowQueue.clear();
+            mainQueue.clear();
+            windowEntries = 0;
+            windowWeight = 0;
+            mainEntries = 0;
+            mainWeight = 0;
+            for (Node<K, V> node : removed) {
+                removalListener.accept(node.value);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Check how many entries are in the cache.
+     *
+     * @return the number of cached values
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Check the total weight of the cached values.
+     *
+     * @return the estimated number of bytes used
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getWeight() {
+        evictionLock.lock();
+        try {
+            return windowWeight + mainWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Check how many lookups found a cached value.
+     *
+     * @return the number of cache hits
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Check how many lookups made while the cache was enabled did not find a cached value.
+     *
+     * @return the number of cache misses
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Check how many entries have been discarded from the main area of the cache to make room for others.
+     *
+     * @return the number of evictions
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Check how many entries were discarded on leaving the admission window, because they had not been used as
+     * often as the entries they would have displaced (or were too big to fit).
+     *
+     * @return the number of rejected entries
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    /**
+     * Calculate the fraction of lookups that found a cached value.
+     *
+     * @return the hit ratio, from 0.0 to 1.0, or 0.0 if no lookups have been made
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public double getHitRatio() {
+        final long hits = hitCount.get();
+        final long total = hits + missCount.get();
+        return (total == 0)? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Reset the hit, miss, eviction, and rejection counters to zero.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+        rejectionCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[name:" + name + ", maxEntries:" + getMaxEntries() + ", maxWeight:" +
+                getMaxWeight() + ", size:" + size() + ", weight:" + getWeight() + ", hitRatio:" + getHitRatio() + "]";
+    }
+}
@@ -70,6 +70,11 @@ public class Client {
     @API(status = API.Status.STABLE)
     public static final NumberField GREETING_FIELD = new NumberField(1, 4);
 
+    /**
+     * If not {@code null}, captures all the traffic exchanged with the dbserver.
+     */
+    final TrafficRecording recording;
+
     /**
      * Used to assign unique numbers to each transaction.
      */
@@ -87,9 +92,30 @@ public class Client {
      * @throws IOException if there is a problem configuring the socket for use
      */
     Client(Socket socket, int targetPlayer, int posingAsPlayer) throws IOException {
+        this(socket, targetPlayer, posingAsPlayer, null);
+    }
+
+    /**
+     * Constructs a client which records its entire conversation with the dbserver, including the greeting and
+     * setup exchanges, so that it can be saved for analysis or later replayed by a {@link TrafficReplayServer}.
+     *
+     * @param socket the newly opened network socket to the dbserver on a player
+     * @param targetPlayer the player number to which the socket was opened
+     * @param posingAsPlayer the player number that we are pretending to be
+     * @param recording if not {@code null}, all bytes sent and received will be added to this recording
+     *
+     * @throws IOException if there is a problem configuring the socket for use
+     */
+    Client(Socket socket, int targetPlayer, int posingAsPlayer, TrafficRecording recording) throws IOException {
         this.socket = socket;
-        is = new DataInputStream(socket.getInputStream());
-        os = socket.getOutputStream();
+        this.recording = recording;
+        if (recording == null) {
+            is = new DataInputStream(socket.getInputStream());
+            os = socket.getOutputStream();
+        } else {
+            is = new DataInputStream(recording.wrapInput(socket.getInputStream()));
+            os = recording.wrapOutput(socket.getOutputStream());
+        }
         channel = Channels.newChannel(os);
         this.targetPlayer = targetPlayer;
         this.posingAsPlayer = posingAsPlayer;
@@ -145,6 +171,37 @@ public class Client {
         // At this point, the server closes the connection from its end, so we can’t read anymore.
     }
 
+    /**
+     * Sends a harmless message to the dbserver to keep an otherwise idle connection alive, and confirm that it is
+     * still usable. We repeat the setup exchange, since it is the one request that every dbserver answers regardless
+     * of what media is mounted.
+     *
+     * <p>This is safe in the middle of a session because of when we send it. The only state a dbserver keeps between
+     * requests is the menu built by a menu request, which the render requests that follow it consume. Those
+     * exchanges always happen while the menu lock is held (see {@link #tryLockingForMenuOperations(long, TimeUnit)}),
+     * so the heartbeat takes that lock too, and is skipped if another task holds it. The setup request builds no menu,
+     * and it only re-confirms the player number we identified ourselves with when the connection was opened. So
+     * no later menu exchange sees any difference, and every one of them starts with its own menu request anyway.</p>
+     *
+     * @return {@code true} if the heartbeat was sent, {@code false} if it was skipped because another task was in
+     *         the middle of a menu operation, which shows the client is in use anyway
+     *
+     * @throws IOException if there is a problem communicating, in which case the client should be closed
+     */
+    boolean heartbeat() throws IOException {
+        if (!menuLock.tryLock()) {
+            return false;
+        }
+        try {
+            synchronized (this) {
+                performSetupExchange();
+            }
+            return true;
+        } finally {
+            menuLock.unlock();
+        }
+    }
+
     /**
      * Check whether our connection is still available for use. We will close it if there is ever a problem
      * communicating with the dbserver.
@@ -350,6 +407,7 @@ public class Client {
     public synchronized Message simpleRequest(Message.KnownType requestType, Message.KnownType responseType,
                                               Field... arguments)
             throws IOException {
+        FetchHandle.checkCurrent();  // Give up before starting a new exchange if our work is no longer wanted.
         final NumberField transaction = assignTransactionNumber();
         final Message request = new Message(transaction, new NumberField(requestType.protocolValue, 2), arguments);
         sendMessage(request);
@@ -566,6 +624,7 @@ public class Client {
         final ArrayList<Message> results = new ArrayList<>(count);
         int gathered = 0;
         while (gathered < count) {
+            FetchHandle.checkCurrent();  // Each batch is a complete exchange, so this is a safe place to give up.
             final int batchSize = (Math.min(count - gathered, menuBatchSize.get()));
             final NumberField transaction = assignTransactionNumber();
             final NumberField limit = new NumberField(batchSize);
@@ -5,20 +5,27 @@ import org.deepsymmetry.beatlink.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manges connections to dbserver ports on the players, offering sessions that can be used to perform transactions,
@@ -93,6 +100,191 @@ public class ConnectionManager extends LifecycleParticipant {
         return idleLimit.get();
     }
 
+    /**
+     * Tracks whether we should open sessions with players as soon as we learn their dbserver ports, and keep them
+     * open even when they are idle.
+     */
+    private final AtomicBoolean keepWarm = new AtomicBoolean(false);
+
+    /**
+     * Holds the player numbers whose sessions are being kept warm.
+     */
+    private final Set<Integer> warmPlayers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * How many seconds an idle warm session is allowed to sit quietly before we send it a heartbeat.
+     */
+    private final AtomicInteger heartbeatInterval = new AtomicInteger(10);
+
+    /**
+     * Set whether sessions should be kept warm. When this is {@code true}, a session is opened with each player
+     * (including the greeting and setup exchange) as soon as we learn its dbserver port, and sessions are no longer
+     * closed when the {@link #getIdleLimit()} expires, but are instead kept alive with periodic heartbeats (see
+     * {@link #setHeartbeatInterval(int)}), so that the first request made of a player does not need to wait for
+     * a connection to be established. Only the single shared session per player is ever kept open. The default
+     * value is {@code false}.
+     *
+     * @param warm if {@code true}, sessions will be opened eagerly and kept open while their players are present
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setKeepWarm(boolean warm) {
+        if (keepWarm.getAndSet(warm) != warm) {
+            if (warm) {
+                if (isRunning()) {
+                    TaskExecutor.getInstance().execute(TaskClass.NETWORK_QUERY, "dbserver session warmer", () -> {
+                        for (DeviceAnnouncement device : DeviceFinder.getInstance().getCurrentDevices()) {
+                            if (dbServerPorts.containsKey(device.getAddress())) {
+                                warmUpSession(device.getDeviceNumber());
+                            }
+                        }
+                    });
+                }
+            } else {
+                warmPlayers.clear();  // The idle client closer will now close them in the normal way.
+            }
+        }
+    }
+
+    /**
+     * Check whether sessions are being kept warm. When this is {@code true}, a session is opened with each player
+     * as soon as we learn its dbserver port, and sessions are kept alive with periodic heartbeats rather than being
+     * closed when the {@link #getIdleLimit()} expires.
+     *
+     * @return {@code true} if sessions are opened eagerly and kept open while their players are present
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isKeepWarm() {
+        return keepWarm.get();
+    }
+
+    /**
+     * Set how long a warm session can sit idle before we send a heartbeat to keep it alive and make sure it is still
+     * usable. A value of zero disables heartbeats, so warm sessions are simply left open. The default value is 10.
+     *
+     * @param seconds the number of idle seconds after which a heartbeat will be sent
+     *
+     * @throws IllegalArgumentException if a negative value is supplied
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setHeartbeatInterval(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds cannot be negative");
+        }
+        heartbeatInterval.set(seconds);
+    }
+
+    /**
+     * Check how long a warm session can sit idle before we send a heartbeat to keep it alive and make sure it is
+     * still usable. A value of zero means heartbeats are not sent.
+     *
+     * @return the number of idle seconds after which a heartbeat will be sent
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public int getHeartbeatInterval() {
+        return heartbeatInterval.get();
+    }
+
+    /**
+     * Get the player numbers with which sessions are currently being kept warm.
+     *
+     * @return the players whose sessions will not be closed when idle
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Set<Integer> getWarmPlayers() {
+        return Set.copyOf(warmPlayers);
+    }
+
+    /**
+     * Open a session with a player, if one is not already open, and mark it as one to be kept warm.
+     *
+     * @param player the player number with which a session should be kept open
+     */
+    private void warmUpSession(int player) {
+        if (!isRunning() || !keepWarm.get()) {
+            return;
+        }
+        try {
+            final Client client = allocateClient(player, "warming up a session");
+            warmPlayers.add(player);
+            freeClient(client);
+            logger.info("Warmed up dbserver session with player {}", player);
+        } catch (Exception e) {
+            logger.info("Unable to warm up dbserver session with player {}, will connect when needed.", player, e);
+        }
+    }
+
+    /**
+     * Check whether a client is one we are supposed to be keeping open even when it is idle.
+     *
+     * @param client the client of interest
+     *
+     * @return {@code true} if the client should not be closed when it becomes idle
+     */
+    private boolean isKeptWarm(Client client) {
+        return keepWarm.get() && warmPlayers.contains(client.targetPlayer);
+    }
+
+    /**
+     * If not {@code null}, the directory in which recordings of each client's conversation with its dbserver should
+     * be saved when the client is closed.
+     */
+    private final AtomicReference<File> trafficRecordingDirectory = new AtomicReference<>();
+
+    /**
+     * Set a directory in which to save recordings of the complete conversation each newly opened client has with its
+     * player's dbserver. Each recording is written to a file named after the player and the time the session was
+     * opened, with the extension {@code .dbrec}, when the client is closed. These can be loaded using
+     * {@link TrafficRecording#load(File)} and served to a {@link Client} by a {@link TrafficReplayServer} for
+     * benchmarking and regression testing without any hardware. Clients which were already open when this is set are
+     * not recorded. The default value is {@code null}, which disables recording.
+     *
+     * @param directory the directory in which recordings should be saved, or {@code null} to stop recording
+     *
+     * @throws IllegalArgumentException if a non-{@code null} value is not an existing directory
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void setTrafficRecordingDirectory(File directory) {
+        if (directory != null && !directory.isDirectory()) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+        trafficRecordingDirectory.set(directory);
+    }
+
+    /**
+     * Check where recordings of client conversations with dbservers are being saved.
+     *
+     * @return the directory in which recordings are saved, or {@code null} if traffic is not being recorded
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public File getTrafficRecordingDirectory() {
+        return trafficRecordingDirectory.get();
+    }
+
+    /**
+     * If a client was recording its traffic, save the recording now that the client has been closed.
+     *
+     * @param client the client which has just been closed
+     */
+    private void saveRecording(Client client) {
+        final TrafficRecording recording = client.recording;
+        final File directory = trafficRecordingDirectory.get();
+        if (recording != null && directory != null) {
+            final File file = new File(directory, "dbserver-player-" + recording.targetPlayer + "-" +
+                    recording.startTime + ".dbrec");
+            try {
+                recording.save(file);
+                if (recording.isComplete()) {
+                    logger.info("Saved dbserver traffic recording {}", file);
+                } else {
+                    logger.warn("Saved dbserver traffic recording {}, which stopped when it reached {} bytes", file,
+                            TrafficRecording.MAX_RECORDED_BYTES);
+                }
+            } catch (IOException e) {
+                logger.warn("Problem saving dbserver traffic recording {}", file, e);
+            }
+        }
+    }
+
     /**
      * Finds or opens a client to talk to the dbserver on the specified player, incrementing its use count.
      *
@@ -127,7 +319,9 @@ public class ConnectionManager extends LifecycleParticipant {
                 socket = new Socket();
                 socket.connect(address, socketTimeout.get());
                 socket.setSoTimeout(socketTimeout.get());
-                result = new Client(socket, targetPlayer, posingAsPlayerNumber);
+                final TrafficRecording recording = (trafficRecordingDirectory.get() == null)? null :
+                        new TrafficRecording(targetPlayer, posingAsPlayerNumber);
+                result = new Client(socket, targetPlayer, posingAsPlayerNumber, recording);
             } catch (IOException e) {
                 try {
                     socket.close();
@@ -138,6 +332,9 @@ public class ConnectionManager extends LifecycleParticipant {
             }
             openClients.put(targetPlayer, result);
             useCounts.put(result, 0);
+            if (keepWarm.get()) {
+                warmPlayers.add(targetPlayer);  // Even sessions opened on demand are worth keeping, once we are warm.
+            }
         }
         useCounts.put(result, useCounts.get(result) + 1);
         return result;
@@ -151,6 +348,7 @@ public class ConnectionManager extends LifecycleParticipant {
     private void closeClient(Client client) {
         logger.debug("Closing client {}", client);
         client.close();
+        saveRecording(client);
         openClients.remove(client.targetPlayer);
         useCounts.remove(client);
         timestamps.remove(client);
@@ -166,7 +364,7 @@ public class ConnectionManager extends LifecycleParticipant {
         if (current > 0) {
             timestamps.put(client, System.currentTimeMillis());  // Mark that it was used until now.
             useCounts.put(client, current - 1);
-            if ((current == 1) && (idleLimit.get() == 0)) {
+            if ((current == 1) && (idleLimit.get() == 0) && !isKeptWarm(client)) {
                 closeClient(client);  // This was the last use, and we are supposed to immediately close idle clients.
             }
         } else {
@@ -186,7 +384,10 @@ public class ConnectionManager extends LifecycleParticipant {
      *
      * @return the value returned by the completed task
      *
-     * @throws IOException if there is a problem communicating
+     * @throws IOException if there is a problem communicating, or if the {@link RetryScheduler} has stopped sending
+     *         requests to the player because too many in a row have failed
+     * @throws java.util.concurrent.CancellationException if the {@link FetchHandle} attached to the current thread
+     *         has been cancelled
      * @throws Exception from the underlying {@code task}, if any
      */
     @API(status = API.Status.STABLE)
@@ -195,15 +396,53 @@ public class ConnectionManager extends LifecycleParticipant {
         if (!isRunning()) {
             throw new IllegalStateException("ConnectionManager is not running, aborting " + description);
         }
+        FetchHandle.checkCurrent();  // No point in tying up a session for work that is no longer wanted.
+        final RetryScheduler scheduler = RetryScheduler.getInstance();
+        if (!scheduler.allowRequest(targetPlayer)) {
+            throw new IOException("Not " + description + " from player " + targetPlayer +
+                    " because too many recent requests to it have failed.");
+        }
 
-        final Client client = allocateClient(targetPlayer, description);
+        final Client client;
         try {
-            return task.useClient(client);
+            client = allocateClient(targetPlayer, description);
+        } catch (IOException e) {
+            scheduler.recordFailure(targetPlayer);
+            throw e;
+        }
+        try {
+            final T result = task.useClient(client);
+            scheduler.recordSuccess(targetPlayer);
+            return result;
+        } catch (IOException e) {
+            if (isConnectionFailure(e)) {
+                scheduler.recordFailure(targetPlayer);
+            }
+            throw e;
         } finally {
             freeClient(client);
         }
     }
 
+    /**
+     * Check whether a problem encountered while using a dbserver session means the player itself is unreachable or
+     * unresponsive, as opposed to simply not liking a particular request (for example a track that does not exist,
+     * or an unexpected kind of response), which should not count towards opening the player's circuit breaker.
+     *
+     * @param e the problem that was encountered
+     *
+     * @return {@code true} if the connection failed, was closed, or timed out
+     */
+    private static boolean isConnectionFailure(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof InterruptedIOException ||
+                    cause instanceof EOFException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Keeps track of the database server ports of all the players we have seen on the network.
      * They are grouped by IP address, because players in compound devices like the XDJ-XZ and
@@ -251,11 +490,11 @@ public class ConnectionManager extends LifecycleParticipant {
                 return;
             }
             logger.debug("Processing device found, number: {}, name: {}", announcement.getDeviceNumber(), announcement.getDeviceName());
-            final Thread queryThread = new Thread(() -> requestPlayerDBServerPort(announcement));
-            if (activeQueryThreads.putIfAbsent(announcement.getAddress(), queryThread) == null) {
-                // We were not already querying a device at this address, so we can start our thread.
-                // Otherwise, it will just get garbage collected without ever running.
-                queryThread.start();
+            final AtomicReference<Future<?>> query = new AtomicReference<>();
+            if (activeQueries.putIfAbsent(announcement.getAddress(), query) == null) {
+                // We were not already querying a device at this address, so we can start our query.
+                query.set(TaskExecutor.getInstance().submit(TaskClass.NETWORK_QUERY,
+                        "dbserver port query for " + announcement.getAddress(), () -> requestPlayerDBServerPort(announcement)));
             }
         }
 
@@ -266,6 +505,8 @@ public class ConnectionManager extends LifecycleParticipant {
                 return;
             }
             dbServerPorts.remove(announcement.getAddress());
+            warmPlayers.remove(announcement.getDeviceNumber());  // Let the idle client closer clean up the session.
+            RetryScheduler.getInstance().reset(announcement.getDeviceNumber());  // A returning player starts fresh.
         }
     };
 
@@ -282,11 +523,12 @@ public class ConnectionManager extends LifecycleParticipant {
     };
 
     /**
-     * Keeps track of threads currently querying for database server ports, indexed by the address of the device
+     * Keeps track of the queries currently trying to find database server ports, indexed by the address of the device
      * being queried, so we can make sure we only ask once, even when multiple devices share the same address.
-     * Also allows us to interrupt those threads when we are shutting down.
+     * Also allows us to cancel those queries when we are shutting down. The future is recorded once the query has
+     * been submitted.
      */
-    private final Map<InetAddress,Thread> activeQueryThreads = new ConcurrentHashMap<>();
+    private final Map<InetAddress,AtomicReference<Future<?>>> activeQueries = new ConcurrentHashMap<>();
 
     /**
      * Query a player to determine the port on which its database server is running.
@@ -327,6 +569,9 @@ public class ConnectionManager extends LifecycleParticipant {
                         }
                         if (isRunning()) {  // Bail if we were shut down before we received a response.
                             dbServerPorts.put(announcement.getAddress(), portReturned);
+                            if (keepWarm.get() && portReturned != 65535) {
+                                warmUpSession(announcement.getDeviceNumber());
+                            }
                         }
                         return;  // Success!
                     }
@@ -353,7 +598,7 @@ public class ConnectionManager extends LifecycleParticipant {
                     announcement.getAddress().getHostAddress(), t);
         } finally {
             // No matter how we exit, record the fact that there is no longer a query active for this address.
-            activeQueryThreads.remove(announcement.getAddress());
+            activeQueries.remove(announcement.getAddress());
         }
     }
 
@@ -494,18 +739,78 @@ public class ConnectionManager extends LifecycleParticipant {
 
     /**
      * Finds any clients which are not currently in use, and which have been idle for longer than the
-     * idle timeout, and closes them.
+     * idle timeout, and closes them. Clients which are being kept warm are instead sent a heartbeat once they have
+     * been idle for the heartbeat interval, and closed only if that fails. The heartbeats are sent without holding
+     * our lock, so a slow or unresponsive player cannot hold up sessions with other players; the clients being
+     * checked are marked as in use while that happens, so they are not closed out from under the heartbeat. Other
+     * tasks may still be given those clients, so the heartbeat itself takes the client's menu lock, and is skipped if
+     * a menu operation is under way.
+     */
+    private void closeIdleClients() {
+        final List<Client> heartbeatNeeded = findIdleClients();
+        for (Client client : heartbeatNeeded) {
+            boolean alive;
+            try {
+                if (!client.heartbeat()) {
+                    logger.debug("Skipped heartbeat for warm client {}, which is in the middle of a menu operation.", client);
+                }
+                alive = true;
+            } catch (IOException e) {
+                logger.warn("Heartbeat failed for warm client {}, closing it.", client, e);
+                alive = false;
+            }
+            finishHeartbeat(client, alive);
+        }
+    }
+
+    /**
+     * Closes any clients that have been idle for too long, and finds warm clients that are due for a heartbeat,
+     * marking them as in use until the heartbeat has been sent.
+     *
+     * @return the clients to which heartbeats should be sent
      */
-    private synchronized void closeIdleClients() {
-        List<Client> candidates = new LinkedList<>(openClients.values());
+    private synchronized List<Client> findIdleClients() {
+        final List<Client> candidates = new LinkedList<>(openClients.values());
+        final List<Client> heartbeatNeeded = new LinkedList<>();
         logger.debug("Scanning for idle clients; {} candidates.", candidates.size());
         for (Client client : candidates) {
-            if ((useCounts.get(client) < 1) &&
-                    ((timestamps.get(client) + idleLimit.get() * 1000L) <= System.currentTimeMillis())) {
-                logger.debug("Idle time reached for unused client {}", client);
-                closeClient(client);
+            if (useCounts.get(client) < 1) {
+                final long idleSince = timestamps.get(client);
+                if (isKeptWarm(client)) {
+                    final int interval = heartbeatInterval.get();
+                    if (interval > 0 && (idleSince + interval * 1000L) <= System.currentTimeMillis()) {
+                        useCounts.put(client, 1);  // Keep it open while we check it, outside our lock.
+                        heartbeatNeeded.add(client);
+                    }
+                } else if ((idleSince + idleLimit.get() * 1000L) <= System.currentTimeMillis()) {
+                    logger.debug("Idle time reached for unused client {}", client);
+                    closeClient(client);
+                }
             }
         }
+        return heartbeatNeeded;
+    }
+
+    /**
+     * Release a client once a heartbeat has been sent to it, closing it if the heartbeat failed and nobody else has
+     * started using it in the meantime.
+     *
+     * @param client the client which was sent a heartbeat
+     * @param alive whether the heartbeat succeeded
+     */
+    private synchronized void finishHeartbeat(Client client, boolean alive) {
+        if (openClients.get(client.targetPlayer) != client) {
+            return;  // We were stopped, and the client has already been closed.
+        }
+        if (!alive) {
+            warmPlayers.remove(client.targetPlayer);
+        }
+        final int current = useCounts.get(client);
+        useCounts.put(client, current - 1);
+        timestamps.put(client, System.currentTimeMillis());
+        if (current == 1 && !alive) {
+            closeClient(client);
+        }
     }
 
     /**
@@ -549,19 +854,25 @@ public class ConnectionManager extends LifecycleParticipant {
         if (isRunning()) {
             running.set(false);
             DeviceFinder.getInstance().removeDeviceAnnouncementListener(announcementListener);
-            for (Thread thread : activeQueryThreads.values()) {
-                thread.interrupt();  // Cancel any ongoing attempts to find server ports.
+            for (AtomicReference<Future<?>> query : activeQueries.values()) {
+                final Future<?> future = query.get();
+                if (future != null) {
+                    future.cancel(true);  // Cancel any ongoing attempts to find server ports.
+                }
             }
             dbServerPorts.clear();
+            RetryScheduler.getInstance().resetAll();
             for (Client client : openClients.values()) {
                 try {
                     client.close();
+                    saveRecording(client);
                 } catch (Exception e) {
                     logger.warn("Problem closing {} when stopping", client, e);
                 }
             }
             openClients.clear();
             useCounts.clear();
+            warmPlayers.clear();
             deliverLifecycleAnnouncement(logger, false);
         }
     }
@@ -593,6 +904,8 @@ public class ConnectionManager extends LifecycleParticipant {
         StringBuilder sb = new StringBuilder("ConnectionManager[running:").append(isRunning());
         sb.append(", dbServerPorts:").append(dbServerPorts).append(", openClients:").append(openClients);
         sb.append(", useCounts:").append(useCounts).append(", timestamps:").append(timestamps);
+        sb.append(", keepWarm:").append(keepWarm.get()).append(", warmPlayers:").append(warmPlayers);
+        sb.append(", trafficRecordingDirectory:").append(trafficRecordingDirectory.get());
         return sb.append(", idleLimit:").append(idleLimit.get()).append("]").toString();
     }
 }
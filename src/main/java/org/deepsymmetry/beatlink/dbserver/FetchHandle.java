@@ -0,0 +1,138 @@
+package org.deepsymmetry.beatlink.dbserver;
+
+import org.apiguardian.api.API;
+import org.deepsymmetry.beatlink.CdjStatus;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Allows work being performed on behalf of a particular purpose (such as loading data for the track currently
+ * loaded on a deck) to be abandoned once it is no longer needed, without disrupting the dbserver session that
+ * the work is using.</p>
+ *
+ * <p>A handle is attached to the thread doing the work by calling {@link #attach()}. From then on, whenever that
+ * thread is about to start a new request/response exchange with a player (see {@link Client#simpleRequest(Message.KnownType, Message.KnownType, Field...)}
+ * and the batches of {@link Client#renderMenuItems(Message.MenuIdentifier, CdjStatus.TrackSourceSlot, CdjStatus.TrackType, int, int)}),
+ * or to allocate a client session through
+ * {@link ConnectionManager#invokeWithClientSession(int, ConnectionManager.ClientTask, String)}, it checks whether the
+ * handle has been cancelled. If so, a {@link CancellationException} is thrown <em>before</em> anything is sent, so
+ * the session is left between exchanges and can safely be used by the next task. Exchanges which are already
+ * underway are always allowed to finish.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class FetchHandle {
+
+    /**
+     * Keeps track of the handle, if any, that is attached to each thread.
+     */
+    private static final ThreadLocal<FetchHandle> current = new ThreadLocal<>();
+
+    /**
+     * Describes the purpose of the work governed by this handle, for logging and troubleshooting.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final String description;
+
+    /**
+     * The value of {@link System#nanoTime()} when this handle was created.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long createdAt;
+
+    /**
+     * Tracks whether the work governed by this handle is no longer wanted.
+     */
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    /**
+     * Create a handle which can be used to abandon some work.
+     *
+     * @param description describes the purpose of the work, for logging and troubleshooting
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public FetchHandle(String description) {
+        this.description = description;
+        createdAt = System.nanoTime();
+    }
+
+    /**
+     * Indicate that the work governed by this handle is no longer wanted. Any thread to which the handle is
+     * attached will give up at the next safe opportunity.
+     *
+     * @return {@code true} if this call cancelled the handle, {@code false} if it had already been cancelled
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean cancel() {
+        return cancelled.compareAndSet(false, true);
+    }
+
+    /**
+     * Check whether the work governed by this handle is no longer wanted.
+     *
+     * @return {@code true} if {@link #cancel()} has been called
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Attach this handle to the current thread, so that the work it performs can be abandoned by cancelling the
+     * handle. The caller must pass the returned value to {@link #restore(FetchHandle)} once the work is finished,
+     * normally in a {@code finally} clause.
+     *
+     * @return the handle which was previously attached to the current thread, if any
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public FetchHandle attach() {
+        final FetchHandle previous = current.get();
+        current.set(this);
+        return previous;
+    }
+
+    /**
+     * Restore the handle that was attached to the current thread before a call to {@link #attach()}.
+     *
+     * @param previous the value returned by the corresponding call to {@link #attach()}, may be {@code null}
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static void restore(FetchHandle previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * Find the handle, if any, that is governing the work of the current thread.
+     *
+     * @return the handle attached to the current thread, or {@code null} if there is none
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static FetchHandle getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Called at safe points, such as before starting a new request/response exchange with a player, to give up if
+     * the work being performed by the current thread is no longer wanted.
+     *
+     * @throws CancellationException if the handle attached to the current thread has been cancelled
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static void checkCurrent() {
+        final FetchHandle handle = current.get();
+        if (handle != null && handle.cancelled.get()) {
+            throw new CancellationException("Abandoning work that is no longer needed: " + handle.description);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FetchHandle[description:" + description + ", cancelled:" + cancelled.get() + "]";
+    }
+}
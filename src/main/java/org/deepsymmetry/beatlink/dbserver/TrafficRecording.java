@@ -0,0 +1,396 @@
+package org.deepsymmetry.beatlink.dbserver;
+
+import org.apiguardian.api.API;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Captures the complete conversation between a {@link Client} and a player's dbserver: every byte sent and
+ * received, grouped into chunks by direction, along with when each chunk began. Recordings can be saved to and
+ * loaded from files, examined as {@link Message} objects, and served back to a real {@link Client} by a
+ * {@link TrafficReplayServer}, which makes it possible to benchmark and regression-test protocol handling using
+ * real-world payloads without any hardware.</p>
+ *
+ * <p>Recordings are made by the {@link ConnectionManager} when a directory has been configured using
+ * {@link ConnectionManager#setTrafficRecordingDirectory(File)}. Recordings are held in memory until they are saved,
+ * so each one stops capturing traffic once it reaches {@link #MAX_RECORDED_BYTES}; use {@link #isComplete()} to
+ * find out whether that happened.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class TrafficRecording {
+
+    /**
+     * Identifies files containing dbserver traffic recordings.
+     */
+    private static final int FILE_MAGIC = 0x424c4452;  // "BLDR"
+
+    /**
+     * The version of the recording file format we read and write.
+     */
+    private static final int FILE_VERSION = 2;
+
+    /**
+     * The largest number of bytes a recording will capture. Once a transfer would take it past this size, the
+     * recording stops, so that a long-lived client cannot exhaust memory by being recorded.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static final int MAX_RECORDED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * A contiguous run of bytes that traveled in one direction between the client and the dbserver.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static class Chunk {
+
+        /**
+         * Will be {@code true} if these bytes were sent by the player, {@code false} if they were sent by the client.
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public final boolean fromPlayer;
+
+        /**
+         * The number of nanoseconds after the start of the recording at which the first of these bytes was transferred.
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public final long timestamp;
+
+        /**
+         * Accumulates the bytes of the chunk.
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * Constructor sets the immutable fields.
+         *
+         * @param fromPlayer indicates the direction in which the bytes traveled
+         * @param timestamp the number of nanoseconds after the start of the recording at which the chunk began
+         */
+        private Chunk(boolean fromPlayer, long timestamp) {
+            this.fromPlayer = fromPlayer;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Get the bytes that make up this chunk.
+         *
+         * @return a copy of the bytes that were transferred
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public byte[] getBytes() {
+            synchronized (bytes) {
+                return bytes.toByteArray();
+            }
+        }
+
+        /**
+         * Get the number of bytes that make up this chunk.
+         *
+         * @return how many bytes were transferred
+         */
+        @API(status = API.Status.EXPERIMENTAL)
+        public int size() {
+            synchronized (bytes) {
+                return bytes.size();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[fromPlayer:" + fromPlayer + ", timestamp:" + timestamp + ", size:" + size() + "]";
+        }
+    }
+
+    /**
+     * The player number whose dbserver was being talked to.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int targetPlayer;
+
+    /**
+     * The player number the client was posing as.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final int posingAsPlayer;
+
+    /**
+     * The {@link System#currentTimeMillis()} value at which the recording began.
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public final long startTime;
+
+    /**
+     * The {@link System#nanoTime()} value at which the recording began, used to timestamp chunks.
+     */
+    private final long startNanos;
+
+    /**
+     * The chunks recorded so far.
+     */
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    /**
+     * The total number of bytes in all the chunks recorded so far.
+     */
+    private long recordedBytes;
+
+    /**
+     * Becomes {@code true} if the recording stopped because it reached {@link #MAX_RECORDED_BYTES}.
+     */
+    private boolean truncated;
+
+    /**
+     * Create a new, empty recording, ready to capture a conversation.
+     *
+     * @param targetPlayer the player number whose dbserver will be talked to
+     * @param posingAsPlayer the player number the client will pose as
+     */
+    TrafficRecording(int targetPlayer, int posingAsPlayer) {
+        this.targetPlayer = targetPlayer;
+        this.posingAsPlayer = posingAsPlayer;
+        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Constructor used when loading a recording from a file.
+     *
+     * @param targetPlayer the player number whose dbserver was talked to
+     * @param posingAsPlayer the player number the client posed as
+     * @param startTime when the recording began
+     */
+    private TrafficRecording(int targetPlayer, int posingAsPlayer, long startTime) {
+        this.targetPlayer = targetPlayer;
+        this.posingAsPlayer = posingAsPlayer;
+        this.startTime = startTime;
+        startNanos = 0;
+    }
+
+    /**
+     * Record some bytes that were transferred, adding them to the current chunk if they are traveling in the same
+     * direction, or starting a new chunk if the direction has changed. Once the recording reaches
+     * {@link #MAX_RECORDED_BYTES}, nothing more is recorded.
+     *
+     * @param fromPlayer indicates the direction in which the bytes traveled
+     * @param buffer holds the bytes
+     * @param offset where the bytes begin within the buffer
+     * @param length how many bytes were transferred
+     */
+    private synchronized void record(boolean fromPlayer, byte[] buffer, int offset, int length) {
+        if (length < 1 || truncated) {
+            return;
+        }
+        if (recordedBytes + length > MAX_RECORDED_BYTES) {
+            truncated = true;  // Stop here rather than keep an ever-growing conversation in memory.
+            return;
+        }
+        recordedBytes += length;
+        Chunk current = chunks.isEmpty()? null : chunks.get(chunks.size() - 1);
+        if (current == null || current.fromPlayer != fromPlayer) {
+            current = new Chunk(fromPlayer, System.nanoTime() - startNanos);
+            chunks.add(current);
+        }
+        synchronized (current.bytes) {
+            current.bytes.write(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Wrap the stream from which a client will read the player's responses so that everything it reads is recorded.
+     *
+     * @param in the stream connected to the player
+     *
+     * @return a stream that records what is read from it
+     */
+    InputStream wrapInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int result = super.read();
+                if (result >= 0) {
+                    record(true, new byte[] {(byte) result}, 0, 1);
+                }
+                return result;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int result = super.read(b, off, len);
+                record(true, b, off, result);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Wrap the stream to which a client will write its requests so that everything it writes is recorded.
+     *
+     * @param out the stream connected to the player
+     *
+     * @return a stream that records what is written to it
+     */
+    OutputStream wrapOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                record(false, new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                record(false, b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Check whether the entire conversation was captured. A recording which reached {@link #MAX_RECORDED_BYTES}
+     * holds only the start of the conversation, and its last message in each direction may be cut short.
+     *
+     * @return {@code true} unless the recording stopped because it grew too large
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized boolean isComplete() {
+        return !truncated;
+    }
+
+    /**
+     * Get the chunks that make up the recorded conversation.
+     *
+     * @return the chunks recorded so far, in the order they were transferred
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized List<Chunk> getChunks() {
+        return Collections.unmodifiableList(new ArrayList<>(chunks));
+    }
+
+    /**
+     * Parse the messages that traveled in one direction, skipping the initial greeting, which is a bare number field
+     * rather than a message.
+     *
+     * @param fromPlayer {@code true} to parse the responses from the player, {@code false} to parse the requests
+     *
+     * @return the messages found
+     *
+     * @throws IOException if the recorded bytes cannot be parsed as messages
+     */
+    private List<Message> parseMessages(boolean fromPlayer) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        boolean greetingSkipped = false;
+        for (Chunk chunk : getChunks()) {
+            if (chunk.fromPlayer == fromPlayer) {
+                if (greetingSkipped) {
+                    stream.write(chunk.getBytes());
+                } else {
+                    greetingSkipped = true;
+                }
+            }
+        }
+        final byte[] bytes = stream.toByteArray();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final List<Message> result = new ArrayList<>();
+        while (in.available() > 0) {
+            result.add(Message.read(in));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Parse the requests sent by the client during the recorded conversation.
+     *
+     * @return all the messages sent by the client after the initial greeting
+     *
+     * @throws IOException if the recorded bytes cannot be parsed as messages
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public List<Message> getRequests() throws IOException {
+        return parseMessages(false);
+    }
+
+    /**
+     * Parse the responses sent by the player during the recorded conversation.
+     *
+     * @return all the messages sent by the player after the initial greeting
+     *
+     * @throws IOException if the recorded bytes cannot be parsed as messages
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public List<Message> getResponses() throws IOException {
+        return parseMessages(true);
+    }
+
+    /**
+     * Save the recording to a file.
+     *
+     * @param file where the recording should be written
+     *
+     * @throws IOException if there is a problem writing the file
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(targetPlayer);
+            out.writeInt(posingAsPlayer);
+            out.writeLong(startTime);
+            out.writeBoolean(!isComplete());
+            final List<Chunk> snapshot = getChunks();
+            out.writeInt(snapshot.size());
+            for (Chunk chunk : snapshot) {
+                final byte[] bytes = chunk.getBytes();
+                out.writeBoolean(chunk.fromPlayer);
+                out.writeLong(chunk.timestamp);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Load a recording that was previously saved to a file.
+     *
+     * @param file the file containing the recording
+     *
+     * @return the recording
+     *
+     * @throws IOException if there is a problem reading the file, or it does not contain a recording
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public static TrafficRecording load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("File " + file + " does not contain a dbserver traffic recording.");
+            }
+            final int version = in.readInt();
+            if (version < 1 || version > FILE_VERSION) {
+                throw new IOException("Unsupported dbserver traffic recording version " + version + " in file " + file);
+            }
+            final TrafficRecording result = new TrafficRecording(in.readInt(), in.readInt(), in.readLong());
+            result.truncated = (version > 1) && in.readBoolean();  // Version 1 files could not be truncated.
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Chunk chunk = new Chunk(in.readBoolean(), in.readLong());
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                chunk.bytes.write(bytes);
+                result.chunks.add(chunk);
+                result.recordedBytes += bytes.length;
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TrafficRecording[targetPlayer:" + targetPlayer + ", posingAsPlayer:" + posingAsPlayer +
+                ", startTime:" + startTime + ", chunks:" + chunks.size() + ", bytes:" + recordedBytes +
+                ", complete:" + !truncated + "]";
+    }
+}
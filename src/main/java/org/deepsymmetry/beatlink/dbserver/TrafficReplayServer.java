@@ -0,0 +1,250 @@
+package org.deepsymmetry.beatlink.dbserver;
+
+import org.apiguardian.api.API;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Plays the part of a player's dbserver by serving the responses captured in a {@link TrafficRecording} over a
+ * socket on the loopback interface, so that a real {@link Client} can be exercised against real-world payloads
+ * without any hardware. This makes it possible to benchmark the full path from socket to parsed objects (for
+ * example {@link Message#read(DataInputStream)}, and the construction of track metadata, cue lists, and waveforms
+ * from the messages returned by the client), and to regression-test changes to the protocol implementation by
+ * checking that the client still sends exactly the requests that were recorded.</p>
+ *
+ * <p>Each connection accepted by the server replays the entire recording from the beginning. Whenever the recording
+ * shows the client sending bytes, the server reads the same number of bytes and compares them to the recorded ones,
+ * counting any differences (see {@link #getMismatchCount()}); whenever it shows the player sending bytes, the server
+ * sends them, after a delay determined by the time scale and added latency given to the constructor.</p>
+ *
+ * @author James Elliott
+ */
+@API(status = API.Status.EXPERIMENTAL)
+public class TrafficReplayServer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficReplayServer.class);
+
+    /**
+     * The recorded conversation we are replaying.
+     */
+    private final TrafficRecording recording;
+
+    /**
+     * Multiplies the delays between client requests and player responses found in the recording.
+     */
+    private final double timeScale;
+
+    /**
+     * Additional milliseconds to wait before sending each player response.
+     */
+    private final long addedLatency;
+
+    /**
+     * The socket on which we accept connections, once we have been started.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Counts the client chunks which did not match what was recorded.
+     */
+    private final AtomicLong mismatchCount = new AtomicLong();
+
+    /**
+     * Counts the connections that have replayed the entire recording.
+     */
+    private final AtomicLong completedCount = new AtomicLong();
+
+    /**
+     * Create a server which replays a recorded dbserver conversation.
+     *
+     * @param recording the conversation to be replayed
+     * @param timeScale how to scale the time the player took to respond to each request in the recording: a value
+     *                  of {@code 1.0} reproduces the recorded timing, larger values slow the player down, and
+     *                  {@code 0.0} sends each response as soon as the corresponding request has been received
+     * @param addedLatency a number of milliseconds to wait, in addition to any scaled delay, before each response,
+     *                     to simulate slower or more distant players
+     *
+     * @throws IllegalArgumentException if {@code timeScale} or {@code addedLatency} is negative
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public TrafficReplayServer(TrafficRecording recording, double timeScale, long addedLatency) {
+        if (timeScale < 0.0) {
+            throw new IllegalArgumentException("timeScale cannot be negative");
+        }
+        if (addedLatency < 0) {
+            throw new IllegalArgumentException("addedLatency cannot be negative");
+        }
+        this.recording = recording;
+        this.timeScale = timeScale;
+        this.addedLatency = addedLatency;
+    }
+
+    /**
+     * Create a server which replays a recorded dbserver conversation as quickly as possible.
+     *
+     * @param recording the conversation to be replayed
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public TrafficReplayServer(TrafficRecording recording) {
+        this(recording, 0.0, 0);
+    }
+
+    /**
+     * Start accepting connections on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException if there is a problem opening the server socket
+     * @throws IllegalStateException if the server has already been started
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("TrafficReplayServer has already been started");
+        }
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverSocket = socket;
+        final Thread acceptor = new Thread(() -> {
+            while (!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    replay(connection);
+                } catch (SocketException e) {
+                    if (!socket.isClosed()) {
+                        logger.warn("Problem replaying dbserver traffic", e);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Problem replaying dbserver traffic", e);
+                }
+            }
+        }, "dbserver traffic replay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Play back the recorded conversation over a newly accepted connection.
+     *
+     * @param connection the connection opened by a client
+     *
+     * @throws IOException if there is a problem communicating with the client
+     * @throws InterruptedException if interrupted while simulating a delay
+     */
+    private void replay(Socket connection) throws IOException, InterruptedException {
+        final DataInputStream is = new DataInputStream(connection.getInputStream());
+        final OutputStream os = connection.getOutputStream();
+        final List<TrafficRecording.Chunk> chunks = recording.getChunks();
+        long lastRequestTimestamp = 0;
+        for (TrafficRecording.Chunk chunk : chunks) {
+            final byte[] expected = chunk.getBytes();
+            if (chunk.fromPlayer) {
+                final long delayNanos = Math.round((chunk.timestamp - lastRequestTimestamp) * timeScale) +
+                        TimeUnit.MILLISECONDS.toNanos(addedLatency);
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+                os.write(expected);
+                os.flush();
+            } else {
+                final byte[] received = new byte[expected.length];
+                is.readFully(received);
+                if (!Arrays.equals(expected, received)) {
+                    mismatchCount.incrementAndGet();
+                    logger.warn("Client sent {} bytes that differed from recording at {} ns", received.length, chunk.timestamp);
+                }
+                lastRequestTimestamp = chunk.timestamp;
+            }
+        }
+        completedCount.incrementAndGet();
+    }
+
+    /**
+     * Get the port on which the server is accepting connections.
+     *
+     * @return the port number on the loopback interface to which clients should connect
+     *
+     * @throws IllegalStateException if the server is not running
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized int getPort() {
+        if (serverSocket == null) {
+            throw new IllegalStateException("TrafficReplayServer is not running");
+        }
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Open a {@link Client} connected to this server, which will perform the greeting and setup exchanges found in
+     * the recording. The client can then be used to issue the same requests that were made when the recording was
+     * captured. It must be passed to {@link #disconnect(Client)} when it is no longer needed.
+     *
+     * @return a client talking to the simulated dbserver
+     *
+     * @throws IOException if there is a problem establishing the session
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public Client connect() throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), getPort());
+        socket.setSoTimeout(ConnectionManager.getInstance().getSocketTimeout());
+        return new Client(socket, recording.targetPlayer, recording.posingAsPlayer);
+    }
+
+    /**
+     * Close a client which was opened by {@link #connect()}, performing the teardown exchange.
+     *
+     * @param client the client to close
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public void disconnect(Client client) {
+        client.close();
+    }
+
+    /**
+     * Check how many times the client has sent bytes which differed from what was recorded. This should remain
+     * zero if the client is issuing the same requests, in the same order, as when the recording was captured, and
+     * the protocol implementation has not changed in a way which alters the bytes it sends.
+     *
+     * @return the number of client chunks that did not match the recording
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+
+    /**
+     * Check how many connections have played back the entire recording.
+     *
+     * @return the number of complete replays
+     */
+    @API(status = API.Status.EXPERIMENTAL)
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Stop accepting connections.
+     *
+     * @throws IOException if there is a problem closing the server socket
+     */
+    @Override
+    @API(status = API.Status.EXPERIMENTAL)
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+            serverSocket = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TrafficReplayServer[recording:" + recording + ", timeScale:" + timeScale + ", addedLatency:" +
+                addedLatency + ", mismatches:" + getMismatchCount() + ", completed:" + getCompletedCount() + "]";
+    }
+}